@@ -0,0 +1,96 @@
+package org.cch.napa.flow;
+
+import java.util.concurrent.Flow;
+import java.util.stream.Stream;
+
+import org.cch.napa.JdbcDao;
+import org.cch.napa.entity.EntityDao;
+import org.cch.napa.exceptions.PersistenceException;
+import org.cch.napa.mapper.RecordMapper;
+
+/**
+ * Gives the results of the queries of the daos as {@link Flow.Publisher}s, read only as the subscribers request them.<br>
+ * Each subscription executes the query on its first request and holds a PreparedStatement (and its connection)
+ * until all the records have been delivered, the subscription is cancelled or an error occurs.
+ * The records are read and mapped by the thread requesting them: a slow subscriber thus holds the statement longer
+ * but the records it did not request yet are not kept in memory.
+ * The errors (including the ones of the execution of the query) are given to {@link Flow.Subscriber#onError(Throwable)}.<br>
+ * This adapter is kept apart from the daos as {@link Flow} requires Java 9.
+ * @author Christophe Champagne
+ *
+ */
+public final class Publishers {
+	private Publishers() {
+	}
+
+	/**
+	 * Gives a publisher of the records of a select
+	 * @param jdbcDao the dao executing the query
+	 * @param query The sql query to execute
+	 * @param mapper The object that will map the recordset into the expected entities
+	 * @param parameters The parameters of the query
+	 * @return the publisher of the mapped records
+	 */
+	public static <T> Flow.Publisher<T> publish(JdbcDao jdbcDao, String query, RecordMapper<T> mapper, Object... parameters) {
+		return publish(jdbcDao, 0, query, mapper, parameters);
+	}
+
+	/**
+	 * Same as {@link #publish(JdbcDao, String, RecordMapper, Object...)} fetching the records by fetchSize
+	 * @param fetchSize the number of records the driver should fetch at once (0 for the default of the driver)
+	 */
+	public static <T> Flow.Publisher<T> publish(final JdbcDao jdbcDao, final int fetchSize, final String query,
+			final RecordMapper<T> mapper, final Object... parameters) {
+		return new ResultSetPublisher<T>(new ResultSetPublisher.StreamSource<T>() {
+			public Stream<T> open() throws PersistenceException {
+				return jdbcDao.stream(fetchSize, query, mapper, parameters);
+			}
+			public String getQuery() {
+				return query;
+			}
+		});
+	}
+
+	/**
+	 * Gives a publisher of all the entities of the table
+	 * @param entityDao the dao of the entities
+	 * @return the publisher of the entities
+	 */
+	public static <E> Flow.Publisher<E> publish(final EntityDao<E> entityDao) {
+		return new ResultSetPublisher<E>(new ResultSetPublisher.StreamSource<E>() {
+			public Stream<E> open() throws PersistenceException {
+				return entityDao.stream();
+			}
+			public String getQuery() {
+				return "select * from " + entityDao.getEntityClass().getName();
+			}
+		});
+	}
+
+	/**
+	 * Gives a publisher of the entities selected by the query
+	 * @param entityDao the dao of the entities
+	 * @param query the select query
+	 * @param parameters the parameters of the query
+	 * @return the publisher of the entities
+	 */
+	public static <E> Flow.Publisher<E> publish(EntityDao<E> entityDao, String query, Object... parameters) {
+		return publish(entityDao, 0, query, parameters);
+	}
+
+	/**
+	 * Same as {@link #publish(EntityDao, String, Object...)} fetching the records by fetchSize
+	 * @param fetchSize the number of records the driver should fetch at once (0 for the default of the driver)
+	 */
+	public static <E> Flow.Publisher<E> publish(final EntityDao<E> entityDao, final int fetchSize, final String query,
+			final Object... parameters) {
+		return new ResultSetPublisher<E>(new ResultSetPublisher.StreamSource<E>() {
+			public Stream<E> open() throws PersistenceException {
+				return entityDao.stream(fetchSize, query, parameters);
+			}
+			public String getQuery() {
+				return query;
+			}
+		});
+	}
+}
@@ -0,0 +1,200 @@
+package org.cch.napa.flow;
+
+import java.util.Spliterator;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.cch.napa.exceptions.PersistenceException;
+import org.cch.napa.exceptions.RuntimePersistenceException;
+
+/**
+ * Publisher of the records of a query, read through the stream of the query (see {@link Publishers}).<br>
+ * Each subscription executes the query on its own. The query is executed on the first request
+ * and the records are read and mapped only as they are requested, by the thread making the request
+ * (the thread of the request delivering the records requested meanwhile by other threads or by the subscriber itself).
+ * The stream is closed (giving its connection back) on completion, on error and on cancellation.
+ * @param <T> The Object type
+ * @author Christophe Champagne
+ */
+class ResultSetPublisher<T> implements Flow.Publisher<T> {
+	private final StreamSource<T> source;
+
+	/**
+	 * Opens the stream of the query of a subscription
+	 */
+	interface StreamSource<T> {
+		/**
+		 * Executes the query
+		 * @return the stream of its records
+		 */
+		Stream<T> open() throws PersistenceException;
+		/**
+		 * @return the query, to report the errors
+		 */
+		String getQuery();
+	}
+
+	/**
+	 * @param source opens the stream of the query for each subscription
+	 */
+	ResultSetPublisher(StreamSource<T> source) {
+		this.source = source;
+	}
+
+	/**
+	 * @see Flow.Publisher#subscribe(Flow.Subscriber)
+	 */
+	public void subscribe(Flow.Subscriber<? super T> subscriber) {
+		if(subscriber == null){
+			throw new NullPointerException("The subscriber cannot be null");
+		}
+		subscriber.onSubscribe(new ResultSetSubscription(subscriber));
+	}
+
+	/**
+	 * Subscription delivering the records of the result set.
+	 * Only one thread at a time reads the result set: the threads requesting records while another one
+	 * is delivering them only add to the demand (this also prevents the recursion when the subscriber requests from onNext).
+	 */
+	private class ResultSetSubscription implements Flow.Subscription, Consumer<T> {
+		private final Flow.Subscriber<? super T> subscriber;
+		//Records requested and not delivered yet (Long.MAX_VALUE for an unbounded demand)
+		private final AtomicLong requested = new AtomicLong();
+		//Number of signals (requests, cancellation) not handled yet by the thread delivering the records
+		private final AtomicInteger pending = new AtomicInteger();
+		private volatile boolean cancelled;
+		private volatile Throwable invalidRequest;
+		//Only accessed by the thread delivering the records
+		private Stream<T> stream;
+		private Spliterator<T> spliterator;
+		private boolean terminated;
+
+		ResultSetSubscription(Flow.Subscriber<? super T> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		/**
+		 * @see Flow.Subscription#request(long)
+		 */
+		public void request(long n) {
+			if(n <= 0){
+				invalidRequest = new IllegalArgumentException("The number of records requested must be positive (" + n + ")");
+			} else {
+				long current;
+				long next;
+				do {
+					current = requested.get();
+					next = current + n < 0 ? Long.MAX_VALUE : current + n;
+				} while(!requested.compareAndSet(current, next));
+			}
+			drain();
+		}
+
+		/**
+		 * @see Flow.Subscription#cancel()
+		 */
+		public void cancel() {
+			cancelled = true;
+			drain();
+		}
+
+		/**
+		 * Gives an item to the subscriber
+		 * @see Consumer#accept(Object)
+		 */
+		public void accept(T item) {
+			subscriber.onNext(item);
+		}
+
+		private void drain() {
+			if(pending.getAndIncrement() != 0){
+				//Another thread is delivering: it will handle this signal
+				return;
+			}
+			int missed = 1;
+			boolean delivered = false;
+			try {
+				do {
+					deliver();
+					missed = pending.addAndGet(-missed);
+				} while(missed != 0);
+				delivered = true;
+			} finally {
+				if(!delivered){
+					//The subscriber threw an exception: do not keep the statement opened
+					terminated = true;
+					closeQuietly();
+				}
+			}
+		}
+
+		/**
+		 * Delivers the records requested until now
+		 */
+		private void deliver() {
+			if(terminated){
+				return;
+			}
+			if(cancelled){
+				terminated = true;
+				closeQuietly();
+				return;
+			}
+			if(invalidRequest != null){
+				terminated = true;
+				closeQuietly();
+				subscriber.onError(invalidRequest);
+				return;
+			}
+			long demand = requested.get();
+			long emitted = 0;
+			while(emitted != demand && !cancelled){
+				boolean advanced;
+				try {
+					if(stream == null){
+						stream = source.open();
+						spliterator = stream.spliterator();
+					}
+					advanced = spliterator.tryAdvance(this);
+				} catch (PersistenceException e) {
+					fail(e);
+					return;
+				} catch (RuntimePersistenceException e) {
+					fail(e);
+					return;
+				}
+				if(!advanced){
+					//The statement was closed at the end of the result set
+					terminated = true;
+					subscriber.onComplete();
+					return;
+				}
+				emitted++;
+			}
+			if(demand != Long.MAX_VALUE){
+				requested.addAndGet(-emitted);
+			}
+		}
+
+		private void fail(Throwable error) {
+			terminated = true;
+			closeQuietly();
+			subscriber.onError(error);
+		}
+
+		private void closeQuietly() {
+			if(stream != null){
+				try {
+					stream.close();
+				} catch (RuntimePersistenceException e) {
+					//Nobody to report to anymore
+					System.err.println("Could not close the statement of the query " + source.getQuery());
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package org.cch.napa.flow;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+import org.cch.napa.JdbcDao;
+import org.cch.napa.entity.impl.sqlite.SQLiteEntityDaoFactory;
+import org.cch.napa.exceptions.PersistenceException;
+import org.cch.napa.jdbc.PooledConnectionProvider;
+import org.cch.napa.mapper.RecordMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PublishersTest {
+    private static final RecordMapper<Long> ID_MAPPER = resultSet -> resultSet.getLong(1);
+    private File dbFile;
+    private PooledConnectionProvider connectionProvider;
+    private JdbcDao jdbcDao;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        dbFile = File.createTempFile("napa", ".db");
+        connectionProvider = new PooledConnectionProvider("jdbc:sqlite:" + dbFile.getPath(), 2);
+        jdbcDao = new SQLiteEntityDaoFactory(connectionProvider).getJdbcDao();
+        jdbcDao.executeUpdate("create table item (id integer primary key)");
+        for (long id = 1; id <= 10; id++) {
+            jdbcDao.executeUpdate("insert into item (id) values (?)", id);
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        assertEquals(0, connectionProvider.getActiveCount());
+        connectionProvider.close();
+        dbFile.delete();
+    }
+
+    @Test
+    void recordsAreReadAsTheyAreRequested() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        long borrowCount = connectionProvider.getBorrowCount();
+        Publishers.publish(jdbcDao, "select id from item order by id", ID_MAPPER).subscribe(subscriber);
+        //The query is executed on the first request
+        assertEquals(borrowCount, connectionProvider.getBorrowCount());
+        subscriber.subscription.request(3);
+        assertEquals(List.of(1L, 2L, 3L), subscriber.items);
+        assertEquals(1, connectionProvider.getActiveCount());
+        assertFalse(subscriber.completed);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertEquals(10, subscriber.items.size());
+        assertTrue(subscriber.completed);
+        assertNull(subscriber.error);
+    }
+
+    @Test
+    void requestsFromOnNextAreNotRecursive() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber() {
+            @Override
+            public void onNext(Long item) {
+                super.onNext(item);
+                subscription.request(1);
+            }
+        };
+        Publishers.publish(jdbcDao, "select id from item order by id", ID_MAPPER).subscribe(subscriber);
+        subscriber.subscription.request(1);
+        assertEquals(10, subscriber.items.size());
+        assertTrue(subscriber.completed);
+    }
+
+    @Test
+    void cancellationReleasesTheConnection() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        Publishers.publish(jdbcDao, "select id from item order by id", ID_MAPPER).subscribe(subscriber);
+        subscriber.subscription.request(2);
+        assertEquals(1, connectionProvider.getActiveCount());
+        subscriber.subscription.cancel();
+        assertEquals(0, connectionProvider.getActiveCount());
+        subscriber.subscription.request(2);
+        assertEquals(2, subscriber.items.size());
+        assertFalse(subscriber.completed);
+    }
+
+    @Test
+    void errorsAreGivenToTheSubscriber() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        Publishers.publish(jdbcDao, "select id from missing_table", ID_MAPPER).subscribe(subscriber);
+        subscriber.subscription.request(1);
+        assertTrue(subscriber.error instanceof PersistenceException);
+        RecordingSubscriber invalid = new RecordingSubscriber();
+        Publishers.publish(jdbcDao, "select id from item", ID_MAPPER).subscribe(invalid);
+        invalid.subscription.request(1);
+        invalid.subscription.request(0);
+        assertTrue(invalid.error instanceof IllegalArgumentException);
+        assertEquals(1, invalid.items.size());
+    }
+
+    private static class RecordingSubscriber implements Flow.Subscriber<Long> {
+        final List<Long> items = new ArrayList<>();
+        Flow.Subscription subscription;
+        Throwable error;
+        boolean completed;
+
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        public void onNext(Long item) {
+            items.add(item);
+        }
+
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+
+        public void onComplete() {
+            completed = true;
+        }
+    }
+}
@@ -0,0 +1,511 @@
+package org.cch.napa.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+
+/**
+ * Metadata of an entity read from its annotations at compile time.<br>
+ * The rules are the ones of the runtime analysis (<code>EntityHandler</code>):
+ * fields, getters and setters define the DB fields, <code>@DBField</code> renames them,
+ * <code>@Id</code> marks the primary key, <code>@Indexed</code>, <code>@UniqueIndexed</code> and <code>@Indexes</code>
+ * define the indexes...<br>
+ * The inconsistencies the runtime analysis would reject are reported as compilation errors.
+ * When a field cannot be accessed from the package of the entity, no mapping is generated and the entity is analysed by reflection.
+ * @author Christophe Champagne
+ *
+ */
+class EntityModel {
+	static final String ANNOTATIONS = "org.cch.napa.entity.annotations.";
+	static final String ENTITY = ANNOTATIONS + "Entity";
+	private static final String DB_FIELD = ANNOTATIONS + "DBField";
+	private static final String ID = ANNOTATIONS + "Id";
+	private static final String NOT_NULL = ANNOTATIONS + "NotNull";
+	private static final String TRANSIENT = ANNOTATIONS + "Transient";
+	private static final String GENERATED_VALUE = ANNOTATIONS + "GeneratedValue";
+	private static final String INDEXED = ANNOTATIONS + "Indexed";
+	private static final String UNIQUE_INDEXED = ANNOTATIONS + "UniqueIndexed";
+	private static final String INDEXES = ANNOTATIONS + "Indexes";
+
+	private final ProcessingEnvironment environment;
+	private final Elements elements;
+	private final Types types;
+	private final TypeElement entity;
+	private final String packageName;
+	private String tableName;
+	//Properties by upper case java name and DB name (as EntityHandler.getEntityField)
+	private final Map<String, Property> propertiesByName = new LinkedHashMap<String, Property>();
+	private final List<Property> properties = new ArrayList<Property>();
+	private final Map<String, Index> indexes = new LinkedHashMap<String, Index>();
+	private boolean valid = true;
+
+	EntityModel(ProcessingEnvironment environment, TypeElement entity) {
+		this.environment = environment;
+		this.elements = environment.getElementUtils();
+		this.types = environment.getTypeUtils();
+		this.entity = entity;
+		this.packageName = elements.getPackageOf(entity).getQualifiedName().toString();
+	}
+
+	/**
+	 * Analyses the entity
+	 * @return true if a mapping can be generated for the entity
+	 */
+	boolean analyse() {
+		if (!isInstantiable()) {
+			return false;
+		}
+		AnnotationMirror entityAnnotation = getAnnotation(entity, ENTITY);
+		boolean mapAllFieldsToDB = entityAnnotation == null || (Boolean) getValue(entityAnnotation, "considerAllAttributesAsDBFields");
+		tableName = entity.getSimpleName().toString();
+		if (entityAnnotation != null && ((String) getValue(entityAnnotation, "table")).length() > 0) {
+			tableName = (String) getValue(entityAnnotation, "table");
+		}
+		//public fields of the ancestors then the fields of the entity
+		List<TypeElement> ancestors = getAncestors();
+		for (int i = ancestors.size() - 1; i >= 0; i--) {
+			for (VariableElement field : ElementFilter.fieldsIn(ancestors.get(i).getEnclosedElements())) {
+				if (field.getModifiers().contains(Modifier.PUBLIC)) {
+					analyseField(field, mapAllFieldsToDB);
+				}
+			}
+		}
+		for (VariableElement field : ElementFilter.fieldsIn(entity.getEnclosedElements())) {
+			analyseField(field, mapAllFieldsToDB);
+		}
+		for (ExecutableElement method : ElementFilter.methodsIn(elements.getAllMembers(entity))) {
+			analyseMethod(method, mapAllFieldsToDB);
+		}
+		checkProperties(ancestors);
+		AnnotationMirror indexesAnnotation = getAnnotation(entity, INDEXES);
+		if (indexesAnnotation != null) {
+			for (AnnotationValue value : getList(indexesAnnotation, "indexes")) {
+				AnnotationMirror index = (AnnotationMirror) value.getValue();
+				List<String> fields = new ArrayList<String>();
+				for (AnnotationValue field : getList(index, "fields")) {
+					fields.add((String) field.getValue());
+				}
+				addIndex(entity, (String) getValue(index, "name"), (Boolean) getValue(index, "unique"), fields);
+			}
+		}
+		return valid && isAccessible();
+	}
+
+	String getTableName() {
+		return tableName;
+	}
+
+	List<Property> getProperties() {
+		return properties;
+	}
+
+	List<Property> getPrimaryKey() {
+		List<Property> primaryKey = new ArrayList<Property>();
+		for (Property property : properties) {
+			if (property.primaryKey) {
+				primaryKey.add(property);
+			}
+		}
+		return primaryKey;
+	}
+
+	Iterable<Index> getIndexes() {
+		return indexes.values();
+	}
+
+	TypeElement getEntity() {
+		return entity;
+	}
+
+	String getPackageName() {
+		return packageName;
+	}
+
+	/**
+	 * @return the qualified name of the entity used in the generated code
+	 */
+	String getEntityName() {
+		return entity.getQualifiedName().toString();
+	}
+
+	/**
+	 * @return the simple name of the generated mapping (see EntityMappings.getMappingClassName)
+	 */
+	String getMappingName() {
+		String binaryName = elements.getBinaryName(entity).toString();
+		return binaryName.substring(packageName.length() == 0 ? 0 : packageName.length() + 1).replace('$', '_') + "_NapaMapping";
+	}
+
+	/**
+	 * @return the erased type of the value assigned to the property
+	 */
+	String getTypeName(Property property) {
+		return types.erasure(property.getWrittenType()).toString();
+	}
+
+	//----------------------------------------------------------------------------------------------------------------------------
+	private boolean isInstantiable() {
+		if (entity.getModifiers().contains(Modifier.ABSTRACT) || !entity.getTypeParameters().isEmpty()) {
+			note("is abstract or generic");
+			return false;
+		}
+		for (Element type = entity; type instanceof TypeElement; type = type.getEnclosingElement()) {
+			if (type.getModifiers().contains(Modifier.PRIVATE)
+					|| (((TypeElement) type).getNestingKind() == NestingKind.MEMBER && !type.getModifiers().contains(Modifier.STATIC))) {
+				note("is not accessible from its package");
+				return false;
+			}
+			if (((TypeElement) type).getNestingKind() == NestingKind.LOCAL || ((TypeElement) type).getNestingKind() == NestingKind.ANONYMOUS) {
+				return false;
+			}
+		}
+		List<ExecutableElement> constructors = ElementFilter.constructorsIn(entity.getEnclosedElements());
+		for (ExecutableElement constructor : constructors) {
+			if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+				return true;
+			}
+		}
+		note("has no accessible constructor without parameter");
+		return false;
+	}
+
+	private List<TypeElement> getAncestors() {
+		List<TypeElement> ancestors = new ArrayList<TypeElement>();
+		TypeMirror superclass = entity.getSuperclass();
+		while (superclass.getKind() == TypeKind.DECLARED) {
+			TypeElement type = (TypeElement) ((DeclaredType) superclass).asElement();
+			if (type.getQualifiedName().contentEquals("java.lang.Object")) {
+				break;
+			}
+			ancestors.add(type);
+			superclass = type.getSuperclass();
+		}
+		return ancestors;
+	}
+
+	private void analyseField(VariableElement field, boolean mapAllFieldsToDB) {
+		if (mapAllFieldsToDB || isAnnotated(field, DB_FIELD) || isAnnotated(field, ID)) {
+			Property property = analyseElement(field, field.getSimpleName().toString());
+			if (property.field == null) {
+				property.field = field;
+			} else if (!property.field.equals(field)) {
+				error(field, "Duplicated field " + field.getSimpleName());
+			}
+			Set<Modifier> modifiers = field.getModifiers();
+			if (modifiers.contains(Modifier.FINAL) || modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)) {
+				property.transientField = true;
+			}
+		}
+	}
+
+	private void analyseMethod(ExecutableElement method, boolean mapAllFieldsToDB) {
+		Set<Modifier> modifiers = method.getModifiers();
+		TypeElement owner = (TypeElement) method.getEnclosingElement();
+		if (!modifiers.contains(Modifier.PUBLIC) || modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.NATIVE)
+				|| owner.getQualifiedName().contentEquals("java.lang.Object")
+				|| !(mapAllFieldsToDB || isAnnotated(method, DB_FIELD) || isAnnotated(method, ID))) {
+			return;
+		}
+		String name = method.getSimpleName().toString();
+		boolean getter = (name.startsWith("get") || name.startsWith("is")) && !method.isVarArgs()
+				&& method.getParameters().isEmpty() && method.getReturnType().getKind() != TypeKind.VOID;
+		boolean setter = name.startsWith("set") && !method.isVarArgs() && method.getParameters().size() == 1;
+		String fieldName = toFieldName(name);
+		if ((getter || setter) && fieldName != null) {
+			Property property = analyseElement(method, fieldName);
+			if (getter) {
+				if (property.getter == null) {
+					property.getter = method;
+				} else {
+					error(method, "The getter " + name + " corresponds to a field having already a getter defined");
+				}
+			} else {
+				if (property.setter == null) {
+					property.setter = method;
+				} else {
+					error(method, "The setter " + name + " corresponds to a field having already a setter defined");
+				}
+			}
+		} else if (isAnnotated(method, DB_FIELD) || isAnnotated(method, ID) || isAnnotated(method, NOT_NULL)) {
+			error(method, "The method " + name + " is marked is not a getter or a setter but has @Id or @DbField annotation");
+		}
+	}
+
+	private Property analyseElement(Element element, String name) {
+		Property property = getProperty(name);
+		AnnotationMirror dbField = getAnnotation(element, DB_FIELD);
+		if (dbField != null) {
+			String dbName = (String) getValue(dbField, "name");
+			Property propertyByDbName = dbName.length() == 0 ? null : getProperty(dbName);
+			if (property == null) {
+				property = propertyByDbName;
+			} else if (propertyByDbName != null && propertyByDbName != property) {
+				error(element, "It seems that the same db column -" + dbName + "- corresponds to two java fields.");
+			}
+		}
+		if (property == null) {
+			property = new Property(name);
+			properties.add(property);
+		}
+		if (dbField != null) {
+			String dbName = (String) getValue(dbField, "name");
+			if (dbName.length() > 0) {
+				property.dbName = dbName;
+			}
+			if ((Boolean) getValue(dbField, "isPrimaryKey")) {
+				property.primaryKey = true;
+				property.notNull = true;
+			}
+		}
+		if (isAnnotated(element, ID)) {
+			property.primaryKey = true;
+			property.notNull = true;
+		}
+		if (isAnnotated(element, NOT_NULL)) {
+			property.notNull = true;
+		}
+		if (isAnnotated(element, TRANSIENT) || element.getModifiers().contains(Modifier.TRANSIENT)) {
+			property.transientField = true;
+		}
+		AnnotationMirror generatedValue = getAnnotation(element, GENERATED_VALUE);
+		if (generatedValue != null) {
+			property.generated = true;
+			property.onlyGenerateWhenNull = (Boolean) getValue(generatedValue, "onlyGenerateWhenNull");
+		}
+		propertiesByName.put(name.toUpperCase(), property);
+		propertiesByName.put(property.dbName.toUpperCase(), property);
+		addFieldIndexes(element, property, INDEXED, false);
+		addFieldIndexes(element, property, UNIQUE_INDEXED, true);
+		return property;
+	}
+
+	private void addFieldIndexes(Element element, Property property, String annotationName, boolean unique) {
+		AnnotationMirror annotation = getAnnotation(element, annotationName);
+		if (annotation != null) {
+			List<? extends AnnotationValue> names = getList(annotation, "names");
+			if (names.isEmpty()) {
+				addIndex(element, "", unique, Collections.singletonList(property.dbName));
+			}
+			for (AnnotationValue name : names) {
+				addIndex(element, (String) name.getValue(), unique, Collections.singletonList(property.dbName));
+			}
+		}
+	}
+
+	private void addIndex(Element element, String name, boolean unique, List<String> fieldNames) {
+		if (name.length() == 0) {
+			//Same name as EntityHandler.getFinalIndexName
+			StringBuilder generatedName = new StringBuilder(unique ? "uidx_" : "idx_").append('_').append(tableName);
+			for (String fieldName : fieldNames) {
+				generatedName.append('_').append(fieldName);
+			}
+			name = generatedName.toString();
+		}
+		Index index = indexes.get(name);
+		if (index == null) {
+			index = new Index(name, unique);
+			indexes.put(name, index);
+		} else if (index.unique != unique) {
+			error(element, "It seems that the index " + name + " is inconsistently declared as both unique and non unique");
+		}
+		for (String fieldName : fieldNames) {
+			Property property = getProperty(fieldName);
+			if (property == null) {
+				error(element, "It seems that the field -" + fieldName + " declared in index " + name + " is not a field for table " + tableName);
+			} else if (!index.fields.contains(property)) {
+				index.fields.add(property);
+				property.indexed = true;
+			}
+		}
+	}
+
+	private void checkProperties(List<TypeElement> ancestors) {
+		for (Property property : new ArrayList<Property>(properties)) {
+			if (property.transientField) {
+				if (property.primaryKey || property.notNull) {
+					error(entity, "The element " + property.dbName + " is marked as transient but has @Id or @DbField annotation");
+				}
+				if (property.indexed) {
+					error(entity, "The element " + property.dbName + " is marked as transient but is implied in an index!");
+				}
+				properties.remove(property);
+				continue;
+			}
+			if (property.field == null && (property.getter == null || property.setter == null)) {
+				property.field = lookupFieldInAncestors(ancestors, property);
+			}
+			TypeMirror type = property.getType();
+			if (property.generated && property.onlyGenerateWhenNull && type != null && type.getKind().isPrimitive()) {
+				error(entity, "It seems that the field -" + property.dbName
+						+ "- is primitive while the generator should only work for null values. This is inconsistent!");
+			}
+		}
+	}
+
+	private VariableElement lookupFieldInAncestors(List<TypeElement> ancestors, Property property) {
+		for (TypeElement ancestor : ancestors) {
+			for (VariableElement field : ElementFilter.fieldsIn(ancestor.getEnclosedElements())) {
+				if (field.getSimpleName().contentEquals(property.javaName)) {
+					return field;
+				}
+			}
+			for (VariableElement field : ElementFilter.fieldsIn(ancestor.getEnclosedElements())) {
+				AnnotationMirror dbField = getAnnotation(field, DB_FIELD);
+				if (dbField != null && property.dbName.equalsIgnoreCase((String) getValue(dbField, "name"))) {
+					return field;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The generated code is in the package of the entity: it must read and write all the fields from there
+	 */
+	private boolean isAccessible() {
+		for (Property property : properties) {
+			boolean readable = property.getter != null || isAccessible(property.field);
+			boolean writable = property.setter != null
+					|| (isAccessible(property.field) && !property.field.getModifiers().contains(Modifier.FINAL));
+			if (!readable || !writable) {
+				note("cannot read or write " + property.javaName + " from its package");
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isAccessible(VariableElement field) {
+		if (field == null || field.getModifiers().contains(Modifier.PRIVATE) || field.getModifiers().contains(Modifier.STATIC)) {
+			return false;
+		}
+		return field.getModifiers().contains(Modifier.PUBLIC)
+				|| elements.getPackageOf(field).getQualifiedName().contentEquals(packageName);
+	}
+
+	private Property getProperty(String name) {
+		return propertiesByName.get(name.trim().toUpperCase());
+	}
+
+	private static String toFieldName(String getterOrSetterName) {
+		int prefix = getterOrSetterName.startsWith("is") ? 2 : 3;
+		if (getterOrSetterName.length() <= prefix) {
+			return null;
+		}
+		return Character.toLowerCase(getterOrSetterName.charAt(prefix)) + getterOrSetterName.substring(prefix + 1);
+	}
+
+	private AnnotationMirror getAnnotation(Element element, String name) {
+		for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+			Element type = annotation.getAnnotationType().asElement();
+			if (type.getKind() == ElementKind.ANNOTATION_TYPE && ((TypeElement) type).getQualifiedName().contentEquals(name)) {
+				return annotation;
+			}
+		}
+		return null;
+	}
+
+	private boolean isAnnotated(Element element, String name) {
+		return getAnnotation(element, name) != null;
+	}
+
+	private Object getValue(AnnotationMirror annotation, String name) {
+		for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : elements.getElementValuesWithDefaults(annotation).entrySet()) {
+			if (entry.getKey().getSimpleName().contentEquals(name)) {
+				return entry.getValue().getValue();
+			}
+		}
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<? extends AnnotationValue> getList(AnnotationMirror annotation, String name) {
+		Object value = getValue(annotation, name);
+		return value == null ? Collections.<AnnotationValue>emptyList() : (List<? extends AnnotationValue>) value;
+	}
+
+	private void error(Element element, String message) {
+		valid = false;
+		environment.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+	}
+
+	private void note(String reason) {
+		environment.getMessager().printMessage(Diagnostic.Kind.NOTE,
+				"No mapping generated for " + entity.getQualifiedName() + " (it " + reason + "): it will be analysed by reflection", entity);
+	}
+
+	/**
+	 * A DB field of the entity
+	 */
+	static class Property {
+		final String javaName;
+		String dbName;
+		boolean primaryKey;
+		boolean notNull;
+		boolean transientField;
+		boolean generated;
+		boolean onlyGenerateWhenNull;
+		boolean indexed;
+		VariableElement field;
+		ExecutableElement getter;
+		ExecutableElement setter;
+
+		private Property(String javaName) {
+			this.javaName = javaName;
+			this.dbName = javaName;
+		}
+
+		/**
+		 * @return the type of the field (or else of the getter or the setter), like EntityField.getJavaType
+		 */
+		TypeMirror getType() {
+			if (field != null) {
+				return field.asType();
+			} else if (getter != null) {
+				return getter.getReturnType();
+			} else if (setter != null) {
+				return setter.getParameters().get(0).asType();
+			}
+			return null;
+		}
+
+		TypeMirror getWrittenType() {
+			return setter != null ? setter.getParameters().get(0).asType() : field.asType();
+		}
+	}
+
+	/**
+	 * An index of the table
+	 */
+	static class Index {
+		final String name;
+		final boolean unique;
+		final List<Property> fields = new ArrayList<Property>();
+
+		private Index(String name, boolean unique) {
+			this.name = name;
+			this.unique = unique;
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package org.cch.napa.processor;
+
+import java.io.IOException;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+
+/**
+ * Annotation processor generating the <code>EntityMapping</code> of the classes annotated with <code>@Entity</code>.<br>
+ * It is enabled by adding the napa-processor artifact to the annotation processor path of the compiler.
+ * The generated mappings are picked up at runtime by <code>EntityMappings</code>: 
+ * the fields are then accessed and bound without reflection and the queries are not built anymore.<br>
+ * The annotations are read by name so the processor does not depend on napa.
+ * @author Christophe Champagne
+ *
+ */
+@SupportedAnnotationTypes(EntityModel.ENTITY)
+public class EntityProcessor extends AbstractProcessor {
+
+	/**
+	 * @see javax.annotation.processing.AbstractProcessor#getSupportedSourceVersion()
+	 */
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	/**
+	 * @see javax.annotation.processing.AbstractProcessor#process(java.util.Set, javax.annotation.processing.RoundEnvironment)
+	 */
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnvironment) {
+		for (TypeElement annotation : annotations) {
+			for (Element element : roundEnvironment.getElementsAnnotatedWith(annotation)) {
+				if (element.getKind() == ElementKind.CLASS) {
+					EntityModel model = new EntityModel(processingEnv, (TypeElement) element);
+					if (model.analyse()) {
+						try {
+							new MappingWriter(model).write(processingEnv.getFiler());
+						} catch (IOException e) {
+							processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+									"Cannot write the mapping of " + model.getEntityName() + ": " + e, element);
+						}
+					}
+				}
+			}
+		}
+		return false;
+	}
+}
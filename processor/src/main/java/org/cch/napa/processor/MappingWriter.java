@@ -0,0 +1,209 @@
+package org.cch.napa.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
+import javax.annotation.processing.Filer;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.JavaFileObject;
+
+import org.cch.napa.processor.EntityModel.Index;
+import org.cch.napa.processor.EntityModel.Property;
+
+/**
+ * Writes the <code>EntityMapping</code> of an entity: the accessors of its fields (switch on the index of the field),
+ * the values bound to the insert query, the queries and the creation of the indexes.<br>
+ * The queries are the ones built at runtime by <code>SQLGenerator</code> so both ways produce the same statements.
+ * @author Christophe Champagne
+ *
+ */
+class MappingWriter {
+	private static final String MAPPING_INTERFACE = "org.cch.napa.entity.EntityMapping";
+	private final EntityModel model;
+	private final String entityName;
+
+	MappingWriter(EntityModel model) {
+		this.model = model;
+		this.entityName = model.getEntityName();
+	}
+
+	void write(Filer filer) throws IOException {
+		String packageName = model.getPackageName();
+		String mappingName = model.getMappingName();
+		JavaFileObject file = filer.createSourceFile(packageName.length() == 0 ? mappingName : packageName + "." + mappingName, model.getEntity());
+		PrintWriter out = new PrintWriter(file.openWriter());
+		try {
+			if (packageName.length() > 0) {
+				out.println("package " + packageName + ";");
+				out.println();
+			}
+			out.println("/**");
+			out.println(" * Mapping of {@link " + entityName + "} generated by the napa annotation processor.");
+			out.println(" */");
+			out.println("@SuppressWarnings({\"unchecked\", \"rawtypes\"})");
+			out.println("public final class " + mappingName + " implements " + MAPPING_INTERFACE + "<" + entityName + "> {");
+			writeConstants(out);
+			writeMethod(out, "Class<" + entityName + "> getEntityClass()", "return " + entityName + ".class;");
+			writeMethod(out, entityName + " newInstance()", "return new " + entityName + "();");
+			writeMethod(out, "String getTableName()", "return TABLE;");
+			writeMethod(out, "String[] getFieldNames()", "return FIELDS.clone();");
+			writeMethod(out, "String[] getPrimaryKey()", "return PRIMARY_KEY.clone();");
+			writeGet(out);
+			writeSet(out);
+			writeGetValues(out);
+			writeMethod(out, "String getSelectAll()", "return SELECT_ALL;");
+			writeMethod(out, "String getSelect()", "return SELECT;");
+			writeMethod(out, "String getInsert()", "return INSERT;");
+			writeMethod(out, "String getUpdate()", "return UPDATE;");
+			writeMethod(out, "String getDelete()", "return DELETE;");
+			writeMethod(out, "String getCount()", "return COUNT;");
+			writeMethod(out, "String[] getIndexes()", "return INDEXES.clone();");
+			out.println("}");
+		} finally {
+			out.close();
+		}
+	}
+
+	private void writeConstants(PrintWriter out) {
+		List<Property> properties = model.getProperties();
+		List<Property> primaryKey = model.getPrimaryKey();
+		String table = model.getTableName();
+		out.println("\tprivate static final String TABLE = " + literal(table) + ";");
+		out.print("\tprivate static final String[] FIELDS = {");
+		for (int i = 0; i < properties.size(); i++) {
+			out.print((i > 0 ? ", " : "") + literal(properties.get(i).dbName));
+		}
+		out.println("};");
+		out.print("\tprivate static final String[] PRIMARY_KEY = {");
+		for (int i = 0; i < primaryKey.size(); i++) {
+			out.print((i > 0 ? ", " : "") + literal(primaryKey.get(i).dbName));
+		}
+		out.println("};");
+		//Same queries as SQLGenerator
+		String where = "";
+		for (int i = 0; i < primaryKey.size(); i++) {
+			where += (i == 0 ? " where " : " and ") + primaryKey.get(i).dbName + " = ?";
+		}
+		String fields = "";
+		String questionMarks = "";
+		String updates = "";
+		for (Property property : properties) {
+			fields += (fields.length() > 0 ? ", " : "") + property.dbName;
+			questionMarks += (questionMarks.length() > 0 ? ", " : "") + "?";
+			if (!property.primaryKey) {
+				updates += (updates.length() > 0 ? ", " : "") + property.dbName + " = ?";
+			}
+		}
+		writeConstant(out, "SELECT_ALL", "Select * from " + table);
+		writeConstant(out, "SELECT", "Select * from " + table + where);
+		writeConstant(out, "INSERT", "insert into " + table + " (" + fields + ") values (" + questionMarks + ")");
+		writeConstant(out, "UPDATE", "update " + table + " set " + updates + where);
+		writeConstant(out, "DELETE", "delete from " + table + where);
+		writeConstant(out, "COUNT", "select count(*) from " + table);
+		out.println("\tprivate static final String[] INDEXES = {");
+		for (Index index : model.getIndexes()) {
+			StringBuilder create = new StringBuilder("create");
+			if (index.unique) {
+				create.append(" unique");
+			}
+			create.append(" index ").append(index.name).append(" on ").append(table).append('(');
+			for (int i = 0; i < index.fields.size(); i++) {
+				create.append(i > 0 ? ", " : "").append(index.fields.get(i).dbName);
+			}
+			create.append(')');
+			out.println("\t\t" + literal(create.toString()) + ",");
+		}
+		out.println("\t};");
+		out.println();
+	}
+
+	private void writeGet(PrintWriter out) {
+		out.println("\tpublic Object get(" + entityName + " entity, int field) {");
+		out.println("\t\tswitch (field) {");
+		List<Property> properties = model.getProperties();
+		for (int i = 0; i < properties.size(); i++) {
+			out.println("\t\tcase " + i + ": return " + read(properties.get(i)) + ";");
+		}
+		out.println("\t\tdefault: throw new IndexOutOfBoundsException(String.valueOf(field));");
+		out.println("\t\t}");
+		out.println("\t}");
+		out.println();
+	}
+
+	private void writeSet(PrintWriter out) {
+		out.println("\tpublic void set(" + entityName + " entity, int field, Object value) {");
+		out.println("\t\tswitch (field) {");
+		List<Property> properties = model.getProperties();
+		for (int i = 0; i < properties.size(); i++) {
+			Property property = properties.get(i);
+			String value = convert(property.getWrittenType(), model.getTypeName(property));
+			if (property.setter != null) {
+				out.println("\t\tcase " + i + ": entity." + property.setter.getSimpleName() + "(" + value + "); break;");
+			} else {
+				out.println("\t\tcase " + i + ": entity." + property.field.getSimpleName() + " = " + value + "; break;");
+			}
+		}
+		out.println("\t\tdefault: throw new IndexOutOfBoundsException(String.valueOf(field));");
+		out.println("\t\t}");
+		out.println("\t}");
+		out.println();
+	}
+
+	private void writeGetValues(PrintWriter out) {
+		out.println("\tpublic Object[] getValues(" + entityName + " entity) {");
+		out.print("\t\treturn new Object[] {");
+		List<Property> properties = model.getProperties();
+		for (int i = 0; i < properties.size(); i++) {
+			out.print((i > 0 ? ", " : "") + read(properties.get(i)));
+		}
+		out.println("};");
+		out.println("\t}");
+		out.println();
+	}
+
+	private String read(Property property) {
+		if (property.getter != null) {
+			return "entity." + property.getter.getSimpleName() + "()";
+		}
+		return "entity." + property.field.getSimpleName();
+	}
+
+	/**
+	 * Converts the value to the type of the field: numbers are converted to the primitive type of the field
+	 */
+	private static String convert(TypeMirror type, String typeName) {
+		TypeKind kind = type.getKind();
+		switch (kind) {
+		case BOOLEAN:
+			return "(Boolean) value";
+		case CHAR:
+			return "(Character) value";
+		case BYTE:
+		case SHORT:
+		case INT:
+		case LONG:
+		case FLOAT:
+		case DOUBLE:
+			return "((Number) value)." + typeName + "Value()";
+		default:
+			return "(" + typeName + ") value";
+		}
+	}
+
+	private static void writeConstant(PrintWriter out, String name, String value) {
+		out.println("\tprivate static final String " + name + " = " + literal(value) + ";");
+	}
+
+	private static void writeMethod(PrintWriter out, String signature, String body) {
+		out.println("\tpublic " + signature + " {");
+		out.println("\t\t" + body);
+		out.println("\t}");
+		out.println();
+	}
+
+	private static String literal(String value) {
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+}
@@ -0,0 +1,205 @@
+package org.cch.napa.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.cch.napa.entity.EntityDao;
+import org.cch.napa.entity.EntityDaoFactory;
+import org.cch.napa.entity.EntityMapping;
+import org.cch.napa.entity.EntityMappings;
+import org.cch.napa.entity.SQLGenerator;
+import org.cch.napa.entity.TableManager;
+import org.cch.napa.entity.impl.sqlite.SQLiteEntityDaoFactory;
+import org.cch.napa.jdbc.BasicConnectionProvider;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EntityProcessorTest {
+    private static final String PERSON = String.join("\n",
+            "package sample;",
+            "import org.cch.napa.entity.annotations.*;",
+            "@Entity(table = \"person\")",
+            "public class Person {",
+            "    @Id long id;",
+            "    @Indexed String name;",
+            "    private int age;",
+            "    @DBField(name = \"town\") public String city;",
+            "    public int getAge() { return age; }",
+            "    public void setAge(int age) { this.age = age; }",
+            "    @Entity public static class Address {",
+            "        @Id public String street;",
+            "    }",
+            "}");
+    private Path directory;
+    private DiagnosticCollector<JavaFileObject> diagnostics;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("napa-processor");
+        diagnostics = new DiagnosticCollector<JavaFileObject>();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Collections.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    void mappingIsGeneratedAndUsedAtRuntime() throws Exception {
+        assertTrue(compile(PERSON), diagnostics.getDiagnostics().toString());
+        assertTrue(Files.exists(directory.resolve("sample/Person_NapaMapping.java")));
+        try (URLClassLoader loader = load()) {
+            Class<Object> person = loadClass(loader, "sample.Person");
+            EntityMapping<Object> mapping = EntityMappings.getMapping(person);
+            assertNotNull(mapping);
+            assertSame(person, mapping.getEntityClass());
+            assertEquals("person", mapping.getTableName());
+            assertArrayEquals(new String[]{"id", "name", "age", "town"}, mapping.getFieldNames());
+            assertArrayEquals(new String[]{"id"}, mapping.getPrimaryKey());
+            assertArrayEquals(new String[]{"create index idx__person_name on person(name)"}, mapping.getIndexes());
+            //Same queries as the ones built by reflection, except for the order of the fields
+            SQLGenerator<Object> generator = new SQLGenerator<Object>(person, createFactoryWithoutMapping());
+            assertEquals(generator.createSelectAll(), mapping.getSelectAll());
+            assertEquals(generator.createSelect(), mapping.getSelect());
+            assertEquals(generator.createDelete(), mapping.getDelete());
+            assertEquals(generator.createCount(), mapping.getCount());
+            //The numbers are converted to the type of the field
+            Object entity = mapping.newInstance();
+            mapping.set(entity, 0, 7);
+            mapping.set(entity, 1, "Smith");
+            mapping.set(entity, 2, 42L);
+            mapping.set(entity, 3, "Paris");
+            assertEquals(42, person.getMethod("getAge").invoke(entity));
+            assertEquals(7L, mapping.get(entity, 0));
+            assertArrayEquals(new Object[]{7L, "Smith", 42, "Paris"}, mapping.getValues(entity));
+            //The values are bound in the order of the generated queries
+            BasicConnectionProvider connectionProvider = new BasicConnectionProvider("jdbc:sqlite::memory:");
+            try {
+                EntityDaoFactory factory = new SQLiteEntityDaoFactory(connectionProvider);
+                new TableManager(factory).createTable(person);
+                EntityDao<Object> dao = factory.getEntityDao(person);
+                dao.insert(entity);
+                mapping.set(entity, 3, "Lyon");
+                dao.update(entity);
+                Object key = mapping.newInstance();
+                mapping.set(key, 0, 7L);
+                assertArrayEquals(new Object[]{7L, "Smith", 42, "Lyon"}, mapping.getValues(dao.select(key)));
+            } finally {
+                connectionProvider.close();
+            }
+            //Nested class
+            Class<Object> address = loadClass(loader, "sample.Person$Address");
+            assertEquals("sample.Person_Address_NapaMapping", EntityMappings.getMapping(address).getClass().getName());
+        }
+    }
+
+    @Test
+    void inconsistentEntityIsAnError() throws Exception {
+        assertFalse(compile(String.join("\n",
+                "package sample;",
+                "import org.cch.napa.entity.annotations.*;",
+                "@Entity",
+                "public class Wrong {",
+                "    @Id @Transient long id;",
+                "}")));
+        assertTrue(messages(Diagnostic.Kind.ERROR).stream().anyMatch(message -> message.contains("transient")),
+                diagnostics.getDiagnostics().toString());
+        assertFalse(Files.exists(directory.resolve("sample/Wrong_NapaMapping.java")));
+    }
+
+    @Test
+    void inaccessibleEntityIsLeftToTheReflection() throws Exception {
+        assertTrue(compile(String.join("\n",
+                "package sample;",
+                "import org.cch.napa.entity.annotations.*;",
+                "@Entity",
+                "public class Hidden {",
+                "    @Id private long id;",
+                "    public long getId() { return id; }",
+                "}")), diagnostics.getDiagnostics().toString());
+        assertTrue(messages(Diagnostic.Kind.NOTE).stream().anyMatch(message -> message.contains("sample.Hidden")),
+                diagnostics.getDiagnostics().toString());
+        assertFalse(Files.exists(directory.resolve("sample/Hidden_NapaMapping.java")));
+        try (URLClassLoader loader = load()) {
+            assertNull(EntityMappings.getMapping(loadClass(loader, "sample.Hidden")));
+        }
+    }
+
+    /**
+     * Compiles the source with the processor, the generated sources and classes being written in the temporary directory
+     */
+    private boolean compile(String source) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        String className = source.substring(source.indexOf("public class ") + 13, source.indexOf(" {"));
+        JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///sample/" + className + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8)) {
+            List<String> options = new ArrayList<String>(Arrays.asList("-d", directory.toString(), "-s", directory.toString(),
+                    "-classpath", System.getProperty("java.class.path")));
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics, options, null, Collections.singletonList(file));
+            task.setProcessors(Collections.singletonList(new EntityProcessor()));
+            return task.call();
+        }
+    }
+
+    private List<String> messages(Diagnostic.Kind kind) {
+        return diagnostics.getDiagnostics().stream().filter(diagnostic -> diagnostic.getKind() == kind)
+                .map(diagnostic -> diagnostic.getMessage(null)).collect(Collectors.toList());
+    }
+
+    private URLClassLoader load() throws IOException {
+        return new URLClassLoader(new URL[]{directory.toUri().toURL()}, getClass().getClassLoader());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Class<Object> loadClass(ClassLoader loader, String name) throws ClassNotFoundException {
+        return (Class<Object>) Class.forName(name, true, loader);
+    }
+
+    /**
+     * Factory analysing the entities by reflection
+     */
+    private static EntityDaoFactory createFactoryWithoutMapping() {
+        return new SQLiteEntityDaoFactory(new BasicConnectionProvider("jdbc:sqlite::memory:")) {
+            @Override
+            protected <E> EntityMapping<E> getEntityMapping(Class<E> entityClass) {
+                return null;
+            }
+        };
+    }
+}
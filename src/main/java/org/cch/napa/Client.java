@@ -1,5 +1,6 @@
 package org.cch.napa;
 
+import org.cch.napa.entity.AsyncEntityDao;
 import org.cch.napa.entity.EntityDao;
 import org.cch.napa.entity.EntityDaoFactory;
 import org.cch.napa.entity.EntityDaoFactoryHelper;
@@ -13,11 +14,18 @@ import org.cch.napa.exceptions.PersistenceException;
 public class Client {
     private EntityDaoFactory factory;
 
-    //TODO should we be able to inject specific ConnectionProvider???
     public Client (String connectionString) {
         factory = EntityDaoFactoryHelper.getFactoryFromConnectionString(connectionString);
     }
 
+    /**
+     * @param connectionString the connection string used to determine the kind of database
+     * @param connectionProvider the provider giving the connections (e.g. a pool)
+     */
+    public Client (String connectionString, ConnectionProvider connectionProvider) {
+        factory = EntityDaoFactoryHelper.getFactoryFromConnectionString(connectionString, connectionProvider);
+    }
+
     public Client (EntityDaoFactory factory) {
         this.factory = factory;
     }
@@ -30,10 +38,45 @@ public class Client {
         return factory.getEntityDao(cls);
     }
 
+    /**
+     * @param cls the class of the entity
+     * @return a dao returning futures, its calls being executed in background (virtual) threads
+     */
+    public <E> AsyncEntityDao<E> getAsyncEntityDao(Class<E> cls) throws PersistenceException {
+        return factory.getAsyncEntityDao(cls);
+    }
+
     public TableManager getTableManager() throws PersistenceException {
         return new TableManager(factory);
     }
 
+    /**
+     * Begins a transaction: until it is committed or rolled back, the daos of this client
+     * share one connection in the current thread and their changes are committed together.
+     * @return the transaction, to be used in a try-with-resources block
+     */
+    public Transaction beginTransaction() throws PersistenceException {
+        return factory.beginTransaction();
+    }
+
+    /**
+     * Executes the work in a single transaction
+     * @param work the work to execute
+     * @return the result of the work
+     */
+    public <T> T inTransaction(TransactionalWork<T> work) throws PersistenceException {
+        return factory.inTransaction(work);
+    }
+
+    /**
+     * Opens a session: until it is closed, the daos of this client return in the current thread
+     * the instances already loaded instead of new ones and find the entities selected by primary key without querying the DB.
+     * @return the session, to be used in a try-with-resources block
+     */
+    public Session openSession() {
+        return factory.openSession();
+    }
+
     public EntityDaoFactory getFactory() {
         return factory;
     }
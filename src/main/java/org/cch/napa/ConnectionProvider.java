@@ -11,12 +11,42 @@ import java.sql.SQLException;
  */
 public interface ConnectionProvider {
 	/**
-	 * This method returns a connectionObject
+	 * This method returns a connectionObject.
+	 * The connection is leased to the caller and must be given back with
+	 * {@link #releaseConnection(Connection)} once the operation is over.
 	 * @return an instance of Connection
 	 */
 	Connection getConnection() throws SQLException;
+	/**
+	 * Gives back a connection obtained by {@link #getConnection()}.
+	 * By default the connection is kept open, as done by the providers holding a single shared connection.
+	 * @param connection the connection that is not used anymore by the caller
+	 */
+	default void releaseConnection(Connection connection) throws SQLException {
+	}
+	/**
+	 * Gives a connection to a transaction beginning in the current thread, the transaction holding it until
+	 * {@link #releaseTransactionConnection(Connection)}.
+	 * The providers sharing one connection between all their callers make the other threads wait until the transaction ends,
+	 * so that their operations neither join the transaction nor commit its work.
+	 * By default the connection is leased by {@link #getConnection()}.
+	 * @return the connection of the transaction
+	 */
+	default Connection getTransactionConnection() throws SQLException {
+		return getConnection();
+	}
+	/**
+	 * Gives back the connection of a transaction obtained by {@link #getTransactionConnection()} once the transaction has ended.
+	 * By default the connection is released by {@link #releaseConnection(Connection)}.
+	 * @param connection the connection of the transaction
+	 */
+	default void releaseTransactionConnection(Connection connection) throws SQLException {
+		releaseConnection(connection);
+	}
 	/**
 	 * Closes the current connection(s) and creates an new one;
+	 * The new connection is leased to the caller as by {@link #getConnection()}: it must be given back with
+	 * {@link #releaseConnection(Connection)} once the operation is over.
 	 * @return the new Connection
 	 */
 	Connection resetConnection() throws SQLException;
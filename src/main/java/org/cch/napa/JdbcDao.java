@@ -4,9 +4,13 @@ import org.cch.napa.entity.LazyResultSetIterable;
 import org.cch.napa.exceptions.PersistenceException;
 import org.cch.napa.exceptions.SQLException;
 import org.cch.napa.mapper.RecordMapper;
+import org.cch.napa.mapper.StatementBinder;
 
 import java.sql.PreparedStatement;
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
 
 /**
  * @author Christophe Champagne
@@ -27,6 +31,21 @@ public interface JdbcDao {
 	 */
 	<T> LazyResultSetIterable<T> lazilySelect(String query, RecordMapper<T> mapper,
 											  Object... parameters) throws PersistenceException;
+	/**
+	 * Executes a select joining a temporary table and returns an {@link LazyResultSetIterable} that will populate the data object on the fly.
+	 * Before the select, the rows are inserted in the temporary table (created if needed) by JDBC batches,
+	 * on the same connection as the select. They are deleted when the iterable is closed.
+	 * This is intended for sets of keys too big to be given as parameters of the query.
+	 * @param temporaryTable the temporary table to fill
+	 * @param rows the values of each row to insert in the temporary table
+	 * @param query The sql query to execute: its first parameter is the identifier of the set of rows in the temporary table
+	 * @param mapper The object that will map the recordset into the expected entities
+	 * @param parameters The other parameters of the query
+	 * @return The LazyResultSetIterable
+	 * @throws PersistenceException a general persistence exception of a {@link SQLException} itself cause by a native {@link java.sql.SQLException}
+	 */
+	<T> LazyResultSetIterable<T> lazilySelectJoining(TemporaryTable temporaryTable, Collection<Object[]> rows, String query,
+			RecordMapper<T> mapper, Object... parameters) throws PersistenceException;
 	/**
 	 * Executes a select and returns a list of data object of the expected type
 	 * @param query The sql query to execute
@@ -38,11 +57,72 @@ public interface JdbcDao {
 	<T> List<T> select(String query, RecordMapper<T> mapper,
 			Object... parameters) throws PersistenceException;
 
+	/**
+	 * Executes a select and returns a stream that will populate the data object on the fly.
+	 * The stream holds a PreparedStatement: it is closed once all the records have been read 
+	 * but the stream must be closed (e.g. by a try-with-resources) if it is not consumed until the end.
+	 * The errors occurring while reading the records are thrown as {@link org.cch.napa.exceptions.RuntimePersistenceException}.
+	 * @param query The sql query to execute
+	 * @param mapper The object that will map the recordset into the expected entities
+	 * @param parameters The parameters of the query
+	 * @return the stream of the mapped records
+	 * @throws PersistenceException a general persistence exception of a {@link SQLException} itself cause by a native {@link java.sql.SQLException}
+	 */
+	<T> Stream<T> stream(String query, RecordMapper<T> mapper, Object... parameters) throws PersistenceException;
+	/**
+	 * Same as {@link #stream(String, RecordMapper, Object...)} fetching the records by fetchSize
+	 * @param fetchSize the number of records the driver should fetch at once (0 for the default of the driver)
+	 */
+	<T> Stream<T> stream(int fetchSize, String query, RecordMapper<T> mapper, Object... parameters) throws PersistenceException;
+
+	/**
+	 * Executes a select returning a single number, typically a count or a max.
+	 * @param query The sql query to execute
+	 * @param parameters The parameters of the query
+	 * @return the first column of the first record read as a long, 0 if there is no record or if the value is NULL
+	 * @throws PersistenceException a general persistence exception of a {@link SQLException} itself cause by a native {@link java.sql.SQLException}
+	 */
+	long queryForLong(String query, Object... parameters) throws PersistenceException;
+
+	/**
+	 * Executes a select and reads the first column of each record into an array of longs (NULL being read as 0),
+	 * without creating an object per record.
+	 * @param query The sql query to execute
+	 * @param parameters The parameters of the query
+	 * @return the values of the first column in the order of the records
+	 * @throws PersistenceException a general persistence exception of a {@link SQLException} itself cause by a native {@link java.sql.SQLException}
+	 */
+	long[] queryForLongArray(String query, Object... parameters) throws PersistenceException;
+
+	/**
+	 * Same as {@link #queryForLongArray(String, Object...)} for int values
+	 */
+	int[] queryForIntArray(String query, Object... parameters) throws PersistenceException;
+
+	/**
+	 * Same as {@link #queryForLongArray(String, Object...)} for double values
+	 */
+	double[] queryForDoubleArray(String query, Object... parameters) throws PersistenceException;
+
+	/**
+	 * Executes a select and returns a stream reading the first column of the records on the fly (NULL being read as 0).
+	 * Like a {@link LazyResultSetIterable}, the stream holds a statement and a connection: 
+	 * it is closed once all the values have been read but it must be closed (e.g. by a try-with-resources) otherwise.
+	 * The errors occurring while reading the records are thrown as {@link org.cch.napa.exceptions.RuntimePersistenceException}.
+	 * @param query The sql query to execute
+	 * @param parameters The parameters of the query
+	 * @return the stream of the values of the first column
+	 * @throws PersistenceException a general persistence exception of a {@link SQLException} itself cause by a native {@link java.sql.SQLException}
+	 */
+	LongStream queryForLongStream(String query, Object... parameters) throws PersistenceException;
+
 	/**
 	 * Prepares a statement following the query and the optional parameters.
 	 * The sql type of each parameter is deducted from the class of the parameter.
 	 * Note that if the type is serializable but isn't assimilable to a primitive type
 	 * (a Number, a Boolean, a String) then it is considered as a blob.
+	 * The statement holds a connection leased from the {@link org.cch.napa.ConnectionProvider}
+	 * so it must be closed with {@link #closeStatement(PreparedStatement)}.
 	 * @param query The (optionally parametrized) sql query to execute
 	 * @param parameters the parameter(s) of the query
 	 * @return the prepared statement to execute
@@ -54,4 +134,46 @@ public interface JdbcDao {
 	void executeUpdate(String query, Object... parameters)
 			throws PersistenceException;
 
+	/**
+	 * Executes the query once, its parameters being set from the item by the binder
+	 * (e.g. directly from the fields of an entity, without intermediate array of values)
+	 * @param query The parametrized sql query to execute
+	 * @param binder The object that will set the parameters from the item
+	 * @param item The item holding the values of the parameters
+	 * @throws SQLException Exception wrapping the exception thrown by the underlying JDBC layer.
+	 */
+	<T> void executeUpdate(String query, StatementBinder<? super T> binder, T item)
+			throws PersistenceException;
+
+	/**
+	 * Executes the same query once per set of parameters using JDBC batching.
+	 * The whole batch is sent with one statement and committed once: if one execution fails, none is kept.
+	 * @param query The parametrized sql query to execute
+	 * @param parametersList The parameters of each execution
+	 * @return the update counts of each execution as given by the driver
+	 * @throws SQLException Exception wrapping the exception thrown by the underlying JDBC layer.
+	 */
+	int[] executeBatch(String query, List<Object[]> parametersList)
+			throws PersistenceException;
+
+	/**
+	 * Executes the same query once per item using JDBC batching, the parameters being set from each item by the binder.
+	 * The whole batch is sent with one statement and committed once: if one execution fails, none is kept.
+	 * @param query The parametrized sql query to execute
+	 * @param binder The object that will set the parameters from each item
+	 * @param items The items holding the values of the parameters of each execution
+	 * @return the update counts of each execution as given by the driver
+	 * @throws SQLException Exception wrapping the exception thrown by the underlying JDBC layer.
+	 */
+	<T> int[] executeBatch(String query, StatementBinder<? super T> binder, Collection<? extends T> items)
+			throws PersistenceException;
+
+	/**
+	 * Closes a statement obtained by {@link #prepareStatement(String, Object...)}
+	 * and gives its connection back to the {@link org.cch.napa.ConnectionProvider}.
+	 * @param statement the statement to close
+	 * @throws SQLException Exception wrapping the exception thrown by the underlying JDBC layer.
+	 */
+	void closeStatement(PreparedStatement statement) throws PersistenceException;
+
 }
@@ -0,0 +1,20 @@
+package org.cch.napa;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Connection provider distinguishing the connections used to read from the one(s) used to write.<br>
+ * {@link #getConnection()} gives a connection allowing to write
+ * while {@link #getReadConnection()} gives a connection that may only be used to query.
+ * Both must be given back with {@link #releaseConnection(Connection)}.
+ * @author Christophe Champagne
+ *
+ */
+public interface ReadWriteConnectionProvider extends ConnectionProvider {
+	/**
+	 * This method returns a connection that can only be used to read data
+	 * @return an instance of Connection
+	 */
+	Connection getReadConnection() throws SQLException;
+}
@@ -0,0 +1,39 @@
+package org.cch.napa;
+
+import org.cch.napa.exceptions.PersistenceException;
+
+/**
+ * Unit of work keeping the identity of the entities loaded in it (first-level cache).<br>
+ * While the session is open, the daos of the factory that opened it return, in the thread that opened it,
+ * the instance already loaded for a primary key instead of creating a new one
+ * and the selects by primary key finding their entities in the session do not query the DB.
+ * The entities written by the daos replace the ones of the session and the deleted ones are removed from it;
+ * the changes made to the DB by other means are not seen until the entities are detached or the session is cleared.<br>
+ * Opening a session while another one is open in the same thread joins it: the entities are kept until the outermost session is closed.
+ * @author Christophe Champagne
+ *
+ */
+public interface Session extends AutoCloseable {
+	/**
+	 * Removes an entity from the session: the next select of its primary key reads it from the DB again
+	 * @param entity the entity
+	 */
+	void detach(Object entity) throws PersistenceException;
+	/**
+	 * Removes all the entities from the session
+	 */
+	void clear();
+	/**
+	 * @return the number of entities in the session
+	 */
+	int size();
+	/**
+	 * @return true while the session is not closed
+	 */
+	boolean isActive();
+	/**
+	 * Closes the session, forgetting its entities if it is the outermost one
+	 * @see java.lang.AutoCloseable#close()
+	 */
+	void close();
+}
@@ -0,0 +1,39 @@
+package org.cch.napa;
+
+/**
+ * Queries handling a temporary table, local to the connection it is created on, used to join a query against a set of rows.<br>
+ * Several sets of rows can be in the table at the same time (e.g. two selects iterated together on the same connection):
+ * the first column identifies the set, so the insert query, the clear query and the queries joining the table
+ * take the identifier of the set as their first parameter.
+ * @see JdbcDao#lazilySelectJoining(TemporaryTable, java.util.Collection, String, org.cch.napa.mapper.RecordMapper, Object...)
+ * @author Christophe Champagne
+ *
+ */
+public class TemporaryTable {
+	private final String createQuery;
+	private final String insertQuery;
+	private final String clearQuery;
+
+	/**
+	 * @param createQuery the query creating the table if it does not exist yet
+	 * @param insertQuery the query inserting one row of a set: its parameters are the set identifier and the values of the row
+	 * @param clearQuery the query deleting the rows of a set: its only parameter is the set identifier
+	 */
+	public TemporaryTable(String createQuery, String insertQuery, String clearQuery) {
+		this.createQuery = createQuery;
+		this.insertQuery = insertQuery;
+		this.clearQuery = clearQuery;
+	}
+
+	public String getCreateQuery() {
+		return createQuery;
+	}
+
+	public String getInsertQuery() {
+		return insertQuery;
+	}
+
+	public String getClearQuery() {
+		return clearQuery;
+	}
+}
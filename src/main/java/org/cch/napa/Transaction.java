@@ -0,0 +1,33 @@
+package org.cch.napa;
+
+import org.cch.napa.exceptions.PersistenceException;
+
+/**
+ * Handle of a database transaction.<br>
+ * While the transaction is active, all the operations of the daos working with the same {@link ConnectionProvider}
+ * in the thread that began it share one connection and are only committed by {@link #commit()}.<br>
+ * Beginning a transaction while another one is active in the same thread joins it:
+ * the work is then committed by the outermost transaction and a rollback of the inner one makes the whole transaction fail.
+ * @author Christophe Champagne
+ *
+ */
+public interface Transaction extends AutoCloseable {
+	/**
+	 * Commits the work done since the transaction began
+	 * @throws PersistenceException if the commit fails or if a joined transaction was rolled back
+	 */
+	void commit() throws PersistenceException;
+	/**
+	 * Cancels the work done since the transaction began
+	 */
+	void rollback() throws PersistenceException;
+	/**
+	 * @return true while the transaction is neither committed nor rolled back
+	 */
+	boolean isActive();
+	/**
+	 * Rolls the transaction back if it was not committed
+	 * @see java.lang.AutoCloseable#close()
+	 */
+	void close() throws PersistenceException;
+}
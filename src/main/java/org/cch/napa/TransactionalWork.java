@@ -0,0 +1,18 @@
+package org.cch.napa;
+
+import org.cch.napa.exceptions.PersistenceException;
+
+/**
+ * Work executed in a transaction
+ * @see Client#inTransaction(TransactionalWork)
+ * @param <T> The type of the result of the work
+ * @author Christophe Champagne
+ *
+ */
+public interface TransactionalWork<T> {
+	/**
+	 * Executes the work. The transaction is rolled back if an exception is thrown.
+	 * @return the result of the work
+	 */
+	T execute() throws PersistenceException;
+}
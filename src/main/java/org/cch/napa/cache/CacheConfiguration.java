@@ -0,0 +1,92 @@
+package org.cch.napa.cache;
+
+import org.cch.napa.entity.annotations.Cached;
+
+/**
+ * Configuration of the cache of an entity (see {@link EntityCache})
+ * @author Christophe Champagne
+ *
+ */
+public class CacheConfiguration {
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+	private int maxEntries = DEFAULT_MAX_ENTRIES;
+	private long maxWeight;
+	private long timeToLive;
+	private long offHeapCapacity;
+
+	public CacheConfiguration() {
+	}
+
+	/**
+	 * @param maxEntries the maximum number of entities kept in the cache
+	 * @param timeToLive the time (ms) after which an entity expires or 0 if it does not expire
+	 */
+	public CacheConfiguration(int maxEntries, long timeToLive) {
+		setMaxEntries(maxEntries);
+		setTimeToLive(timeToLive);
+	}
+
+	/**
+	 * @param cached the annotation of the entity
+	 * @return the configuration given by the annotation
+	 */
+	public static CacheConfiguration from(Cached cached) {
+		CacheConfiguration configuration = new CacheConfiguration(cached.maxEntries(), cached.timeToLive());
+		configuration.setMaxWeight(cached.maxWeight());
+		configuration.setOffHeapCapacity(cached.offHeapCapacity());
+		return configuration;
+	}
+
+	/**
+	 * @return the maximum number of entities kept in the cache
+	 */
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+	/**
+	 * @param maxEntries the maximum number of entities kept in the cache
+	 */
+	public void setMaxEntries(int maxEntries) {
+		if(maxEntries < 1){
+			throw new IllegalArgumentException("The cache must be able to keep at least 1 entity (" + maxEntries + ")");
+		}
+		this.maxEntries = maxEntries;
+	}
+	/**
+	 * @return the maximum estimated size (in bytes) of the entities kept in the cache or 0 if it is not bounded
+	 */
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+	/**
+	 * @param maxWeight the maximum estimated size (in bytes) of the entities kept in the cache or 0 not to bound it
+	 */
+	public void setMaxWeight(long maxWeight) {
+		this.maxWeight = Math.max(0, maxWeight);
+	}
+	/**
+	 * @return the time (ms) after which an entity expires or 0 if it does not expire
+	 */
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+	/**
+	 * @param timeToLive the time (ms) after which an entity expires or 0 if it does not expire
+	 */
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = Math.max(0, timeToLive);
+	}
+	/**
+	 * @return the size (in bytes) of the memory out of the java heap keeping the entities or 0 if they are kept on the heap
+	 */
+	public long getOffHeapCapacity() {
+		return offHeapCapacity;
+	}
+	/**
+	 * @param offHeapCapacity the size (in bytes) of the memory out of the java heap keeping the entities (see {@link OffHeapStore})
+	 * or 0 to keep them on the heap. The maximum weight is then not used.
+	 */
+	public void setOffHeapCapacity(long offHeapCapacity) {
+		this.offHeapCapacity = Math.max(0, offHeapCapacity);
+	}
+}
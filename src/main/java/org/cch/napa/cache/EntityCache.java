@@ -0,0 +1,520 @@
+package org.cch.napa.cache;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.cch.napa.entity.annotations.atk.EntityHandler;
+import org.cch.napa.exceptions.PersistenceException;
+
+/**
+ * Cache of the entities of one class keyed by their primary key (as given by {@link org.cch.napa.entity.EntityDao#getPrimaryKey(Object)}).<br>
+ * The cache keeps the values of the fields rather than the entities themselves:
+ * each {@link #get(Object)} gives a new instance that the caller may modify without altering the cache.<br>
+ * The entries are spread over segments, each guarded by its own lock and evicting its least recently used entries
+ * when it exceeds its share of the maximum number of entries (or of the maximum weight).
+ * The entries expire after the time to live of the configuration.<br>
+ * To avoid caching an entity read before a concurrent modification, an entity read from the DB is only added by
+ * {@link #fill(Object, Object, long)} if its segment was not modified since {@link #getStamp(Object)} was called before the read.
+ * The keys containing a null value are not supported.<br>
+ * If the configuration gives an off-heap capacity, each segment keeps its entities encoded by an {@link EntityCodec}
+ * in an {@link OffHeapStore} instead, evicting them by its clock: only the entities found are decoded.
+ * @author Christophe Champagne
+ *
+ */
+public class EntityCache<E> {
+	private static final int MAX_SEGMENTS = 16;
+	private static final int MIN_ENTRIES_PER_SEGMENT = 64;
+	//Rough estimation of the memory used by an entry, apart from its values
+	private static final int ENTRY_WEIGHT = 64;
+	private final CacheConfiguration configuration;
+	private final EntityHandler<E> entityHandler;
+	//Encodes the entities kept off heap (null if they are kept on the heap)
+	private final EntityCodec codec;
+	private final Segment[] segments;
+	private final int maxEntriesPerSegment;
+	private final long maxWeightPerSegment;
+	private final long timeToLive;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder expirations = new LongAdder();
+
+	/**
+	 * @param entityHandler the handler of the entity
+	 * @param configuration the bounds of the cache
+	 */
+	public EntityCache(EntityHandler<E> entityHandler, CacheConfiguration configuration) {
+		this.configuration = configuration;
+		this.entityHandler = entityHandler;
+		int segmentCount = 1;
+		while(segmentCount < MAX_SEGMENTS && segmentCount * 2 * MIN_ENTRIES_PER_SEGMENT <= configuration.getMaxEntries()){
+			segmentCount *= 2;
+		}
+		this.maxEntriesPerSegment = (configuration.getMaxEntries() + segmentCount - 1) / segmentCount;
+		long offHeapCapacity = configuration.getOffHeapCapacity();
+		this.codec = offHeapCapacity > 0 ? new EntityCodec(entityHandler) : null;
+		this.segments = new Segment[segmentCount];
+		for(int i = 0; i < segmentCount; i++){
+			segments[i] = new Segment(codec != null ? new OffHeapStore(offHeapCapacity / segmentCount, maxEntriesPerSegment) : null);
+		}
+		this.maxWeightPerSegment = (configuration.getMaxWeight() + segmentCount - 1) / segmentCount;
+		this.timeToLive = TimeUnit.MILLISECONDS.toNanos(configuration.getTimeToLive());
+	}
+
+	/**
+	 * Gives a copy of the cached entity
+	 * @param key the primary key of the entity
+	 * @return a new instance of the entity or null if it is not in the cache (or expired)
+	 */
+	public E get(Object key) throws PersistenceException {
+		key = normalize(key);
+		Segment segment = getSegment(key);
+		if(segment.store != null){
+			return getOffHeap(segment, key);
+		}
+		Entry entry;
+		segment.lock.lock();
+		try {
+			entry = segment.entries.get(key);
+			if(entry != null && entry.isExpired()){
+				segment.remove(key);
+				expirations.increment();
+				entry = null;
+			}
+		} finally {
+			segment.lock.unlock();
+		}
+		if(entry == null){
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return assemble(entry.values);
+	}
+
+	/**
+	 * To be called before reading from the DB an entity to add by {@link #fill(Object, Object, long)}
+	 * @param key the primary key of the entity
+	 * @return the number of modifications of the segment of the key
+	 */
+	public long getStamp(Object key) {
+		Segment segment = getSegment(normalize(key));
+		segment.lock.lock();
+		try {
+			return segment.stamp;
+		} finally {
+			segment.lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds an entity read from the DB, unless it is already cached
+	 * or its segment was modified (by {@link #put(Object, Object)} or {@link #remove(Object)}) since the stamp was taken.
+	 * @param key the primary key of the entity
+	 * @param entity the entity read from the DB
+	 * @param stamp the value of {@link #getStamp(Object)} before the entity was read
+	 */
+	public void fill(Object key, E entity, long stamp) throws PersistenceException {
+		key = normalize(key);
+		Segment segment = getSegment(key);
+		if(segment.store != null){
+			byte[] keyData = EntityCodec.encodeKey(key);
+			byte[] data = encode(entity);
+			segment.lock.lock();
+			try {
+				if(segment.stamp == stamp && !segment.store.contains(keyData, Arrays.hashCode(keyData))){
+					segment.store.put(keyData, Arrays.hashCode(keyData), data);
+				}
+			} finally {
+				segment.lock.unlock();
+			}
+			return;
+		}
+		Object[] values = disassemble(entity);
+		segment.lock.lock();
+		try {
+			if(segment.stamp == stamp && !segment.entries.containsKey(key)){
+				add(segment, key, new Entry(values, estimateWeight(values), expiresAt()));
+			}
+		} finally {
+			segment.lock.unlock();
+		}
+	}
+
+	/**
+	 * To be called before reading from the DB several entities to add by {@link #fillAll(Map, long[])}
+	 * @return the number of modifications of each segment
+	 */
+	public long[] getStamps() {
+		long[] stamps = new long[segments.length];
+		for(int i = 0; i < segments.length; i++){
+			segments[i].lock.lock();
+			try {
+				stamps[i] = segments[i].stamp;
+			} finally {
+				segments[i].lock.unlock();
+			}
+		}
+		return stamps;
+	}
+
+	/**
+	 * Adds the entities read from the DB as {@link #fill(Object, Object, long)} does
+	 * @param entities the entities read from the DB keyed by their primary key
+	 * @param stamps the value of {@link #getStamps()} before the entities were read
+	 */
+	public void fillAll(Map<?, ? extends E> entities, long[] stamps) throws PersistenceException {
+		for(Map.Entry<?, ? extends E> entity : entities.entrySet()){
+			Object key = normalize(entity.getKey());
+			fill(key, entity.getValue(), stamps[getSegmentIndex(key)]);
+		}
+	}
+
+	/**
+	 * Adds or replaces an entity
+	 * @param key the primary key of the entity
+	 * @param entity the entity as stored in the DB
+	 */
+	public void put(Object key, E entity) throws PersistenceException {
+		key = normalize(key);
+		Segment segment = getSegment(key);
+		if(segment.store != null){
+			byte[] keyData = EntityCodec.encodeKey(key);
+			byte[] data = encode(entity);
+			segment.lock.lock();
+			try {
+				segment.stamp++;
+				segment.store.put(keyData, Arrays.hashCode(keyData), data);
+			} finally {
+				segment.lock.unlock();
+			}
+			return;
+		}
+		Object[] values = disassemble(entity);
+		segment.lock.lock();
+		try {
+			segment.stamp++;
+			segment.remove(key);
+			add(segment, key, new Entry(values, estimateWeight(values), expiresAt()));
+		} finally {
+			segment.lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes an entity
+	 * @param key the primary key of the entity
+	 */
+	public void remove(Object key) {
+		key = normalize(key);
+		Segment segment = getSegment(key);
+		byte[] keyData = segment.store != null ? EntityCodec.encodeKey(key) : null;
+		segment.lock.lock();
+		try {
+			segment.stamp++;
+			if(keyData != null){
+				segment.store.remove(keyData, Arrays.hashCode(keyData));
+			} else {
+				segment.remove(key);
+			}
+		} finally {
+			segment.lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes several entities
+	 * @param keys the primary keys of the entities
+	 */
+	public void removeAll(Collection<?> keys) {
+		for(Object key : keys){
+			remove(key);
+		}
+	}
+
+	/**
+	 * Removes all the entities
+	 */
+	public void clear() {
+		for(Segment segment : segments){
+			segment.lock.lock();
+			try {
+				segment.stamp++;
+				segment.entries.clear();
+				segment.weight = 0;
+				if(segment.store != null){
+					segment.store.clear();
+				}
+			} finally {
+				segment.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of entities in the cache (including the expired ones not removed yet)
+	 */
+	public int size() {
+		int size = 0;
+		for(Segment segment : segments){
+			segment.lock.lock();
+			try {
+				size += segment.store != null ? segment.store.size() : segment.entries.size();
+			} finally {
+				segment.lock.unlock();
+			}
+		}
+		return size;
+	}
+	/**
+	 * @return the estimated size (in bytes) of the entities in the cache (the size of the slots they use when they are kept off heap)
+	 */
+	public long getWeight() {
+		long weight = 0;
+		for(Segment segment : segments){
+			segment.lock.lock();
+			try {
+				weight += segment.store != null ? segment.store.getUsedBytes() : segment.weight;
+			} finally {
+				segment.lock.unlock();
+			}
+		}
+		return weight;
+	}
+	/**
+	 * @return the number of entities found in the cache
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+	/**
+	 * @return the number of entities not found in the cache
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+	/**
+	 * @return the number of entities removed because the cache was full
+	 */
+	public long getEvictionCount() {
+		long count = evictions.sum();
+		for(Segment segment : segments){
+			if(segment.store != null){
+				segment.lock.lock();
+				try {
+					count += segment.store.getEvictionCount();
+				} finally {
+					segment.lock.unlock();
+				}
+			}
+		}
+		return count;
+	}
+	/**
+	 * @return the number of entities removed because they expired
+	 */
+	public long getExpirationCount() {
+		return expirations.sum();
+	}
+	/**
+	 * @return the configuration of the cache
+	 */
+	public CacheConfiguration getConfiguration() {
+		return configuration;
+	}
+
+	/**
+	 * Estimates the memory used by the values of an entity
+	 * @param values the values of the fields
+	 * @return the estimated size in bytes
+	 */
+	public static long estimateWeight(Object[] values) {
+		long weight = ENTRY_WEIGHT + 16 + 8L * values.length;
+		for(Object value : values){
+			if(value == null){
+				continue;
+			} else if(value instanceof String){
+				weight += 40 + 2L * ((String)value).length();
+			} else if(value instanceof byte[]){
+				weight += 16 + ((byte[])value).length;
+			} else if(value instanceof BigDecimal){
+				weight += 48;
+			} else if(value instanceof Calendar){
+				weight += 400;
+			} else {
+				weight += 24;
+			}
+		}
+		return weight;
+	}
+	//------------------------------------------------------------------------------------------------------------------------------
+	/**
+	 * Adds an entry to a segment (whose lock is held) and evicts its least recently used entries if it is full
+	 */
+	private void add(Segment segment, Object key, Entry entry) {
+		segment.entries.put(key, entry);
+		segment.weight += entry.weight;
+		Iterator<Entry> iterator = segment.entries.values().iterator();
+		while((segment.entries.size() > maxEntriesPerSegment || (maxWeightPerSegment > 0 && segment.weight > maxWeightPerSegment))
+				&& iterator.hasNext()){
+			Entry eldest = iterator.next();
+			iterator.remove();
+			segment.weight -= eldest.weight;
+			evictions.increment();
+		}
+	}
+
+	private long expiresAt() {
+		return timeToLive > 0 ? System.nanoTime() + timeToLive : 0;
+	}
+
+	private static boolean isExpired(long expiresAt) {
+		return expiresAt != 0 && System.nanoTime() - expiresAt > 0;
+	}
+
+	private E getOffHeap(Segment segment, Object key) throws PersistenceException {
+		byte[] keyData = EntityCodec.encodeKey(key);
+		int hash = Arrays.hashCode(keyData);
+		byte[] data;
+		segment.lock.lock();
+		try {
+			data = segment.store.get(keyData, hash);
+			if(data != null && isExpired(ByteBuffer.wrap(data).getLong())){
+				segment.store.remove(keyData, hash);
+				expirations.increment();
+				data = null;
+			}
+		} finally {
+			segment.lock.unlock();
+		}
+		if(data == null){
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		//Decoded out of the lock
+		return entityHandler.newInstance(codec.decode(data, 8));
+	}
+
+	//The time of expiration followed by the encoded values
+	private byte[] encode(E entity) throws PersistenceException {
+		byte[] data = codec.encode(entityHandler.getValues(entity), 8);
+		ByteBuffer.wrap(data).putLong(expiresAt());
+		return data;
+	}
+
+	private Segment getSegment(Object key) {
+		return segments[getSegmentIndex(key)];
+	}
+
+	private int getSegmentIndex(Object key) {
+		int hash = key.hashCode();
+		hash ^= hash >>> 16;
+		return hash & (segments.length - 1);
+	}
+
+	/**
+	 * Gives the same key to the numbers of the different integer types (e.g. an Integer given to select an entity having a long key)
+	 * @param key a primary key (value or list of values)
+	 * @return the key to compare with the other keys
+	 */
+	public static Object normalize(Object key) {
+		if(key instanceof Integer || key instanceof Short || key instanceof Byte){
+			return ((Number)key).longValue();
+		} else if(key instanceof List){
+			List<?> values = (List<?>)key;
+			List<Object> normalized = new ArrayList<Object>(values.size());
+			for(Object value : values){
+				normalized.add(normalize(value));
+			}
+			return normalized;
+		}
+		return key;
+	}
+
+	private Object[] disassemble(E entity) throws PersistenceException {
+		return copyValues(entityHandler.getValues(entity));
+	}
+
+	private E assemble(Object[] values) throws PersistenceException {
+		return entityHandler.newInstance(copyValues(values));
+	}
+
+	/**
+	 * Copies the values of the fields of an entity so that neither the entity given to a cache
+	 * nor the ones given by it share their mutable values (dates, arrays) with the cache
+	 * @param values the values of the fields
+	 * @return the copy
+	 */
+	public static Object[] copyValues(Object[] values) {
+		Object[] copy = new Object[values.length];
+		for(int i = 0; i < values.length; i++){
+			copy[i] = copy(values[i]);
+		}
+		return copy;
+	}
+
+	private static Object copy(Object value) {
+		if(value instanceof Date){
+			return ((Date)value).clone();
+		} else if(value instanceof Calendar){
+			return ((Calendar)value).clone();
+		} else if(value instanceof byte[]){
+			return ((byte[])value).clone();
+		}
+		return value;
+	}
+
+	private static class Entry {
+		private final Object[] values;
+		private final long weight;
+		//System.nanoTime() after which the entry is expired (0 if it never expires)
+		private final long expiresAt;
+
+		private Entry(Object[] values, long weight, long expiresAt) {
+			this.values = values;
+			this.weight = weight;
+			this.expiresAt = expiresAt;
+		}
+
+		private boolean isExpired() {
+			return EntityCache.isExpired(expiresAt);
+		}
+	}
+
+	/**
+	 * Part of the entries guarded by a lock. The entries are in the order of their last access.
+	 * They are kept in the store instead if the entities are kept off heap.
+	 */
+	private static class Segment {
+		private final ReentrantLock lock = new ReentrantLock();
+		private final OffHeapStore store;
+		private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+		private long weight;
+		//Incremented by each modification other than a fill (see fill())
+		private long stamp;
+
+		private Segment(OffHeapStore store) {
+			this.store = store;
+		}
+
+		private void remove(Object key) {
+			Entry entry = entries.remove(key);
+			if(entry != null){
+				weight -= entry.weight;
+			}
+		}
+	}
+}
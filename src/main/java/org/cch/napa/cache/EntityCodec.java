@@ -0,0 +1,432 @@
+package org.cch.napa.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.UUID;
+
+import org.cch.napa.entity.annotations.atk.EntityField;
+import org.cch.napa.entity.annotations.atk.EntityHandler;
+import org.cch.napa.exceptions.PersistenceException;
+
+/**
+ * Binary layout of the values of the fields of an entity (see {@link EntityHandler#getValues(Object)}), used to keep them off heap.<br>
+ * The layout is derived from the fields, in their order: a bitmap of the null values followed by the values not null,
+ * each written according to the type of its field (integers as variable-length numbers, strings in UTF-8,
+ * dates as milliseconds...). The values of the types without specific encoding are serialized.
+ * @author Christophe Champagne
+ *
+ */
+public class EntityCodec {
+	private static final int OBJECT = 0;
+	private static final int BOOLEAN = 1;
+	private static final int BYTE = 2;
+	private static final int SHORT = 3;
+	private static final int CHAR = 4;
+	private static final int INT = 5;
+	private static final int LONG = 6;
+	private static final int FLOAT = 7;
+	private static final int DOUBLE = 8;
+	private static final int STRING = 9;
+	private static final int BYTES = 10;
+	private static final int BIG_DECIMAL = 11;
+	private static final int BIG_INTEGER = 12;
+	private static final int DATE = 13;
+	private static final int CALENDAR = 14;
+	private static final int ENUM = 15;
+	private static final int UUID_VALUE = 16;
+	//Kinds of dates, the fields of type Date receiving the subclasses given by the JDBC drivers
+	private static final int UTIL_DATE = 0;
+	private static final int TIMESTAMP = 1;
+	private static final int SQL_DATE = 2;
+	private static final int TIME = 3;
+	//Tags of the values of the keys
+	private static final int KEY_LONG = 1;
+	private static final int KEY_STRING = 2;
+	private static final int KEY_DOUBLE = 3;
+	private static final int KEY_LIST = 4;
+	private static final int KEY_DATE = 5;
+	private static final int KEY_OTHER = 6;
+
+	private final Class<?>[] types;
+	private final int[] encodings;
+
+	/**
+	 * @param entityHandler the handler of the entity
+	 */
+	public EntityCodec(EntityHandler<?> entityHandler) {
+		List<EntityField> fields = entityHandler.getEntityFields();
+		types = new Class<?>[fields.size()];
+		encodings = new int[fields.size()];
+		for(int i = 0; i < types.length; i++){
+			types[i] = fields.get(i).getJavaType();
+			encodings[i] = getEncoding(types[i]);
+		}
+	}
+
+	/**
+	 * @param values the values of the fields of an entity
+	 * @param reserved the number of bytes to leave at the beginning of the result (for the caller)
+	 * @return the encoded values
+	 */
+	public byte[] encode(Object[] values, int reserved) throws PersistenceException {
+		Output output = new Output(reserved + 8 + values.length * 4);
+		output.count = reserved;
+		int bitmap = output.count;
+		output.count += (values.length + 7) / 8;
+		for(int i = 0; i < values.length; i++){
+			if(values[i] == null){
+				output.buffer[bitmap + i / 8] |= 1 << (i % 8);
+			} else {
+				try {
+					write(output, encodings[i], values[i]);
+				} catch (ClassCastException e) {
+					throw new PersistenceException("Could not encode the value " + values[i] + " as " + types[i].getName(), e);
+				}
+			}
+		}
+		return Arrays.copyOf(output.buffer, output.count);
+	}
+
+	/**
+	 * @param data the encoded values
+	 * @param offset the position of the values in the data
+	 * @return the values of the fields of the entity
+	 */
+	public Object[] decode(byte[] data, int offset) throws PersistenceException {
+		Object[] values = new Object[types.length];
+		Input input = new Input(data, offset + (values.length + 7) / 8);
+		for(int i = 0; i < values.length; i++){
+			if((data[offset + i / 8] & (1 << (i % 8))) == 0){
+				values[i] = read(input, encodings[i], types[i]);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Encodes a primary key as normalized by {@link EntityCache#normalize(Object)}
+	 * @param key the key: a value or a list of values
+	 * @return the bytes of the key
+	 */
+	public static byte[] encodeKey(Object key) {
+		Output output = new Output(16);
+		writeKey(output, key);
+		return Arrays.copyOf(output.buffer, output.count);
+	}
+	//------------------------------------------------------------------------------------------------------------------------------
+	private static int getEncoding(Class<?> type) {
+		if(type == Boolean.TYPE || type == Boolean.class){
+			return BOOLEAN;
+		} else if(type == Byte.TYPE || type == Byte.class){
+			return BYTE;
+		} else if(type == Short.TYPE || type == Short.class){
+			return SHORT;
+		} else if(type == Character.TYPE || type == Character.class){
+			return CHAR;
+		} else if(type == Integer.TYPE || type == Integer.class){
+			return INT;
+		} else if(type == Long.TYPE || type == Long.class){
+			return LONG;
+		} else if(type == Float.TYPE || type == Float.class){
+			return FLOAT;
+		} else if(type == Double.TYPE || type == Double.class){
+			return DOUBLE;
+		} else if(type == String.class){
+			return STRING;
+		} else if(type == byte[].class){
+			return BYTES;
+		} else if(type == BigDecimal.class){
+			return BIG_DECIMAL;
+		} else if(type == BigInteger.class){
+			return BIG_INTEGER;
+		} else if(Date.class.isAssignableFrom(type)){
+			return DATE;
+		} else if(Calendar.class.isAssignableFrom(type)){
+			return CALENDAR;
+		} else if(type.isEnum()){
+			return ENUM;
+		} else if(type == UUID.class){
+			return UUID_VALUE;
+		}
+		return OBJECT;
+	}
+
+	private static void write(Output output, int encoding, Object value) throws PersistenceException {
+		switch (encoding) {
+		case BOOLEAN:
+			output.write(((Boolean)value) ? 1 : 0);
+			break;
+		case BYTE:
+			output.write((Byte)value);
+			break;
+		case SHORT:
+			output.writeVarLong(zigZag((Short)value));
+			break;
+		case CHAR:
+			output.writeVarLong((Character)value);
+			break;
+		case INT:
+			output.writeVarLong(zigZag((Integer)value));
+			break;
+		case LONG:
+			output.writeVarLong(zigZag((Long)value));
+			break;
+		case FLOAT:
+			output.writeLong(Float.floatToIntBits((Float)value), 4);
+			break;
+		case DOUBLE:
+			output.writeLong(Double.doubleToLongBits((Double)value), 8);
+			break;
+		case STRING:
+			output.writeBytes(((String)value).getBytes(StandardCharsets.UTF_8));
+			break;
+		case BYTES:
+			output.writeBytes((byte[])value);
+			break;
+		case BIG_DECIMAL:
+			output.writeVarLong(zigZag(((BigDecimal)value).scale()));
+			output.writeBytes(((BigDecimal)value).unscaledValue().toByteArray());
+			break;
+		case BIG_INTEGER:
+			output.writeBytes(((BigInteger)value).toByteArray());
+			break;
+		case DATE:
+			Date date = (Date)value;
+			if(value instanceof Timestamp){
+				output.write(TIMESTAMP);
+				output.writeVarLong(zigZag(date.getTime()));
+				output.writeVarLong(((Timestamp)value).getNanos());
+			} else {
+				output.write(value instanceof java.sql.Date ? SQL_DATE : value instanceof Time ? TIME : UTIL_DATE);
+				output.writeVarLong(zigZag(date.getTime()));
+			}
+			break;
+		case CALENDAR:
+			Calendar calendar = (Calendar)value;
+			output.writeVarLong(zigZag(calendar.getTimeInMillis()));
+			output.writeBytes(calendar.getTimeZone().getID().getBytes(StandardCharsets.UTF_8));
+			break;
+		case ENUM:
+			output.writeVarLong(((Enum<?>)value).ordinal());
+			break;
+		case UUID_VALUE:
+			output.writeLong(((UUID)value).getMostSignificantBits(), 8);
+			output.writeLong(((UUID)value).getLeastSignificantBits(), 8);
+			break;
+		default:
+			output.writeBytes(serialize(value));
+		}
+	}
+
+	private static Object read(Input input, int encoding, Class<?> type) throws PersistenceException {
+		switch (encoding) {
+		case BOOLEAN:
+			return input.read() != 0;
+		case BYTE:
+			return (byte)input.read();
+		case SHORT:
+			return (short)unZigZag(input.readVarLong());
+		case CHAR:
+			return (char)input.readVarLong();
+		case INT:
+			return (int)unZigZag(input.readVarLong());
+		case LONG:
+			return unZigZag(input.readVarLong());
+		case FLOAT:
+			return Float.intBitsToFloat((int)input.readLong(4));
+		case DOUBLE:
+			return Double.longBitsToDouble(input.readLong(8));
+		case STRING:
+			return new String(input.readBytes(), StandardCharsets.UTF_8);
+		case BYTES:
+			return input.readBytes();
+		case BIG_DECIMAL:
+			int scale = (int)unZigZag(input.readVarLong());
+			return new BigDecimal(new BigInteger(input.readBytes()), scale);
+		case BIG_INTEGER:
+			return new BigInteger(input.readBytes());
+		case DATE:
+			int kind = input.read();
+			long time = unZigZag(input.readVarLong());
+			if(kind == TIMESTAMP){
+				Timestamp timestamp = new Timestamp(time);
+				timestamp.setNanos((int)input.readVarLong());
+				return timestamp;
+			}
+			return kind == SQL_DATE ? new java.sql.Date(time) : kind == TIME ? new Time(time) : new Date(time);
+		case CALENDAR:
+			long millis = unZigZag(input.readVarLong());
+			Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone(new String(input.readBytes(), StandardCharsets.UTF_8)));
+			calendar.setTimeInMillis(millis);
+			return calendar;
+		case ENUM:
+			return type.getEnumConstants()[(int)input.readVarLong()];
+		case UUID_VALUE:
+			return new UUID(input.readLong(8), input.readLong(8));
+		default:
+			return deserialize(input.readBytes());
+		}
+	}
+
+	private static void writeKey(Output output, Object key) {
+		if(key instanceof Long){
+			output.write(KEY_LONG);
+			output.writeVarLong(zigZag((Long)key));
+		} else if(key instanceof String){
+			output.write(KEY_STRING);
+			output.writeBytes(((String)key).getBytes(StandardCharsets.UTF_8));
+		} else if(key instanceof Double){
+			output.write(KEY_DOUBLE);
+			output.writeLong(Double.doubleToLongBits((Double)key), 8);
+		} else if(key instanceof List){
+			output.write(KEY_LIST);
+			List<?> values = (List<?>)key;
+			output.writeVarLong(values.size());
+			for(Object value : values){
+				writeKey(output, value);
+			}
+		} else if(key instanceof Date){
+			output.write(KEY_DATE);
+			output.writeVarLong(zigZag(((Date)key).getTime()));
+		} else {
+			//The values of the other types are equal if they have the same text (BigDecimal, UUID...)
+			output.write(KEY_OTHER);
+			output.writeBytes(key.getClass().getName().getBytes(StandardCharsets.UTF_8));
+			output.writeBytes(String.valueOf(key).getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private static byte[] serialize(Object value) throws PersistenceException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream output = new ObjectOutputStream(bytes);
+			output.writeObject(value);
+			output.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new PersistenceException("Could not serialize the value " + value, e);
+		}
+	}
+
+	private static Object deserialize(byte[] data) throws PersistenceException {
+		try {
+			ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(data));
+			try {
+				return input.readObject();
+			} finally {
+				input.close();
+			}
+		} catch (IOException e) {
+			throw new PersistenceException("Could not deserialize a value", e);
+		} catch (ClassNotFoundException e) {
+			throw new PersistenceException("Could not deserialize a value", e);
+		}
+	}
+
+	//The small negative numbers are written in few bytes too
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static class Output {
+		private byte[] buffer;
+		private int count;
+
+		private Output(int size) {
+			buffer = new byte[Math.max(16, size)];
+		}
+
+		private void ensure(int length) {
+			if(count + length > buffer.length){
+				buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + length));
+			}
+		}
+
+		private void write(int value) {
+			ensure(1);
+			buffer[count++] = (byte)value;
+		}
+
+		//7 bits per byte, the highest bit telling whether another byte follows
+		private void writeVarLong(long value) {
+			ensure(10);
+			while((value & ~0x7FL) != 0){
+				buffer[count++] = (byte)((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buffer[count++] = (byte)value;
+		}
+
+		private void writeLong(long value, int length) {
+			ensure(length);
+			for(int i = length - 1; i >= 0; i--){
+				buffer[count++] = (byte)(value >>> (i * 8));
+			}
+		}
+
+		private void writeBytes(byte[] bytes) {
+			writeVarLong(bytes.length);
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, buffer, count, bytes.length);
+			count += bytes.length;
+		}
+	}
+
+	private static class Input {
+		private final byte[] data;
+		private int position;
+
+		private Input(byte[] data, int position) {
+			this.data = data;
+			this.position = position;
+		}
+
+		private int read() {
+			return data[position++];
+		}
+
+		private long readVarLong() {
+			long value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = data[position++];
+				value |= (long)(b & 0x7F) << shift;
+				shift += 7;
+			} while((b & 0x80) != 0);
+			return value;
+		}
+
+		private long readLong(int length) {
+			long value = 0;
+			for(int i = 0; i < length; i++){
+				value = (value << 8) | (data[position++] & 0xFF);
+			}
+			return value;
+		}
+
+		private byte[] readBytes() {
+			int length = (int)readVarLong();
+			byte[] bytes = Arrays.copyOfRange(data, position, position + length);
+			position += length;
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package org.cch.napa.cache;
+
+/**
+ * Map from primitive long keys to values using open addressing (linear probing) on parallel arrays,
+ * so that neither the keys nor the entries are allocated as objects.<br>
+ * The values cannot be null: an empty slot is a slot without value.
+ * The map is filled once then read: it is not synchronized but can be shared once safely published.
+ * @author Christophe Champagne
+ *
+ */
+public class LongKeyMap<V> {
+	private final long[] keys;
+	private final Object[] values;
+	private final int mask;
+	private int size;
+
+	/**
+	 * @param expectedSize the number of entries the map will contain: the table is kept at most half full
+	 */
+	public LongKeyMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) << 1;
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * @param key the key
+	 * @param value the value (not null)
+	 * @return the previous value of the key or null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if(value == null){
+			throw new IllegalArgumentException("The values of the map cannot be null");
+		}
+		int slot = indexOf(key);
+		Object previous = values[slot];
+		if(previous == null){
+			if(size * 2 >= keys.length){
+				throw new IllegalStateException("The map cannot contain more than " + keys.length / 2 + " entries");
+			}
+			size++;
+			keys[slot] = key;
+		}
+		values[slot] = value;
+		return (V)previous;
+	}
+
+	/**
+	 * @param key the key
+	 * @return the value of the key or null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		return (V)values[indexOf(key)];
+	}
+
+	public boolean containsKey(long key) {
+		return values[indexOf(key)] != null;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	//Slot of the key or the empty slot where it would be put
+	private int indexOf(long key) {
+		int slot = hash(key) & mask;
+		while(values[slot] != null && keys[slot] != key){
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	//Spreads the consecutive keys (the usual ids) over the table
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+}
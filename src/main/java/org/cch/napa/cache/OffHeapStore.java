@@ -0,0 +1,421 @@
+package org.cch.napa.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Store of binary records (a key and a value) kept out of the java heap, in direct {@link ByteBuffer} slabs.<br>
+ * The slabs are divided into slots of the same size, a power of 2 from 64 bytes to the size of a slab,
+ * each record taking a slot of the smallest size that can hold it (each slab being dedicated to one size once allocated).
+ * When no slot of the size of a record is free and no slab can be allocated any more, the record replaces one of the same size
+ * chosen by a clock: the hand skips (and clears) the records read since it last passed and evicts the first record that was not.
+ * A size without any slab takes one from the size having the most slabs, evicting its records.<br>
+ * The records are found through an open-addressing index (linear probing) of primitive longs holding the hash of the key and the slot of the record,
+ * so the store does not create any object per record. The index is sized for a maximum number of records, the clock evicting one when it is full.<br>
+ * The store is not synchronized: the caller guards it (e.g. by the lock of a segment of {@link EntityCache}).
+ * @author Christophe Champagne
+ *
+ */
+public class OffHeapStore {
+	/** Maximum size of the slabs, the store using smaller slabs to have at least {@link #MIN_SLABS} slabs */
+	public static final int SLAB_SIZE = 1 << 22;
+	public static final int MIN_SLABS = 64;
+	private static final int MIN_SLOT_SIZE = 64;
+	//The slot of a record: slab << SLOT_BITS | index of the slot in the slab
+	private static final int SLOT_BITS = 20;
+	private static final int MAX_SLABS = 1 << 11;
+	//Header of a record: hash of the key, length of the key, length of the value, read since the clock passed
+	private static final int HASH = 0;
+	private static final int KEY_LENGTH = 4;
+	private static final int VALUE_LENGTH = 8;
+	private static final int REFERENCED = 12;
+	private static final int HEADER = 16;
+
+	private final int slabSize;
+	private final ByteBuffer[] slabs;
+	//The size class of each slab
+	private final byte[] slabClasses;
+	private int slabCount;
+	private final int maxRecords;
+	private final long[] index;
+	private final int mask;
+	private final SizeClass[] sizeClasses;
+	private int size;
+	private long usedBytes;
+	private long evictions;
+
+	/**
+	 * @param capacity the maximum size (in bytes) of the slabs
+	 * @param maxRecords the maximum number of records
+	 */
+	public OffHeapStore(long capacity, int maxRecords) {
+		if(maxRecords < 1){
+			throw new IllegalArgumentException("The store must be able to keep at least 1 record (" + maxRecords + ")");
+		}
+		this.slabSize = (int)Math.max(MIN_SLOT_SIZE * 16, Long.highestOneBit(Math.min(capacity / MIN_SLABS, SLAB_SIZE)));
+		this.slabs = new ByteBuffer[(int)Math.max(1, Math.min(MAX_SLABS, capacity / slabSize))];
+		this.slabClasses = new byte[slabs.length];
+		this.maxRecords = Math.min(maxRecords, 1 << 29);
+		int indexSize = Integer.highestOneBit(Math.max(4, this.maxRecords) * 2 - 1) << 1;
+		this.index = new long[indexSize];
+		this.mask = indexSize - 1;
+		int classCount = Integer.numberOfTrailingZeros(slabSize / MIN_SLOT_SIZE) + 1;
+		this.sizeClasses = new SizeClass[classCount];
+		for(int i = 0; i < classCount; i++){
+			sizeClasses[i] = new SizeClass(MIN_SLOT_SIZE << i, slabSize / (MIN_SLOT_SIZE << i));
+		}
+	}
+
+	/**
+	 * @param key the key
+	 * @param hash the hash of the key
+	 * @return a copy of the value of the key or null if the store does not have it
+	 */
+	public byte[] get(byte[] key, int hash) {
+		int position = find(key, hash);
+		if(position < 0){
+			return null;
+		}
+		int slot = (int)index[position] - 1;
+		ByteBuffer slab = slabs[slot >>> SLOT_BITS];
+		int offset = getOffset(slot);
+		slab.put(offset + REFERENCED, (byte)1);
+		byte[] value = new byte[slab.getInt(offset + VALUE_LENGTH)];
+		read(slab, offset + HEADER + slab.getInt(offset + KEY_LENGTH), value);
+		return value;
+	}
+
+	/**
+	 * @param key the key
+	 * @param hash the hash of the key
+	 * @return true if the store has the key
+	 */
+	public boolean contains(byte[] key, int hash) {
+		return find(key, hash) >= 0;
+	}
+
+	/**
+	 * Adds or replaces the value of a key, evicting records if needed
+	 * @param key the key (not empty)
+	 * @param hash the hash of the key
+	 * @param value the value
+	 * @return false if the record could not be stored (bigger than a slab or no slab left for its size), the key being then removed
+	 */
+	public boolean put(byte[] key, int hash, byte[] value) {
+		remove(key, hash);
+		int length = HEADER + key.length + value.length;
+		if(length > slabSize){
+			return false;
+		}
+		int classIndex = 32 - Integer.numberOfLeadingZeros(Math.max(MIN_SLOT_SIZE, length) - 1) - Integer.numberOfTrailingZeros(MIN_SLOT_SIZE);
+		SizeClass sizeClass = sizeClasses[classIndex];
+		if(size >= maxRecords && evict(sizeClass) < 0){
+			evictAny();
+		}
+		int slot = allocate(sizeClass, classIndex);
+		if(slot < 0){
+			return false;
+		}
+		ByteBuffer slab = slabs[slot >>> SLOT_BITS];
+		int offset = getOffset(slot);
+		slab.putInt(offset + HASH, hash);
+		slab.putInt(offset + KEY_LENGTH, key.length);
+		slab.putInt(offset + VALUE_LENGTH, value.length);
+		slab.put(offset + REFERENCED, (byte)0);
+		write(slab, offset + HEADER, key);
+		write(slab, offset + HEADER + key.length, value);
+		int position = hash(hash) & mask;
+		while(index[position] != 0){
+			position = (position + 1) & mask;
+		}
+		index[position] = ((long)hash << 32) | (slot + 1L);
+		size++;
+		usedBytes += sizeClass.slotSize;
+		return true;
+	}
+
+	/**
+	 * @param key the key
+	 * @param hash the hash of the key
+	 * @return true if the key was in the store
+	 */
+	public boolean remove(byte[] key, int hash) {
+		int position = find(key, hash);
+		if(position < 0){
+			return false;
+		}
+		release((int)index[position] - 1);
+		delete(position);
+		return true;
+	}
+
+	/**
+	 * Removes all the records, keeping the slabs
+	 */
+	public void clear() {
+		Arrays.fill(index, 0);
+		for(int slab = 0; slab < slabCount; slab++){
+			SizeClass sizeClass = sizeClasses[slabClasses[slab]];
+			for(int i = 0; i < sizeClass.slotsPerSlab; i++){
+				int slot = (slab << SLOT_BITS) | i;
+				if(slabs[slab].getInt(getOffset(slot) + KEY_LENGTH) != 0){
+					release(slot);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of records
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the size (in bytes) of the slots used by the records
+	 */
+	public long getUsedBytes() {
+		return usedBytes;
+	}
+
+	/**
+	 * @return the size (in bytes) of the slabs allocated
+	 */
+	public long getAllocatedBytes() {
+		return (long)slabCount * slabSize;
+	}
+
+	/**
+	 * @return the number of records evicted to make room for others
+	 */
+	public long getEvictionCount() {
+		return evictions;
+	}
+	//------------------------------------------------------------------------------------------------------------------------------
+	//Position of the key in the index or -1
+	private int find(byte[] key, int hash) {
+		int position = hash(hash) & mask;
+		long entry;
+		while((entry = index[position]) != 0){
+			if((int)(entry >>> 32) == hash && keyEquals((int)entry - 1, key)){
+				return position;
+			}
+			position = (position + 1) & mask;
+		}
+		return -1;
+	}
+
+	private boolean keyEquals(int slot, byte[] key) {
+		ByteBuffer slab = slabs[slot >>> SLOT_BITS];
+		int offset = getOffset(slot);
+		if(slab.getInt(offset + KEY_LENGTH) != key.length){
+			return false;
+		}
+		offset += HEADER;
+		for(int i = 0; i < key.length; i++){
+			if(slab.get(offset + i) != key[i]){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	//Removes the entry of the index, moving back the following entries of its cluster (no tombstone)
+	private void delete(int position) {
+		int hole = position;
+		int next = position;
+		while(true){
+			next = (next + 1) & mask;
+			long entry = index[next];
+			if(entry == 0){
+				break;
+			}
+			int home = hash((int)(entry >>> 32)) & mask;
+			//The entry stays if its home is cyclically in (hole, next]
+			boolean stays = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+			if(!stays){
+				index[hole] = entry;
+				hole = next;
+			}
+		}
+		index[hole] = 0;
+	}
+
+	//A free slot of the size: a slot freed before, a slot of a new slab or the slot of a record evicted
+	private int allocate(SizeClass sizeClass, int classIndex) {
+		if(sizeClass.freeCount > 0){
+			return sizeClass.free[--sizeClass.freeCount];
+		}
+		if(slabCount < slabs.length){
+			int slab = slabCount++;
+			slabs[slab] = ByteBuffer.allocateDirect(slabSize);
+			slabClasses[slab] = (byte)classIndex;
+			sizeClass.addSlab(slab);
+			return sizeClass.free[--sizeClass.freeCount];
+		}
+		if(evict(sizeClass) >= 0 || (sizeClass.slabCount == 0 && reassignSlab(sizeClass, classIndex))){
+			return sizeClass.free[--sizeClass.freeCount];
+		}
+		return -1;
+	}
+
+	/**
+	 * Gives the last slab of the size having the most slabs (at least 2) to a size, evicting the records of the slab
+	 * @return false if no size has enough slabs
+	 */
+	private boolean reassignSlab(SizeClass sizeClass, int classIndex) {
+		SizeClass victim = null;
+		for(SizeClass candidate : sizeClasses){
+			if(candidate.slabCount > 1 && (victim == null || candidate.slabCount > victim.slabCount)){
+				victim = candidate;
+			}
+		}
+		if(victim == null){
+			return false;
+		}
+		int slab = victim.slabs[victim.slabCount - 1];
+		ByteBuffer buffer = slabs[slab];
+		for(int i = 0; i < victim.slotsPerSlab; i++){
+			int slot = (slab << SLOT_BITS) | i;
+			int offset = getOffset(slot);
+			if(buffer.getInt(offset + KEY_LENGTH) != 0){
+				int position = hash(buffer.getInt(offset + HASH)) & mask;
+				while((int)index[position] - 1 != slot){
+					position = (position + 1) & mask;
+				}
+				release(slot);
+				delete(position);
+				evictions++;
+			}
+		}
+		victim.removeSlab(slab);
+		//The slots of the new size must all be free
+		for(int i = 0; i < slabSize; i += 8){
+			buffer.putLong(i, 0);
+		}
+		slabClasses[slab] = (byte)classIndex;
+		sizeClass.addSlab(slab);
+		return true;
+	}
+
+	/**
+	 * Evicts the record chosen by the clock of the size
+	 * @return the slot freed or -1 if there is no record of the size
+	 */
+	private int evict(SizeClass sizeClass) {
+		int slots = sizeClass.slabCount * sizeClass.slotsPerSlab;
+		//Two turns at most: the first one may only clear the references
+		for(int step = 0; step < slots * 2 && sizeClass.freeCount < slots; step++){
+			int hand = sizeClass.hand;
+			sizeClass.hand = (hand + 1) % slots;
+			int slot = (sizeClass.slabs[hand / sizeClass.slotsPerSlab] << SLOT_BITS) | (hand % sizeClass.slotsPerSlab);
+			ByteBuffer slab = slabs[slot >>> SLOT_BITS];
+			int offset = getOffset(slot);
+			if(slab.getInt(offset + KEY_LENGTH) == 0){
+				continue;
+			} else if(slab.get(offset + REFERENCED) != 0){
+				slab.put(offset + REFERENCED, (byte)0);
+				continue;
+			}
+			int hash = slab.getInt(offset + HASH);
+			int position = hash(hash) & mask;
+			while((int)index[position] - 1 != slot){
+				position = (position + 1) & mask;
+			}
+			release(slot);
+			delete(position);
+			evictions++;
+			return slot;
+		}
+		return -1;
+	}
+
+	//Evicts a record of any size, when the index is full of records of other sizes
+	private void evictAny() {
+		for(SizeClass sizeClass : sizeClasses){
+			if(evict(sizeClass) >= 0){
+				return;
+			}
+		}
+	}
+
+	private void release(int slot) {
+		slabs[slot >>> SLOT_BITS].putInt(getOffset(slot) + KEY_LENGTH, 0);
+		SizeClass sizeClass = sizeClasses[slabClasses[slot >>> SLOT_BITS]];
+		sizeClass.free[sizeClass.freeCount++] = slot;
+		size--;
+		usedBytes -= sizeClass.slotSize;
+	}
+
+	private int getOffset(int slot) {
+		return (slot & ((1 << SLOT_BITS) - 1)) * sizeClasses[slabClasses[slot >>> SLOT_BITS]].slotSize;
+	}
+
+	//The absolute bulk methods of ByteBuffer require Java 13/16: a duplicate keeps the position of the slab unchanged
+	private static void read(ByteBuffer slab, int offset, byte[] bytes) {
+		((ByteBuffer)slab.duplicate().position(offset)).get(bytes);
+	}
+
+	private static void write(ByteBuffer slab, int offset, byte[] bytes) {
+		((ByteBuffer)slab.duplicate().position(offset)).put(bytes);
+	}
+
+	//Spreads the hashes of the keys over the index
+	private static int hash(int hash) {
+		hash *= 0x9e3779b9;
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * The slabs divided into slots of one size, with the free slots and the hand of the clock
+	 */
+	private static class SizeClass {
+		private final int slotSize;
+		private final int slotsPerSlab;
+		private int[] slabs = new int[0];
+		private int slabCount;
+		private int[] free = new int[0];
+		private int freeCount;
+		//Position of the hand of the clock among the slots of the slabs of the size
+		private int hand;
+
+		private SizeClass(int slotSize, int slotsPerSlab) {
+			this.slotSize = slotSize;
+			this.slotsPerSlab = slotsPerSlab;
+		}
+
+		private void addSlab(int slab) {
+			slabs = Arrays.copyOf(slabs, slabCount + 1);
+			slabs[slabCount++] = slab;
+			free = Arrays.copyOf(free, free.length + slotsPerSlab);
+			//The first slots of the slab are taken first
+			for(int i = slotsPerSlab - 1; i >= 0; i--){
+				free[freeCount++] = (slab << SLOT_BITS) | i;
+			}
+		}
+
+		//The slab must not have any record
+		private void removeSlab(int slab) {
+			int kept = 0;
+			for(int i = 0; i < slabCount; i++){
+				if(slabs[i] != slab){
+					slabs[kept++] = slabs[i];
+				}
+			}
+			slabCount = kept;
+			slabs = Arrays.copyOf(slabs, slabCount);
+			kept = 0;
+			for(int i = 0; i < freeCount; i++){
+				if(free[i] >>> SLOT_BITS != slab){
+					free[kept++] = free[i];
+				}
+			}
+			freeCount = kept;
+			free = Arrays.copyOf(free, slabCount * slotsPerSlab);
+			if(hand >= free.length){
+				hand = 0;
+			}
+		}
+	}
+}
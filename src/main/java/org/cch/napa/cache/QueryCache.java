@@ -0,0 +1,501 @@
+package org.cch.napa.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache of the results of queries keyed by their SQL text and their parameters.<br>
+ * Each entry depends on the tables read by its query: the tables declared for the query by {@link #declareTables(String, String...)}
+ * or, by default, the ones following the FROM and JOIN keywords of the query.
+ * The entries depending on a table are removed when a query writing in that table is executed (see {@link #invalidateWrite(String)});
+ * all the entries are removed when the table written by a query cannot be determined.<br>
+ * The cache keeps at most a given number of entries, evicting the least recently used ones.
+ * A result read from the DB is only added if the tables it depends on were not modified since its key was created
+ * by {@link #createKey(Object, String, Object[], String...)}, before the query was executed.
+ * @author Christophe Champagne
+ *
+ */
+public class QueryCache {
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+	public static final int DEFAULT_MAX_ROWS_PER_ENTRY = 1000;
+	private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList(
+			"where", "join", "inner", "left", "right", "full", "outer", "cross", "natural", "on", "using", "group", "order",
+			"having", "limit", "offset", "fetch", "union", "intersect", "except", "minus", "for", "window", "values", "set", "select"));
+	private final int maxEntries;
+	private final int maxRowsPerEntry;
+	private final ReentrantLock lock = new ReentrantLock();
+	//In the order of their last access
+	private final LinkedHashMap<Key, Object> entries = new LinkedHashMap<Key, Object>(16, 0.75f, true);
+	private final Map<String, Set<Key>> keysPerTable = new HashMap<String, Set<Key>>();
+	//Number of invalidations of each table, and of the whole cache
+	private final Map<String, Long> tableVersions = new HashMap<String, Long>();
+	private long version;
+	private final Map<String, String[]> declaredTables = new ConcurrentHashMap<String, String[]>();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	public QueryCache() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	public QueryCache(int maxEntries) {
+		this(maxEntries, DEFAULT_MAX_ROWS_PER_ENTRY);
+	}
+
+	/**
+	 * @param maxEntries the maximum number of results kept
+	 * @param maxRowsPerEntry the maximum number of rows of a result to keep it
+	 */
+	public QueryCache(int maxEntries, int maxRowsPerEntry) {
+		if(maxEntries < 1){
+			throw new IllegalArgumentException("The cache must be able to keep at least 1 result (" + maxEntries + ")");
+		}
+		this.maxEntries = maxEntries;
+		this.maxRowsPerEntry = maxRowsPerEntry;
+	}
+
+	/**
+	 * Declares the tables a query depends on, when they cannot be found in its text (views, functions...)
+	 * @param query the SQL text of the query
+	 * @param tables the tables read by the query
+	 */
+	public void declareTables(String query, String... tables) {
+		String[] names = new String[tables.length];
+		for(int i = 0; i < tables.length; i++){
+			names[i] = normalizeTable(tables[i]);
+		}
+		declaredTables.put(query, names);
+	}
+
+	/**
+	 * Creates the key of a result. To be called before executing the query.
+	 * @param kind distinguishes the results of the same query read differently (e.g. mapped into different classes)
+	 * @param query the SQL text of the query
+	 * @param parameters the parameters of the query
+	 * @param tables tables the query depends on in addition to the ones declared or found in its text
+	 * @return the key
+	 */
+	public Key createKey(Object kind, String query, Object[] parameters, String... tables) {
+		Set<String> dependencies = new LinkedHashSet<String>();
+		String[] declared = declaredTables.get(query);
+		if(declared != null){
+			dependencies.addAll(Arrays.asList(declared));
+		} else {
+			dependencies.addAll(getReadTables(query));
+		}
+		for(String table : tables){
+			dependencies.add(normalizeTable(table));
+		}
+		Key key = new Key(kind, query, normalize(parameters), dependencies.toArray(new String[dependencies.size()]));
+		lock.lock();
+		try {
+			key.version = version;
+			key.tableVersions = new long[key.tables.length];
+			for(int i = 0; i < key.tables.length; i++){
+				key.tableVersions[i] = getVersion(key.tables[i]);
+			}
+		} finally {
+			lock.unlock();
+		}
+		return key;
+	}
+
+	/**
+	 * @param key the key of the result
+	 * @return the result or null if it is not in the cache
+	 */
+	public Object get(Key key) {
+		Object result;
+		lock.lock();
+		try {
+			result = entries.get(key);
+		} finally {
+			lock.unlock();
+		}
+		if(result == null){
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return result;
+	}
+
+	/**
+	 * Adds a result read from the DB unless one of the tables it depends on was modified since its key was created
+	 * @param key the key of the result
+	 * @param result the result, never modified afterwards
+	 * @param rows the number of rows of the result (the results having too many rows are not kept)
+	 */
+	public void put(Key key, Object result, int rows) {
+		if(rows > maxRowsPerEntry){
+			return;
+		}
+		lock.lock();
+		try {
+			if(version != key.version){
+				return;
+			}
+			for(int i = 0; i < key.tables.length; i++){
+				if(getVersion(key.tables[i]) != key.tableVersions[i]){
+					return;
+				}
+			}
+			if(entries.put(key, result) != null){
+				return;
+			}
+			for(String table : key.tables){
+				Set<Key> keys = keysPerTable.get(table);
+				if(keys == null){
+					keys = new HashSet<Key>();
+					keysPerTable.put(table, keys);
+				}
+				keys.add(key);
+			}
+			Iterator<Key> iterator = entries.keySet().iterator();
+			while(entries.size() > maxEntries && iterator.hasNext()){
+				Key eldest = iterator.next();
+				iterator.remove();
+				forget(eldest);
+				evictions.increment();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the results depending on the table written by the query, or all the results if the table cannot be determined
+	 * @param query a query modifying the DB (insert, update, delete, DDL...)
+	 */
+	public void invalidateWrite(String query) {
+		String table = getWrittenTable(query);
+		if(table == null){
+			clear();
+		} else {
+			invalidate(table);
+		}
+	}
+
+	/**
+	 * Removes the results depending on a table
+	 * @param table the name of the table
+	 */
+	public void invalidate(String table) {
+		table = normalizeTable(table);
+		lock.lock();
+		try {
+			Long tableVersion = tableVersions.get(table);
+			tableVersions.put(table, tableVersion == null ? 1 : tableVersion + 1);
+			Set<Key> keys = keysPerTable.remove(table);
+			if(keys != null){
+				for(Key key : keys){
+					if(entries.remove(key) != null){
+						forget(key);
+						invalidations.increment();
+					}
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the results depending on several tables
+	 * @param tables the names of the tables
+	 */
+	public void invalidateAll(Collection<String> tables) {
+		for(String table : tables){
+			invalidate(table);
+		}
+	}
+
+	/**
+	 * Removes all the results
+	 */
+	public void clear() {
+		lock.lock();
+		try {
+			version++;
+			invalidations.add(entries.size());
+			entries.clear();
+			keysPerTable.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of results in the cache
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+	/**
+	 * @return the number of results found in the cache
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+	/**
+	 * @return the number of results not found in the cache
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+	/**
+	 * @return the number of results removed because the cache was full
+	 */
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+	/**
+	 * @return the number of results removed because a table they depend on was modified
+	 */
+	public long getInvalidationCount() {
+		return invalidations.sum();
+	}
+
+	/**
+	 * Finds the tables read by a query: the names following FROM (and the commas of its list) and JOIN.
+	 * Subqueries are analysed the same way.
+	 * @param query the SQL text of a select
+	 * @return the names of the tables in lower case
+	 */
+	public static Set<String> getReadTables(String query) {
+		Set<String> tables = new LinkedHashSet<String>();
+		List<String> tokens = tokenize(query);
+		//true when the next word is a table of the FROM list or of a JOIN
+		boolean tableExpected = false;
+		boolean inFromList = false;
+		for(String token : tokens){
+			String word = token.toLowerCase(Locale.ENGLISH);
+			if(word.equals("from") || word.equals("join")){
+				tableExpected = true;
+				inFromList = word.equals("from");
+			} else if(word.equals(",")){
+				tableExpected = inFromList;
+			} else if(word.equals("(") || word.equals(")") || KEYWORDS.contains(word)){
+				tableExpected = false;
+				inFromList = false;
+			} else if(tableExpected){
+				tables.add(normalizeTable(token));
+				tableExpected = false;
+			}
+		}
+		return tables;
+	}
+
+	/**
+	 * Finds the table modified by an insert, an update or a delete
+	 * @param query the SQL text
+	 * @return the name of the table in lower case or null if it is not one of these queries
+	 */
+	public static String getWrittenTable(String query) {
+		List<String> tokens = tokenize(query);
+		if(tokens.isEmpty()){
+			return null;
+		}
+		String first = tokens.get(0).toLowerCase(Locale.ENGLISH);
+		String marker;
+		if(first.equals("insert") || first.equals("replace") || first.equals("merge") || first.equals("upsert")){
+			marker = "into";
+		} else if(first.equals("delete")){
+			marker = "from";
+		} else if(first.equals("update")){
+			marker = null;
+		} else {
+			return null;
+		}
+		for(int i = 1; i < tokens.size(); i++){
+			String word = tokens.get(i).toLowerCase(Locale.ENGLISH);
+			if(marker != null && word.equals(marker)){
+				//the table follows
+				marker = null;
+			} else if(marker == null && !word.equals("or") && !word.equals("ignore") && !word.equals("replace") 
+					&& !word.equals("rollback") && !word.equals("abort") && !word.equals("fail")){
+				return word.equals("(") ? null : normalizeTable(tokens.get(i));
+			}
+		}
+		return null;
+	}
+	//------------------------------------------------------------------------------------------------------------------------------
+	private long getVersion(String table) {
+		Long tableVersion = tableVersions.get(table);
+		return tableVersion == null ? 0 : tableVersion;
+	}
+
+	//Removes the key from the tables it depends on
+	private void forget(Key key) {
+		for(String table : key.tables){
+			Set<Key> keys = keysPerTable.get(table);
+			if(keys != null){
+				keys.remove(key);
+				if(keys.isEmpty()){
+					keysPerTable.remove(table);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Splits the query into words (identifiers possibly quoted and qualified), commas and parentheses.
+	 * The literals are skipped.
+	 */
+	private static List<String> tokenize(String query) {
+		List<String> tokens = new ArrayList<String>();
+		int length = query.length();
+		int i = 0;
+		while(i < length){
+			char c = query.charAt(i);
+			if(c == '\''){
+				//literal ('' being an escaped quote)
+				i++;
+				while(i < length){
+					if(query.charAt(i) == '\''){
+						if(i + 1 < length && query.charAt(i + 1) == '\''){
+							i += 2;
+							continue;
+						}
+						break;
+					}
+					i++;
+				}
+				i++;
+			} else if(c == ',' || c == '(' || c == ')'){
+				tokens.add(String.valueOf(c));
+				i++;
+			} else if(Character.isLetterOrDigit(c) || c == '_' || c == '"' || c == '`' || c == '['){
+				int start = i;
+				while(i < length){
+					char d = query.charAt(i);
+					if(d == '"' || d == '`' || d == '['){
+						char end = d == '[' ? ']' : d;
+						i++;
+						while(i < length && query.charAt(i) != end){
+							i++;
+						}
+						i++;
+					} else if(Character.isLetterOrDigit(d) || d == '_' || d == '.' || d == '$'){
+						i++;
+					} else {
+						break;
+					}
+				}
+				tokens.add(query.substring(start, Math.min(i, length)));
+			} else {
+				i++;
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * @return the name of the table without quotes nor schema, in lower case
+	 */
+	private static String normalizeTable(String table) {
+		StringBuilder name = new StringBuilder(table.length());
+		for(int i = 0; i < table.length(); i++){
+			char c = table.charAt(i);
+			if(c != '"' && c != '`' && c != '[' && c != ']'){
+				name.append(c);
+			}
+		}
+		//Without the schema: the same table of two schemas is invalidated together
+		String unqualified = name.substring(name.lastIndexOf(".") + 1);
+		return unqualified.toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Gives the same value to the parameters equal in the DB (numbers of different integer types, dates of different classes)
+	 */
+	private static Object[] normalize(Object[] parameters) {
+		if(parameters == null){
+			return new Object[0];
+		}
+		Object[] normalized = new Object[parameters.length];
+		for(int i = 0; i < parameters.length; i++){
+			Object parameter = parameters[i];
+			if(parameter instanceof Integer || parameter instanceof Short || parameter instanceof Byte){
+				normalized[i] = ((Number)parameter).longValue();
+			} else if(parameter instanceof Float){
+				normalized[i] = ((Float)parameter).doubleValue();
+			} else if(parameter instanceof Date){
+				normalized[i] = new Date(((Date)parameter).getTime());
+			} else if(parameter instanceof byte[]){
+				normalized[i] = ((byte[])parameter).clone();
+			} else {
+				normalized[i] = parameter;
+			}
+		}
+		return normalized;
+	}
+
+	/**
+	 * Key of a result: the query, its parameters and the kind of result
+	 */
+	public static class Key {
+		private final Object kind;
+		private final String query;
+		private final Object[] parameters;
+		private final String[] tables;
+		private final int hash;
+		//Versions of the cache and of the tables when the key was created
+		private long version;
+		private long[] tableVersions;
+
+		private Key(Object kind, String query, Object[] parameters, String[] tables) {
+			this.kind = kind;
+			this.query = query;
+			this.parameters = parameters;
+			this.tables = tables;
+			this.hash = (kind.hashCode() * 31 + query.hashCode()) * 31 + Arrays.deepHashCode(parameters);
+		}
+
+		/**
+		 * @return the tables the result depends on
+		 */
+		public String[] getTables() {
+			return tables.clone();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(this == obj){
+				return true;
+			}
+			if(!(obj instanceof Key)){
+				return false;
+			}
+			Key other = (Key)obj;
+			return hash == other.hash && kind.equals(other.kind) && query.equals(other.query) 
+					&& Arrays.deepEquals(parameters, other.parameters);
+		}
+	}
+}
@@ -0,0 +1,501 @@
+package org.cch.napa.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.cch.napa.entity.annotations.atk.EntityField;
+import org.cch.napa.entity.annotations.atk.EntityHandler;
+import org.cch.napa.entity.annotations.atk.EntityIndex;
+import org.cch.napa.exceptions.PersistenceException;
+
+/**
+ * All the records of a table kept in memory (see {@link org.cch.napa.entity.annotations.Replicated}).<br>
+ * The records are loaded in an immutable snapshot indexed by primary key, in a {@link LongKeyMap} when the key is a single integer field,
+ * and by the indexes of the entity (see {@link org.cch.napa.entity.annotations.Indexed}).
+ * A new snapshot is built by each load and replaces the previous one at once so the readers never see a partially loaded table.<br>
+ * After {@link #invalidate()} (called when the table is modified), the next read loads the table again;
+ * {@link #refresh()} loads it immediately and is called periodically if a refresh interval is given.
+ * When a periodical refresh fails, the snapshot is invalidated (the next read loading the table again, or failing)
+ * and the error is kept (see {@link #getLastRefreshError()}).<br>
+ * The simple queries selecting all the records or the records having given values of the primary key or of an index
+ * (<code>select * from table [where field = ? [and field = ?...]]</code>) are answered from the snapshot by {@link #select(String, Object...)}.
+ * The entities are shared by all the readers: they must not be modified.
+ * @author Christophe Champagne
+ *
+ */
+public class ReplicatedTable<E> {
+	private static final Pattern SELECT = Pattern.compile("select\\s+\\*\\s+from\\s+([\\w.\"`\\[\\]]+)(?:\\s+where\\s+(.+?))?\\s*;?", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private static final Pattern AND = Pattern.compile("\\s+and\\s+", Pattern.CASE_INSENSITIVE);
+	private static final Pattern EQUALS = Pattern.compile("([\\w.\"`\\[\\]]+)\\s*=\\s*\\?");
+	//Number of query plans kept, the queries given by the applications being constants
+	private static final int MAX_PLANS = 1000;
+	private static ScheduledExecutorService scheduler;
+
+	private final EntityHandler<E> entityHandler;
+	private final Callable<List<E>> loader;
+	private final long refreshInterval;
+	private final List<EntityField> primaryKey;
+	//The primary key field if it is a single integer field, the entities being then indexed by a LongKeyMap
+	private final EntityField longKey;
+	private final List<EntityIndex> indexes;
+	private final ReentrantLock lock = new ReentrantLock();
+	private volatile Snapshot<E> snapshot;
+	//Incremented by each invalidation: a snapshot of an older version is loaded again
+	private final AtomicLong version = new AtomicLong();
+	private ScheduledFuture<?> refreshTask;
+	private final Map<String, QueryPlan> plans = new ConcurrentHashMap<String, QueryPlan>();
+	private final LongAdder loads = new LongAdder();
+	private volatile Exception lastRefreshError;
+	private volatile long lastRefreshErrorTime;
+
+	/**
+	 * @param entityHandler the handler of the entity
+	 * @param loader gives all the records of the table
+	 * @param refreshInterval the interval (ms) between two loads of the table or 0 to load it only when it was invalidated
+	 */
+	public ReplicatedTable(EntityHandler<E> entityHandler, Callable<List<E>> loader, long refreshInterval) {
+		this.entityHandler = entityHandler;
+		this.loader = loader;
+		this.refreshInterval = refreshInterval;
+		this.primaryKey = new ArrayList<EntityField>(entityHandler.getPrimaryKey());
+		this.longKey = primaryKey.size() == 1 && isInteger(primaryKey.get(0).getJavaType()) ? primaryKey.get(0) : null;
+		this.indexes = new ArrayList<EntityIndex>(entityHandler.getIndexes());
+	}
+
+	/**
+	 * @return all the entities of the table
+	 */
+	public List<E> getAll() throws PersistenceException {
+		return getSnapshot().entities;
+	}
+
+	/**
+	 * @param key the value of the primary key (single integer field)
+	 * @return the entity having the key or null if there is none
+	 */
+	public E get(long key) throws PersistenceException {
+		if(longKey == null){
+			return get(new Object[]{key});
+		}
+		return getSnapshot().longKeys.get(key);
+	}
+
+	/**
+	 * @param keyValues the values of the primary key fields
+	 * @return the entity having the key or null if there is none
+	 */
+	public E get(Object[] keyValues) throws PersistenceException {
+		if(keyValues.length != primaryKey.size()){
+			throw new IllegalArgumentException("The primary key of " + entityHandler.getTableName() + " has " + primaryKey.size() + " fields");
+		}
+		if(longKey != null){
+			return keyValues[0] instanceof Number ? getSnapshot().longKeys.get(((Number)keyValues[0]).longValue()) : null;
+		}
+		Object key = createKey(primaryKey, keyValues);
+		return key == null ? null : getSnapshot().keys.get(key);
+	}
+
+	/**
+	 * @param entity an entity giving the values of the primary key
+	 * @return the entity of the table having the same primary key or null if there is none
+	 */
+	public E select(E entity) throws PersistenceException {
+		try {
+			if(longKey != null){
+				Class<?> type = longKey.getJavaType();
+				if(type == Long.TYPE){
+					return getSnapshot().longKeys.get(longKey.getLong(entity));
+				} else if(type == Integer.TYPE){
+					return getSnapshot().longKeys.get(longKey.getInt(entity));
+				}
+			}
+			Object[] keyValues = new Object[primaryKey.size()];
+			for(int i = 0; i < keyValues.length; i++){
+				keyValues[i] = primaryKey.get(i).get(entity);
+			}
+			return get(keyValues);
+		} catch (PersistenceException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new PersistenceException("Could not read the primary key of " + entityHandler.getTableName(), e);
+		}
+	}
+
+	/**
+	 * @param indexName the name of an index of the entity
+	 * @param values the values of the fields of the index
+	 * @return the entities having the values
+	 */
+	public List<E> selectByIndex(String indexName, Object... values) throws PersistenceException {
+		for(int i = 0; i < indexes.size(); i++){
+			EntityIndex index = indexes.get(i);
+			if(index.getName().equalsIgnoreCase(indexName)){
+				Object key = createKey(new ArrayList<EntityField>(index.getFields()), values);
+				List<E> entities = key == null ? null : getSnapshot().indexes.get(i).get(key);
+				return entities == null ? Collections.<E>emptyList() : entities;
+			}
+		}
+		throw new IllegalArgumentException("The entity of " + entityHandler.getTableName() + " has no index " + indexName);
+	}
+
+	/**
+	 * Answers a query from the snapshot if it selects all the records of the table or the ones having values of the primary key
+	 * or of an index
+	 * @param query the SQL text of the query
+	 * @param parameters the values of the fields in the order of the conditions of the query
+	 * @return the entities selected or null if the query cannot be answered from the snapshot
+	 */
+	public List<E> select(String query, Object... parameters) throws PersistenceException {
+		QueryPlan plan = getPlan(query);
+		if(plan == QueryPlan.UNSUPPORTED || plan.fields.size() != parameters.length){
+			return null;
+		}
+		if(plan.fields.isEmpty()){
+			return getAll();
+		}
+		if(plan.index < 0){
+			E entity = get(plan.order(parameters));
+			return entity == null ? Collections.<E>emptyList() : Collections.singletonList(entity);
+		}
+		Object key = createKey(plan.fields, plan.order(parameters));
+		List<E> entities = key == null ? null : getSnapshot().indexes.get(plan.index).get(key);
+		return entities == null ? Collections.<E>emptyList() : entities;
+	}
+
+	/**
+	 * @return the number of records of the table
+	 */
+	public int size() throws PersistenceException {
+		return getSnapshot().entities.size();
+	}
+
+	/**
+	 * Makes the next read load the table again (e.g. after it was modified)
+	 */
+	public void invalidate() {
+		version.incrementAndGet();
+	}
+
+	/**
+	 * Loads the table, replacing the current snapshot once it is loaded
+	 */
+	public void refresh() throws PersistenceException {
+		lock.lock();
+		try {
+			load();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops the periodical refresh of the table
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			if(refreshTask != null){
+				refreshTask.cancel(false);
+				refreshTask = null;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of times the table was loaded
+	 */
+	public long getLoadCount() {
+		return loads.sum();
+	}
+
+	/**
+	 * @return the error of the last periodical refresh that failed or null if the table was loaded since
+	 */
+	public Exception getLastRefreshError() {
+		return lastRefreshError;
+	}
+
+	/**
+	 * @return the time (ms since the epoch) the last periodical refresh failed or 0 if none failed
+	 */
+	public long getLastRefreshErrorTime() {
+		return lastRefreshErrorTime;
+	}
+	//------------------------------------------------------------------------------------------------------------------------------
+	private Snapshot<E> getSnapshot() throws PersistenceException {
+		Snapshot<E> current = snapshot;
+		if(current != null && current.version == version.get()){
+			return current;
+		}
+		lock.lock();
+		try {
+			current = snapshot;
+			if(current == null || current.version != version.get()){
+				current = load();
+			}
+			return current;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//Called holding the lock so that the loads are serialized (a load never replaces a more recent one)
+	private Snapshot<E> load() throws PersistenceException {
+		long loadedVersion = version.get();
+		List<E> entities;
+		try {
+			entities = loader.call();
+		} catch (PersistenceException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new PersistenceException("Could not load the table " + entityHandler.getTableName(), e);
+		}
+		Snapshot<E> loaded = new Snapshot<E>(loadedVersion, entities, indexes.size());
+		if(longKey != null){
+			loaded.longKeys = new LongKeyMap<E>(entities.size());
+		} else {
+			loaded.keys = new HashMap<Object, E>(entities.size() * 2);
+		}
+		List<List<EntityField>> indexFields = new ArrayList<List<EntityField>>(indexes.size());
+		for(EntityIndex index : indexes){
+			indexFields.add(new ArrayList<EntityField>(index.getFields()));
+			loaded.indexes.add(new HashMap<Object, List<E>>());
+		}
+		try {
+			for(E entity : entities){
+				Object key = createKey(primaryKey, getValues(entity, primaryKey));
+				if(key == null){
+					continue;
+				}
+				if(longKey != null){
+					loaded.longKeys.put((Long)key, entity);
+				} else {
+					loaded.keys.put(key, entity);
+				}
+				for(int i = 0; i < indexFields.size(); i++){
+					Object indexKey = createKey(indexFields.get(i), getValues(entity, indexFields.get(i)));
+					if(indexKey != null){
+						Map<Object, List<E>> index = loaded.indexes.get(i);
+						List<E> indexed = index.get(indexKey);
+						if(indexed == null){
+							indexed = new ArrayList<E>(1);
+							index.put(indexKey, indexed);
+						}
+						indexed.add(entity);
+					}
+				}
+			}
+		} catch (Exception e) {
+			throw new PersistenceException("Could not index the table " + entityHandler.getTableName(), e);
+		}
+		for(Map<Object, List<E>> index : loaded.indexes){
+			for(Map.Entry<Object, List<E>> entry : index.entrySet()){
+				entry.setValue(Collections.unmodifiableList(entry.getValue()));
+			}
+		}
+		snapshot = loaded;
+		loads.increment();
+		lastRefreshError = null;
+		if(refreshInterval > 0 && refreshTask == null){
+			scheduleRefresh();
+		}
+		return loaded;
+	}
+
+	private void scheduleRefresh() {
+		refreshTask = getScheduler().scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					refresh();
+				} catch (Exception e) {
+					//The previous snapshot may be outdated: the next read loads the table again instead of serving it.
+					//The error is exposed by getLastRefreshError
+					lastRefreshErrorTime = System.currentTimeMillis();
+					lastRefreshError = e;
+					invalidate();
+				}
+			}
+		}, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+	}
+
+	private static synchronized ScheduledExecutorService getScheduler() {
+		if(scheduler == null){
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "napa-replication");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return scheduler;
+	}
+
+	private static Object[] getValues(Object entity, List<EntityField> fields) throws Exception {
+		Object[] values = new Object[fields.size()];
+		for(int i = 0; i < values.length; i++){
+			values[i] = fields.get(i).get(entity);
+		}
+		return values;
+	}
+
+	/**
+	 * @return the key of the values (the value itself for a single field) or null if a value is null (NULL never equals a value in SQL)
+	 */
+	private static Object createKey(List<EntityField> fields, Object[] values) {
+		if(values.length != fields.size()){
+			throw new IllegalArgumentException(fields.size() + " values are expected");
+		}
+		if(values.length == 1){
+			return normalize(fields.get(0), values[0]);
+		}
+		List<Object> key = new ArrayList<Object>(values.length);
+		for(int i = 0; i < values.length; i++){
+			Object value = normalize(fields.get(i), values[i]);
+			if(value == null){
+				return null;
+			}
+			key.add(value);
+		}
+		return key;
+	}
+
+	/**
+	 * Gives the same value to the numbers of the different types compared to a field (e.g. an Integer given for a long field)
+	 */
+	private static Object normalize(EntityField field, Object value) {
+		if(value instanceof Number){
+			Class<?> type = field.getJavaType();
+			if(isInteger(type)){
+				return ((Number)value).longValue();
+			} else if(type == Double.class || type == Double.TYPE || type == Float.class || type == Float.TYPE){
+				return ((Number)value).doubleValue();
+			}
+		}
+		return value;
+	}
+
+	private static boolean isInteger(Class<?> type) {
+		return type == Long.TYPE || type == Integer.TYPE || type == Short.TYPE || type == Byte.TYPE
+				|| type == Long.class || type == Integer.class || type == Short.class || type == Byte.class;
+	}
+
+	private QueryPlan getPlan(String query) {
+		QueryPlan plan = plans.get(query);
+		if(plan == null){
+			plan = createPlan(query);
+			if(plans.size() < MAX_PLANS){
+				plans.put(query, plan);
+			}
+		}
+		return plan;
+	}
+
+	private QueryPlan createPlan(String query) {
+		Matcher matcher = SELECT.matcher(query.trim());
+		if(!matcher.matches() || !getName(matcher.group(1)).equalsIgnoreCase(getName(entityHandler.getTableName()))){
+			return QueryPlan.UNSUPPORTED;
+		}
+		List<EntityField> fields = new ArrayList<EntityField>();
+		if(matcher.group(2) != null){
+			for(String condition : AND.split(matcher.group(2).trim())){
+				Matcher equals = EQUALS.matcher(condition.trim());
+				EntityField field = equals.matches() ? entityHandler.getEntityField(getName(equals.group(1))) : null;
+				if(field == null || fields.contains(field)){
+					return QueryPlan.UNSUPPORTED;
+				}
+				fields.add(field);
+			}
+		}
+		Set<EntityField> conditions = new HashSet<EntityField>(fields);
+		if(conditions.isEmpty()){
+			return new QueryPlan(fields, -1, null);
+		} else if(conditions.equals(new HashSet<EntityField>(primaryKey))){
+			int[] order = new int[primaryKey.size()];
+			for(int i = 0; i < order.length; i++){
+				order[i] = fields.indexOf(primaryKey.get(i));
+			}
+			return new QueryPlan(fields, -1, order);
+		}
+		for(int i = 0; i < indexes.size(); i++){
+			List<EntityField> indexFields = new ArrayList<EntityField>(indexes.get(i).getFields());
+			if(conditions.equals(new HashSet<EntityField>(indexFields))){
+				//The conditions are taken in the order of the fields of the index
+				int[] order = new int[indexFields.size()];
+				for(int j = 0; j < order.length; j++){
+					order[j] = fields.indexOf(indexFields.get(j));
+				}
+				return new QueryPlan(indexFields, i, order);
+			}
+		}
+		return QueryPlan.UNSUPPORTED;
+	}
+
+	//The name without schema nor quotes
+	private static String getName(String name) {
+		name = name.substring(name.lastIndexOf('.') + 1);
+		return name.replace("\"", "").replace("`", "").replace("[", "").replace("]", "");
+	}
+
+	/**
+	 * The entities of one load of the table
+	 */
+	private static class Snapshot<E> {
+		private final long version;
+		private final List<E> entities;
+		private LongKeyMap<E> longKeys;
+		private Map<Object, E> keys;
+		//The entities per key of each index of the entity
+		private final List<Map<Object, List<E>>> indexes;
+
+		private Snapshot(long version, List<E> entities, int indexCount) {
+			this.version = version;
+			this.entities = Collections.unmodifiableList(new ArrayList<E>(entities));
+			this.indexes = new ArrayList<Map<Object, List<E>>>(indexCount);
+		}
+	}
+
+	/**
+	 * How a query is answered: all the entities (no field), by primary key (index -1) or by an index,
+	 * the parameter of the query at order[i] being the value of the i-th field of the key
+	 */
+	private static class QueryPlan {
+		private static final QueryPlan UNSUPPORTED = new QueryPlan(Collections.<EntityField>emptyList(), -1, null);
+		private final List<EntityField> fields;
+		private final int index;
+		private final int[] order;
+
+		private QueryPlan(List<EntityField> fields, int index, int[] order) {
+			this.fields = fields;
+			this.index = index;
+			this.order = order;
+		}
+
+		private Object[] order(Object[] parameters) {
+			Object[] values = new Object[order.length];
+			for(int i = 0; i < order.length; i++){
+				values[i] = parameters[order[i]];
+			}
+			return values;
+		}
+	}
+}
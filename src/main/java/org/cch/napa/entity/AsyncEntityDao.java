@@ -0,0 +1,81 @@
+package org.cch.napa.entity;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non blocking version of {@link EntityDao}: each call is executed by a background thread
+ * (a virtual thread when the JVM supports them) and its result is given by a {@link CompletableFuture}.<br>
+ * The futures fail with the {@link org.cch.napa.exceptions.PersistenceException} (or {@link org.cch.napa.exceptions.SQLException})
+ * thrown by the corresponding call of the {@link EntityDao}.<br>
+ * The number of calls executed at the same time is bounded by the number of connections of the connection provider,
+ * the other calls wait for their turn in the order they were made.<br>
+ * Note that the calls are not part of the transaction of the calling thread (see {@link org.cch.napa.Transaction}):
+ * each of them uses its own connection and is committed on its own.
+ * @author Christophe Champagne
+ *
+ */
+public interface AsyncEntityDao<E> {
+	/**
+	 * @see EntityDao#select(Object)
+	 */
+	public CompletableFuture<E> select(E entityParameter);
+	/**
+	 * @see EntityDao#selectByIds(Collection)
+	 */
+	public CompletableFuture<Map<Object, E>> selectByIds(Collection<?> ids);
+	/**
+	 * @see EntityDao#selectAll()
+	 */
+	public CompletableFuture<List<E>> selectAll();
+	/**
+	 * @see EntityDao#select(String, Object...)
+	 */
+	public CompletableFuture<List<E>> select(String query, Object...parameters);
+	/**
+	 * @see EntityDao#insert(Object)
+	 */
+	public CompletableFuture<Void> insert(E entity);
+	/**
+	 * @see EntityDao#update(Object)
+	 */
+	public CompletableFuture<Void> update(E entity);
+	/**
+	 * @see EntityDao#persist(Object)
+	 */
+	public CompletableFuture<Void> persist(E entity);
+	/**
+	 * @see EntityDao#delete(Object)
+	 */
+	public CompletableFuture<Void> delete(E entity);
+	/**
+	 * @see EntityDao#insertAll(Collection)
+	 */
+	public CompletableFuture<Void> insertAll(Collection<? extends E> entities);
+	/**
+	 * @see EntityDao#updateAll(Collection)
+	 */
+	public CompletableFuture<Void> updateAll(Collection<? extends E> entities);
+	/**
+	 * @see EntityDao#persistAll(Collection)
+	 */
+	public CompletableFuture<Void> persistAll(Collection<? extends E> entities);
+	/**
+	 * @see EntityDao#deleteAll(Collection)
+	 */
+	public CompletableFuture<Void> deleteAll(Collection<? extends E> entities);
+	/**
+	 * @see EntityDao#count()
+	 */
+	public CompletableFuture<Long> count();
+	/**
+	 * @see EntityDao#count(String, Object...)
+	 */
+	public CompletableFuture<Long> count(String query, Object...parameters);
+	/**
+	 * @return the blocking dao executing the calls
+	 */
+	public EntityDao<E> getEntityDao();
+}
@@ -3,7 +3,11 @@ package org.cch.napa.entity;
 import org.cch.napa.exceptions.PersistenceException;
 import org.cch.napa.exceptions.SQLException;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 
 /**
@@ -27,6 +31,30 @@ public interface EntityDao<E> {
 	 */
 	public E select(E entityParameter) throws PersistenceException, SQLException;
 
+	/**
+	 * Selects the entities of several primary keys with a few queries instead of one per key.
+	 * @param ids the primary keys: the values themselves for a single column key, 
+	 * a List (or an array) of the values in the order of the key fields for a composite key
+	 * @return the entities found keyed by their primary key (see {@link #getPrimaryKey(Object)})
+	 */
+	public Map<Object, E> selectByIds(Collection<?> ids) throws PersistenceException, SQLException;
+
+	/**
+	 * Selects the entities of several primary keys and returns an {@link LazyResultSetIterable} that will populate them on the fly.
+	 * For big sets of keys, the keys are inserted in a temporary table joined by the select (if the DB supports it).
+	 * The iterable must be closed if it is not iterated until the end.
+	 * @param ids the primary keys as described in {@link #selectByIds(Collection)}
+	 * @return the {@link LazyResultSetIterable} of the entities found, in no particular order
+	 */
+	public LazyResultSetIterable<E> lazilySelectByIds(Collection<?> ids) throws PersistenceException, SQLException;
+
+	/**
+	 * Selects the entities having the same primary keys as the given ones.
+	 * @param entities entities with the fields of the primary key set
+	 * @return the entities found keyed by their primary key (see {@link #getPrimaryKey(Object)})
+	 */
+	public Map<Object, E> selectByEntities(Collection<? extends E> entities) throws PersistenceException, SQLException;
+
 	/**
 	 * Select all entities available in the corresponding table and returns an {@link LazyResultSetIterable} that will populate the data object on the fly.
 	 * It thus preferable if the query returns an important number of records.
@@ -43,6 +71,68 @@ public interface EntityDao<E> {
 	 */
 	public LazyResultSetIterable<E> lazilySelect(String query, Object...parameters) throws PersistenceException, SQLException;
 
+	/**
+	 * Selects all the entities of the table as a stream populating them on the fly.
+	 * The stream must be closed if it is not consumed until the end (see {@link org.cch.napa.JdbcDao#stream(String, org.cch.napa.mapper.RecordMapper, Object...)}).
+	 * @return the stream of the entities
+	 */
+	public Stream<E> stream() throws PersistenceException, SQLException;
+
+	/**
+	 * Executes a select as a stream populating the entities on the fly.
+	 * The stream must be closed if it is not consumed until the end.
+	 * @return the stream of the entities
+	 */
+	public Stream<E> stream(String query, Object...parameters) throws PersistenceException, SQLException;
+
+	/**
+	 * Same as {@link #stream(String, Object...)} fetching the records by fetchSize
+	 * @param fetchSize the number of records the driver should fetch at once (0 for the default of the driver)
+	 */
+	public Stream<E> stream(int fetchSize, String query, Object...parameters) throws PersistenceException, SQLException;
+
+	/**
+	 * Selects all the entities of the table as a parallel stream.
+	 * The table is split into ranges of its integer primary key (or of an equivalent such as the rowid of SQLite),
+	 * each range being read by its own query, on its own connection if the connection provider is a pool.
+	 * The entities come in no particular order. If the table cannot be split, it is read by a single query.
+	 * The stream must be closed if it is not consumed until the end.
+	 * @return the parallel stream of the entities
+	 */
+	public Stream<E> parallelStream() throws PersistenceException, SQLException;
+
+	/**
+	 * Reads all the entities of the table by ranges of its primary key (see {@link #parallelStream()})
+	 * with several workers each using its own connection, and gives them to the consumer.
+	 * The consumer is called concurrently by the workers: it must be thread safe.
+	 * As the workers are other threads, they do not take part in the transaction of the caller.
+	 * The method returns once all the entities have been consumed. If a worker fails, the others stop.
+	 * @param parallelism the number of workers (and of connections used at the same time)
+	 * @param consumer the consumer of the entities
+	 */
+	public void parallelScan(int parallelism, Consumer<? super E> consumer) throws PersistenceException, SQLException;
+
+	/**
+	 * Selects a page of entities in the order of their primary key, starting after the given key (keyset pagination).
+	 * Unlike an offset, the key is looked up in the index of the primary key, so the cost of a page does not depend on its depth.
+	 * @param afterKey the primary key of the last entity of the previous page, given as described in {@link #selectByIds(Collection)},
+	 * or null for the first page
+	 * @param limit the maximum number of entities of the page
+	 * @return the entities of the page, less than limit for the last page
+	 */
+	public List<E> page(Object afterKey, int limit) throws PersistenceException, SQLException;
+
+	/**
+	 * Gives an iterable on all the entities of the table selected page by page (see {@link #page(Object, int)}).
+	 * Each page is read by its own query so, unlike a {@link LazyResultSetIterable}, no statement (nor read transaction) 
+	 * remains open between the pages and nothing needs to be closed. 
+	 * The entities inserted or deleted during the iteration may be missed or not.
+	 * The errors occurring while selecting a page are thrown as {@link org.cch.napa.exceptions.RuntimePersistenceException}.
+	 * @param pageSize the number of entities selected at once
+	 * @return the iterable of the entities in the order of their primary key
+	 */
+	public Iterable<E> iterateByPages(int pageSize) throws PersistenceException, SQLException;
+
 	/**
 	 * Select all entities available in the corresponding table.
 	 * @return the populated entity
@@ -74,7 +164,8 @@ public interface EntityDao<E> {
 	
 	/**
 	 * Inserts or Updates an entity
-	 * It can have so performance cost since there could be a check against the DB
+	 * It is done in one query if the DB supports upserts. 
+	 * Otherwise, or if a value of the entity has to be generated, the presence of the record is checked first.
 	 * @param entity
 	 * @throws PersistenceException
 	 * @throws SQLException
@@ -89,6 +180,78 @@ public interface EntityDao<E> {
 	 */
 	public void delete(E entity) throws PersistenceException, SQLException;
 
+	/**
+	 * Inserts all the entities using JDBC batching.
+	 * The entities are sent by chunks of a default size, each chunk being committed once.
+	 * @param entities the entities to insert
+	 * @throws PersistenceException
+	 * @throws SQLException
+	 */
+	public void insertAll(Collection<? extends E> entities) throws PersistenceException, SQLException;
+
+	/**
+	 * Inserts all the entities using JDBC batching.
+	 * @param entities the entities to insert
+	 * @param batchSize the number of entities sent (and committed) together
+	 * @throws PersistenceException
+	 * @throws SQLException
+	 */
+	public void insertAll(Collection<? extends E> entities, int batchSize) throws PersistenceException, SQLException;
+
+	/**
+	 * Updates all the entities using JDBC batching.
+	 * The entities are sent by chunks of a default size, each chunk being committed once.
+	 * @param entities the entities to update
+	 * @throws PersistenceException
+	 * @throws SQLException
+	 */
+	public void updateAll(Collection<? extends E> entities) throws PersistenceException, SQLException;
+
+	/**
+	 * Updates all the entities using JDBC batching.
+	 * @param entities the entities to update
+	 * @param batchSize the number of entities sent (and committed) together
+	 * @throws PersistenceException
+	 * @throws SQLException
+	 */
+	public void updateAll(Collection<? extends E> entities, int batchSize) throws PersistenceException, SQLException;
+
+	/**
+	 * Inserts or updates all the entities using JDBC batching.
+	 * The entities are sent by chunks of a default size, each chunk being committed once.
+	 * @param entities the entities to persist
+	 * @throws PersistenceException
+	 * @throws SQLException
+	 */
+	public void persistAll(Collection<? extends E> entities) throws PersistenceException, SQLException;
+
+	/**
+	 * Inserts or updates all the entities using JDBC batching.
+	 * @param entities the entities to persist
+	 * @param batchSize the number of entities sent (and committed) together
+	 * @throws PersistenceException
+	 * @throws SQLException
+	 */
+	public void persistAll(Collection<? extends E> entities, int batchSize) throws PersistenceException, SQLException;
+
+	/**
+	 * Deletes the records corresponding to the entities using JDBC batching.
+	 * The entities are sent by chunks of a default size, each chunk being committed once.
+	 * @param entities the entities to delete
+	 * @throws PersistenceException
+	 * @throws SQLException
+	 */
+	public void deleteAll(Collection<? extends E> entities) throws PersistenceException, SQLException;
+
+	/**
+	 * Deletes the records corresponding to the entities using JDBC batching.
+	 * @param entities the entities to delete
+	 * @param batchSize the number of entities sent (and committed) together
+	 * @throws PersistenceException
+	 * @throws SQLException
+	 */
+	public void deleteAll(Collection<? extends E> entities, int batchSize) throws PersistenceException, SQLException;
+
 	/**
 	 * Checks if the record is present in DB
 	 * @param entity
@@ -106,6 +269,11 @@ public interface EntityDao<E> {
 	 * @return
 	 */
 	public long count(String query, Object...parameters) throws PersistenceException, SQLException;
+	/**
+	 * @param entity an entity
+	 * @return the value of its primary key, or the List of the values of a composite key
+	 */
+	public Object getPrimaryKey(E entity) throws PersistenceException;
 	/**
 	 * 
 	 * @return the class of the entity implementation
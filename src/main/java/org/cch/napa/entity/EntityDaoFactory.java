@@ -2,6 +2,13 @@ package org.cch.napa.entity;
 
 import org.cch.napa.ConnectionProvider;
 import org.cch.napa.JdbcDao;
+import org.cch.napa.Session;
+import org.cch.napa.Transaction;
+import org.cch.napa.TransactionalWork;
+import org.cch.napa.cache.CacheConfiguration;
+import org.cch.napa.cache.EntityCache;
+import org.cch.napa.cache.QueryCache;
+import org.cch.napa.cache.ReplicatedTable;
 import org.cch.napa.exceptions.AnnotationException;
 import org.cch.napa.exceptions.PersistenceException;
 import org.cch.napa.entity.annotations.atk.EntityHandler;
@@ -17,8 +24,62 @@ public interface EntityDaoFactory {
 	<E> EntityHandler<E> getEntityHandler(Class<E> entityClass) throws AnnotationException;
 	<E> EntityDao<E> getEntityDao(Class<E> entityClass) throws PersistenceException;
 	<E> EntityDao<E> getEntityDao(Class<E> entityClass, ConnectionProvider connectionProvider) throws PersistenceException;
+	/**
+	 * Gives a dao executing its calls in background threads on the default connection provider
+	 * @param entityClass the class of the entity
+	 * @return the asynchronous dao
+	 */
+	<E> AsyncEntityDao<E> getAsyncEntityDao(Class<E> entityClass) throws PersistenceException;
 	SQLTypeMapper getSqlTypeMapper();
 	<E> SQLGenerator<E> getSQLGenerator(Class<E> entityClass) throws AnnotationException;
 	<E> EntityRecordMapper<E> getEntityRecordMapper(Class<E> entityClass) throws AnnotationException;
+	/**
+	 * Gives the cache shared by the daos of an entity, configured by {@link #setCacheConfiguration(Class, CacheConfiguration)}
+	 * or by the annotation {@link org.cch.napa.entity.annotations.Cached}
+	 * @param entityClass the class of the entity
+	 * @return the cache or null if the entity is not cached
+	 */
+	<E> EntityCache<E> getEntityCache(Class<E> entityClass) throws AnnotationException;
+	/**
+	 * Configures the cache of an entity, overriding its annotation {@link org.cch.napa.entity.annotations.Cached}.
+	 * To be called before the daos of the entity are created: the existing daos keep their cache.
+	 * @param entityClass the class of the entity
+	 * @param configuration the configuration of the cache or null not to cache the entity
+	 */
+	void setCacheConfiguration(Class<?> entityClass, CacheConfiguration configuration);
+	/**
+	 * Gives the records of the table of an entity annotated by {@link org.cch.napa.entity.annotations.Replicated}, kept in memory
+	 * @param entityClass the class of the entity
+	 * @return the replicated table shared by the daos of the entity or null if the entity is not replicated
+	 */
+	<E> ReplicatedTable<E> getReplicatedTable(Class<E> entityClass) throws AnnotationException;
+	/**
+	 * @return the cache of the results of the queries executed on the default connection provider or null if they are not cached
+	 */
+	QueryCache getQueryCache();
+	/**
+	 * Enables the cache of the results of the queries executed on the default connection provider
+	 * by the JdbcDao (select mapping entities, queryForLong...) and thus by the entity daos (select by query, count...).
+	 * The selects mapped by other mappers are not cached.
+	 * @param queryCache the cache or null to disable it
+	 */
+	void setQueryCache(QueryCache queryCache);
 	ConnectionProvider getDefaultConnectionProvider();
+	/**
+	 * Begins a transaction on the default connection provider.
+	 * Until it ends, the daos of this factory share its connection in the current thread.
+	 * @return the transaction that must be committed or rolled back (or closed)
+	 */
+	Transaction beginTransaction() throws PersistenceException;
+	/**
+	 * Executes the work in a transaction committed when the work ends normally and rolled back otherwise
+	 * @param work the work to execute
+	 * @return the result of the work
+	 */
+	<T> T inTransaction(TransactionalWork<T> work) throws PersistenceException;
+	/**
+	 * Opens a session keeping the identity of the entities loaded by the daos of this factory in the current thread
+	 * @return the session that must be closed
+	 */
+	Session openSession();
 }
@@ -0,0 +1,80 @@
+package org.cch.napa.entity;
+
+/**
+ * Mapping of an entity generated at compile time by the napa annotation processor (module <code>processor</code>).<br>
+ * It gives the queries, the indexes and the new instances of the entity without reflection,
+ * the fields of the entity being sorted in the order of {@link #getFieldNames()}
+ * (they are still read and written through the accessors compiled when the entity is analysed).
+ * The fields are identified by their index in {@link #getFieldNames()}.<br>
+ * The mappings are retrieved through {@link EntityMappings}: when an entity has none, it is analysed by reflection.
+ * @author Christophe Champagne
+ *
+ * @param <E> the class of the entity
+ */
+public interface EntityMapping<E> {
+	/**
+	 * @return the class of the mapped entity
+	 */
+	Class<E> getEntityClass();
+	/**
+	 * @return a new instance of the entity
+	 */
+	E newInstance();
+	/**
+	 * @return the name of the table
+	 */
+	String getTableName();
+	/**
+	 * @return the DB names of the fields, in the order of the values and of the queries
+	 */
+	String[] getFieldNames();
+	/**
+	 * @return the DB names of the fields of the primary key
+	 */
+	String[] getPrimaryKey();
+	/**
+	 * @param entity the entity
+	 * @param field the index of the field in {@link #getFieldNames()}
+	 * @return the value of the field
+	 */
+	Object get(E entity, int field);
+	/**
+	 * @param entity the entity
+	 * @param field the index of the field in {@link #getFieldNames()}
+	 * @param value the value to set, converted to the type of the field if it is a number
+	 */
+	void set(E entity, int field, Object value);
+	/**
+	 * @param entity the entity
+	 * @return the values of all the fields, in the order of {@link #getFieldNames()}
+	 */
+	Object[] getValues(E entity);
+	/**
+	 * @return the query selecting all the records (see {@link SQLGenerator#createSelectAll()})
+	 */
+	String getSelectAll();
+	/**
+	 * @return the query selecting a record by its primary key (see {@link SQLGenerator#createSelect()})
+	 */
+	String getSelect();
+	/**
+	 * @return the insert query (see {@link SQLGenerator#createInsert()})
+	 */
+	String getInsert();
+	/**
+	 * @return the update query (see {@link SQLGenerator#createUpdate()})
+	 */
+	String getUpdate();
+	/**
+	 * @return the delete query (see {@link SQLGenerator#createDelete()})
+	 */
+	String getDelete();
+	/**
+	 * @return the count query (see {@link SQLGenerator#createCount()})
+	 */
+	String getCount();
+	/**
+	 * @return the statements creating the indexes of the table
+	 */
+	String[] getIndexes();
+}
@@ -0,0 +1,75 @@
+package org.cch.napa.entity;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.cch.napa.exceptions.AnnotationException;
+
+/**
+ * Registry of the {@link EntityMapping}s generated by the napa annotation processor.<br>
+ * The mapping of an entity <code>p.A.B</code> is the class <code>p.A_B_NapaMapping</code>:
+ * it is looked up once per entity, the entities without mapping being analysed by reflection.
+ * Mappings can also be registered explicitly.
+ *
+ * @author Christophe Champagne
+ */
+public class EntityMappings {
+	/** Suffix of the name of the generated mapping classes */
+	public static final String MAPPING_SUFFIX = "_NapaMapping";
+	//Marks the entities without mapping
+	private static final Object NONE = new Object();
+	private static final Map<Class<?>, Object> mappings = new ConcurrentHashMap<Class<?>, Object>();
+
+	/**
+	 * @param entityClass the class of the entity
+	 * @return the mapping generated for the entity or null if there is none
+	 * @throws AnnotationException if the generated mapping cannot be loaded or instantiated
+	 */
+	@SuppressWarnings("unchecked")
+	public static <E> EntityMapping<E> getMapping(Class<E> entityClass) throws AnnotationException {
+		Object mapping = mappings.get(entityClass);
+		if (mapping == null) {
+			mapping = lookupMapping(entityClass);
+			mappings.put(entityClass, mapping == null ? NONE : mapping);
+		}
+		return mapping == NONE ? null : (EntityMapping<E>) mapping;
+	}
+
+	/**
+	 * Registers a mapping, replacing the generated one if any
+	 * @param mapping the mapping
+	 */
+	public static <E> void registerMapping(EntityMapping<E> mapping) {
+		mappings.put(mapping.getEntityClass(), mapping);
+	}
+
+	/**
+	 * @param entityClassName the binary name of the entity class (e.g. <code>p.A$B</code>)
+	 * @return the name of the class of its generated mapping (e.g. <code>p.A_B_NapaMapping</code>)
+	 */
+	public static String getMappingClassName(String entityClassName) {
+		int packageEnd = entityClassName.lastIndexOf('.');
+		String packageName = entityClassName.substring(0, packageEnd + 1);
+		String simpleName = entityClassName.substring(packageEnd + 1).replace('$', '_');
+		return packageName + simpleName + MAPPING_SUFFIX;
+	}
+
+	private static EntityMapping<?> lookupMapping(Class<?> entityClass) throws AnnotationException {
+		ClassLoader loader = entityClass.getClassLoader();
+		try {
+			Class<?> mappingClass = Class.forName(getMappingClassName(entityClass.getName()), true,
+					loader != null ? loader : EntityMappings.class.getClassLoader());
+			EntityMapping<?> mapping = (EntityMapping<?>) mappingClass.getDeclaredConstructor().newInstance();
+			return mapping.getEntityClass() == entityClass ? mapping : null;
+		} catch (ClassNotFoundException e) {
+			//Not generated: the entity is analysed by reflection
+			return null;
+		} catch (ReflectiveOperationException e) {
+			throw new AnnotationException("Cannot instantiate the mapping of " + entityClass.getName(), e);
+		} catch (ClassCastException e) {
+			throw new AnnotationException("The mapping of " + entityClass.getName() + " is not an EntityMapping", e);
+		} catch (LinkageError e) {
+			throw new AnnotationException("Cannot load the mapping of " + entityClass.getName(), e);
+		}
+	}
+}
@@ -1,7 +1,11 @@
 package org.cch.napa.entity;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.cch.napa.TemporaryTable;
 import org.cch.napa.exceptions.AnnotationException;
 import org.cch.napa.entity.annotations.atk.EntityField;
 import org.cch.napa.entity.annotations.atk.EntityHandler;
@@ -11,6 +15,8 @@ import org.cch.napa.entity.annotations.atk.EntityHandler;
  *
  */
 public class SQLGenerator<T> {
+	/** Name of the field identifying the set of keys in the temporary key table */
+	protected static final String KEY_SET_FIELD = "napa_set";
 	
 	//
 	private String selectAll;
@@ -20,10 +26,27 @@ public class SQLGenerator<T> {
 	private String delete;
 	private String deleteAll;
 	private String count;
+	private String selectJoiningKeys;
+	private String selectRange;
+	private String selectPartitionBounds;
+	private String selectFirstPage;
+	private String selectNextPage;
+	private Map<Integer, String> multiRowInserts = new ConcurrentHashMap<Integer, String>();
+	private Map<Integer, String> selectsByIds = new ConcurrentHashMap<Integer, String>();
 	private EntityHandler<T> handler;
 	
 	public SQLGenerator(Class<T> entityClass, EntityDaoFactory factory) throws AnnotationException{
 		handler = factory.getEntityHandler(entityClass);
+		EntityMapping<T> mapping = handler.getMapping();
+		if(mapping != null){
+			//The queries were generated at compile time
+			selectAll = mapping.getSelectAll();
+			select = mapping.getSelect();
+			insert = mapping.getInsert();
+			update = mapping.getUpdate();
+			delete = mapping.getDelete();
+			count = mapping.getCount();
+		}
 	}
 	/**
 	 * 
@@ -50,6 +73,53 @@ public class SQLGenerator<T> {
 		}
 		return select;
 	}
+	/**
+	 * Creates a select query retrieving the records of several primary keys:
+	 * <code>Select * from T where id in (?, ?...)</code>.<br>
+	 * A composite key is compared with row values (<code>where (a, b) in (values (?, ?), (?, ?)...)</code>)
+	 * if {@link #isRowValueSupported()}, otherwise with an <code>or</code> of the key conditions.
+	 * @param keys the number of keys given as parameters
+	 * @return the query, its parameters being the values of each key one after the other
+	 */
+	public String createSelectByIds(int keys){
+		String selectByIds = selectsByIds.get(keys);
+		if(selectByIds == null){
+			List<EntityField> primaryKey = handler.getPrimaryKey();
+			StringBuffer query = new StringBuffer(createSelectAll());
+			query.append(" where ");
+			if(primaryKey.size() == 1){
+				query.append(primaryKey.get(0).getDBFieldName());
+				query.append(" in (");
+				appendQuestionMarkList(query, keys);
+				query.append(')');
+			} else if(isRowValueSupported()){
+				query.append('(');
+				appendFieldsList(query, ", ", primaryKey);
+				query.append(") in (values ");
+				for(int i=0; i<keys; i++){
+					if(i > 0){
+						query.append(", ");
+					}
+					query.append('(');
+					appendQuestionMarkList(query, primaryKey.size());
+					query.append(')');
+				}
+				query.append(')');
+			} else {
+				for(int i=0; i<keys; i++){
+					if(i > 0){
+						query.append(" or ");
+					}
+					query.append('(');
+					appendFieldsList(query, " = ? and ", primaryKey);
+					query.append(" = ?)");
+				}
+			}
+			selectByIds = query.toString();
+			selectsByIds.put(keys, selectByIds);
+		}
+		return selectByIds;
+	}
 	/**
 	 * 
 	 * @return
@@ -67,6 +137,36 @@ public class SQLGenerator<T> {
 		}
 		return insert;
 	}
+	/**
+	 * Creates an insert query inserting several records at once:
+	 * <code>insert into T (a, b) values (?, ?), (?, ?)...</code>
+	 * @param rows the number of records inserted by the query
+	 * @return the query, its parameters being the values of each record one after the other
+	 */
+	public String createMultiRowInsert(int rows){
+		if(rows == 1){
+			return createInsert();
+		}
+		String multiRowInsert = multiRowInserts.get(rows);
+		if(multiRowInsert == null){
+			int fieldsCount = handler.getEntityFields().size();
+			StringBuffer query = new StringBuffer("insert into ");
+			query.append(handler.getTableName());
+			query.append(" (");
+			appendFieldsList(query, ", ", handler.getEntityFields());
+			query.append(") values (");
+			appendQuestionMarkList(query, fieldsCount);
+			query.append(')');
+			for(int i=1; i<rows; i++){
+				query.append(", (");
+				appendQuestionMarkList(query, fieldsCount);
+				query.append(')');
+			}
+			multiRowInsert = query.toString();
+			multiRowInserts.put(rows, multiRowInsert);
+		}
+		return multiRowInsert;
+	}
 	/**
 	 * 
 	 * @return
@@ -119,7 +219,216 @@ public class SQLGenerator<T> {
 		}
 		return count;
 	}
+	/**
+	 * Creates a query inserting the record or updating it if a record with the same primary key already exists.
+	 * The parameters are the ones of {@link #createInsert()}.<br>
+	 * By default the DB is not supposed to support upserts: persisting an entity then checks its presence before inserting or updating it.
+	 * The dialects supporting them override this method.
+	 * @return the query or null if the entity has no primary key or if the DB does not support upserts
+	 */
+	public String createUpsert(){
+		return null;
+	}
+	/**
+	 * Creates the queries handling a temporary table holding primary keys of the entity,
+	 * used by {@link #createSelectJoiningKeys()} to select a big number of keys.
+	 * @return the temporary table or null (the default) if the DB does not support temporary tables
+	 * @see TemporaryTable
+	 */
+	public TemporaryTable createKeyTable(){
+		return null;
+	}
+	/**
+	 * Creates a select query joining the temporary table of {@link #createKeyTable()}:
+	 * <code>Select T.* from E T join napa_keys_E K on K.napa_set = ? and T.id = K.id</code>
+	 * @return the query, its only parameter being the identifier of the set of keys
+	 */
+	public String createSelectJoiningKeys(){
+		if(selectJoiningKeys == null){
+			StringBuffer query = new StringBuffer("Select T.* from ");
+			query.append(handler.getTableName());
+			query.append(" T join ");
+			query.append(getKeyTableName());
+			query.append(" K on K.");
+			query.append(KEY_SET_FIELD);
+			query.append(" = ?");
+			for(EntityField field: handler.getPrimaryKey()){
+				query.append(" and T.").append(field.getDBFieldName());
+				query.append(" = K.").append(field.getDBFieldName());
+			}
+			selectJoiningKeys = query.toString();
+		}
+		return selectJoiningKeys;
+	}
+	/**
+	 * Gives the integer column the table can be split on to be read by ranges (see {@link #createSelectRange()}):
+	 * the primary key if it is a single field of an integer type.
+	 * @return the column or null if the table cannot be split
+	 */
+	public String getPartitionKey(){
+		List<EntityField> primaryKey = handler.getPrimaryKey();
+		if(primaryKey.size() == 1){
+			Class<?> type = primaryKey.get(0).getJavaType();
+			if(type == Long.class || type == Long.TYPE || type == Integer.class || type == Integer.TYPE 
+					|| type == Short.class || type == Short.TYPE){
+				return primaryKey.get(0).getDBFieldName();
+			}
+		}
+		return null;
+	}
+	/**
+	 * Creates a query selecting the smallest and the biggest value of the partition key as two records:
+	 * <code>select min(id) from T union all select max(id) from T</code>
+	 * @return the query or null if the table cannot be split (see {@link #getPartitionKey()})
+	 */
+	public String createSelectPartitionBounds(){
+		String key = getPartitionKey();
+		if(selectPartitionBounds == null && key != null){
+			StringBuffer query = new StringBuffer("select min(");
+			query.append(key).append(") from ").append(handler.getTableName());
+			query.append(" union all select max(");
+			query.append(key).append(") from ").append(handler.getTableName());
+			selectPartitionBounds = query.toString();
+		}
+		return selectPartitionBounds;
+	}
+	/**
+	 * Creates a select query retrieving the records of a range of the partition key:
+	 * <code>Select * from T where id &gt;= ? and id &lt;= ?</code>
+	 * @return the query, its parameters being the bounds (included) of the range, or null if the table cannot be split
+	 */
+	public String createSelectRange(){
+		String key = getPartitionKey();
+		if(selectRange == null && key != null){
+			StringBuffer query = new StringBuffer(createSelectAll());
+			query.append(" where ").append(key).append(" >= ? and ");
+			query.append(key).append(" <= ?");
+			selectRange = query.toString();
+		}
+		return selectRange;
+	}
+	/**
+	 * Creates a select query retrieving a page of records in the order of the primary key, 
+	 * the page starting after the last key of the previous page (keyset pagination):
+	 * <code>Select * from T where id &gt; ? order by id fetch first ? rows only</code>.<br>
+	 * A composite key is compared with row values (<code>where (a, b) &gt; (?, ?)</code>) if {@link #isRowValueSupported()},
+	 * otherwise with <code>where a &gt; ? or (a = ? and b &gt; ?)</code>.
+	 * @param first true for the first page, selected without condition on the key
+	 * @return the query, its parameters being given by {@link #getSelectPageParameters(Object[], int)}
+	 */
+	public String createSelectPage(boolean first){
+		String selectPage = first ? selectFirstPage : selectNextPage;
+		if(selectPage == null){
+			List<EntityField> primaryKey = handler.getPrimaryKey();
+			StringBuffer query = new StringBuffer(createSelectAll());
+			if(!first){
+				query.append(" where ");
+				if(primaryKey.size() == 1){
+					query.append(primaryKey.get(0).getDBFieldName());
+					query.append(" > ?");
+				} else if(isRowValueSupported()){
+					query.append('(');
+					appendFieldsList(query, ", ", primaryKey);
+					query.append(") > (");
+					appendQuestionMarkList(query, primaryKey.size());
+					query.append(')');
+				} else {
+					for(int i=0; i<primaryKey.size(); i++){
+						if(i > 0){
+							query.append(" or (");
+							appendFieldsList(query, " = ? and ", primaryKey.subList(0, i));
+							query.append(" = ? and ");
+						}
+						query.append(primaryKey.get(i).getDBFieldName());
+						query.append(i > 0 ? " > ?)" : " > ?");
+					}
+				}
+			}
+			query.append(" order by ");
+			appendFieldsList(query, ", ", primaryKey);
+			appendLimit(query);
+			selectPage = query.toString();
+			if(first){
+				selectFirstPage = selectPage;
+			} else {
+				selectNextPage = selectPage;
+			}
+		}
+		return selectPage;
+	}
+	/**
+	 * Gives the parameters of the query of {@link #createSelectPage(boolean)}
+	 * @param afterKey the values of the primary key of the last record of the previous page or null for the first page
+	 * @param limit the maximum number of records of the page
+	 * @return the parameters of the query
+	 */
+	public Object[] getSelectPageParameters(Object[] afterKey, int limit){
+		if(afterKey == null){
+			return new Object[]{limit};
+		}
+		if(afterKey.length == 1 || isRowValueSupported()){
+			Object[] parameters = Arrays.copyOf(afterKey, afterKey.length + 1);
+			parameters[afterKey.length] = limit;
+			return parameters;
+		}
+		//a > ? or (a = ? and b > ?)...: the values of the fields preceding each compared field are repeated
+		Object[] parameters = new Object[afterKey.length * (afterKey.length + 1) / 2 + 1];
+		int index = 0;
+		for(int i=0; i<afterKey.length; i++){
+			for(int j=0; j<=i; j++){
+				parameters[index++] = afterKey[j];
+			}
+		}
+		parameters[index] = limit;
+		return parameters;
+	}
+	/**
+	 * Appends the clause limiting the number of records of a select, the limit being given as a parameter.
+	 * The default is the standard <code> fetch first ? rows only</code>.
+	 * @param query the select to complete
+	 */
+	protected void appendLimit(StringBuffer query){
+		query.append(" fetch first ? rows only");
+	}
+	/**
+	 * @return the name of the temporary table holding keys of the entity
+	 */
+	protected String getKeyTableName(){
+		return "napa_keys_" + handler.getTableName().replace('.', '_');
+	}
+	/**
+	 * @return true if the DB can compare row values (e.g. <code>(a, b) in (values (?, ?))</code>).
+	 * False by default.
+	 */
+	protected boolean isRowValueSupported(){
+		return false;
+	}
+	/**
+	 * @return the handler of the entity the queries are generated for
+	 */
+	protected EntityHandler<T> getHandler(){
+		return handler;
+	}
 	//----------------------------------------------------------------------------------------------------------------------------
+	/**
+	 * Appends the assignments of the fields that are not part of the primary key
+	 * @param valuePrefix the prefix of the assigned values: the field name is appended to it (e.g. "excluded.")
+	 */
+	protected void appendUpdateFields(StringBuffer query, List<EntityField> fields, String valuePrefix){
+		int index = 1;
+		for(EntityField field: fields){
+			if(!field.isPrimaryKey()){
+				if(index > 1){
+					query.append(", ");
+				}
+				query.append(field.getDBFieldName());
+				query.append(" = ");
+				query.append(valuePrefix);
+				query.append(field.getDBFieldName());
+				index++;
+			}
+		}
+	}
 	
 	private void appendWhereClause(StringBuffer query){
 		if(handler.getPrimaryKey().size()>0){
@@ -150,7 +459,7 @@ public class SQLGenerator<T> {
 			}
 		}
 	}
-	private void appendQuestionMarkList(StringBuffer query, int count){
+	protected void appendQuestionMarkList(StringBuffer query, int count){
 		if(count>0){
 			query.append('?');
 			for(int i=1; i<count; i++){
@@ -158,7 +467,7 @@ public class SQLGenerator<T> {
 			}
 		}
 	}
-	private void appendFieldsList(StringBuffer query, String separator, List<EntityField> fields){
+	protected void appendFieldsList(StringBuffer query, String separator, List<EntityField> fields){
 		if(fields != null && fields.size()>0){
 			query.append(fields.get(0).getDBFieldName());
 			for(int i=1; i<fields.size(); i++){
@@ -1,9 +1,12 @@
 package org.cch.napa.entity;
 
+import java.lang.reflect.InvocationTargetException;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 
+import org.cch.napa.entity.annotations.atk.EntityField;
 import org.cch.napa.exceptions.PersistenceException;
+import org.cch.napa.mapper.ParameterBinder;
 import org.cch.napa.mapper.ResultSetAccessor;
 
 /**
@@ -23,4 +26,30 @@ public interface SQLTypeMapper {
 	
 	void setParameter(PreparedStatement statement, int index, Object value)throws SQLException, PersistenceException;
 
+	/**
+	 * Chooses the setter of the parameters bound to a field of the given class,
+	 * to be used instead of {@link #setParameter(PreparedStatement, int, Object)} for each value of the field.
+	 * By default the values are bound by {@link #setParameter(PreparedStatement, int, Object)}.
+	 * @param cls the class of the field
+	 * @param sqlType the sql type of the field
+	 * @return the binder of the values of the field
+	 */
+	default ParameterBinder getParameterBinderFromClass(Class<?> cls, int sqlType) {
+		return new ParameterBinder() {
+			public void bindValue(PreparedStatement statement, int index, Object value) throws SQLException, PersistenceException {
+				setParameter(statement, index, value);
+			}
+
+			public void bindField(PreparedStatement statement, int index, EntityField field, Object entity) throws SQLException, PersistenceException {
+				try {
+					setParameter(statement, index, field.get(entity));
+				} catch (IllegalAccessException e) {
+					throw new PersistenceException("Could not read the value of " + field.getDBFieldName(), e);
+				} catch (InvocationTargetException e) {
+					throw new PersistenceException("Could not read the value of " + field.getDBFieldName(), e);
+				}
+			}
+		};
+	}
+
 }
\ No newline at end of file
@@ -20,6 +20,7 @@ import org.cch.napa.entity.annotations.atk.EntityField;
 import org.cch.napa.entity.annotations.atk.EntityHandler;
 import org.cch.napa.entity.annotations.atk.EntityIndex;
 import org.cch.napa.exceptions.SQLException;
+import org.cch.napa.jdbc.JdbcTransaction;
 
 /**
  * Class in charge of creating, deleting modifying tables
@@ -85,28 +86,36 @@ public class TableManager {
 	 */
 	public Set<String> getTableNames() throws SQLException {
 		Set<String> tables = new TreeSet<String>();
+		Connection connection = null;
 		try {
-			Connection connection = connectionProvider.getConnection();
+			connection = acquireConnection();
 			DatabaseMetaData metaData = connection.getMetaData();
 			ResultSet rs = metaData.getTables(null, null, "%", null);
-			while (rs.next()) {
-				String type = rs.getString("TABLE_TYPE");
-				if (JDBC_TABLE_TYPE_TABLE.equalsIgnoreCase(type)) {
-					String name = rs.getString("TABLE_NAME");
-					tables.add(name.toUpperCase());
+			try {
+				while (rs.next()) {
+					String type = rs.getString("TABLE_TYPE");
+					if (JDBC_TABLE_TYPE_TABLE.equalsIgnoreCase(type)) {
+						String name = rs.getString("TABLE_NAME");
+						tables.add(name.toUpperCase());
+					}
 				}
+			} finally {
+				rs.close();
 			}
 		} catch (java.sql.SQLException e) {
 			// The table does not exist
 			throw new org.cch.napa.exceptions.SQLException("Cannot get table names", e);
+		} finally {
+			releaseConnection(connection);
 		}
 		return tables;
 	}
 
 	private void executeCanRead(String query) throws SQLException {
 		PreparedStatement statement = null;
+		Connection connection = null;
 		try {
-			Connection connection = connectionProvider.getConnection();
+			connection = acquireConnection();
 			statement = connection.prepareStatement(query);
 			statement.executeQuery();
 		} catch (java.sql.SQLException e) {
@@ -121,6 +130,7 @@ public class TableManager {
 					new SQLException("Cannot close statement in 'executeCanRead'", e);
 				}
 			}
+			releaseConnection(connection);
 		}
 	}
 
@@ -128,9 +138,16 @@ public class TableManager {
 		String create = generator.generateCreateTable(entityClass);
 		executeQuery(create);
 		EntityHandler<E> entityHandler = factory.getEntityHandler(entityClass);
-		for(EntityIndex index : entityHandler.getIndexes()){
-			create = generator.generateIndex(index);
-			executeQuery(create);
+		if(entityHandler.getMapping() != null){
+			//The indexes were generated at compile time
+			for(String index : entityHandler.getMapping().getIndexes()){
+				executeQuery(index);
+			}
+		} else {
+			for(EntityIndex index : entityHandler.getIndexes()){
+				create = generator.generateIndex(index);
+				executeQuery(create);
+			}
 		}
 	}
 
@@ -162,7 +179,7 @@ public class TableManager {
 		try {
 			statement = dao.prepareStatement(query);
 			statement.execute();
-			if (!statement.getConnection().getAutoCommit()) {
+			if (isCommitNeeded(statement)) {
 				statement.getConnection().commit();
 			}
 		} catch (java.sql.SQLException e) {
@@ -171,16 +188,17 @@ public class TableManager {
 		} finally {
 			if (statement != null) {
 				try {
-					if (!statement.getConnection().getAutoCommit()) {
+					if (isCommitNeeded(statement)) {
 						try {
 							statement.getConnection().rollback();
 						} catch (Exception ex) {
 							throw new SQLException("Could not rollback drop table", ex);
 						}
 					}
-					statement.close();
 				} catch (Exception e) {
 					throw new SQLException("Could not close statement", e);
+				} finally {
+					dao.closeStatement(statement);
 				}
 			}
 		}
@@ -191,8 +209,9 @@ public class TableManager {
 		String query = "select * from " + table + " where 1=0";
 		ResultSetMetaData rsMetaData = null;
 		Map<String, FieldMetaData> metaData = new TreeMap<String, FieldMetaData>();
+		Connection connection = null;
 		try {
-			Connection connection = connectionProvider.getConnection();
+			connection = acquireConnection();
 			statement = connection.prepareStatement(query);
 			ResultSet resultSet = statement.executeQuery();
 			rsMetaData = resultSet.getMetaData();
@@ -216,7 +235,11 @@ public class TableManager {
 					statement.close();
 				} catch (java.sql.SQLException e) {
 					throw new SQLException("Cannot close statement in 'executeCanRead'", e);
+				} finally {
+					releaseConnection(connection);
 				}
+			} else {
+				releaseConnection(connection);
 			}
 		}
 		return metaData;
@@ -233,6 +256,24 @@ public class TableManager {
 		Map<String, FieldMetaData> metaDatas = getTableMetaDataFromDB(table);
 		return metaDatas.containsKey(field.toUpperCase());
 	}
+	//Inside a transaction, its connection is used and the commit is left to it
+	private Connection acquireConnection() throws java.sql.SQLException {
+		JdbcTransaction transaction = JdbcTransaction.getCurrent(connectionProvider);
+		return transaction == null ? connectionProvider.getConnection() : transaction.getConnection();
+	}
+	private boolean isCommitNeeded(PreparedStatement statement) throws java.sql.SQLException {
+		Connection connection = statement.getConnection();
+		return !connection.getAutoCommit() && !JdbcTransaction.isCurrentConnection(connectionProvider, connection);
+	}
+	private void releaseConnection(Connection connection) throws SQLException {
+		if (connection != null && !JdbcTransaction.isCurrentConnection(connectionProvider, connection)) {
+			try {
+				connectionProvider.releaseConnection(connection);
+			} catch (java.sql.SQLException e) {
+				throw new SQLException("Could not release the connection", e);
+			}
+		}
+	}
 	private class DBFieldMetaData implements FieldMetaData {
 		//Attributes
 		private String fieldName;
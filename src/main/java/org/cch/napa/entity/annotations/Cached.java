@@ -0,0 +1,37 @@
+package org.cch.napa.entity.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * This annotation can be used on an entity to keep the entities selected by their primary key
+ * in a cache shared by the daos of the factory (see {@link org.cch.napa.cache.EntityCache}).<br>
+ * It is intended for reference entities read much more often than they are modified.
+ * The configuration can also be given (or overridden) by {@link org.cch.napa.entity.EntityDaoFactory#setCacheConfiguration(Class, org.cch.napa.cache.CacheConfiguration)}.
+ *
+ * @author Christophe Champagne
+ *
+ */
+@Target(value={ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Cached {
+	/**
+	 * Maximum number of entities kept in the cache, the least recently used ones being evicted first
+	 */
+	int maxEntries() default 10000;
+	/**
+	 * Maximum estimated size (in bytes) of the entities kept in the cache or 0 not to bound it
+	 */
+	long maxWeight() default 0;
+	/**
+	 * Time (ms) after which an entity is read again from the DB or 0 to keep it until it is evicted
+	 */
+	long timeToLive() default 0;
+	/**
+	 * Size (in bytes) of the memory out of the java heap keeping the entities, encoded, or 0 to keep them on the heap.
+	 * Intended for big caches, whose entities would otherwise weigh on the garbage collector.
+	 */
+	long offHeapCapacity() default 0;
+}
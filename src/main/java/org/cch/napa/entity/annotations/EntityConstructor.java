@@ -0,0 +1,28 @@
+/**
+ *
+ */
+package org.cch.napa.entity.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * This annotation can be used on a constructor of an entity
+ * to create the entities by passing the values of their fields to it (e.g. for immutable entities having final fields)<br>
+ * The fields bound to the parameters are not set after the construction, even if they are final.
+ * The canonical constructor of a record is used without annotation.
+ *
+ * @author Christophe Champagne
+ *
+ */
+@Target(value={ElementType.CONSTRUCTOR})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface EntityConstructor {
+	/**
+	 * Names of the fields (java or DB names) bound to each parameter of the constructor.<br>
+	 * If omitted, the names of the parameters are used (the classes must then be compiled with the -parameters option).
+	 */
+	String[] value() default {};
+}
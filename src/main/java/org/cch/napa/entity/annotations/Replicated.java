@@ -0,0 +1,26 @@
+package org.cch.napa.entity.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * This annotation can be used on an entity to keep all the records of its table in memory
+ * (see {@link org.cch.napa.cache.ReplicatedTable}): its daos then select the entities without querying the DB.<br>
+ * It is intended for small tables that are read very often and rarely modified (currencies, types, configuration...).
+ * The table is loaded again after it is modified through the daos of the factory and, if an interval is given, periodically
+ * to see the changes made by other means.
+ * The entities given by the daos are shared: they must not be modified.
+ *
+ * @author Christophe Champagne
+ *
+ */
+@Target(value={ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Replicated {
+	/**
+	 * Interval (ms) between two loads of the table or 0 to load it only after it was modified through the daos
+	 */
+	long refreshInterval() default 0;
+}
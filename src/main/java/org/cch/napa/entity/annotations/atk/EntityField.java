@@ -6,12 +6,16 @@ package org.cch.napa.entity.annotations.atk;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.sql.Types;
 
 import org.cch.napa.entity.FieldMetaData;
 import org.cch.napa.entity.annotations.DBField;
 import org.cch.napa.entity.annotations.GeneratedValue;
 import org.cch.napa.entity.annotations.generator.Generator;
+import org.cch.napa.exceptions.PersistenceException;
+import org.cch.napa.mapper.ParameterBinder;
 
 /**
  * @author Christophe Champagne
@@ -35,6 +39,8 @@ public class EntityField implements FieldMetaData {
 	private Method setter;
 	private GeneratedValue generatedValueAnnotation;
 	private Generator generator;
+	private FieldAccessor accessor;
+	private ParameterBinder parameterBinder;
 	
 	//Constructors
 	EntityField(){}
@@ -216,6 +222,42 @@ public class EntityField implements FieldMetaData {
 	void setGeneratedValueAnnotation(GeneratedValue generatedValueAnnotation) {
 		this.generatedValueAnnotation = generatedValueAnnotation;
 	}	
+	/**
+	 * @return the binder of the values of the field to the parameters of the statements
+	 */
+	public ParameterBinder getParameterBinder() {
+		return parameterBinder;
+	}
+
+	/**
+	 * @param parameterBinder the parameterBinder to set
+	 */
+	void setParameterBinder(ParameterBinder parameterBinder) {
+		this.parameterBinder = parameterBinder;
+	}
+	/**
+	 * Binds the value of the field to a parameter of the statement
+	 * @param statement the statement
+	 * @param index the index of the parameter (the first one is 1)
+	 * @param entity the entity holding the value
+	 */
+	public void bind(PreparedStatement statement, int index, Object entity) throws SQLException, PersistenceException {
+		parameterBinder.bindField(statement, index, this, entity);
+	}
+	/**
+	 * Compiles the access to the value (see {@link FieldAccessor}).
+	 * Called once the getter, the setter and the field are known. 
+	 * If the access cannot be compiled, the values are accessed by reflection.
+	 */
+	void compileAccessor(){
+		try {
+			accessor = FieldAccessor.create(getter, setter, field, getJavaType());
+		} catch (ReflectiveOperationException e) {
+			accessor = null;
+		} catch (RuntimeException e) {
+			accessor = null;
+		}
+	}
 	/**
 	 * 
 	 * @param entity
@@ -225,7 +267,13 @@ public class EntityField implements FieldMetaData {
 	 * @throws InvocationTargetException
 	 */
 	public Object get(Object entity) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException{
-		if(getter != null){
+		if(accessor != null){
+			try {
+				return accessor.get(entity);
+			} catch (Throwable e) {
+				throw toInvocationException(e);
+			}
+		} else if(getter != null){
 			return getter.invoke(entity);
 		} else if (field != null ){
 			return field.get(entity);
@@ -234,7 +282,7 @@ public class EntityField implements FieldMetaData {
 	}
 	
 	/**
-	 * 
+	 * Sets the value. A number (or a boolean) given for a primitive field is converted to its type.
 	 * @param entity
 	 * @param value
 	 * @throws IllegalArgumentException
@@ -242,13 +290,125 @@ public class EntityField implements FieldMetaData {
 	 * @throws InvocationTargetException
 	 */
 	public void set(Object entity, Object value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException{
-		if(setter != null){
+		if(accessor != null){
+			Class<?> type = getJavaType();
+			if(type.isPrimitive() && value == null){
+				throw new IllegalArgumentException("Cannot set NULL to the primitive field " + DBFieldName);
+			} else if(type == Integer.TYPE && value instanceof Number){
+				setInt(entity, ((Number)value).intValue());
+			} else if(type == Long.TYPE && value instanceof Number){
+				setLong(entity, ((Number)value).longValue());
+			} else if(type == Double.TYPE && value instanceof Number){
+				setDouble(entity, ((Number)value).doubleValue());
+			} else if(type == Boolean.TYPE && value instanceof Boolean){
+				setBoolean(entity, (Boolean)value);
+			} else {
+				try {
+					accessor.set(entity, value);
+				} catch (Throwable e) {
+					throw toInvocationException(e);
+				}
+			}
+		} else if(setter != null){
 			setter.invoke(entity, value);
 		} else if (field != null ){
 			field.set(entity, value);
 		}
 	}
 
+	//Primitive accessors: to be used only on fields of the corresponding type
+	public int getInt(Object entity) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException{
+		if(accessor == null){
+			return (Integer)get(entity);
+		}
+		try {
+			return accessor.getInt(entity);
+		} catch (Throwable e) {
+			throw toInvocationException(e);
+		}
+	}
+	public long getLong(Object entity) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException{
+		if(accessor == null){
+			return (Long)get(entity);
+		}
+		try {
+			return accessor.getLong(entity);
+		} catch (Throwable e) {
+			throw toInvocationException(e);
+		}
+	}
+	public double getDouble(Object entity) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException{
+		if(accessor == null){
+			return (Double)get(entity);
+		}
+		try {
+			return accessor.getDouble(entity);
+		} catch (Throwable e) {
+			throw toInvocationException(e);
+		}
+	}
+	public boolean getBoolean(Object entity) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException{
+		if(accessor == null){
+			return (Boolean)get(entity);
+		}
+		try {
+			return accessor.getBoolean(entity);
+		} catch (Throwable e) {
+			throw toInvocationException(e);
+		}
+	}
+	public void setInt(Object entity, int value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException{
+		if(accessor == null){
+			set(entity, value);
+			return;
+		}
+		try {
+			accessor.setInt(entity, value);
+		} catch (Throwable e) {
+			throw toInvocationException(e);
+		}
+	}
+	public void setLong(Object entity, long value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException{
+		if(accessor == null){
+			set(entity, value);
+			return;
+		}
+		try {
+			accessor.setLong(entity, value);
+		} catch (Throwable e) {
+			throw toInvocationException(e);
+		}
+	}
+	public void setDouble(Object entity, double value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException{
+		if(accessor == null){
+			set(entity, value);
+			return;
+		}
+		try {
+			accessor.setDouble(entity, value);
+		} catch (Throwable e) {
+			throw toInvocationException(e);
+		}
+	}
+	public void setBoolean(Object entity, boolean value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException{
+		if(accessor == null){
+			set(entity, value);
+			return;
+		}
+		try {
+			accessor.setBoolean(entity, value);
+		} catch (Throwable e) {
+			throw toInvocationException(e);
+		}
+	}
+	//Errors are not wrapped, like with reflection
+	private InvocationTargetException toInvocationException(Throwable e){
+		if(e instanceof Error){
+			throw (Error)e;
+		}
+		return new InvocationTargetException(e);
+	}
+
 	/**
 	 * @see java.lang.Object#toString()
 	 */
@@ -5,12 +5,14 @@ package org.cch.napa.entity.annotations.atk;
 
 import java.lang.annotation.AnnotationFormatError;
 import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -24,9 +26,11 @@ import org.cch.napa.StringUtil;
 import org.cch.napa.exceptions.AnnotationException;
 import org.cch.napa.exceptions.PersistenceException;
 import org.cch.napa.entity.EntityDaoFactory;
+import org.cch.napa.entity.EntityMapping;
 import org.cch.napa.entity.SQLTypeMapper;
 import org.cch.napa.entity.annotations.DBField;
 import org.cch.napa.entity.annotations.Entity;
+import org.cch.napa.entity.annotations.EntityConstructor;
 import org.cch.napa.entity.annotations.GeneratedValue;
 import org.cch.napa.entity.annotations.Id;
 import org.cch.napa.entity.annotations.Index;
@@ -59,11 +63,28 @@ public class EntityHandler<T>{
 	private List<EntityField> entityFields = new ArrayList<EntityField>();
 	private List<EntityField> primaryKey = new ArrayList<EntityField>();
 	private String tableName; 
+	private EntityMapping<T> mapping;
+	private EntityInstantiator<T> instantiator;
+	//Index of the parameter of the constructor bound to each field (-1 if the field is set after the construction)
+	private int[] parameterIndexes;
+	//Constructor receiving the values of the fields (records, @EntityConstructor) and names of the fields bound to its parameters
+	private Constructor<T> boundConstructor;
+	private List<String> boundNames = new ArrayList<String>();
 	
 	//constructor
 	public EntityHandler(Class<T> entityClass,EntityDaoFactory factory) throws AnnotationException {
+		this(entityClass, factory, null);
+	}
+	/**
+	 * @param entityClass the class of the entity
+	 * @param factory the factory
+	 * @param mapping the mapping generated at compile time for the entity (null if none) 
+	 * @throws AnnotationException
+	 */
+	public EntityHandler(Class<T> entityClass,EntityDaoFactory factory, EntityMapping<T> mapping) throws AnnotationException {
 		this.entityClass = entityClass;
 		this.factory = factory;
+		this.mapping = mapping;
 
 		analyseEntity();
 	}
@@ -81,6 +102,74 @@ public class EntityHandler<T>{
 	public Collection<EntityIndex> getIndexes(){
 		return indexes.values();
 	}
+	/**
+	 * @return the object creating the instances of the entity
+	 */
+	public EntityInstantiator<T> getInstantiator(){
+		return instantiator;
+	}
+	/**
+	 * @return the mapping generated at compile time for the entity or null if the entity is only analysed by reflection
+	 */
+	public EntityMapping<T> getMapping(){
+		return mapping;
+	}
+	/**
+	 * Reads the values of all the fields of an entity (e.g. to keep its state apart from it)
+	 * @param entity the entity
+	 * @return the values in the order of {@link #getEntityFields()}
+	 */
+	public Object[] getValues(T entity) throws PersistenceException{
+		Object[] values = new Object[entityFields.size()];
+		try {
+			for(int i = 0; i < values.length; i++){
+				values[i] = entityFields.get(i).get(entity);
+			}
+		} catch (Exception e) {
+			throw new PersistenceException("Could not read the fields of " + entityClass.getName(), e);
+		}
+		return values;
+	}
+	/**
+	 * @param values the values of all the fields in the order of {@link #getEntityFields()} (see {@link #getValues(Object)})
+	 * @return the values of the primary key fields in the order of {@link #getPrimaryKey()}
+	 */
+	public Object[] getPrimaryKeyValues(Object[] values){
+		Object[] keyValues = new Object[primaryKey.size()];
+		for(int i = 0; i < keyValues.length; i++){
+			keyValues[i] = values[entityFields.indexOf(primaryKey.get(i))];
+		}
+		return keyValues;
+	}
+	/**
+	 * Creates an entity from the values of its fields
+	 * @param values the values in the order of {@link #getEntityFields()} (see {@link #getValues(Object)})
+	 * @return the new entity
+	 */
+	public T newInstance(Object[] values) throws PersistenceException{
+		try {
+			T entity;
+			if(instantiator.isConstructorBound()){
+				Object[] arguments = instantiator.createArguments();
+				for(int i = 0; i < values.length; i++){
+					if(parameterIndexes[i] >= 0){
+						instantiator.setArgument(arguments, parameterIndexes[i], values[i]);
+					}
+				}
+				entity = instantiator.newInstance(arguments);
+			} else {
+				entity = instantiator.newInstance();
+			}
+			for(int i = 0; i < values.length; i++){
+				if(parameterIndexes[i] < 0){
+					entityFields.get(i).set(entity, values[i]);
+				}
+			}
+			return entity;
+		} catch (Exception e) {
+			throw new PersistenceException("Could not create an instance of " + entityClass.getName(), e);
+		}
+	}
 	public EntityField getEntityField(String dbFieldName){
 		return fieldsByName.get(dbFieldName.trim().toUpperCase());
 	}	
@@ -104,6 +193,8 @@ public class EntityHandler<T>{
 			Entity entityAnnotation = entityClass.getAnnotation(Entity.class);
 			mapAllFieldsToDB = entityAnnotation.considerAllAttributesAsDBFields();
 		}
+		//The fields bound to the parameters of the constructor can be final
+		analyseConstructors();
 		//Check the fields first
 		//	check public fields
 		Field[] fields = entityClass.getFields();
@@ -161,6 +252,7 @@ public class EntityHandler<T>{
 				if(entityField.getPrecision()==DBField.DEFAULT){
 					entityField.setPrecision(sqlTypeMapper.getPrecisionFromType(entityField.getSqlType()));					
 				}
+				entityField.setParameterBinder(sqlTypeMapper.getParameterBinderFromClass(entityField.getJavaType(), entityField.getSqlType()));
 				if(entityField.getGeneratedValueAnnotation() != null){
 					if(entityField.getJavaType().isPrimitive() && entityField.getGeneratedValueAnnotation().onlyGenerateWhenNull()){
 						throw new AnnotationException("It seems that the field -" + entityField.getDBFieldName() +
@@ -184,6 +276,141 @@ public class EntityHandler<T>{
 				createOrUpdateIndex(indexAnnotation.name(), indexAnnotation.unique(), indexAnnotation.fields());
 			}
 		}
+		if(mapping != null){
+			applyMapping();
+		}
+		for(EntityField entityField : entityFields){
+			entityField.compileAccessor();
+		}
+		createInstantiator();
+	}
+	/**
+	 * Looks for a constructor receiving the values of the fields: 
+	 * the canonical constructor of a record or the constructor annotated with {@link EntityConstructor}
+	 */
+	@SuppressWarnings("unchecked")
+	private void analyseConstructors() throws AnnotationException{
+		for(Constructor<?> constructor : entityClass.getDeclaredConstructors()){
+			if(constructor.isAnnotationPresent(EntityConstructor.class)){
+				if(boundConstructor != null){
+					throw new AnnotationException("Several constructors of " + entityClass.getName() + " are annotated with @EntityConstructor");
+				}
+				boundConstructor = (Constructor<T>)constructor;
+				String[] names = constructor.getAnnotation(EntityConstructor.class).value();
+				if(names.length == 0){
+					for(java.lang.reflect.Parameter parameter : constructor.getParameters()){
+						if(!parameter.isNamePresent()){
+							throw new AnnotationException("The names of the parameters of the @EntityConstructor of " + entityClass.getName()
+									+ " are not available: give them in the annotation or compile with -parameters");
+						}
+						boundNames.add(parameter.getName());
+					}
+				} else if(names.length != constructor.getParameterTypes().length){
+					throw new AnnotationException("The @EntityConstructor of " + entityClass.getName() + " does not name each of its parameters");
+				} else {
+					boundNames.addAll(Arrays.asList(names));
+				}
+			}
+		}
+		if(boundConstructor == null && isRecord(entityClass)){
+			try {
+				Object[] components = (Object[])Class.class.getMethod("getRecordComponents").invoke(entityClass);
+				Class<?>[] types = new Class<?>[components.length];
+				for(int i = 0; i < components.length; i++){
+					Method getName = components[i].getClass().getMethod("getName");
+					Method getType = components[i].getClass().getMethod("getType");
+					boundNames.add((String)getName.invoke(components[i]));
+					types[i] = (Class<?>)getType.invoke(components[i]);
+				}
+				boundConstructor = entityClass.getDeclaredConstructor(types);
+			} catch (Exception e) {
+				throw new AnnotationException("Cannot find the canonical constructor of the record " + entityClass.getName(), e);
+			}
+		}
+	}
+	/**
+	 * Records exist since Java 16: they are detected by reflection
+	 */
+	private static boolean isRecord(Class<?> cls){
+		try {
+			return (Boolean)Class.class.getMethod("isRecord").invoke(cls);
+		} catch (Exception e) {
+			return false;
+		}
+	}
+	private void createInstantiator() throws AnnotationException{
+		if(boundConstructor != null){
+			EntityField[] parameters = new EntityField[boundNames.size()];
+			for(int i = 0; i < parameters.length; i++){
+				parameters[i] = getBoundField(boundNames.get(i));
+				if(parameters[i] == null){
+					throw new AnnotationException("The parameter " + boundNames.get(i) + " of the constructor of " 
+							+ entityClass.getName() + " does not correspond to a field");
+				}
+			}
+			try {
+				instantiator = EntityInstantiator.create(boundConstructor, parameters);
+			} catch (IllegalAccessException e) {
+				throw new AnnotationException("Cannot access the constructor of " + entityClass.getName(), e);
+			}
+		} else if(mapping != null){
+			instantiator = EntityInstantiator.create(mapping);
+		} else {
+			instantiator = EntityInstantiator.create(entityClass);
+		}
+		parameterIndexes = new int[entityFields.size()];
+		for(int i = 0; i < parameterIndexes.length; i++){
+			parameterIndexes[i] = instantiator.getParameterIndex(entityFields.get(i));
+		}
+	}
+	private EntityField getBoundField(String name){
+		for(EntityField entityField : entityFields){
+			if(entityField.getField() != null && entityField.getField().getName().equals(name)){
+				return entityField;
+			}
+		}
+		return getEntityField(name);
+	}
+	/**
+	 * Sorts the fields in the order of the generated mapping so that its queries match the values of the fields.
+	 * The fields keep their compiled accessors (with the unboxed paths of the primitive types):
+	 * the mapping only gives the queries, the indexes and the new instances.
+	 * @throws AnnotationException if the fields of the mapping are not the ones of the entity (e.g. the mapping was generated before the entity changed)
+	 */
+	private void applyMapping() throws AnnotationException{
+		String[] fieldNames = mapping.getFieldNames();
+		String[] primaryKeyNames = mapping.getPrimaryKey();
+		if(!tableName.equals(mapping.getTableName())){
+			throw staleMapping("its table " + mapping.getTableName() + " is not " + tableName);
+		}
+		if(fieldNames.length != entityFields.size() || primaryKeyNames.length != primaryKey.size()){
+			throw staleMapping("it has " + fieldNames.length + " fields and " + primaryKeyNames.length + " primary key fields instead of "
+					+ entityFields.size() + " and " + primaryKey.size());
+		}
+		List<EntityField> sortedFields = new ArrayList<EntityField>(fieldNames.length);
+		for(String fieldName : fieldNames){
+			EntityField entityField = getEntityField(fieldName);
+			if(entityField == null || sortedFields.contains(entityField)){
+				throw staleMapping("the field " + fieldName + " is not a field of the entity");
+			}
+			sortedFields.add(entityField);
+		}
+		List<EntityField> sortedPrimaryKey = new ArrayList<EntityField>(primaryKeyNames.length);
+		for(String fieldName : primaryKeyNames){
+			EntityField entityField = getEntityField(fieldName);
+			if(entityField == null || !entityField.isPrimaryKey()){
+				throw staleMapping("the field " + fieldName + " is not in the primary key of the entity");
+			}
+			sortedPrimaryKey.add(entityField);
+		}
+		entityFields.clear();
+		entityFields.addAll(sortedFields);
+		primaryKey.clear();
+		primaryKey.addAll(sortedPrimaryKey);
+	}
+	private AnnotationException staleMapping(String reason){
+		return new AnnotationException("The generated mapping " + mapping.getClass().getName() + " does not match the entity " 
+				+ entityClass.getName() + " (" + reason + "): compile the entity again with the napa processor");
 	}
 	private void analyseFields(Field[] fields, boolean mapAllFieldsToDB) throws AnnotationException{
 		for(Field field: fields){
@@ -196,7 +423,7 @@ public class EntityHandler<T>{
 				} else if(!entityField.getField().equals(field)){
 					throw new AnnotationException("Duplicated field " + name);
 				}
-				if(Modifier.isFinal(field.getModifiers())
+				if((Modifier.isFinal(field.getModifiers()) && !boundNames.contains(name))
 						|| Modifier.isStatic(field.getModifiers())	
 						|| Modifier.isTransient(field.getModifiers())	
 						){
@@ -227,13 +454,17 @@ public class EntityHandler<T>{
 							throw new AnnotationException("The setter " + method.getName()  +  " corresponds to a field having already a setter defined");
 						}
 					}
-				} else if(isDbField(method) || isId(method) || isNotNull(method)){
+				} else if((isDbField(method) || isId(method) || isNotNull(method)) && !isBoundAccessor(method)){
 					throw new AnnotationException("The method " + method.getName() +  " is marked is not a getter or a setter but has @Id or @DbField annotation");
 				}
 			}
 		}
 
 	}
+	//Accessor of a record component (its annotations are propagated to it)
+	private boolean isBoundAccessor(Method method){
+		return method.getParameterTypes().length == 0 && boundNames.contains(method.getName());
+	}
 	private Field lookupFieldInAncestors(String fieldName, String dbFieldName){
 		Field ancestorField = null;
 		Class<? super T> currentClass = entityClass.getSuperclass();
@@ -412,6 +643,7 @@ public class EntityHandler<T>{
 		if(index == null){
 			index = new EntityIndex(name);
 			index.setTableName(this.tableName);
+			index.setUnique(unique);
 			indexes.put(name, index);
 		} else if(index.isUnique() != unique) {
 			throw new AnnotationException("It seems that the index " + name + " is inconsistently declared as both unique and non unique");
@@ -0,0 +1,215 @@
+package org.cch.napa.entity.annotations.atk;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
+import org.cch.napa.entity.EntityMapping;
+
+/**
+ * Creates the instances of an entity through a constructor handle resolved once.<br>
+ * By default the constructor without parameter is used and the fields are set afterwards.
+ * When the entity is constructor-bound (records, {@link org.cch.napa.entity.annotations.EntityConstructor}),
+ * the values of the fields are collected in an arguments buffer (see {@link #createArguments()}) and given to the constructor.
+ * @author Christophe Champagne
+ *
+ */
+public class EntityInstantiator<T> {
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+	private final Class<T> entityClass;
+	private final EntityMapping<T> mapping;
+	//()Object or (Object[])Object for the constructor-bound entities
+	private final MethodHandle constructor;
+	private final EntityField[] parameters;
+	private final Class<?>[] parameterTypes;
+	private final Object[] defaultArguments;
+
+	private EntityInstantiator(Class<T> entityClass, EntityMapping<T> mapping, MethodHandle constructor,
+			EntityField[] parameters, Class<?>[] parameterTypes) {
+		this.entityClass = entityClass;
+		this.mapping = mapping;
+		this.constructor = constructor;
+		this.parameters = parameters;
+		this.parameterTypes = parameterTypes;
+		if(parameterTypes != null){
+			defaultArguments = new Object[parameterTypes.length];
+			for(int i = 0; i < parameterTypes.length; i++){
+				defaultArguments[i] = getDefaultValue(parameterTypes[i]);
+			}
+		} else {
+			defaultArguments = null;
+		}
+	}
+
+	/**
+	 * Creates the instantiator using the constructor without parameter of the entity
+	 * @param entityClass the class of the entity
+	 * @return the instantiator (failing on {@link #newInstance()} if there is no such constructor)
+	 */
+	static <T> EntityInstantiator<T> create(Class<T> entityClass) {
+		MethodHandle constructor = null;
+		try {
+			Constructor<T> defaultConstructor = entityClass.getDeclaredConstructor();
+			defaultConstructor.setAccessible(true);
+			constructor = LOOKUP.unreflectConstructor(defaultConstructor).asType(MethodType.methodType(Object.class));
+		} catch (NoSuchMethodException e) {
+			//Abstract or without default constructor: it cannot be instantiated
+		} catch (IllegalAccessException e) {
+			//idem
+		} catch (RuntimeException e) {
+			//idem (inaccessible module...)
+		}
+		return new EntityInstantiator<T>(entityClass, null, constructor, null, null);
+	}
+
+	/**
+	 * Creates the instantiator using the code generated for the entity
+	 * @param mapping the mapping generated for the entity
+	 * @return the instantiator
+	 */
+	static <T> EntityInstantiator<T> create(EntityMapping<T> mapping) {
+		return new EntityInstantiator<T>(mapping.getEntityClass(), mapping, null, null, null);
+	}
+
+	/**
+	 * Creates the instantiator passing the values of the fields to a constructor
+	 * @param constructor the constructor
+	 * @param parameters the fields bound to each parameter of the constructor
+	 * @return the instantiator
+	 */
+	static <T> EntityInstantiator<T> create(Constructor<T> constructor, EntityField[] parameters) throws IllegalAccessException {
+		constructor.setAccessible(true);
+		Class<?>[] parameterTypes = constructor.getParameterTypes();
+		MethodHandle handle = LOOKUP.unreflectConstructor(constructor)
+				.asSpreader(Object[].class, parameterTypes.length)
+				.asType(MethodType.methodType(Object.class, Object[].class));
+		return new EntityInstantiator<T>(constructor.getDeclaringClass(), null, handle, parameters.clone(), parameterTypes);
+	}
+
+	/**
+	 * @return true if the values of the fields are given to the constructor
+	 */
+	public boolean isConstructorBound() {
+		return parameters != null;
+	}
+
+	/**
+	 * @param field a field of the entity
+	 * @return the index of the parameter of the constructor bound to the field or -1 if the field is set after the construction
+	 */
+	public int getParameterIndex(EntityField field) {
+		if(parameters != null){
+			for(int i = 0; i < parameters.length; i++){
+				if(parameters[i] == field){
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return a new buffer for the arguments of the constructor,
+	 * filled with the default values of their types (0 or false for the primitive parameters, null otherwise)
+	 */
+	public Object[] createArguments() {
+		return defaultArguments == null ? new Object[0] : defaultArguments.clone();
+	}
+
+	/**
+	 * Sets an argument of the constructor in the buffer. The numbers are converted to the primitive type of the parameter.
+	 * @param arguments the buffer created by {@link #createArguments()}
+	 * @param index the index of the parameter
+	 * @param value the value of the field
+	 */
+	public void setArgument(Object[] arguments, int index, Object value) {
+		Class<?> type = parameterTypes[index];
+		if(!type.isPrimitive()){
+			arguments[index] = value;
+		} else if(value == null){
+			throw new IllegalArgumentException("Cannot pass NULL to the primitive parameter " + parameters[index].getDBFieldName());
+		} else if(value instanceof Number){
+			Number number = (Number)value;
+			if(type == Integer.TYPE){
+				arguments[index] = number.intValue();
+			} else if(type == Long.TYPE){
+				arguments[index] = number.longValue();
+			} else if(type == Double.TYPE){
+				arguments[index] = number.doubleValue();
+			} else if(type == Float.TYPE){
+				arguments[index] = number.floatValue();
+			} else if(type == Short.TYPE){
+				arguments[index] = number.shortValue();
+			} else if(type == Byte.TYPE){
+				arguments[index] = number.byteValue();
+			} else {
+				arguments[index] = value;
+			}
+		} else {
+			arguments[index] = value;
+		}
+	}
+
+	/**
+	 * Creates an instance of the entity.
+	 * The constructor-bound entities are created with the default values of the parameters.
+	 * @return the new instance
+	 * @throws InstantiationException if the entity cannot be instantiated (no constructor without parameter...)
+	 * @throws InvocationTargetException if the constructor failed
+	 */
+	public T newInstance() throws InstantiationException, InvocationTargetException {
+		if(mapping != null){
+			return mapping.newInstance();
+		} else if(isConstructorBound()){
+			return newInstance(createArguments());
+		} else if(constructor == null){
+			throw new InstantiationException("The entity " + entityClass.getName() + " has no constructor without parameter");
+		}
+		try {
+			return entityClass.cast(constructor.invokeExact());
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new InvocationTargetException(e);
+		}
+	}
+
+	/**
+	 * Creates an instance of a constructor-bound entity
+	 * @param arguments the arguments of the constructor (see {@link #createArguments()})
+	 * @return the new instance
+	 * @throws InvocationTargetException if the constructor failed
+	 */
+	public T newInstance(Object[] arguments) throws InvocationTargetException {
+		try {
+			return entityClass.cast(constructor.invokeExact(arguments));
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new InvocationTargetException(e);
+		}
+	}
+
+	private static Object getDefaultValue(Class<?> type) {
+		if(type == Integer.TYPE){
+			return 0;
+		} else if(type == Long.TYPE){
+			return 0L;
+		} else if(type == Double.TYPE){
+			return 0d;
+		} else if(type == Float.TYPE){
+			return 0f;
+		} else if(type == Short.TYPE){
+			return (short)0;
+		} else if(type == Byte.TYPE){
+			return (byte)0;
+		} else if(type == Boolean.TYPE){
+			return false;
+		} else if(type == Character.TYPE){
+			return '\0';
+		}
+		return null;
+	}
+}
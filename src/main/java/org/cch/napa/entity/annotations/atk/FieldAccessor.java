@@ -0,0 +1,336 @@
+package org.cch.napa.entity.annotations.atk;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.ObjDoubleConsumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Access to the value of an entity field compiled once when the entity is analysed,
+ * replacing the reflective calls done for each value.<br>
+ * Public getters and setters of public classes are turned into lambdas (LambdaMetafactory) that can be inlined by the JIT,
+ * the other members are accessed through method handles.
+ * The int, long, double and boolean fields also have paths avoiding the boxing of their values.
+ * @author Christophe Champagne
+ *
+ */
+abstract class FieldAccessor {
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+	abstract Object get(Object entity) throws Throwable;
+	abstract void set(Object entity, Object value) throws Throwable;
+
+	int getInt(Object entity) throws Throwable {
+		return (Integer)get(entity);
+	}
+	long getLong(Object entity) throws Throwable {
+		return (Long)get(entity);
+	}
+	double getDouble(Object entity) throws Throwable {
+		return (Double)get(entity);
+	}
+	boolean getBoolean(Object entity) throws Throwable {
+		return (Boolean)get(entity);
+	}
+	void setInt(Object entity, int value) throws Throwable {
+		set(entity, value);
+	}
+	void setLong(Object entity, long value) throws Throwable {
+		set(entity, value);
+	}
+	void setDouble(Object entity, double value) throws Throwable {
+		set(entity, value);
+	}
+	void setBoolean(Object entity, boolean value) throws Throwable {
+		set(entity, value);
+	}
+
+	/**
+	 * Creates the accessor reading with the getter (or else the field) and writing with the setter (or else the field)
+	 * @param getter the getter of the field (may be null)
+	 * @param setter the setter of the field (may be null)
+	 * @param field the attribute itself (may be null)
+	 * @param type the java type of the field
+	 * @return the accessor
+	 */
+	static FieldAccessor create(Method getter, Method setter, Field field, Class<?> type) throws ReflectiveOperationException {
+		MethodHandle getterHandle = null;
+		MethodHandle setterHandle = null;
+		Object getterLambda = null;
+		Object setterLambda = null;
+		if(getter != null){
+			if(isLambdaCompatible(getter)){
+				getterLambda = createGetterLambda(getter, type);
+			} else {
+				getter.setAccessible(true);
+				getterHandle = LOOKUP.unreflect(getter);
+			}
+		} else if(field != null){
+			field.setAccessible(true);
+			getterHandle = LOOKUP.unreflectGetter(field);
+		}
+		if(setter != null){
+			if(isLambdaCompatible(setter)){
+				setterLambda = createSetterLambda(setter, type);
+			} else {
+				setter.setAccessible(true);
+				setterHandle = LOOKUP.unreflect(setter);
+			}
+		} else if(field != null && !Modifier.isFinal(field.getModifiers())){
+			field.setAccessible(true);
+			setterHandle = LOOKUP.unreflectSetter(field);
+		}
+		return new CompiledAccessor(getterHandle, setterHandle, getterLambda, setterLambda, type);
+	}
+
+	/**
+	 * A lambda can only call the method if the generated class (defined along this one) can access it
+	 */
+	private static boolean isLambdaCompatible(Method method) {
+		if(!Modifier.isPublic(method.getModifiers()) || Modifier.isStatic(method.getModifiers())){
+			return false;
+		}
+		Class<?> declaringClass = method.getDeclaringClass();
+		try {
+			if(Class.forName(declaringClass.getName(), false, FieldAccessor.class.getClassLoader()) != declaringClass){
+				return false;
+			}
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+		for(Class<?> cls = declaringClass; cls != null; cls = cls.getEnclosingClass()){
+			if(!Modifier.isPublic(cls.getModifiers())){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static Object createGetterLambda(Method getter, Class<?> type) throws ReflectiveOperationException {
+		MethodHandle handle = LOOKUP.unreflect(getter);
+		Class<?> owner = getter.getDeclaringClass();
+		if(getter.getReturnType() != type){
+			type = Object.class;
+		}
+		if(type == Integer.TYPE){
+			return createLambda(ToIntFunction.class, "applyAsInt", MethodType.methodType(int.class, Object.class), handle,
+					MethodType.methodType(int.class, owner));
+		} else if(type == Long.TYPE){
+			return createLambda(ToLongFunction.class, "applyAsLong", MethodType.methodType(long.class, Object.class), handle,
+					MethodType.methodType(long.class, owner));
+		} else if(type == Double.TYPE){
+			return createLambda(ToDoubleFunction.class, "applyAsDouble", MethodType.methodType(double.class, Object.class), handle,
+					MethodType.methodType(double.class, owner));
+		} else if(type == Boolean.TYPE){
+			return createLambda(Predicate.class, "test", MethodType.methodType(boolean.class, Object.class), handle,
+					MethodType.methodType(boolean.class, owner));
+		}
+		return createLambda(Function.class, "apply", MethodType.methodType(Object.class, Object.class), handle,
+				MethodType.methodType(wrap(getter.getReturnType()), owner));
+	}
+
+	private static Object createSetterLambda(Method setter, Class<?> type) throws ReflectiveOperationException {
+		MethodHandle handle = LOOKUP.unreflect(setter);
+		Class<?> owner = setter.getDeclaringClass();
+		Class<?> parameterType = setter.getParameterTypes()[0];
+		if(type == Integer.TYPE && parameterType == Integer.TYPE){
+			return createLambda(ObjIntConsumer.class, "accept", MethodType.methodType(void.class, Object.class, int.class), handle,
+					MethodType.methodType(void.class, owner, int.class));
+		} else if(type == Long.TYPE && parameterType == Long.TYPE){
+			return createLambda(ObjLongConsumer.class, "accept", MethodType.methodType(void.class, Object.class, long.class), handle,
+					MethodType.methodType(void.class, owner, long.class));
+		} else if(type == Double.TYPE && parameterType == Double.TYPE){
+			return createLambda(ObjDoubleConsumer.class, "accept", MethodType.methodType(void.class, Object.class, double.class), handle,
+					MethodType.methodType(void.class, owner, double.class));
+		}
+		return createLambda(BiConsumer.class, "accept", MethodType.methodType(void.class, Object.class, Object.class), handle,
+				MethodType.methodType(void.class, owner, wrap(parameterType)));
+	}
+
+	private static Object createLambda(Class<?> functionalInterface, String name, MethodType samType, MethodHandle implementation,
+			MethodType instantiatedType) throws ReflectiveOperationException {
+		try {
+			CallSite site = LambdaMetafactory.metafactory(LOOKUP, name, MethodType.methodType(functionalInterface),
+					samType, implementation, instantiatedType);
+			return site.getTarget().invoke();
+		} catch (ReflectiveOperationException e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new ReflectiveOperationException("Could not create the accessor of " + implementation, e);
+		}
+	}
+
+	private static Class<?> wrap(Class<?> type) {
+		return MethodType.methodType(type).wrap().returnType();
+	}
+
+	/**
+	 * Accessor using the lambda when there is one and the method handle otherwise.
+	 * The handles are adapted to the generic types used by the invocations ((Object)Object, (Object)long...).
+	 */
+	private static class CompiledAccessor extends FieldAccessor {
+		private final Class<?> type;
+		private final MethodHandle getter;
+		private final MethodHandle setter;
+		private final MethodHandle primitiveGetter;
+		private final MethodHandle primitiveSetter;
+		private final Function<Object, Object> getterFunction;
+		private final BiConsumer<Object, Object> setterFunction;
+		private final ToIntFunction<Object> intGetter;
+		private final ToLongFunction<Object> longGetter;
+		private final ToDoubleFunction<Object> doubleGetter;
+		private final Predicate<Object> booleanGetter;
+		private final ObjIntConsumer<Object> intSetter;
+		private final ObjLongConsumer<Object> longSetter;
+		private final ObjDoubleConsumer<Object> doubleSetter;
+
+		@SuppressWarnings("unchecked")
+		private CompiledAccessor(MethodHandle getterHandle, MethodHandle setterHandle, Object getterLambda, Object setterLambda, Class<?> type) {
+			this.type = type;
+			this.getter = getterHandle == null ? null : getterHandle.asType(MethodType.methodType(Object.class, Object.class));
+			this.setter = setterHandle == null ? null : setterHandle.asType(MethodType.methodType(void.class, Object.class, Object.class));
+			boolean primitive = type.isPrimitive() && (type == Integer.TYPE || type == Long.TYPE || type == Double.TYPE || type == Boolean.TYPE);
+			this.primitiveGetter = getterHandle == null || !primitive || getterHandle.type().returnType() != type ? null
+					: getterHandle.asType(MethodType.methodType(type, Object.class));
+			this.primitiveSetter = setterHandle == null || !primitive || setterHandle.type().parameterType(1) != type ? null
+					: setterHandle.asType(MethodType.methodType(void.class, Object.class, type));
+			this.getterFunction = getterLambda instanceof Function ? (Function<Object, Object>)getterLambda : null;
+			this.intGetter = getterLambda instanceof ToIntFunction ? (ToIntFunction<Object>)getterLambda : null;
+			this.longGetter = getterLambda instanceof ToLongFunction ? (ToLongFunction<Object>)getterLambda : null;
+			this.doubleGetter = getterLambda instanceof ToDoubleFunction ? (ToDoubleFunction<Object>)getterLambda : null;
+			this.booleanGetter = getterLambda instanceof Predicate ? (Predicate<Object>)getterLambda : null;
+			this.setterFunction = setterLambda instanceof BiConsumer ? (BiConsumer<Object, Object>)setterLambda : null;
+			this.intSetter = setterLambda instanceof ObjIntConsumer ? (ObjIntConsumer<Object>)setterLambda : null;
+			this.longSetter = setterLambda instanceof ObjLongConsumer ? (ObjLongConsumer<Object>)setterLambda : null;
+			this.doubleSetter = setterLambda instanceof ObjDoubleConsumer ? (ObjDoubleConsumer<Object>)setterLambda : null;
+		}
+
+		@Override
+		Object get(Object entity) throws Throwable {
+			if(getterFunction != null){
+				return getterFunction.apply(entity);
+			} else if(intGetter != null){
+				return intGetter.applyAsInt(entity);
+			} else if(longGetter != null){
+				return longGetter.applyAsLong(entity);
+			} else if(doubleGetter != null){
+				return doubleGetter.applyAsDouble(entity);
+			} else if(booleanGetter != null){
+				return booleanGetter.test(entity);
+			} else if(getter != null){
+				return (Object)getter.invokeExact(entity);
+			}
+			return null;
+		}
+
+		@Override
+		void set(Object entity, Object value) throws Throwable {
+			if(setterFunction != null){
+				setterFunction.accept(entity, value);
+			} else if(intSetter != null){
+				intSetter.accept(entity, (Integer)value);
+			} else if(longSetter != null){
+				longSetter.accept(entity, (Long)value);
+			} else if(doubleSetter != null){
+				doubleSetter.accept(entity, (Double)value);
+			} else if(setter != null){
+				setter.invokeExact(entity, value);
+			}
+		}
+
+		@Override
+		int getInt(Object entity) throws Throwable {
+			if(intGetter != null){
+				return intGetter.applyAsInt(entity);
+			} else if(primitiveGetter != null && type == Integer.TYPE){
+				return (int)primitiveGetter.invokeExact(entity);
+			}
+			return super.getInt(entity);
+		}
+
+		@Override
+		long getLong(Object entity) throws Throwable {
+			if(longGetter != null){
+				return longGetter.applyAsLong(entity);
+			} else if(primitiveGetter != null && type == Long.TYPE){
+				return (long)primitiveGetter.invokeExact(entity);
+			}
+			return super.getLong(entity);
+		}
+
+		@Override
+		double getDouble(Object entity) throws Throwable {
+			if(doubleGetter != null){
+				return doubleGetter.applyAsDouble(entity);
+			} else if(primitiveGetter != null && type == Double.TYPE){
+				return (double)primitiveGetter.invokeExact(entity);
+			}
+			return super.getDouble(entity);
+		}
+
+		@Override
+		boolean getBoolean(Object entity) throws Throwable {
+			if(booleanGetter != null){
+				return booleanGetter.test(entity);
+			} else if(primitiveGetter != null && type == Boolean.TYPE){
+				return (boolean)primitiveGetter.invokeExact(entity);
+			}
+			return super.getBoolean(entity);
+		}
+
+		@Override
+		void setInt(Object entity, int value) throws Throwable {
+			if(intSetter != null){
+				intSetter.accept(entity, value);
+			} else if(primitiveSetter != null && type == Integer.TYPE){
+				primitiveSetter.invokeExact(entity, value);
+			} else {
+				super.setInt(entity, value);
+			}
+		}
+
+		@Override
+		void setLong(Object entity, long value) throws Throwable {
+			if(longSetter != null){
+				longSetter.accept(entity, value);
+			} else if(primitiveSetter != null && type == Long.TYPE){
+				primitiveSetter.invokeExact(entity, value);
+			} else {
+				super.setLong(entity, value);
+			}
+		}
+
+		@Override
+		void setDouble(Object entity, double value) throws Throwable {
+			if(doubleSetter != null){
+				doubleSetter.accept(entity, value);
+			} else if(primitiveSetter != null && type == Double.TYPE){
+				primitiveSetter.invokeExact(entity, value);
+			} else {
+				super.setDouble(entity, value);
+			}
+		}
+
+		@Override
+		void setBoolean(Object entity, boolean value) throws Throwable {
+			if(primitiveSetter != null && type == Boolean.TYPE){
+				primitiveSetter.invokeExact(entity, value);
+			} else {
+				super.setBoolean(entity, value);
+			}
+		}
+	}
+}
@@ -1,8 +1,5 @@
 package org.cch.napa.entity.annotations.generator.impl;
 
-import java.util.List;
-
-import org.cch.napa.entity.impl.SingleValueMapper;
 import org.cch.napa.exceptions.PersistenceException;
 import org.cch.napa.entity.annotations.GeneratedValue;
 import org.cch.napa.entity.annotations.Parameter;
@@ -20,7 +17,6 @@ public class PseudoSequenceGenerator extends AbstractSequenceGenerator{
 	public final static String PARAM_VALUE_NOT_CACHED = "false";
 
 	private String query;
-	private SingleValueMapper mapper = new SingleValueMapper();
 	private boolean cached = true;
 	private Long lastValue;
 	/**
@@ -29,8 +25,7 @@ public class PseudoSequenceGenerator extends AbstractSequenceGenerator{
 	public Number getNextValue() throws PersistenceException {
 		if(!cached  || lastValue == null){
 			if(getFactory()!=null && getFactory().getJdbcDao() !=null){
-				List<Long> values= getFactory().getJdbcDao().select(query, mapper);
-				lastValue = values.get(0);
+				lastValue = getFactory().getJdbcDao().queryForLong(query);
 			}
 		}
 		if(lastValue != null){
@@ -0,0 +1,53 @@
+package org.cch.napa.entity.impl;
+
+import java.lang.reflect.InvocationTargetException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.cch.napa.entity.annotations.atk.EntityField;
+import org.cch.napa.exceptions.PersistenceException;
+import org.cch.napa.mapper.ParameterBinder;
+
+/**
+ * 
+ */
+public abstract class AbstractParameterBinder implements ParameterBinder {
+	/**
+	 * Binds a value that is not NULL
+	 */
+	protected abstract void setValue(PreparedStatement statement, int index, Object value) throws SQLException, PersistenceException;
+
+	/**
+	 * Reads the value of the field and binds it. 
+	 * Overridden by the binders of primitive fields to use the primitive accessors of the field.
+	 */
+	protected void setFieldValue(PreparedStatement statement, int index, EntityField field, Object entity) 
+			throws SQLException, PersistenceException, IllegalAccessException, InvocationTargetException {
+		bindValue(statement, index, field.get(entity));
+	}
+
+	/**
+	 * @see ParameterBinder#bindValue(PreparedStatement, int, Object)
+	 */
+	public void bindValue(PreparedStatement statement, int index, Object value) throws SQLException, PersistenceException {
+		if(value == null){
+			//As in SQLTypeMapper#setParameter
+			statement.setObject(index, null);
+		} else {
+			setValue(statement, index, value);
+		}
+	}
+
+	/**
+	 * @see ParameterBinder#bindField(PreparedStatement, int, EntityField, Object)
+	 */
+	public void bindField(PreparedStatement statement, int index, EntityField field, Object entity) throws SQLException, PersistenceException {
+		try {
+			setFieldValue(statement, index, field, entity);
+		} catch (IllegalAccessException e) {
+			throw new PersistenceException("Could not read the value of " + field.getDBFieldName(), e);
+		} catch (InvocationTargetException e) {
+			throw new PersistenceException("Could not read the value of " + field.getDBFieldName(), e);
+		}
+	}
+}
@@ -12,6 +12,15 @@ import org.cch.napa.mapper.ResultSetAccessor;
 public abstract class AbstractResultSetGetter implements ResultSetAccessor{
 	protected abstract Object getValue(ResultSet resultSet, String columnName) throws SQLException, PersistenceException;
 
+	/**
+	 * Reads the value by the index of the column.
+	 * By default the value is read by the label of the column: the getters able to read by index override it.
+	 * @param columnIndex the index of the column (the first one is 1)
+	 */
+	protected Object getValue(ResultSet resultSet, int columnIndex) throws SQLException, PersistenceException {
+		return getValue(resultSet, resultSet.getMetaData().getColumnLabel(columnIndex));
+	}
+
 	/**
 	 * @see ResultSetAccessor#getValueFromResultSet(java.sql.ResultSet, java.lang.String)
 	 */
@@ -23,5 +32,17 @@ public abstract class AbstractResultSetGetter implements ResultSetAccessor{
 			throw new org.cch.napa.exceptions.SQLException("Error while getting value from resultSet", e);
 		}
 	}
+
+	/**
+	 * @see ResultSetAccessor#getValueFromResultSet(java.sql.ResultSet, int)
+	 */
+	public Object getValueFromResultSet(ResultSet resultSet,
+			int columnIndex) throws PersistenceException {
+		try {
+			return getValue(resultSet, columnIndex);
+		} catch (SQLException e) {
+			throw new org.cch.napa.exceptions.SQLException("Error while getting value from resultSet", e);
+		}
+	}
 	
-}
\ No newline at end of file
+}
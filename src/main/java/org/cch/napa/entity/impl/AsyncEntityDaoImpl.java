@@ -0,0 +1,370 @@
+package org.cch.napa.entity.impl;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cch.napa.ConnectionProvider;
+import org.cch.napa.entity.AsyncEntityDao;
+import org.cch.napa.entity.EntityDao;
+import org.cch.napa.exceptions.PersistenceException;
+import org.cch.napa.jdbc.PooledConnectionProvider;
+import org.cch.napa.jdbc.SQLiteWalConnectionProvider;
+
+/**
+ * Executes the calls of an {@link EntityDao} in background threads.<br>
+ * The calls run on virtual threads when the JVM provides them (java 21+), on a cached pool of daemon threads otherwise.
+ * The calls made through any dao using the same connection provider share a semaphore
+ * having as many permits as the provider has connections. A call is only given to the executor once it has a permit:
+ * the other ones wait in a queue, executed in the order they were made as the permits are released,
+ * so they never wait inside the pool and the number of threads stays bounded by the number of connections.
+ * @author Christophe Champagne
+ *
+ */
+public class AsyncEntityDaoImpl<E> implements AsyncEntityDao<E> {
+	private static final ExecutorService DEFAULT_EXECUTOR = createExecutor();
+	//One semaphore per connection provider, forgotten with the provider
+	private static final Map<ConnectionProvider, Semaphore> semaphores = new WeakHashMap<ConnectionProvider, Semaphore>();
+	//The calls waiting for a permit of each semaphore
+	private static final Map<Semaphore, Queue<PendingCall<?>>> pendingCallsPerSemaphore = new WeakHashMap<Semaphore, Queue<PendingCall<?>>>();
+	private final EntityDao<E> entityDao;
+	private final Semaphore permits;
+	private final Queue<PendingCall<?>> pendingCalls;
+	private final ExecutorService executor;
+
+	/**
+	 * @param entityDao the dao executing the calls
+	 * @param connectionProvider the connection provider used by the dao
+	 */
+	public AsyncEntityDaoImpl(EntityDao<E> entityDao, ConnectionProvider connectionProvider) {
+		this(entityDao, getPermits(connectionProvider), DEFAULT_EXECUTOR);
+	}
+
+	/**
+	 * @param entityDao the dao executing the calls
+	 * @param permits the semaphore bounding the number of calls executed at the same time
+	 * @param executor the executor running the calls
+	 */
+	public AsyncEntityDaoImpl(EntityDao<E> entityDao, Semaphore permits, ExecutorService executor) {
+		this.entityDao = entityDao;
+		this.permits = permits;
+		this.pendingCalls = getPendingCalls(permits);
+		this.executor = executor;
+	}
+
+	/**
+	 * Gives the semaphore shared by the asynchronous daos using the connection provider
+	 * @param connectionProvider a connection provider
+	 * @return a fair semaphore with one permit per connection of the provider
+	 */
+	public static Semaphore getPermits(ConnectionProvider connectionProvider) {
+		synchronized (semaphores) {
+			Semaphore semaphore = semaphores.get(connectionProvider);
+			if(semaphore == null){
+				semaphore = new Semaphore(getMaxConnections(connectionProvider), true);
+				semaphores.put(connectionProvider, semaphore);
+			}
+			return semaphore;
+		}
+	}
+
+	private static Queue<PendingCall<?>> getPendingCalls(Semaphore permits) {
+		synchronized (pendingCallsPerSemaphore) {
+			Queue<PendingCall<?>> queue = pendingCallsPerSemaphore.get(permits);
+			if(queue == null){
+				queue = new ConcurrentLinkedQueue<PendingCall<?>>();
+				pendingCallsPerSemaphore.put(permits, queue);
+			}
+			return queue;
+		}
+	}
+
+	private static int getMaxConnections(ConnectionProvider connectionProvider) {
+		if(connectionProvider instanceof PooledConnectionProvider){
+			return ((PooledConnectionProvider)connectionProvider).getMaxSize();
+		} else if(connectionProvider instanceof SQLiteWalConnectionProvider){
+			//The readers and the writer
+			return ((SQLiteWalConnectionProvider)connectionProvider).getReaders().getMaxSize() + 1;
+		}
+		//A single shared connection
+		return 1;
+	}
+
+	/**
+	 * @return an executor starting a virtual thread per task if the JVM supports them,
+	 * a cached pool of daemon threads otherwise
+	 */
+	private static ExecutorService createExecutor() {
+		try {
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			//Before java 21
+		}
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "napa-async-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Queues the call, which is given to the executor once a permit is available
+	 */
+	private <T> CompletableFuture<T> submit(Call<T> call) {
+		PendingCall<T> pendingCall = new PendingCall<T>(call);
+		pendingCalls.add(pendingCall);
+		dispatch();
+		return pendingCall.future;
+	}
+
+	/**
+	 * Gives the pending calls to the executor while permits are available.
+	 * Called after queuing a call and after releasing a permit, so no call stays queued while a permit is free.
+	 */
+	private void dispatch() {
+		while(!pendingCalls.isEmpty() && permits.tryAcquire()){
+			final PendingCall<?> pendingCall = pendingCalls.poll();
+			if(pendingCall == null){
+				//Taken by another thread meanwhile
+				permits.release();
+				continue;
+			}
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							pendingCall.execute();
+						} finally {
+							//The permit is back before the caller gets the result
+							permits.release();
+							dispatch();
+							pendingCall.complete();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				permits.release();
+				pendingCall.future.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * @see AsyncEntityDao#select(Object)
+	 */
+	public CompletableFuture<E> select(final E entityParameter) {
+		return submit(new Call<E>() {
+			E call() throws PersistenceException {
+				return entityDao.select(entityParameter);
+			}
+		});
+	}
+
+	/**
+	 * @see AsyncEntityDao#selectByIds(Collection)
+	 */
+	public CompletableFuture<Map<Object, E>> selectByIds(final Collection<?> ids) {
+		return submit(new Call<Map<Object, E>>() {
+			Map<Object, E> call() throws PersistenceException {
+				return entityDao.selectByIds(ids);
+			}
+		});
+	}
+
+	/**
+	 * @see AsyncEntityDao#selectAll()
+	 */
+	public CompletableFuture<List<E>> selectAll() {
+		return submit(new Call<List<E>>() {
+			List<E> call() throws PersistenceException {
+				return entityDao.selectAll();
+			}
+		});
+	}
+
+	/**
+	 * @see AsyncEntityDao#select(String, Object...)
+	 */
+	public CompletableFuture<List<E>> select(final String query, final Object... parameters) {
+		return submit(new Call<List<E>>() {
+			List<E> call() throws PersistenceException {
+				return entityDao.select(query, parameters);
+			}
+		});
+	}
+
+	/**
+	 * @see AsyncEntityDao#insert(Object)
+	 */
+	public CompletableFuture<Void> insert(final E entity) {
+		return submit(new Call<Void>() {
+			Void call() throws PersistenceException {
+				entityDao.insert(entity);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @see AsyncEntityDao#update(Object)
+	 */
+	public CompletableFuture<Void> update(final E entity) {
+		return submit(new Call<Void>() {
+			Void call() throws PersistenceException {
+				entityDao.update(entity);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @see AsyncEntityDao#persist(Object)
+	 */
+	public CompletableFuture<Void> persist(final E entity) {
+		return submit(new Call<Void>() {
+			Void call() throws PersistenceException {
+				entityDao.persist(entity);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @see AsyncEntityDao#delete(Object)
+	 */
+	public CompletableFuture<Void> delete(final E entity) {
+		return submit(new Call<Void>() {
+			Void call() throws PersistenceException {
+				entityDao.delete(entity);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @see AsyncEntityDao#insertAll(Collection)
+	 */
+	public CompletableFuture<Void> insertAll(final Collection<? extends E> entities) {
+		return submit(new Call<Void>() {
+			Void call() throws PersistenceException {
+				entityDao.insertAll(entities);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @see AsyncEntityDao#updateAll(Collection)
+	 */
+	public CompletableFuture<Void> updateAll(final Collection<? extends E> entities) {
+		return submit(new Call<Void>() {
+			Void call() throws PersistenceException {
+				entityDao.updateAll(entities);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @see AsyncEntityDao#persistAll(Collection)
+	 */
+	public CompletableFuture<Void> persistAll(final Collection<? extends E> entities) {
+		return submit(new Call<Void>() {
+			Void call() throws PersistenceException {
+				entityDao.persistAll(entities);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @see AsyncEntityDao#deleteAll(Collection)
+	 */
+	public CompletableFuture<Void> deleteAll(final Collection<? extends E> entities) {
+		return submit(new Call<Void>() {
+			Void call() throws PersistenceException {
+				entityDao.deleteAll(entities);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @see AsyncEntityDao#count()
+	 */
+	public CompletableFuture<Long> count() {
+		return submit(new Call<Long>() {
+			Long call() throws PersistenceException {
+				return entityDao.count();
+			}
+		});
+	}
+
+	/**
+	 * @see AsyncEntityDao#count(String, Object...)
+	 */
+	public CompletableFuture<Long> count(final String query, final Object... parameters) {
+		return submit(new Call<Long>() {
+			Long call() throws PersistenceException {
+				return entityDao.count(query, parameters);
+			}
+		});
+	}
+
+	/**
+	 * @see AsyncEntityDao#getEntityDao()
+	 */
+	public EntityDao<E> getEntityDao() {
+		return entityDao;
+	}
+
+	/**
+	 * A call of the dao
+	 */
+	private static abstract class Call<T> {
+		abstract T call() throws PersistenceException;
+	}
+
+	/**
+	 * A call waiting for a permit and the future of its result
+	 */
+	private static class PendingCall<T> {
+		private final Call<T> call;
+		private final CompletableFuture<T> future = new CompletableFuture<T>();
+		private T result;
+		private Throwable failure;
+
+		private PendingCall(Call<T> call) {
+			this.call = call;
+		}
+
+		private void execute() {
+			try {
+				result = call.call();
+			} catch (Throwable e) {
+				failure = e;
+			}
+		}
+
+		private void complete() {
+			if(failure != null){
+				future.completeExceptionally(failure);
+			} else {
+				future.complete(result);
+			}
+		}
+	}
+}
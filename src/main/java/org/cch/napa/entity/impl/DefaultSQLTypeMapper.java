@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
 import java.math.BigDecimal;
 import java.sql.*;
 import java.util.Calendar;
@@ -16,6 +17,8 @@ import org.cch.napa.entity.SQLTypeMapper;
 import org.cch.napa.exceptions.PersistenceException;
 import org.cch.napa.SQLNull;
 import org.cch.napa.entity.annotations.DBField;
+import org.cch.napa.entity.annotations.atk.EntityField;
+import org.cch.napa.mapper.ParameterBinder;
 import org.cch.napa.mapper.ResultSetAccessor;
 /**
  * @author Christophe Champagne
@@ -89,21 +92,21 @@ public class DefaultSQLTypeMapper implements SQLTypeMapper {
 	public  ResultSetAccessor getResultSetGetterFromClass(final Class<?>cls, int sqlType){
 		ResultSetAccessor resultSetGetter = null;
 		if((cls.equals(Object.class) || cls.equals(Serializable.class)) && sqlType!=Types.BLOB){
-			resultSetGetter =  new AbstractResultSetGetter(){
-				public Object getValue(ResultSet resultSet, String columnName) throws SQLException {
-					return resultSet.getObject(columnName);
+			resultSetGetter =  new IndexedResultSetGetter(){
+				public Object getValue(ResultSet resultSet, int columnIndex) throws SQLException {
+					return resultSet.getObject(columnIndex);
 				}				
 			};
 		}  else if (cls.equals(String.class) || CharSequence.class.isAssignableFrom(cls)){
-			resultSetGetter =  new AbstractResultSetGetter(){
-				public String getValue(ResultSet resultSet, String columnName) throws SQLException {
-					return resultSet.getString(columnName);
+			resultSetGetter =  new IndexedResultSetGetter(){
+				public String getValue(ResultSet resultSet, int columnIndex) throws SQLException {
+					return resultSet.getString(columnIndex);
 				}				
 			};			
 		} else if (cls.equals(Integer.class) || cls.equals(Integer.TYPE)){
-			resultSetGetter =  new AbstractResultSetGetter(){
-				public Integer getValue(ResultSet resultSet, String columnName) throws SQLException {
-					int val = resultSet.getInt(columnName);
+			resultSetGetter =  new IndexedResultSetGetter(){
+				public Integer getValue(ResultSet resultSet, int columnIndex) throws SQLException {
+					int val = resultSet.getInt(columnIndex);
 					if(resultSet.wasNull()){
 						return null;
 					}
@@ -111,9 +114,9 @@ public class DefaultSQLTypeMapper implements SQLTypeMapper {
 				}				
 			};			
 		} else if (cls.equals(Long.class) || cls.equals(Long.TYPE)){
-			resultSetGetter =  new AbstractResultSetGetter(){
-				public Long getValue(ResultSet resultSet, String columnName) throws SQLException {
-					long val = resultSet.getLong(columnName);
+			resultSetGetter =  new IndexedResultSetGetter(){
+				public Long getValue(ResultSet resultSet, int columnIndex) throws SQLException {
+					long val = resultSet.getLong(columnIndex);
 					if(resultSet.wasNull()){
 						return null;
 					}
@@ -121,9 +124,9 @@ public class DefaultSQLTypeMapper implements SQLTypeMapper {
 				}				
 			};			
 		} else if (cls.equals(Short.class)  || cls.equals(Short.TYPE)){
-			resultSetGetter =  new AbstractResultSetGetter(){
-				public Short getValue(ResultSet resultSet, String columnName) throws SQLException {
-					short val = resultSet.getShort(columnName);
+			resultSetGetter =  new IndexedResultSetGetter(){
+				public Short getValue(ResultSet resultSet, int columnIndex) throws SQLException {
+					short val = resultSet.getShort(columnIndex);
 					if(resultSet.wasNull()){
 						return null;
 					}
@@ -131,9 +134,9 @@ public class DefaultSQLTypeMapper implements SQLTypeMapper {
 				}				
 			};			
 		} else if (cls.equals(Double.class) || cls.equals(Double.TYPE)){
-			resultSetGetter =  new AbstractResultSetGetter(){
-				public Double getValue(ResultSet resultSet, String columnName) throws SQLException {
-					double val = resultSet.getDouble(columnName);
+			resultSetGetter =  new IndexedResultSetGetter(){
+				public Double getValue(ResultSet resultSet, int columnIndex) throws SQLException {
+					double val = resultSet.getDouble(columnIndex);
 					if(resultSet.wasNull()){
 						return null;
 					}
@@ -141,9 +144,9 @@ public class DefaultSQLTypeMapper implements SQLTypeMapper {
 				}				
 			};			
 		}  else if (cls.equals(Float.class) || cls.equals(Float.TYPE)){
-			resultSetGetter =  new AbstractResultSetGetter(){
-				public Float getValue(ResultSet resultSet, String columnName) throws SQLException {
-					double val = resultSet.getFloat(columnName);
+			resultSetGetter =  new IndexedResultSetGetter(){
+				public Float getValue(ResultSet resultSet, int columnIndex) throws SQLException {
+					double val = resultSet.getFloat(columnIndex);
 					if(resultSet.wasNull()){
 						return null;
 					}
@@ -151,15 +154,15 @@ public class DefaultSQLTypeMapper implements SQLTypeMapper {
 				}				
 			};			
 		}  else if (cls.equals(BigDecimal.class)){
-			resultSetGetter =  new AbstractResultSetGetter(){
-				public BigDecimal getValue(ResultSet resultSet, String columnName) throws SQLException {
-					return resultSet.getBigDecimal(columnName);
+			resultSetGetter =  new IndexedResultSetGetter(){
+				public BigDecimal getValue(ResultSet resultSet, int columnIndex) throws SQLException {
+					return resultSet.getBigDecimal(columnIndex);
 				}				
 			};			
 		} else if (cls.equals(Boolean.class) || cls.equals(Boolean.TYPE)){
-			resultSetGetter =  new AbstractResultSetGetter(){
-				public Boolean getValue(ResultSet resultSet, String columnName) throws SQLException {
-					int val = resultSet.getInt(columnName);
+			resultSetGetter =  new IndexedResultSetGetter(){
+				public Boolean getValue(ResultSet resultSet, int columnIndex) throws SQLException {
+					int val = resultSet.getInt(columnIndex);
 					if(resultSet.wasNull()){
 						return null;
 					}
@@ -168,27 +171,27 @@ public class DefaultSQLTypeMapper implements SQLTypeMapper {
 			};			
 		} else if (cls.equals(Timestamp.class) 
 				||(cls.equals(Date.class) && (sqlType == Types.TIMESTAMP || sqlType == Types.NULL))){
-			resultSetGetter =  new AbstractResultSetGetter(){
-				public Date getValue(ResultSet resultSet, String columnName) throws SQLException {
-					return resultSet.getTimestamp(columnName);
+			resultSetGetter =  new IndexedResultSetGetter(){
+				public Date getValue(ResultSet resultSet, int columnIndex) throws SQLException {
+					return resultSet.getTimestamp(columnIndex);
 				}				
 			};			
 		} else if ((cls.equals(java.sql.Date.class)) || (cls.equals(Date.class) && sqlType == Types.DATE)){
-			resultSetGetter =  new AbstractResultSetGetter(){
-				public Date getValue(ResultSet resultSet, String columnName) throws SQLException {
-					return resultSet.getDate(columnName);
+			resultSetGetter =  new IndexedResultSetGetter(){
+				public Date getValue(ResultSet resultSet, int columnIndex) throws SQLException {
+					return resultSet.getDate(columnIndex);
 				}				
 			};			
 		} else if ((cls.equals(Time.class)) || (cls.equals(Date.class) && sqlType == Types.TIME)){
-			resultSetGetter =  new AbstractResultSetGetter(){
-				public Date getValue(ResultSet resultSet, String columnName) throws SQLException {
-					return resultSet.getTime(columnName);
+			resultSetGetter =  new IndexedResultSetGetter(){
+				public Date getValue(ResultSet resultSet, int columnIndex) throws SQLException {
+					return resultSet.getTime(columnIndex);
 				}				
 			};			
 		} else if (Calendar.class.isAssignableFrom(cls)){
-			resultSetGetter =  new AbstractResultSetGetter(){
-				public Calendar getValue(ResultSet resultSet, String columnName) throws SQLException {
-					Date date = resultSet.getTimestamp(columnName);
+			resultSetGetter =  new IndexedResultSetGetter(){
+				public Calendar getValue(ResultSet resultSet, int columnIndex) throws SQLException {
+					Date date = resultSet.getTimestamp(columnIndex);
 					Calendar cal = null;
 					if(date != null){
 						cal =Calendar.getInstance();
@@ -198,10 +201,10 @@ public class DefaultSQLTypeMapper implements SQLTypeMapper {
 				}				
 			};			
 		} else if (cls.isEnum()){
-			resultSetGetter =  new AbstractResultSetGetter(){
+			resultSetGetter =  new IndexedResultSetGetter(){
 				@SuppressWarnings({ "unchecked", "rawtypes" })
-				public Enum<?> getValue(ResultSet resultSet, String columnName) throws SQLException {
-					String val = resultSet.getString(columnName);
+				public Enum<?> getValue(ResultSet resultSet, int columnIndex) throws SQLException {
+					String val = resultSet.getString(columnIndex);
 					if (val == null) return null;
 					Enum<?>valAsEnum = null;
 					try {
@@ -214,23 +217,23 @@ public class DefaultSQLTypeMapper implements SQLTypeMapper {
 				}				
 			};			
 		} else if (cls.equals(UUID.class) && sqlType == Types.BLOB){
-			resultSetGetter =  new AbstractResultSetGetter(){
-				public UUID getValue(ResultSet resultSet, String columnName) throws SQLException {
-					byte[] val = resultSet.getBytes(columnName);
+			resultSetGetter =  new IndexedResultSetGetter(){
+				public UUID getValue(ResultSet resultSet, int columnIndex) throws SQLException {
+					byte[] val = resultSet.getBytes(columnIndex);
 					return val == null ? null : UUID.nameUUIDFromBytes(val);
 				}
 			};
 		} else if (cls.equals(UUID.class)){
-			resultSetGetter =  new AbstractResultSetGetter(){
-				public UUID getValue(ResultSet resultSet, String columnName) throws SQLException {
-					String val = resultSet.getString(columnName);
+			resultSetGetter =  new IndexedResultSetGetter(){
+				public UUID getValue(ResultSet resultSet, int columnIndex) throws SQLException {
+					String val = resultSet.getString(columnIndex);
 					return val == null ? null : UUID.fromString(val);
 				}
 			};
 		} else if (cls.equals(Blob.class)){
-			resultSetGetter =  new AbstractResultSetGetter(){
-				public Blob getValue(ResultSet resultSet, String columnName) throws SQLException {
-					return resultSet.getBlob(columnName);
+			resultSetGetter =  new IndexedResultSetGetter(){
+				public Blob getValue(ResultSet resultSet, int columnIndex) throws SQLException {
+					return resultSet.getBlob(columnIndex);
 				}
 			};
 		} else if (Serializable.class.isAssignableFrom(cls)){
@@ -238,6 +241,135 @@ public class DefaultSQLTypeMapper implements SQLTypeMapper {
 		}
 		return resultSetGetter;
 	}
+	/**
+	 * The values of the primitive int, long, double and boolean fields are bound without being boxed.
+	 * The classes without specific binder (Object, Number, Serializable...) are bound 
+	 * by {@link #setParameter(PreparedStatement, int, Object)} according to the class of each value.
+	 * @see SQLTypeMapper#getParameterBinderFromClass(java.lang.Class, int)
+	 */
+	public ParameterBinder getParameterBinderFromClass(Class<?> cls, int sqlType){
+		ParameterBinder parameterBinder = null;
+		if (cls.equals(String.class)){
+			parameterBinder = new AbstractParameterBinder(){
+				protected void setValue(PreparedStatement statement, int index, Object value) throws SQLException {
+					statement.setString(index, (String)value);
+				}
+			};
+		} else if (cls.equals(Integer.TYPE)){
+			parameterBinder = new AbstractParameterBinder(){
+				protected void setValue(PreparedStatement statement, int index, Object value) throws SQLException {
+					statement.setInt(index, ((Number)value).intValue());
+				}
+				protected void setFieldValue(PreparedStatement statement, int index, EntityField field, Object entity) 
+						throws SQLException, IllegalAccessException, InvocationTargetException {
+					statement.setInt(index, field.getInt(entity));
+				}
+			};
+		} else if (cls.equals(Integer.class)){
+			parameterBinder = new AbstractParameterBinder(){
+				protected void setValue(PreparedStatement statement, int index, Object value) throws SQLException {
+					statement.setInt(index, ((Number)value).intValue());
+				}
+			};
+		} else if (cls.equals(Long.TYPE)){
+			parameterBinder = new AbstractParameterBinder(){
+				protected void setValue(PreparedStatement statement, int index, Object value) throws SQLException {
+					statement.setLong(index, ((Number)value).longValue());
+				}
+				protected void setFieldValue(PreparedStatement statement, int index, EntityField field, Object entity) 
+						throws SQLException, IllegalAccessException, InvocationTargetException {
+					statement.setLong(index, field.getLong(entity));
+				}
+			};
+		} else if (cls.equals(Long.class)){
+			parameterBinder = new AbstractParameterBinder(){
+				protected void setValue(PreparedStatement statement, int index, Object value) throws SQLException {
+					statement.setLong(index, ((Number)value).longValue());
+				}
+			};
+		} else if (cls.equals(Double.TYPE)){
+			parameterBinder = new AbstractParameterBinder(){
+				protected void setValue(PreparedStatement statement, int index, Object value) throws SQLException {
+					statement.setDouble(index, ((Number)value).doubleValue());
+				}
+				protected void setFieldValue(PreparedStatement statement, int index, EntityField field, Object entity) 
+						throws SQLException, IllegalAccessException, InvocationTargetException {
+					statement.setDouble(index, field.getDouble(entity));
+				}
+			};
+		} else if (cls.equals(Double.class)){
+			parameterBinder = new AbstractParameterBinder(){
+				protected void setValue(PreparedStatement statement, int index, Object value) throws SQLException {
+					statement.setDouble(index, ((Number)value).doubleValue());
+				}
+			};
+		} else if (cls.equals(Boolean.TYPE)){
+			parameterBinder = new AbstractParameterBinder(){
+				protected void setValue(PreparedStatement statement, int index, Object value) throws SQLException {
+					statement.setInt(index, Boolean.TRUE.equals(value)?1:0);
+				}
+				protected void setFieldValue(PreparedStatement statement, int index, EntityField field, Object entity) 
+						throws SQLException, IllegalAccessException, InvocationTargetException {
+					statement.setInt(index, field.getBoolean(entity)?1:0);
+				}
+			};
+		} else if (cls.equals(Boolean.class)){
+			parameterBinder = new AbstractParameterBinder(){
+				protected void setValue(PreparedStatement statement, int index, Object value) throws SQLException {
+					statement.setInt(index, Boolean.TRUE.equals(value)?1:0);
+				}
+			};
+		} else if (cls.equals(Short.class) || cls.equals(Short.TYPE)){
+			parameterBinder = new AbstractParameterBinder(){
+				protected void setValue(PreparedStatement statement, int index, Object value) throws SQLException {
+					statement.setShort(index, ((Number)value).shortValue());
+				}
+			};
+		} else if (cls.equals(Float.class) || cls.equals(Float.TYPE)){
+			parameterBinder = new AbstractParameterBinder(){
+				protected void setValue(PreparedStatement statement, int index, Object value) throws SQLException {
+					statement.setFloat(index, ((Number)value).floatValue());
+				}
+			};
+		} else if (cls.equals(BigDecimal.class)){
+			parameterBinder = new AbstractParameterBinder(){
+				protected void setValue(PreparedStatement statement, int index, Object value) throws SQLException {
+					statement.setBigDecimal(index, (BigDecimal)value);
+				}
+			};
+		} else if (Date.class.isAssignableFrom(cls)){
+			parameterBinder = new AbstractParameterBinder(){
+				protected void setValue(PreparedStatement statement, int index, Object value) throws SQLException {
+					statement.setTimestamp(index, new Timestamp(((Date)value).getTime()));
+				}
+			};
+		} else if (Calendar.class.isAssignableFrom(cls)){
+			parameterBinder = new AbstractParameterBinder(){
+				protected void setValue(PreparedStatement statement, int index, Object value) throws SQLException {
+					statement.setTimestamp(index, new Timestamp(((Calendar)value).getTime().getTime()));
+				}
+			};
+		} else if (cls.isEnum()){
+			parameterBinder = new AbstractParameterBinder(){
+				protected void setValue(PreparedStatement statement, int index, Object value) throws SQLException {
+					statement.setString(index, ((Enum<?>)value).name());
+				}
+			};
+		} else if (cls.equals(UUID.class)){
+			parameterBinder = new AbstractParameterBinder(){
+				protected void setValue(PreparedStatement statement, int index, Object value) throws SQLException {
+					statement.setString(index, value.toString());
+				}
+			};
+		} else {
+			parameterBinder = new AbstractParameterBinder(){
+				protected void setValue(PreparedStatement statement, int index, Object value) throws SQLException, PersistenceException {
+					setParameter(statement, index, value);
+				}
+			};
+		}
+		return parameterBinder;
+	}
 	
 	public void setParameter(PreparedStatement statement, int index, Object value) throws SQLException, PersistenceException{
 		if(value == null){
@@ -309,13 +441,13 @@ public class DefaultSQLTypeMapper implements SQLTypeMapper {
 	}
 
 	protected ResultSetAccessor getResultSetBlobAccessor(){
-		return new AbstractResultSetGetter(){
-			public Serializable getValue(ResultSet resultSet, String columnName) throws SQLException, PersistenceException {
+		return new IndexedResultSetGetter(){
+			public Serializable getValue(ResultSet resultSet, int columnIndex) throws SQLException, PersistenceException {
 				Serializable serializable = null;
 				try {
-					serializable = deserializeBlob(resultSet.getBlob(columnName));
+					serializable = deserializeBlob(resultSet.getBlob(columnIndex));
 				} catch (IOException e) {
-					throw new PersistenceException("Could not deserialize column " + columnName, e);
+					throw new PersistenceException("Could not deserialize column #" + columnIndex, e);
 				}
 				return serializable;
 			}				
@@ -1,17 +1,35 @@
 package org.cch.napa.entity.impl;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
+import org.cch.napa.cache.CacheConfiguration;
+import org.cch.napa.cache.EntityCache;
+import org.cch.napa.cache.QueryCache;
+import org.cch.napa.cache.ReplicatedTable;
+import org.cch.napa.entity.AsyncEntityDao;
 import org.cch.napa.entity.EntityDaoFactory;
 import org.cch.napa.exceptions.AnnotationException;
 import org.cch.napa.exceptions.PersistenceException;
 import org.cch.napa.ConnectionProvider;
 import org.cch.napa.entity.EntityDao;
 import org.cch.napa.JdbcDao;
+import org.cch.napa.Session;
+import org.cch.napa.Transaction;
+import org.cch.napa.TransactionalWork;
+import org.cch.napa.entity.EntityMapping;
+import org.cch.napa.entity.EntityMappings;
+import org.cch.napa.entity.LazyResultSetIterable;
 import org.cch.napa.entity.SQLGenerator;
 import org.cch.napa.entity.SQLTypeMapper;
+import org.cch.napa.entity.annotations.Cached;
+import org.cch.napa.entity.annotations.Replicated;
 import org.cch.napa.entity.annotations.atk.EntityHandler;
+import org.cch.napa.jdbc.JdbcTransaction;
 import org.cch.napa.mapper.impl.EntityRecordMapper;
 
 /**
@@ -21,7 +39,12 @@ import org.cch.napa.mapper.impl.EntityRecordMapper;
 public class EntityDaoFactoryImpl implements EntityDaoFactory {
 	private final Map<Class<? >, EntityHandler<? >> handlers = new HashMap<Class<? >, EntityHandler<? >>();
 	private final Map<Class<? >, SQLGenerator<? >> generators = new HashMap<Class<? >, SQLGenerator<? >>();
+	private final Map<Class<? >, EntityCache<? >> caches = new HashMap<Class<? >, EntityCache<? >>();
+	//The configurations given explicitly (a null value disabling the cache of an annotated entity)
+	private final Map<Class<? >, CacheConfiguration> cacheConfigurations = new HashMap<Class<? >, CacheConfiguration>();
+	private final Map<Class<? >, ReplicatedTable<? >> replicatedTables = new HashMap<Class<? >, ReplicatedTable<? >>();
 	private final ConnectionProvider connectionProvider;
+	private volatile QueryCache queryCache;
 
 	public EntityDaoFactoryImpl(ConnectionProvider connectionProvider) {
 		this.connectionProvider = connectionProvider;
@@ -56,6 +79,13 @@ public class EntityDaoFactoryImpl implements EntityDaoFactory {
 		return new EntityDaoImpl<E>(entityClass, this, connectionProvider);
 	}
 
+	/**
+	 * @see EntityDaoFactory#getAsyncEntityDao(java.lang.Class)
+	 */
+	public <E> AsyncEntityDao<E> getAsyncEntityDao(Class<E> entityClass) throws PersistenceException {
+		return new AsyncEntityDaoImpl<E>(getEntityDao(entityClass), getDefaultConnectionProvider());
+	}
+
 	/**
 	 * @see EntityDaoFactory#getSqlTypeMapper()
 	 */
@@ -70,12 +100,23 @@ public class EntityDaoFactoryImpl implements EntityDaoFactory {
 		@SuppressWarnings("unchecked")
 		EntityHandler<E> instance = (EntityHandler<E>) handlers.get(entityClass);
 		if(instance == null){
-			instance = new EntityHandler<E>(entityClass, this);
+			instance = new EntityHandler<E>(entityClass, this, getEntityMapping(entityClass));
 			handlers.put(entityClass, instance);
 		}
 		return instance;
 	}
 
+	/**
+	 * Retrieves the mapping generated at compile time for an entity (see {@link EntityMappings}).
+	 * The entities without mapping are analysed by reflection.
+	 * @param entityClass the class of the entity
+	 * @return the mapping or null if there is none
+	 * @throws AnnotationException if the generated mapping cannot be loaded or instantiated
+	 */
+	protected <E> EntityMapping<E> getEntityMapping(Class<E> entityClass) throws AnnotationException {
+		return EntityMappings.getMapping(entityClass);
+	}
+
 	/**
 	 * @see EntityDaoFactory#getSQLGenerator(java.lang.Class)
 	 */
@@ -83,12 +124,21 @@ public class EntityDaoFactoryImpl implements EntityDaoFactory {
 		@SuppressWarnings("unchecked")
 		SQLGenerator<E> sqlGenerator = (SQLGenerator<E>) generators.get(entityClass);
 		if(sqlGenerator == null){
-			sqlGenerator = new SQLGenerator<E>(entityClass, this);
+			sqlGenerator = createSQLGenerator(entityClass);
 			generators.put(entityClass, sqlGenerator);
 		}
 		return sqlGenerator;
 	}
 
+	/**
+	 * Creates the SQL generator of an entity. To be overridden by the factories of DBs needing a specific syntax.
+	 * @param entityClass the class of the entity
+	 * @return a new generator
+	 */
+	protected <E> SQLGenerator<E> createSQLGenerator(Class<E> entityClass) throws AnnotationException {
+		return new SQLGenerator<E>(entityClass, this);
+	}
+
 	/**
 	 * @see EntityDaoFactory#getEntityRecordMapper(java.lang.Class)
 	 */
@@ -97,8 +147,113 @@ public class EntityDaoFactoryImpl implements EntityDaoFactory {
 		return new EntityRecordMapper<E>(entityClass, this);
 	}
 
+	/**
+	 * @see EntityDaoFactory#getEntityCache(java.lang.Class)
+	 */
+	public synchronized <E> EntityCache<E> getEntityCache(Class<E> entityClass) throws AnnotationException {
+		@SuppressWarnings("unchecked")
+		EntityCache<E> cache = (EntityCache<E>) caches.get(entityClass);
+		if(cache == null && !caches.containsKey(entityClass)){
+			CacheConfiguration configuration;
+			if(cacheConfigurations.containsKey(entityClass)){
+				configuration = cacheConfigurations.get(entityClass);
+			} else {
+				Cached cached = entityClass.getAnnotation(Cached.class);
+				configuration = cached == null ? null : CacheConfiguration.from(cached);
+			}
+			if(configuration != null){
+				cache = new EntityCache<E>(getEntityHandler(entityClass), configuration);
+			}
+			caches.put(entityClass, cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * @see EntityDaoFactory#setCacheConfiguration(java.lang.Class, CacheConfiguration)
+	 */
+	public synchronized void setCacheConfiguration(Class<?> entityClass, CacheConfiguration configuration) {
+		cacheConfigurations.put(entityClass, configuration);
+		caches.remove(entityClass);
+	}
+
+	/**
+	 * The table is loaded from the default connection provider, when it is first read.
+	 * @see EntityDaoFactory#getReplicatedTable(java.lang.Class)
+	 */
+	public synchronized <E> ReplicatedTable<E> getReplicatedTable(Class<E> entityClass) throws AnnotationException {
+		@SuppressWarnings("unchecked")
+		ReplicatedTable<E> table = (ReplicatedTable<E>) replicatedTables.get(entityClass);
+		if(table == null && !replicatedTables.containsKey(entityClass)){
+			Replicated replicated = entityClass.getAnnotation(Replicated.class);
+			if(replicated != null){
+				final String query = getSQLGenerator(entityClass).createSelectAll();
+				final EntityRecordMapper<E> mapper = getEntityRecordMapper(entityClass);
+				table = new ReplicatedTable<E>(getEntityHandler(entityClass), new Callable<List<E>>() {
+					public List<E> call() throws PersistenceException, IOException {
+						List<E> entities = new ArrayList<E>();
+						LazyResultSetIterable<E> iterable = getJdbcDao().lazilySelect(query, mapper);
+						try {
+							for(E entity : iterable){
+								entities.add(entity);
+							}
+						} finally {
+							iterable.close();
+						}
+						return entities;
+					}
+				}, replicated.refreshInterval());
+			}
+			replicatedTables.put(entityClass, table);
+		}
+		return table;
+	}
+
+	/**
+	 * @see EntityDaoFactory#getQueryCache()
+	 */
+	public QueryCache getQueryCache() {
+		return queryCache;
+	}
+
+	/**
+	 * @see EntityDaoFactory#setQueryCache(QueryCache)
+	 */
+	public void setQueryCache(QueryCache queryCache) {
+		this.queryCache = queryCache;
+	}
+
 	public ConnectionProvider getDefaultConnectionProvider() {
 		return connectionProvider;
 	}
 
+	/**
+	 * @see EntityDaoFactory#beginTransaction()
+	 */
+	public Transaction beginTransaction() throws PersistenceException {
+		return JdbcTransaction.begin(getDefaultConnectionProvider());
+	}
+
+	/**
+	 * @see EntityDaoFactory#inTransaction(TransactionalWork)
+	 */
+	public <T> T inTransaction(TransactionalWork<T> work) throws PersistenceException {
+		Transaction transaction = beginTransaction();
+		try {
+			T result = work.execute();
+			transaction.commit();
+			return result;
+		} finally {
+			//Rolls back if the work failed
+			transaction.close();
+		}
+	}
+
+	/**
+	 * @see EntityDaoFactory#openSession()
+	 */
+	public Session openSession() {
+		return EntitySession.open(this);
+	}
+
 }
@@ -1,6 +1,8 @@
 package org.cch.napa.entity.impl;
 
 import org.cch.napa.*;
+import org.cch.napa.cache.EntityCache;
+import org.cch.napa.cache.ReplicatedTable;
 import org.cch.napa.entity.annotations.DBField;
 import org.cch.napa.entity.annotations.GeneratedValue;
 import org.cch.napa.entity.annotations.atk.EntityField;
@@ -11,21 +13,66 @@ import org.cch.napa.entity.LazyResultSetIterable;
 import org.cch.napa.entity.SQLGenerator;
 import org.cch.napa.exceptions.AnnotationException;
 import org.cch.napa.exceptions.PersistenceException;
+import org.cch.napa.exceptions.RuntimePersistenceException;
 import org.cch.napa.exceptions.SQLException;
+import org.cch.napa.jdbc.JdbcTransaction;
 import org.cch.napa.mapper.RecordMapper;
+import org.cch.napa.mapper.StatementBinder;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.MathContext;
 import java.math.RoundingMode;
+import java.sql.PreparedStatement;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 /**
  * @author Christophe Champagne
  *
  */
 public class EntityDaoImpl<E> implements EntityDao<E> {
+	/** Number of entities sent together by the bulk operations when not specified */
+	public static final int DEFAULT_BATCH_SIZE = 500;
+	/**
+	 * Number of records inserted by one multi-row insert statement, the biggest first.
+	 * Only a few sizes are used so the number of distinct statements to prepare remains small.
+	 */
+	protected static final int[] MULTI_ROW_INSERT_SIZES = {256, 64, 16, 1};
+	/**
+	 * Number of keys of the queries selecting several primary keys, the smallest first.
+	 * The keys are padded up to one of these sizes to keep the number of distinct statements small.
+	 */
+	protected static final int[] SELECT_BY_IDS_SIZES = {1, 4, 16, 64, 256};
+	/** Number of keys from which the keys are inserted in a temporary table instead of being given as parameters */
+	public static final int TEMPORARY_TABLE_THRESHOLD = 1024;
+	/** 
+	 * Number of ranges of the primary key per worker of the parallel scans. 
+	 * A worker done with its ranges takes the remaining ones of the others, which balances the ranges having less records.
+	 */
+	public static final int PARTITIONS_PER_WORKER = 4;
 	
 	private JdbcDao jdbcDao;
 	private Class<E> entityClass;
@@ -33,9 +80,21 @@ public class EntityDaoImpl<E> implements EntityDao<E> {
 	private EntityHandler<E> entityHandler;
 	private RecordMapper<E> recordMapper;
 	private EntityDaoFactory factory;
+	private ConnectionProvider connectionProvider;
+	//Cache of the entities selected by primary key (null if the entity is not cached)
+	private EntityCache<E> cache;
+	//All the records of the table kept in memory (null if the entity is not replicated)
+	private ReplicatedTable<E> replicatedTable;
 	private enum Operation{INSERT, UPDATE, SELECT, DELETE}
 	private String isPresentQuery;
 	private String countQuery;
+	private String upsertQuery;
+	private TemporaryTable keyTable;
+	private List<EntityField> generatedFields = new ArrayList<EntityField>();
+	//Binding plans of the write queries: the fields in the order of the parameters
+	private EntityBinder insertBinder;
+	private EntityBinder updateBinder;
+	private EntityBinder deleteBinder;
 	
 	
 	public EntityDaoImpl(Class<E> entityClass, EntityDaoFactory factory) throws AnnotationException{
@@ -48,14 +107,31 @@ public class EntityDaoImpl<E> implements EntityDao<E> {
 		this.entityHandler = factory.getEntityHandler(entityClass);
 		this.recordMapper = factory.getEntityRecordMapper(entityClass);
 		this.jdbcDao = factory.getJdbcDao(connectionProvider);
+		this.connectionProvider = connectionProvider;
+		this.cache = factory.getEntityCache(entityClass);
+		this.replicatedTable = factory.getReplicatedTable(entityClass);
 		this.isPresentQuery = this.sqlGenerator.createSelect().replace("*", "count(*)");
 		this.countQuery = this.sqlGenerator.createCount();
+		this.upsertQuery = this.sqlGenerator.createUpsert();
+		this.keyTable = this.sqlGenerator.createKeyTable();
+		for(EntityField field : entityHandler.getEntityFields()){
+			if(field.getGenerator() != null){
+				generatedFields.add(field);
+			}
+		}
+		this.insertBinder = new EntityBinder(entityHandler.getEntityFields());
+		this.updateBinder = new EntityBinder(getUpdateFields());
+		this.deleteBinder = new EntityBinder(entityHandler.getPrimaryKey());
 	}
 
 	/**
 	 * @see EntityDao#selectAll()
 	 */
 	public List<E> selectAll() throws PersistenceException {
+		ReplicatedTable<E> replicatedTable = getUsableReplicatedTable();
+		if(replicatedTable != null){
+			return new ArrayList<E>(replicatedTable.getAll());
+		}
 		return jdbcDao.select(sqlGenerator.createSelectAll(), recordMapper);
 	}
 	/***
@@ -63,9 +139,51 @@ public class EntityDaoImpl<E> implements EntityDao<E> {
 	 */
 	public E select(E entityParameter) throws PersistenceException,
 			SQLException {
+		ReplicatedTable<E> replicatedTable = getUsableReplicatedTable();
+		if(replicatedTable != null){
+			//The entities of the replicated tables are shared: they are not added to the session
+			return replicatedTable.select(entityParameter);
+		}
+		Object[] key = getPrimaryKeyValues(entityParameter, Operation.SELECT);
+		EntitySession session = EntitySession.getCurrent(factory);
+		Object sessionKey = session != null ? EntitySession.getKey(key) : null;
+		if(sessionKey == null){
+			return selectOutsideSession(key);
+		}
+		E entity = session.get(entityClass, sessionKey);
+		if(entity == null){
+			entity = selectOutsideSession(key);
+			if(entity != null){
+				entity = session.register(entityClass, sessionKey, entity);
+			}
+		}
+		return entity;
+	}
+
+	/**
+	 * Selects the entity from the cache or from the DB
+	 */
+	private E selectOutsideSession(Object[] key) throws PersistenceException {
+		EntityCache<E> cache = getUsableCache();
+		if(cache == null || Arrays.asList(key).contains(null)){
+			return selectByKey(key);
+		}
+		Object cacheKey = key.length == 1 ? key[0] : Arrays.asList(key);
+		E entity = cache.get(cacheKey);
+		if(entity == null){
+			long stamp = cache.getStamp(cacheKey);
+			entity = selectByKey(key);
+			if(entity != null){
+				cache.fill(cacheKey, entity, stamp);
+			}
+		}
+		return entity;
+	}
+
+	private E selectByKey(Object[] key) throws PersistenceException {
 		E retrievedEntity = null;
 		String query = sqlGenerator.createSelect();
-		List<E> retrievedEntities =  jdbcDao.select(query, recordMapper, getPrimaryKeyValues(entityParameter, Operation.SELECT));
+		List<E> retrievedEntities =  jdbcDao.select(query, recordMapper, key);
 		if(retrievedEntities != null && retrievedEntities.size() == 1){
 			retrievedEntity = retrievedEntities.get(0);
 		} else if(retrievedEntities != null && retrievedEntities.size() > 1){
@@ -75,6 +193,51 @@ public class EntityDaoImpl<E> implements EntityDao<E> {
 		return retrievedEntity;
 	}
 
+	/**
+	 * @see EntityDao#selectByIds(Collection)
+	 */
+	public Map<Object, E> selectByIds(Collection<?> ids) throws PersistenceException {
+		return selectByKeys(toKeys(ids));
+	}
+
+	/**
+	 * @see EntityDao#lazilySelectByIds(Collection)
+	 */
+	public LazyResultSetIterable<E> lazilySelectByIds(Collection<?> ids) throws PersistenceException {
+		List<Object[]> keys = getDistinctKeys(toKeys(ids));
+		if(isTemporaryTableUsed(keys.size())){
+			return jdbcDao.lazilySelectJoining(keyTable, keys, sqlGenerator.createSelectJoiningKeys(), recordMapper);
+		}
+		final Collection<E> entities = selectByParameterLists(keys).values();
+		return new LazyResultSetIterable<E>() {
+			public Iterator<E> iterator() {
+				return entities.iterator();
+			}
+			public void close() {
+				//Nothing to close: the entities are already selected
+			}
+		};
+	}
+
+	/**
+	 * @see EntityDao#selectByEntities(Collection)
+	 */
+	public Map<Object, E> selectByEntities(Collection<? extends E> entities) throws PersistenceException {
+		List<Object[]> keys = new ArrayList<Object[]>(entities.size());
+		for(E entity : entities){
+			keys.add(getPrimaryKeyValues(entity, Operation.SELECT));
+		}
+		return selectByKeys(keys);
+	}
+
+	/**
+	 * @see EntityDao#getPrimaryKey(Object)
+	 */
+	public Object getPrimaryKey(E entity) throws PersistenceException {
+		Object[] values = getPrimaryKeyValues(entity, Operation.SELECT);
+		return values.length == 1 ? values[0] : Arrays.asList(values);
+	}
+
 	/**
 	 * @see EntityDao#lazilySelectAll()
 	 */
@@ -89,11 +252,160 @@ public class EntityDaoImpl<E> implements EntityDao<E> {
 		return jdbcDao.lazilySelect(query, recordMapper, parameters);
 	}
 
+	/**
+	 * @see EntityDao#stream()
+	 */
+	public Stream<E> stream() throws PersistenceException {
+		return jdbcDao.stream(sqlGenerator.createSelectAll(), recordMapper);
+	}
+
+	/**
+	 * @see EntityDao#stream(String, Object...)
+	 */
+	public Stream<E> stream(String query, Object... parameters) throws PersistenceException {
+		return jdbcDao.stream(query, recordMapper, parameters);
+	}
+
+	/**
+	 * @see EntityDao#stream(int, String, Object...)
+	 */
+	public Stream<E> stream(int fetchSize, String query, Object... parameters) throws PersistenceException {
+		return jdbcDao.stream(fetchSize, query, recordMapper, parameters);
+	}
+
+	/**
+	 * @see EntityDao#parallelStream()
+	 */
+	public Stream<E> parallelStream() throws PersistenceException {
+		List<long[]> ranges = getPartitions(ForkJoinPool.getCommonPoolParallelism() * PARTITIONS_PER_WORKER);
+		if(ranges == null){
+			return stream().parallel();
+		}
+		final String query = sqlGenerator.createSelectRange();
+		return ranges.parallelStream().flatMap(new Function<long[], Stream<E>>() {
+			public Stream<E> apply(long[] range) {
+				try {
+					return jdbcDao.stream(query, recordMapper, range[0], range[1]);
+				} catch (PersistenceException e) {
+					throw new RuntimePersistenceException(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @see EntityDao#parallelScan(int, Consumer)
+	 */
+	public void parallelScan(int parallelism, final Consumer<? super E> consumer) throws PersistenceException {
+		if(parallelism < 1){
+			throw new IllegalArgumentException("The parallelism must be at least 1 (" + parallelism + ")");
+		}
+		final List<long[]> ranges = getPartitions(parallelism * PARTITIONS_PER_WORKER);
+		if(ranges == null){
+			scan(sqlGenerator.createSelectAll(), consumer, new AtomicBoolean());
+			return;
+		}
+		final String query = sqlGenerator.createSelectRange();
+		final AtomicInteger nextRange = new AtomicInteger();
+		final AtomicBoolean stopped = new AtomicBoolean();
+		int workers = Math.min(parallelism, ranges.size());
+		ExecutorService executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "napa-scan-" + entityHandler.getTableName() + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(workers);
+		try {
+			for(int i = 0; i < workers; i++){
+				futures.add(executor.submit(new Callable<Void>() {
+					public Void call() throws PersistenceException {
+						int range;
+						boolean succeeded = false;
+						try {
+							while(!stopped.get() && (range = nextRange.getAndIncrement()) < ranges.size()){
+								scan(query, consumer, stopped, ranges.get(range)[0], ranges.get(range)[1]);
+							}
+							succeeded = true;
+						} finally {
+							if(!succeeded){
+								//Stops the other workers
+								stopped.set(true);
+							}
+						}
+						return null;
+					}
+				}));
+			}
+		} finally {
+			executor.shutdown();
+		}
+		//Waits for all the workers so that none is still consuming (or holding a connection) when returning
+		Throwable failure = null;
+		for(Future<Void> future : futures){
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				stopped.set(true);
+				Thread.currentThread().interrupt();
+				throw new PersistenceException("Interrupted while scanning " + entityHandler.getTableName(), e);
+			} catch (ExecutionException e) {
+				if(failure == null){
+					failure = e.getCause();
+				}
+			}
+		}
+		if(failure instanceof PersistenceException){
+			throw (PersistenceException)failure;
+		} else if(failure instanceof RuntimeException){
+			throw (RuntimeException)failure;
+		} else if(failure instanceof Error){
+			throw (Error)failure;
+		} else if(failure != null){
+			throw new PersistenceException(failure);
+		}
+	}
+
+	/**
+	 * @see EntityDao#page(Object, int)
+	 */
+	public List<E> page(Object afterKey, int limit) throws PersistenceException {
+		Object[] key = null;
+		if(afterKey != null){
+			key = toKeys(Collections.singleton(afterKey)).get(0);
+		}
+		return selectPage(key, limit);
+	}
+
+	/**
+	 * @see EntityDao#iterateByPages(int)
+	 */
+	public Iterable<E> iterateByPages(final int pageSize) throws PersistenceException {
+		if(pageSize < 1){
+			throw new IllegalArgumentException("The page size must be at least 1 (" + pageSize + ")");
+		}
+		if(entityHandler.getPrimaryKey().isEmpty()){
+			throw new PersistenceException("The entity " + entityClass.getName() + " has no primary key");
+		}
+		return new Iterable<E>() {
+			public Iterator<E> iterator() {
+				return new PageIterator(pageSize);
+			}
+		};
+	}
+
 	/**
 	 * @see EntityDao#select(java.lang.String, java.lang.Object[])
 	 */
 	public List<E> select(String query, Object... parameters)
 			throws PersistenceException, SQLException {
+		ReplicatedTable<E> replicatedTable = getUsableReplicatedTable();
+		List<E> replicated = replicatedTable != null ? replicatedTable.select(query, parameters) : null;
+		if(replicated != null){
+			return new ArrayList<E>(replicated);
+		}
 		return jdbcDao.select(query, recordMapper, parameters);
 	}
 	/**)
@@ -101,7 +413,13 @@ public class EntityDaoImpl<E> implements EntityDao<E> {
 	 */
 	public void insert(E entity) throws PersistenceException {
 		String query = sqlGenerator.createInsert();
-		jdbcDao.executeUpdate(query, getValues(entity, Operation.INSERT));
+		generateValues(entity, Operation.INSERT);
+		try {
+			jdbcDao.executeUpdate(query, insertBinder, entity);
+			putInSession(Collections.singleton(entity));
+		} finally {
+			evict(Collections.singleton(entity));
+		}
 	}
 
 	/**
@@ -109,21 +427,30 @@ public class EntityDaoImpl<E> implements EntityDao<E> {
 	 */
 	public void update(E entity) throws PersistenceException {
 		String query = sqlGenerator.createUpdate();
-		List<EntityField> fields = new ArrayList<EntityField>(entityHandler.getEntityFields().size());
-		for(EntityField entityField : entityHandler.getEntityFields()){
-			if(!entityField.isPrimaryKey()){
-				fields.add(entityField);
-			}
+		generateValues(entity, Operation.UPDATE);
+		try {
+			jdbcDao.executeUpdate(query, updateBinder, entity);
+			putInSession(Collections.singleton(entity));
+		} finally {
+			evict(Collections.singleton(entity));
 		}
-		fields.addAll(entityHandler.getPrimaryKey());
-		jdbcDao.executeUpdate(query, getValues(entity, fields, Operation.UPDATE));
 	}
 
 	/**
+	 * Uses a single upsert query when the DB supports it.
+	 * When a value of the entity has to be generated, the insert and the update differ 
+	 * so the presence of the record is checked first.
 	 * @see EntityDao#persist(E)
 	 */
 	public void persist(E entity) throws PersistenceException {
-		if(recordExists(entity)){
+		if(upsertQuery != null && !isValueGenerated(entity)){
+			try {
+				jdbcDao.executeUpdate(upsertQuery, insertBinder, entity);
+				putInSession(Collections.singleton(entity));
+			} finally {
+				evict(Collections.singleton(entity));
+			}
+		} else if(recordExists(entity)){
 			update(entity);
 		} else {
 			insert(entity);
@@ -135,31 +462,127 @@ public class EntityDaoImpl<E> implements EntityDao<E> {
 	 */
 	public void delete(E entity) throws PersistenceException {
 		String query = sqlGenerator.createDelete();
-		jdbcDao.executeUpdate(query, getPrimaryKeyValues(entity, Operation.DELETE));
+		try {
+			jdbcDao.executeUpdate(query, deleteBinder, entity);
+		} finally {
+			removeFromSession(Collections.singleton(entity));
+			evict(Collections.singleton(entity));
+		}
+	}
+	/**
+	 * @see EntityDao#insertAll(Collection)
+	 */
+	public void insertAll(Collection<? extends E> entities) throws PersistenceException {
+		insertAll(entities, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @see EntityDao#insertAll(Collection, int)
+	 */
+	public void insertAll(Collection<? extends E> entities, int batchSize) throws PersistenceException {
+		int maxRows = getMaxRowsPerInsert();
+		try {
+			if(maxRows > 1){
+				insertByMultiRowStatements(entities, batchSize, maxRows);
+			} else {
+				executeInBatches(sqlGenerator.createInsert(), entities, insertBinder, Operation.INSERT, batchSize);
+			}
+			putInSession(entities);
+		} finally {
+			evict(entities);
+		}
+	}
+
+	/**
+	 * @see EntityDao#updateAll(Collection)
+	 */
+	public void updateAll(Collection<? extends E> entities) throws PersistenceException {
+		updateAll(entities, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @see EntityDao#updateAll(Collection, int)
+	 */
+	public void updateAll(Collection<? extends E> entities, int batchSize) throws PersistenceException {
+		try {
+			executeInBatches(sqlGenerator.createUpdate(), entities, updateBinder, Operation.UPDATE, batchSize);
+			putInSession(entities);
+		} finally {
+			evict(entities);
+		}
+	}
+
+	/**
+	 * @see EntityDao#persistAll(Collection)
+	 */
+	public void persistAll(Collection<? extends E> entities) throws PersistenceException {
+		persistAll(entities, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * The entities are sent by batches of upsert queries, 
+	 * except the ones having a value to generate that are persisted one by one.
+	 * @see EntityDao#persistAll(Collection, int)
+	 */
+	public void persistAll(Collection<? extends E> entities, int batchSize) throws PersistenceException {
+		List<E> upsertable = new ArrayList<E>(entities.size());
+		for(E entity : entities){
+			if(upsertQuery != null && !isValueGenerated(entity)){
+				upsertable.add(entity);
+			} else {
+				persist(entity);
+			}
+		}
+		if(!upsertable.isEmpty()){
+			try {
+				executeInBatches(upsertQuery, upsertable, insertBinder, Operation.INSERT, batchSize);
+				putInSession(upsertable);
+			} finally {
+				evict(upsertable);
+			}
+		}
 	}
+
+	/**
+	 * @see EntityDao#deleteAll(Collection)
+	 */
+	public void deleteAll(Collection<? extends E> entities) throws PersistenceException {
+		deleteAll(entities, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @see EntityDao#deleteAll(Collection, int)
+	 */
+	public void deleteAll(Collection<? extends E> entities, int batchSize) throws PersistenceException {
+		try {
+			executeInBatches(sqlGenerator.createDelete(), entities, deleteBinder, Operation.DELETE, batchSize);
+		} finally {
+			removeFromSession(entities);
+			evict(entities);
+		}
+	}
+
 	/**
 	 * @see EntityDao#recordExists(E)
 	 */
 	public boolean recordExists(E entity) throws PersistenceException {
-		List<Long> values= jdbcDao.select(isPresentQuery, new SingleValueMapper(), getPrimaryKeyValues(entity, Operation.SELECT));
-		long count = values.get(0);
-		return count > 0;
+		return jdbcDao.queryForLong(isPresentQuery, getPrimaryKeyValues(entity, Operation.SELECT)) > 0;
 	}
 	/**
 	 * @see EntityDao#count()
 	 */
 	public long count() throws PersistenceException {
+		ReplicatedTable<E> replicatedTable = getUsableReplicatedTable();
+		if(replicatedTable != null){
+			return replicatedTable.size();
+		}
 		return count(countQuery);
 	}
 	/**
 	 * @see EntityDao#count(java.lang.String, java.lang.Object[])
 	 */
 	public long count(String query, Object... parameters) throws PersistenceException {
-		List<Long> values = jdbcDao.select(query, new SingleValueMapper(), parameters);
-		if(values != null && !values.isEmpty() && values.get(0)!=null){
-			return values.get(0).longValue();
-		}
-		return 0;
+		return jdbcDao.queryForLong(query, parameters);
 	}
 	/**
 	 * @see EntityDao#getEntityClass()
@@ -167,42 +590,515 @@ public class EntityDaoImpl<E> implements EntityDao<E> {
 	public Class<? extends E> getEntityClass() {
 		return entityClass;
 	}
+	/**
+	 * Gives the maximum number of records a single insert statement may contain when inserting several entities.
+	 * The default (1) inserts each entity by its own execution of the insert query.
+	 * Implementations for databases supporting multi-row VALUES return a greater number
+	 * (e.g. following the maximum number of parameters of a statement).
+	 * @return the maximum number of records per insert statement
+	 */
+	protected int getMaxRowsPerInsert(){
+		return 1;
+	}
+	/**
+	 * Gives the maximum number of primary keys a single select may contain when selecting several entities.
+	 * Implementations for databases limiting the number of parameters of a statement return a smaller number.
+	 * @return the maximum number of keys per select (the biggest of {@link #SELECT_BY_IDS_SIZES} by default)
+	 */
+	protected int getMaxKeysPerSelect(){
+		return SELECT_BY_IDS_SIZES[SELECT_BY_IDS_SIZES.length - 1];
+	}
+	/**
+	 * Gives the number of keys from which selecting several entities inserts the keys in a temporary table
+	 * (see {@link SQLGenerator#createKeyTable()}) instead of giving them as parameters of the selects.
+	 * @return {@link #TEMPORARY_TABLE_THRESHOLD} by default
+	 */
+	protected int getTemporaryTableThreshold(){
+		return TEMPORARY_TABLE_THRESHOLD;
+	}
 	//------------------------------------------------------------------------------------------------------------------------------
+	/**
+	 * Inserts the entities with multi-row insert statements whose sizes are taken from {@link #MULTI_ROW_INSERT_SIZES}.
+	 * Statements of the same size are sent by JDBC batches of about batchSize entities.
+	 */
+	@SuppressWarnings("unchecked")
+	private void insertByMultiRowStatements(Collection<? extends E> entities, int batchSize, int maxRows) throws PersistenceException {
+		if(batchSize < 1){
+			throw new IllegalArgumentException("The batch size must be at least 1 (" + batchSize + ")");
+		}
+		List<? extends E> list = entities instanceof List ? (List<? extends E>)entities : new ArrayList<E>(entities);
+		for(E entity : list){
+			generateValues(entity, Operation.INSERT);
+		}
+		StatementBinder<List<? extends E>> rowsBinder = new StatementBinder<List<? extends E>>() {
+			public void bind(PreparedStatement statement, List<? extends E> rows) throws java.sql.SQLException, PersistenceException {
+				int index = 1;
+				for(E entity : rows){
+					index = insertBinder.bind(statement, index, entity);
+				}
+			}
+		};
+		int start = 0;
+		int rows = 0;
+		int entitiesInBatch = 0;
+		List<List<? extends E>> batch = new ArrayList<List<? extends E>>();
+		while(start < list.size()){
+			int statementRows = getMultiRowInsertSize(Math.min(list.size() - start, maxRows));
+			if(statementRows != rows && !batch.isEmpty()){
+				jdbcDao.executeBatch(sqlGenerator.createMultiRowInsert(rows), rowsBinder, batch);
+				batch.clear();
+				entitiesInBatch = 0;
+			}
+			rows = statementRows;
+			batch.add(list.subList(start, start + rows));
+			start += rows;
+			entitiesInBatch += rows;
+			if(entitiesInBatch >= batchSize){
+				jdbcDao.executeBatch(sqlGenerator.createMultiRowInsert(rows), rowsBinder, batch);
+				batch.clear();
+				entitiesInBatch = 0;
+			}
+		}
+		if(!batch.isEmpty()){
+			jdbcDao.executeBatch(sqlGenerator.createMultiRowInsert(rows), rowsBinder, batch);
+		}
+	}
+	/**
+	 * Splits the range of values of the partition key (see {@link SQLGenerator#getPartitionKey()}) into ranges of the same width
+	 * @param partitions the maximum number of ranges
+	 * @return the bounds (included) of each range or null if the table cannot be split
+	 */
+	private List<long[]> getPartitions(int partitions) throws PersistenceException {
+		String boundsQuery = sqlGenerator.createSelectPartitionBounds();
+		if(boundsQuery == null){
+			return null;
+		}
+		long[] bounds = jdbcDao.queryForLongArray(boundsQuery);
+		long min = bounds[0];
+		long max = bounds[1];
+		//The span is compared as an unsigned value as it may exceed Long.MAX_VALUE
+		long step = Long.divideUnsigned(max - min, partitions) + 1;
+		List<long[]> ranges = new ArrayList<long[]>(partitions);
+		long start = min;
+		while(true){
+			long end = Long.compareUnsigned(max - start, step) < 0 ? max : start + step - 1;
+			ranges.add(new long[]{start, end});
+			if(end == max){
+				break;
+			}
+			start = end + 1;
+		}
+		return ranges;
+	}
+	/**
+	 * Gives the entities selected by the query to the consumer until the scan is stopped
+	 */
+	private void scan(String query, Consumer<? super E> consumer, AtomicBoolean stopped, Object... parameters) throws PersistenceException {
+		Stream<E> entities = jdbcDao.stream(query, recordMapper, parameters);
+		try {
+			Iterator<E> iterator = entities.iterator();
+			while(!stopped.get() && iterator.hasNext()){
+				consumer.accept(iterator.next());
+			}
+		} catch (RuntimePersistenceException e) {
+			throw new PersistenceException(e.getMessage(), e.getCause());
+		} finally {
+			entities.close();
+		}
+	}
+	/**
+	 * Selects the page following the key (or the first page if the key is null)
+	 */
+	private List<E> selectPage(Object[] afterKey, int limit) throws PersistenceException {
+		if(limit < 1){
+			throw new IllegalArgumentException("The limit must be at least 1 (" + limit + ")");
+		}
+		if(entityHandler.getPrimaryKey().isEmpty()){
+			throw new PersistenceException("The entity " + entityClass.getName() + " has no primary key");
+		}
+		return jdbcDao.select(sqlGenerator.createSelectPage(afterKey == null), recordMapper, 
+				sqlGenerator.getSelectPageParameters(afterKey, limit));
+	}
+	/**
+	 * Selects the entities of the keys that are not in the session (if any)
+	 */
+	private Map<Object, E> selectByKeys(List<Object[]> keys) throws PersistenceException {
+		ReplicatedTable<E> replicatedTable = getUsableReplicatedTable();
+		if(replicatedTable != null){
+			Map<Object, E> entities = new HashMap<Object, E>();
+			for(Object[] key : keys){
+				E entity = replicatedTable.get(key);
+				if(entity != null){
+					entities.put(getPrimaryKey(entity), entity);
+				}
+			}
+			return entities;
+		}
+		EntitySession session = EntitySession.getCurrent(factory);
+		if(session == null){
+			return selectOutsideSession(keys);
+		}
+		Map<Object, E> entities = new HashMap<Object, E>();
+		List<Object[]> missingKeys = new ArrayList<Object[]>();
+		for(Object[] key : keys){
+			Object sessionKey = EntitySession.getKey(key);
+			E entity = sessionKey != null ? session.get(entityClass, sessionKey) : null;
+			if(entity != null){
+				entities.put(getPrimaryKey(entity), entity);
+			} else {
+				missingKeys.add(key);
+			}
+		}
+		if(!missingKeys.isEmpty()){
+			for(E entity : selectOutsideSession(missingKeys).values()){
+				Object sessionKey = EntitySession.getKey(getPrimaryKeyValues(entity, Operation.SELECT));
+				if(sessionKey != null){
+					entity = session.register(entityClass, sessionKey, entity);
+				}
+				entities.put(getPrimaryKey(entity), entity);
+			}
+		}
+		return entities;
+	}
+	/**
+	 * Selects the records of the keys from the cache or from the DB, 
+	 * using a temporary table for big sets of keys and parameter lists otherwise
+	 */
+	private Map<Object, E> selectOutsideSession(List<Object[]> keys) throws PersistenceException {
+		List<Object[]> distinctKeys = getDistinctKeys(keys);
+		EntityCache<E> cache = getUsableCache();
+		if(cache == null){
+			return selectByDistinctKeys(distinctKeys);
+		}
+		Map<Object, E> entities = new HashMap<Object, E>();
+		List<Object[]> missingKeys = new ArrayList<Object[]>();
+		for(Object[] key : distinctKeys){
+			E entity = cache.get(key.length == 1 ? key[0] : Arrays.asList(key));
+			if(entity != null){
+				entities.put(getPrimaryKey(entity), entity);
+			} else {
+				missingKeys.add(key);
+			}
+		}
+		if(!missingKeys.isEmpty()){
+			long[] stamps = cache.getStamps();
+			Map<Object, E> selected = selectByDistinctKeys(missingKeys);
+			cache.fillAll(selected, stamps);
+			entities.putAll(selected);
+		}
+		return entities;
+	}
+	private Map<Object, E> selectByDistinctKeys(List<Object[]> distinctKeys) throws PersistenceException {
+		if(!isTemporaryTableUsed(distinctKeys.size())){
+			return selectByParameterLists(distinctKeys);
+		}
+		Map<Object, E> entities = new HashMap<Object, E>();
+		LazyResultSetIterable<E> iterable = jdbcDao.lazilySelectJoining(keyTable, distinctKeys, sqlGenerator.createSelectJoiningKeys(), recordMapper);
+		try {
+			for(E entity : iterable){
+				entities.put(getPrimaryKey(entity), entity);
+			}
+		} finally {
+			try {
+				iterable.close();
+			} catch (IOException e) {
+				throw new PersistenceException(e);
+			}
+		}
+		return entities;
+	}
+	private boolean isTemporaryTableUsed(int keys){
+		return keyTable != null && keys >= getTemporaryTableThreshold();
+	}
+	/**
+	 * Selects the records of the keys by chunks, each chunk being padded with its last key up to one of {@link #SELECT_BY_IDS_SIZES}
+	 */
+	private Map<Object, E> selectByParameterLists(List<Object[]> keys) throws PersistenceException {
+		int keySize = entityHandler.getPrimaryKey().size();
+		Map<Object, E> entities = new HashMap<Object, E>();
+		int maxKeys = getSelectByIdsSize(Integer.MAX_VALUE, getMaxKeysPerSelect());
+		int start = 0;
+		while(start < keys.size()){
+			int count = Math.min(maxKeys, keys.size() - start);
+			int size = getSelectByIdsSize(count, maxKeys);
+			Object[] parameters = new Object[size * keySize];
+			for(int i = 0; i < size; i++){
+				Object[] key = keys.get(start + Math.min(i, count - 1));
+				System.arraycopy(key, 0, parameters, i * keySize, keySize);
+			}
+			for(E entity : jdbcDao.select(sqlGenerator.createSelectByIds(size), recordMapper, parameters)){
+				entities.put(getPrimaryKey(entity), entity);
+			}
+			start += count;
+		}
+		return entities;
+	}
+	/**
+	 * Converts the ids given to the select methods into the values of the primary key fields
+	 */
+	private List<Object[]> toKeys(Collection<?> ids) throws PersistenceException {
+		List<Object[]> keys = new ArrayList<Object[]>(ids.size());
+		int keySize = entityHandler.getPrimaryKey().size();
+		for(Object id : ids){
+			Object[] key;
+			if(keySize == 1){
+				key = new Object[]{id};
+			} else if(id instanceof Object[]){
+				key = (Object[])id;
+			} else if(id instanceof List){
+				key = ((List<?>)id).toArray();
+			} else {
+				throw new PersistenceException("The primary key of " + entityClass.getName() 
+						+ " has " + keySize + " fields: a List of their values is expected instead of " + id);
+			}
+			if(key.length != keySize){
+				throw new PersistenceException("The primary key of " + entityClass.getName() 
+						+ " has " + keySize + " fields but " + key.length + " values were given");
+			}
+			keys.add(key);
+		}
+		return keys;
+	}
+	/**
+	 * Removes the duplicates and the keys that cannot match any record
+	 */
+	private List<Object[]> getDistinctKeys(List<Object[]> keys) throws PersistenceException {
+		if(entityHandler.getPrimaryKey().isEmpty()){
+			throw new PersistenceException("The entity " + entityClass.getName() + " has no primary key");
+		}
+		Set<List<Object>> distinctKeys = new HashSet<List<Object>>();
+		List<Object[]> remainingKeys = new ArrayList<Object[]>(keys.size());
+		for(Object[] key : keys){
+			List<Object> keyAsList = Arrays.asList(key);
+			if(!keyAsList.contains(null) && distinctKeys.add(keyAsList)){
+				remainingKeys.add(key);
+			}
+		}
+		return remainingKeys;
+	}
+	/**
+	 * @return the smallest size of {@link #SELECT_BY_IDS_SIZES} containing count keys 
+	 * or the biggest one not exceeding max
+	 */
+	private static int getSelectByIdsSize(int count, int max){
+		int selected = 1;
+		for(int size : SELECT_BY_IDS_SIZES){
+			if(size > max){
+				break;
+			}
+			selected = size;
+			if(size >= count){
+				break;
+			}
+		}
+		return selected;
+	}
+	private static int getMultiRowInsertSize(int maxRows){
+		for(int size : MULTI_ROW_INSERT_SIZES){
+			if(size <= maxRows){
+				return size;
+			}
+		}
+		return 1;
+	}
+	/**
+	 * Sends the entities to the DB by chunks of batchSize, each chunk being executed as one JDBC batch.
+	 * The values to generate are generated before sending each chunk.
+	 */
+	private void executeInBatches(String query, Collection<? extends E> entities, EntityBinder binder,
+			Operation operation, int batchSize) throws PersistenceException {
+		if(batchSize < 1){
+			throw new IllegalArgumentException("The batch size must be at least 1 (" + batchSize + ")");
+		}
+		if(entities.size() <= batchSize){
+			for(E entity : entities){
+				generateValues(entity, operation);
+			}
+			jdbcDao.executeBatch(query, binder, entities);
+			return;
+		}
+		List<E> chunk = new ArrayList<E>(batchSize);
+		for(E entity : entities){
+			generateValues(entity, operation);
+			chunk.add(entity);
+			if(chunk.size() == batchSize){
+				jdbcDao.executeBatch(query, binder, chunk);
+				chunk.clear();
+			}
+		}
+		if(!chunk.isEmpty()){
+			jdbcDao.executeBatch(query, binder, chunk);
+		}
+	}
+	/**
+	 * @return the fields in the order of the update query: the fields to set first and then the primary key
+	 */
+	private List<EntityField> getUpdateFields(){
+		List<EntityField> fields = new ArrayList<EntityField>(entityHandler.getEntityFields().size());
+		for(EntityField entityField : entityHandler.getEntityFields()){
+			if(!entityField.isPrimaryKey()){
+				fields.add(entityField);
+			}
+		}
+		fields.addAll(entityHandler.getPrimaryKey());
+		return fields;
+	}
+	/**
+	 * @return true if inserting the entity would generate one of its values
+	 */
+	private boolean isValueGenerated(E entity) throws PersistenceException{
+		try {
+			for(EntityField field : generatedFields){
+				if(field.get(entity) == null || !field.getGeneratedValueAnnotation().onlyGenerateWhenNull() 
+						|| field.getJavaType().isPrimitive()){
+					return true;
+				}
+			}
+		} catch (Exception e) {
+			throw new PersistenceException(e);
+		}
+		return false;
+	}
+	/**
+	 * @return the cache of the entity or null if it is not cached, if this dao does not use the default connection provider
+	 * (the cache holds the entities of its DB) or if a transaction is active in the current thread
+	 * (the entities read in a transaction may not be committed yet)
+	 */
+	private EntityCache<E> getUsableCache() {
+		if(cache == null || connectionProvider != factory.getDefaultConnectionProvider()
+				|| JdbcTransaction.getCurrent(connectionProvider) != null){
+			return null;
+		}
+		return cache;
+	}
+	/**
+	 * Removes the written entities from the cache rather than updating it, as the DB may not store them as they are (precision, triggers...).
+	 * In a transaction, they are removed again once it ends as they may have been cached meanwhile from the committed records.
+	 * The replicated table (if any) is invalidated.
+	 */
+	private void evict(Collection<? extends E> entities) throws PersistenceException {
+		if(replicatedTable != null){
+			invalidateReplica();
+		}
+		if(cache == null){
+			return;
+		}
+		final List<Object> keys = new ArrayList<Object>(entities.size());
+		for(E entity : entities){
+			Object[] key = getPrimaryKeyValues(entity, Operation.SELECT);
+			if(!Arrays.asList(key).contains(null)){
+				keys.add(key.length == 1 ? key[0] : Arrays.asList(key));
+			}
+		}
+		cache.removeAll(keys);
+		JdbcTransaction transaction = JdbcTransaction.getCurrent(connectionProvider);
+		if(transaction != null){
+			final EntityCache<E> transactionCache = cache;
+			transaction.onCompletion(new Runnable() {
+				public void run() {
+					transactionCache.removeAll(keys);
+				}
+			});
+		}
+	}
+	/**
+	 * The written entities replace the ones of the session having the same primary key
+	 */
+	private void putInSession(Collection<? extends E> entities) throws PersistenceException {
+		EntitySession session = EntitySession.getCurrent(factory);
+		if(session == null){
+			return;
+		}
+		for(E entity : entities){
+			Object key = EntitySession.getKey(getPrimaryKeyValues(entity, Operation.SELECT));
+			if(key != null){
+				session.put(entityClass, key, entity);
+			}
+		}
+	}
+	private void removeFromSession(Collection<? extends E> entities) throws PersistenceException {
+		EntitySession session = EntitySession.getCurrent(factory);
+		if(session == null){
+			return;
+		}
+		for(E entity : entities){
+			Object key = EntitySession.getKey(getPrimaryKeyValues(entity, Operation.SELECT));
+			if(key != null){
+				session.remove(entityClass, key);
+			}
+		}
+	}
+	/**
+	 * @return the replicated table of the entity or null if it is not replicated, if this dao does not use the default connection provider
+	 * (the table is loaded from its DB) or if a transaction is active in the current thread (the table does not have the changes of the transaction)
+	 */
+	private ReplicatedTable<E> getUsableReplicatedTable() {
+		if(replicatedTable == null || connectionProvider != factory.getDefaultConnectionProvider()
+				|| JdbcTransaction.getCurrent(connectionProvider) != null){
+			return null;
+		}
+		return replicatedTable;
+	}
+	/**
+	 * Makes the next read load the replicated table again, and again once the transaction (if any) ends
+	 */
+	private void invalidateReplica() {
+		replicatedTable.invalidate();
+		JdbcTransaction transaction = JdbcTransaction.getCurrent(connectionProvider);
+		if(transaction != null){
+			final ReplicatedTable<E> transactionTable = replicatedTable;
+			transaction.onCompletion(new Runnable() {
+				public void run() {
+					transactionTable.invalidate();
+				}
+			});
+		}
+	}
 	private Object[] getPrimaryKeyValues(E entity, Operation operation) throws PersistenceException{
 		return getValues(entity, entityHandler.getPrimaryKey(), operation);
 	}
 
-	private Object[] getValues(E entity, Operation operation) throws PersistenceException{
-		return getValues(entity, entityHandler.getEntityFields(), operation);
-	}
 	private Object[] getValues(E entity, List<EntityField> entityFields, Operation operation) throws PersistenceException{
-		Object[] fields;
+		Object[] fields = new Object[entityFields.size()];
+		int i=0;
+		for(EntityField field: entityFields){
+			fields[i++] = getValue(entity, field, operation);
+		}
+		return fields;
+	}
+	/**
+	 * Generates the values of the entity that the operation has to generate (setting them on the entity)
+	 */
+	private void generateValues(E entity, Operation operation) throws PersistenceException{
+		for(EntityField field : generatedFields){
+			getValue(entity, field, operation);
+		}
+	}
+	/**
+	 * @return the value of the field, generated first if the operation has to generate it
+	 */
+	private Object getValue(E entity, EntityField field, Operation operation) throws PersistenceException{
 		try {
-			fields = new Object[entityFields.size()];
-			int i=0;
-			for(EntityField field: entityFields){
-				Object val = field.get(entity);
-				if(field.getGenerator()!=null){
-					GeneratedValue annotation = field.getGeneratedValueAnnotation();
-					if(val == null || !annotation.onlyGenerateWhenNull() || field.getJavaType().isPrimitive()){
-						if(operation == Operation.INSERT 
-								|| (operation == Operation.UPDATE && annotation.generateAlsoOnUpdate())){
-							field.getGenerator().setFactory(this.factory);
-							val = field.getGenerator().getNextValue();
-							//Commit on the org.cch.napa.entity
-							//TODO do this AFTER DB commit in order to keep data consistent
-							field.set(entity, val);
-						}
+			Object val = field.get(entity);
+			if(field.getGenerator()!=null){
+				GeneratedValue annotation = field.getGeneratedValueAnnotation();
+				if(val == null || !annotation.onlyGenerateWhenNull() || field.getJavaType().isPrimitive()){
+					if(operation == Operation.INSERT 
+							|| (operation == Operation.UPDATE && annotation.generateAlsoOnUpdate())){
+						field.getGenerator().setFactory(this.factory);
+						val = field.getGenerator().getNextValue();
+						//Commit on the org.cch.napa.entity
+						//TODO do this AFTER DB commit in order to keep data consistent
+						field.set(entity, val);
 					}
 				}
-				fields[i++] = val;
 			}
+			return val;
 		} catch (PersistenceException e) {
 			throw e;
 		} catch (Exception e) {
 			throw new PersistenceException(e);
 		}
-		return fields;
 	}
 	protected void checkValue(Object val, EntityField field) throws PersistenceException{
 		if(val==null){
@@ -229,4 +1125,72 @@ public class EntityDaoImpl<E> implements EntityDao<E> {
 		}
 
 	}
+
+	/**
+	 * Binding plan of a write query: binds the fields of the entity, read without intermediate array of values, 
+	 * to the parameters of the query. The values to generate must have been generated before.
+	 */
+	private class EntityBinder implements StatementBinder<E> {
+		private final EntityField[] fields;
+
+		private EntityBinder(List<EntityField> fields) {
+			this.fields = fields.toArray(new EntityField[fields.size()]);
+		}
+
+		public void bind(PreparedStatement statement, E entity) throws java.sql.SQLException, PersistenceException {
+			bind(statement, 1, entity);
+		}
+
+		/**
+		 * @param index the index of the parameter bound to the first field
+		 * @return the index of the parameter following the last field
+		 */
+		private int bind(PreparedStatement statement, int index, E entity) throws java.sql.SQLException, PersistenceException {
+			for(EntityField field : fields){
+				field.bind(statement, index++, entity);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Iterates the entities page by page, the next page being selected after the key of the last entity of the current one
+	 */
+	private class PageIterator implements Iterator<E> {
+		private final int pageSize;
+		private List<E> page;
+		private int index;
+		private Object[] lastKey;
+
+		private PageIterator(int pageSize) {
+			this.pageSize = pageSize;
+		}
+
+		public boolean hasNext() {
+			//A page smaller than the page size is the last one
+			if(page == null || (index == page.size() && page.size() == pageSize)){
+				try {
+					page = selectPage(lastKey, pageSize);
+					index = 0;
+					if(!page.isEmpty()){
+						lastKey = getPrimaryKeyValues(page.get(page.size() - 1), Operation.SELECT);
+					}
+				} catch (PersistenceException e) {
+					throw new RuntimePersistenceException(e);
+				}
+			}
+			return index < page.size();
+		}
+
+		public E next() {
+			if(!hasNext()){
+				throw new NoSuchElementException();
+			}
+			return page.get(index++);
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
 }
@@ -0,0 +1,198 @@
+package org.cch.napa.entity.impl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cch.napa.Session;
+import org.cch.napa.cache.EntityCache;
+import org.cch.napa.entity.EntityDaoFactory;
+import org.cch.napa.entity.annotations.atk.EntityField;
+import org.cch.napa.entity.annotations.atk.EntityHandler;
+import org.cch.napa.exceptions.PersistenceException;
+
+/**
+ * Session holding the identity map of the entities loaded through the daos of a factory.<br>
+ * The session is bound to the thread that opened it so the daos and the record mappers of the factory
+ * find it in that thread (see {@link #getCurrent(EntityDaoFactory)}). It is not meant to be shared between threads.<br>
+ * The entities are kept per class and per primary key, the keys being normalized as in {@link EntityCache#normalize(Object)}.
+ * @author Christophe Champagne
+ *
+ */
+public class EntitySession implements Session {
+	private static final ThreadLocal<Map<EntityDaoFactory, EntitySession>> currentSessions = new ThreadLocal<Map<EntityDaoFactory, EntitySession>>(){
+		@Override
+		protected Map<EntityDaoFactory, EntitySession> initialValue() {
+			return new IdentityHashMap<EntityDaoFactory, EntitySession>();
+		}
+	};
+
+	private final EntityDaoFactory factory;
+	//The outermost session (this one if it is not joining another)
+	private final EntitySession root;
+	private boolean closed;
+	//Entities per class and per primary key (only set on the outermost session)
+	private final Map<Class<?>, Map<Object, Object>> entities;
+
+	private EntitySession(EntityDaoFactory factory, EntitySession root) {
+		this.factory = factory;
+		this.root = root == null ? this : root;
+		this.entities = root == null ? new HashMap<Class<?>, Map<Object, Object>>() : null;
+	}
+
+	/**
+	 * Opens a session for the daos of the factory or joins the one already open in the current thread.
+	 * @param factory the factory of the daos
+	 * @return the session
+	 */
+	public static EntitySession open(EntityDaoFactory factory) {
+		EntitySession current = getCurrent(factory);
+		if(current != null){
+			return new EntitySession(factory, current.root);
+		}
+		EntitySession session = new EntitySession(factory, null);
+		currentSessions.get().put(factory, session);
+		return session;
+	}
+
+	/**
+	 * @param factory a factory of daos
+	 * @return the session open in the current thread for the factory or null if there is none
+	 */
+	public static EntitySession getCurrent(EntityDaoFactory factory) {
+		return currentSessions.get().get(factory);
+	}
+
+	/**
+	 * @param keyValues the values of the primary key fields of an entity
+	 * @return the key of the entity in the session or null if a value is missing (the entity cannot be identified)
+	 */
+	public static Object getKey(Object[] keyValues) {
+		if(keyValues.length == 0 || Arrays.asList(keyValues).contains(null)){
+			return null;
+		}
+		return EntityCache.normalize(keyValues.length == 1 ? keyValues[0] : Arrays.asList(keyValues));
+	}
+
+	/**
+	 * @param entityClass the class of the entity
+	 * @param key the key of the entity (see {@link #getKey(Object[])})
+	 * @return the entity of the session having the key or null if there is none
+	 */
+	public <E> E get(Class<E> entityClass, Object key) {
+		Map<Object, Object> map = root.entities.get(entityClass);
+		return map == null ? null : entityClass.cast(map.get(key));
+	}
+
+	/**
+	 * Adds an entity read from the DB unless the session already has an entity with the same key
+	 * @param entityClass the class of the entity
+	 * @param key the key of the entity (see {@link #getKey(Object[])})
+	 * @param entity the entity read
+	 * @return the entity of the session: the one already there or the given one
+	 */
+	public <E> E register(Class<E> entityClass, Object key, E entity) {
+		Map<Object, Object> map = getEntities(entityClass);
+		Object current = map.get(key);
+		if(current != null){
+			return entityClass.cast(current);
+		}
+		map.put(key, entity);
+		return entity;
+	}
+
+	/**
+	 * Adds an entity written in the DB, replacing the entity of the session having the same key
+	 * @param entityClass the class of the entity
+	 * @param key the key of the entity (see {@link #getKey(Object[])})
+	 * @param entity the entity written
+	 */
+	public <E> void put(Class<E> entityClass, Object key, E entity) {
+		getEntities(entityClass).put(key, entity);
+	}
+
+	/**
+	 * Removes the entity having the key from the session
+	 * @param entityClass the class of the entity
+	 * @param key the key of the entity (see {@link #getKey(Object[])})
+	 */
+	public void remove(Class<?> entityClass, Object key) {
+		Map<Object, Object> map = root.entities.get(entityClass);
+		if(map != null){
+			map.remove(key);
+		}
+	}
+
+	/**
+	 * @see Session#detach(Object)
+	 */
+	public void detach(Object entity) throws PersistenceException {
+		EntityHandler<?> entityHandler = factory.getEntityHandler(entity.getClass());
+		List<EntityField> primaryKey = entityHandler.getPrimaryKey();
+		Object[] keyValues = new Object[primaryKey.size()];
+		try {
+			for(int i = 0; i < keyValues.length; i++){
+				keyValues[i] = primaryKey.get(i).get(entity);
+			}
+		} catch (Exception e) {
+			throw new PersistenceException("Could not read the primary key of " + entity.getClass().getName(), e);
+		}
+		Object key = getKey(keyValues);
+		if(key != null){
+			remove(entity.getClass(), key);
+		}
+	}
+
+	/**
+	 * @see Session#clear()
+	 */
+	public void clear() {
+		root.entities.clear();
+	}
+
+	/**
+	 * @see Session#size()
+	 */
+	public int size() {
+		int size = 0;
+		for(Map<Object, Object> map : root.entities.values()){
+			size += map.size();
+		}
+		return size;
+	}
+
+	/**
+	 * @see Session#isActive()
+	 */
+	public boolean isActive() {
+		return !closed && !root.closed;
+	}
+
+	/**
+	 * @see Session#close()
+	 */
+	public void close() {
+		if(closed){
+			return;
+		}
+		closed = true;
+		if(root == this){
+			Map<EntityDaoFactory, EntitySession> sessions = currentSessions.get();
+			if(sessions.get(factory) == this){
+				sessions.remove(factory);
+			}
+			entities.clear();
+		}
+	}
+	//------------------------------------------------------------------------------------------------------------------------------
+	private Map<Object, Object> getEntities(Class<?> entityClass) {
+		Map<Object, Object> map = root.entities.get(entityClass);
+		if(map == null){
+			map = new HashMap<Object, Object>();
+			root.entities.put(entityClass, map);
+		}
+		return map;
+	}
+}
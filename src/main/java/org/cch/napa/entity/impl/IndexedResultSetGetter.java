@@ -0,0 +1,21 @@
+package org.cch.napa.entity.impl;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.cch.napa.exceptions.PersistenceException;
+
+/**
+ * Getter reading its column by index, the read by name looking the index of the column up first
+ * @author Christophe Champagne
+ *
+ */
+public abstract class IndexedResultSetGetter extends AbstractResultSetGetter {
+	@Override
+	protected abstract Object getValue(ResultSet resultSet, int columnIndex) throws SQLException, PersistenceException;
+
+	@Override
+	protected Object getValue(ResultSet resultSet, String columnName) throws SQLException, PersistenceException {
+		return getValue(resultSet, resultSet.findColumn(columnName));
+	}
+}
@@ -1,25 +1,64 @@
 package org.cch.napa.entity.impl;
 
 import org.cch.napa.*;
+import org.cch.napa.cache.EntityCache;
+import org.cch.napa.cache.QueryCache;
 import org.cch.napa.entity.EntityDaoFactory;
 import org.cch.napa.entity.LazyResultSetIterable;
 import org.cch.napa.entity.SQLTypeMapper;
+import org.cch.napa.entity.annotations.atk.EntityHandler;
 import org.cch.napa.exceptions.PersistenceException;
+import org.cch.napa.exceptions.RuntimePersistenceException;
 import org.cch.napa.exceptions.SQLException;
+import org.cch.napa.jdbc.JdbcTransaction;
+import org.cch.napa.jdbc.StatementCache;
 import org.cch.napa.mapper.RecordMapper;
+import org.cch.napa.mapper.impl.EntityRecordMapper;
+import org.cch.napa.mapper.StatementBinder;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class JdbcDaoImpl implements JdbcDao {
+	/** Number of rows inserted in a temporary table by one JDBC batch */
+	public static final int TEMPORARY_TABLE_BATCH_SIZE = 10000;
+	//Identifiers of the sets of rows inserted in temporary tables
+	private static final AtomicLong temporaryRowSets = new AtomicLong();
+
 	private ConnectionProvider connectionProvider;
+	private EntityDaoFactory factory;
 	private SQLTypeMapper sqlTypeMapper;
+	//Sets the parameters given as arrays of values according to the class of each value
+	private final StatementBinder<Object[]> parametersBinder = new StatementBinder<Object[]>() {
+		public void bind(PreparedStatement statement, Object[] parameters) throws java.sql.SQLException, PersistenceException {
+			int index = 0;
+			for(Object o: parameters){
+				index++;
+				sqlTypeMapper.setParameter(statement, index, o);
+			}
+		}
+	};
+	//Rows to delete from a temporary table when the statement is closed
+	private final Map<PreparedStatement, TemporaryRows> temporaryRowsPerStatement = new IdentityHashMap<PreparedStatement, TemporaryRows>();
 	
 	public JdbcDaoImpl(ConnectionProvider connectionProvider, EntityDaoFactory factory) {
 		this.connectionProvider = connectionProvider;
+		this.factory = factory;
 		sqlTypeMapper = factory.getSqlTypeMapper();
 	}	
 	public JdbcDaoImpl(EntityDaoFactory factory) {
@@ -31,57 +70,319 @@ public class JdbcDaoImpl implements JdbcDao {
 	 * @see org.cch.napa.JdbcDao#lazilySelect(String, RecordMapper, Object...)
 	 */
 	public <T> LazyResultSetIterable<T> lazilySelect(String query, RecordMapper<T> mapper, Object... parameters) throws PersistenceException {
-		PreparedStatement statement = prepareStatement(query, parameters);
-		return new LazyResultSetIterableImpl<T>(statement,mapper);
+		PreparedStatement statement = prepareLeasedStatement(true, query, parameters);
+		try {
+			return new LazyResultSetIterableImpl<T>(statement, mapper, this);
+		} catch (PersistenceException e) {
+			closeStatement(statement);
+			throw e;
+		}
+	}
+
+	/**
+	 * The temporary table is filled on a read connection (temporary tables can be written even if the DB is opened in read-only)
+	 * @see org.cch.napa.JdbcDao#lazilySelectJoining(TemporaryTable, Collection, String, RecordMapper, Object...)
+	 */
+	public <T> LazyResultSetIterable<T> lazilySelectJoining(TemporaryTable temporaryTable, Collection<Object[]> rows, String query,
+			RecordMapper<T> mapper, Object... parameters) throws PersistenceException {
+		TemporaryRows temporaryRows = new TemporaryRows(temporaryTable.getClearQuery(), temporaryRowSets.incrementAndGet());
+		Connection connection = acquireConnection(true);
+		PreparedStatement statement = null;
+		boolean created = false;
+		try {
+			execute(connection, temporaryTable.getCreateQuery());
+			created = true;
+			List<Object[]> batch = new ArrayList<Object[]>(Math.min(rows.size(), TEMPORARY_TABLE_BATCH_SIZE));
+			for(Object[] row : rows){
+				batch.add(prependSet(temporaryRows.set, row));
+				if(batch.size() == TEMPORARY_TABLE_BATCH_SIZE){
+					executeBatch(connection, temporaryTable.getInsertQuery(), parametersBinder, batch);
+					batch.clear();
+				}
+			}
+			if(!batch.isEmpty()){
+				executeBatch(connection, temporaryTable.getInsertQuery(), parametersBinder, batch);
+			}
+			Object[] queryParameters = prependSet(temporaryRows.set, parameters);
+			try {
+				statement = prepareStatement(connection, query, queryParameters);
+			} catch (java.sql.SQLException e) {
+				throw new SQLException("Failed to prepare statement of\n"+ queryAndParametersToText(query, queryParameters),e);
+			}
+			synchronized (temporaryRowsPerStatement) {
+				temporaryRowsPerStatement.put(statement, temporaryRows);
+			}
+		} finally {
+			if(statement == null){
+				try {
+					if(created){
+						clearTemporaryRows(connection, temporaryRows);
+					}
+				} catch (PersistenceException e) {
+					//Do not hide the original exception
+					System.err.println("Could not clear the temporary rows");
+					e.printStackTrace();
+				} finally {
+					releaseConnection(connection);
+				}
+			}
+		}
+		try {
+			return new LazyResultSetIterableImpl<T>(statement, mapper, this);
+		} catch (PersistenceException e) {
+			closeStatement(statement);
+			throw e;
+		}
 	}
 
 	/**
 	 * @see org.cch.napa.JdbcDao#select(java.lang.String, org.cch.napa.mapper.RecordMapper, java.lang.Object[])
 	 */
 	public <T> List<T> select(String query, RecordMapper<T> mapper,Object...parameters) throws PersistenceException{
+		QueryCache queryCache = getUsableQueryCache();
+		//The other mappers are usually created for each call: their results would never be found in the cache
+		if(queryCache == null || !(mapper instanceof EntityRecordMapper)){
+			return selectFromDB(query, mapper, parameters);
+		}
+		@SuppressWarnings("unchecked")
+		EntityRecordMapper<T> entityMapper = (EntityRecordMapper<T>)mapper;
+		//The result also depends on the table of the entity
+		EntityHandler<T> entityHandler = entityMapper.getEntityHandler();
+		QueryCache.Key key = queryCache.createKey(entityHandler, query, parameters, entityHandler.getTableName());
+		Object cached = queryCache.get(key);
+		if(cached != null){
+			return fromCachedResult(entityMapper, cached);
+		}
+		List<T> list = selectFromDB(query, mapper, parameters);
+		queryCache.put(key, toCachedResult(entityMapper, list), list.size());
+		return list;
+	}
+	private <T> List<T> selectFromDB(String query, RecordMapper<T> mapper,Object...parameters) throws PersistenceException{
 		List<T> list = new ArrayList<T>();
+		Connection connection = acquireConnection(true);
 		PreparedStatement statement = null;
+		boolean succeeded = false;
 		try{
-			statement = prepareStatement(query, parameters);
+			statement = prepareStatement(connection, query, parameters);
 			ResultSet resultSet =  statement.executeQuery();
-			while(resultSet.next()){
-				T item = mapper.map(resultSet);
-				list.add(item);
+			try {
+				while(resultSet.next()){
+					T item = mapper.map(resultSet);
+					list.add(item);
+				}
+			} finally {
+				resultSet.close();
 			}
+			succeeded = true;
 		}catch(java.sql.SQLException e){
 			throw new SQLException("Failed\n"+ queryAndParametersToText(query, parameters), e);
 		} finally {
-			if(statement != null){
+			releaseStatement(statement, succeeded);
+			releaseConnection(connection);
+		}
+		return list;
+	}
+	/**
+	 * @see org.cch.napa.JdbcDao#stream(String, RecordMapper, Object...)
+	 */
+	public <T> Stream<T> stream(String query, RecordMapper<T> mapper, Object... parameters) throws PersistenceException {
+		return stream(0, query, mapper, parameters);
+	}
+	/**
+	 * @see org.cch.napa.JdbcDao#stream(int, String, RecordMapper, Object...)
+	 */
+	public <T> Stream<T> stream(int fetchSize, String query, RecordMapper<T> mapper, Object... parameters) throws PersistenceException {
+		final ResultSetSpliterator<T> spliterator = openSpliterator(fetchSize, query, mapper, parameters);
+		return StreamSupport.stream(spliterator, false).onClose(new Runnable() {
+			public void run() {
 				try {
-					statement.close();
-				} catch (java.sql.SQLException e) {
-					e.printStackTrace();
+					spliterator.close();
+				} catch (PersistenceException e) {
+					throw new RuntimePersistenceException(e);
 				}
 			}
+		});
+	}
+	/**
+	 * Executes the query and gives a spliterator reading its records
+	 */
+	<T> ResultSetSpliterator<T> openSpliterator(int fetchSize, String query, RecordMapper<T> mapper, Object... parameters) throws PersistenceException {
+		PreparedStatement statement = prepareLeasedStatement(true, query, parameters);
+		try {
+			return new ResultSetSpliterator<T>(statement, mapper, fetchSize, this);
+		} catch (PersistenceException e) {
+			closeStatement(statement);
+			throw e;
 		}
-		return list;
+	}
+	/**
+	 * @see org.cch.napa.JdbcDao#queryForLong(java.lang.String, java.lang.Object[])
+	 */
+	public long queryForLong(String query, Object... parameters) throws PersistenceException {
+		QueryCache queryCache = getUsableQueryCache();
+		QueryCache.Key key = null;
+		if(queryCache != null){
+			key = queryCache.createKey(Long.TYPE, query, parameters);
+			Object cached = queryCache.get(key);
+			if(cached != null){
+				return (Long)cached;
+			}
+		}
+		final long[] value = new long[1];
+		query(query, new ColumnReader() {
+			boolean read(ResultSet resultSet) throws java.sql.SQLException {
+				value[0] = resultSet.getLong(1);
+				return false;
+			}
+		}, parameters);
+		if(key != null){
+			queryCache.put(key, value[0], 1);
+		}
+		return value[0];
+	}
+	/**
+	 * @see org.cch.napa.JdbcDao#queryForLongArray(java.lang.String, java.lang.Object[])
+	 */
+	public long[] queryForLongArray(String query, Object... parameters) throws PersistenceException {
+		QueryCache queryCache = getUsableQueryCache();
+		QueryCache.Key key = null;
+		if(queryCache != null){
+			key = queryCache.createKey(long[].class, query, parameters);
+			Object cached = queryCache.get(key);
+			if(cached != null){
+				return ((long[])cached).clone();
+			}
+		}
+		LongArrayReader reader = new LongArrayReader();
+		query(query, reader, parameters);
+		long[] values = Arrays.copyOf(reader.values, reader.size);
+		if(key != null){
+			queryCache.put(key, values.clone(), values.length);
+		}
+		return values;
+	}
+	/**
+	 * @see org.cch.napa.JdbcDao#queryForIntArray(java.lang.String, java.lang.Object[])
+	 */
+	public int[] queryForIntArray(String query, Object... parameters) throws PersistenceException {
+		QueryCache queryCache = getUsableQueryCache();
+		QueryCache.Key key = null;
+		if(queryCache != null){
+			key = queryCache.createKey(int[].class, query, parameters);
+			Object cached = queryCache.get(key);
+			if(cached != null){
+				return ((int[])cached).clone();
+			}
+		}
+		IntArrayReader reader = new IntArrayReader();
+		query(query, reader, parameters);
+		int[] values = Arrays.copyOf(reader.values, reader.size);
+		if(key != null){
+			queryCache.put(key, values.clone(), values.length);
+		}
+		return values;
+	}
+	/**
+	 * @see org.cch.napa.JdbcDao#queryForDoubleArray(java.lang.String, java.lang.Object[])
+	 */
+	public double[] queryForDoubleArray(String query, Object... parameters) throws PersistenceException {
+		QueryCache queryCache = getUsableQueryCache();
+		QueryCache.Key key = null;
+		if(queryCache != null){
+			key = queryCache.createKey(double[].class, query, parameters);
+			Object cached = queryCache.get(key);
+			if(cached != null){
+				return ((double[])cached).clone();
+			}
+		}
+		DoubleArrayReader reader = new DoubleArrayReader();
+		query(query, reader, parameters);
+		double[] values = Arrays.copyOf(reader.values, reader.size);
+		if(key != null){
+			queryCache.put(key, values.clone(), values.length);
+		}
+		return values;
+	}
+	/**
+	 * @see org.cch.napa.JdbcDao#queryForLongStream(java.lang.String, java.lang.Object[])
+	 */
+	public LongStream queryForLongStream(String query, Object... parameters) throws PersistenceException {
+		PreparedStatement statement = prepareLeasedStatement(true, query, parameters);
+		final LongColumnIterator iterator;
+		try {
+			iterator = new LongColumnIterator(statement.executeQuery(), statement);
+		} catch (java.sql.SQLException e) {
+			try {
+				closeStatement(statement);
+			} catch (PersistenceException e1) {
+				//Do not hide the original exception
+				System.err.println("Could not close the statement");
+				e1.printStackTrace();
+			}
+			throw new SQLException("Failed\n"+ queryAndParametersToText(query, parameters), e);
+		}
+		Spliterator.OfLong spliterator = Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL);
+		return StreamSupport.longStream(spliterator, false).onClose(new Runnable() {
+			public void run() {
+				try {
+					iterator.close();
+				} catch (PersistenceException e) {
+					throw new RuntimePersistenceException(e);
+				}
+			}
+		});
 	}
 	/**
 	 * @see org.cch.napa.JdbcDao#prepareStatement(java.lang.String, java.lang.Object[])
 	 */
 	public PreparedStatement prepareStatement(String query, Object...parameters) throws PersistenceException{
+		return prepareLeasedStatement(false, query, parameters);
+	}
+
+	/**
+	 * Prepares a statement on a connection leased for it.
+	 * @param readOnly true if the statement only reads data and may use a read-only connection
+	 */
+	private PreparedStatement prepareLeasedStatement(boolean readOnly, String query, Object...parameters) throws PersistenceException{
+		Connection connection = acquireConnection(readOnly);
 		PreparedStatement statement = null;
 		try {
-			Connection connection = connectionProvider.getConnection();
-			if(connection != null){
-				statement = connection.prepareStatement(query);
-				int index = 0;
-				for(Object o: parameters){
-					index++;
-					sqlTypeMapper.setParameter(statement, index, o);
-				}
-			}
+			statement = prepareStatement(connection, query, parameters);
 		} catch (java.sql.SQLException e) {
 			throw new SQLException("Failed to prepare statement of\n"+ queryAndParametersToText(query, parameters),e);
+		} finally {
+			if(statement == null){
+				releaseConnection(connection);
+			}
 		}
 		return statement;
 	}
 
+	/**
+	 * @see org.cch.napa.JdbcDao#closeStatement(PreparedStatement)
+	 */
+	public void closeStatement(PreparedStatement statement) throws PersistenceException {
+		if(statement == null){
+			return;
+		}
+		TemporaryRows temporaryRows;
+		synchronized (temporaryRowsPerStatement) {
+			temporaryRows = temporaryRowsPerStatement.remove(statement);
+		}
+		Connection connection = null;
+		try {
+			connection = statement.getConnection();
+			StatementCache.getCache(connection).release(statement);
+			if(temporaryRows != null){
+				clearTemporaryRows(connection, temporaryRows);
+			}
+		} catch (java.sql.SQLException e) {
+			throw new SQLException("Could not close statement", e);
+		} finally {
+			releaseConnection(connection);
+		}
+	}
+
 //	protected Blob getNewBlob(Connection connection) throws java.sql.SQLException{
 //		Blob blob = null;
 //		if(connection instanceof DB2eConnection){
@@ -94,35 +395,319 @@ public class JdbcDaoImpl implements JdbcDao {
 	 * @see org.cch.napa.JdbcDao#executeUpdate(java.lang.String, java.lang.Object)
 	 */
 	public void executeUpdate(String query, Object...parameters) throws PersistenceException{
+		executeUpdate(query, parametersBinder, parameters);
+	}
+	/**
+	 * @see org.cch.napa.JdbcDao#executeUpdate(String, StatementBinder, Object)
+	 */
+	public <T> void executeUpdate(String query, StatementBinder<? super T> binder, T item) throws PersistenceException{
+		Connection connection = acquireConnection(false);
 		PreparedStatement statement = null;
+		boolean succeeded = false;
 		try{
-			statement = prepareStatement(query, parameters);
+			statement = StatementCache.getCache(connection).prepare(query);
+			binder.bind(statement, item);
 			statement.executeUpdate();
-			if(!statement.getConnection().getAutoCommit()){
-				statement.getConnection().commit();
+			if(!connection.getAutoCommit() && !JdbcTransaction.isCurrentConnection(connectionProvider, connection)){
+				connection.commit();
 			}
+			succeeded = true;
 		} catch(java.sql.SQLException e){
-			String trace = "\n" + queryAndParametersToText(query, parameters);
-			if(statement != null){
-				try {
-					if(!statement.getConnection().getAutoCommit()){
-						statement.getConnection().rollback();
-					}
-				} catch (java.sql.SQLException e1) {
-					throw new SQLException("Could not rollback " + trace, e1);
+			String trace = "\n" + queryAndItemToText(query, item);
+			try {
+				//In a transaction, it is up to its owner to decide
+				if(!connection.getAutoCommit() && !JdbcTransaction.isCurrentConnection(connectionProvider, connection)){
+					connection.rollback();
 				}
+			} catch (java.sql.SQLException e1) {
+				throw new SQLException("Could not rollback " + trace, e1);
 			}
 			throw new SQLException("Exception while executing " + trace, e);
 		} finally {
-			if(statement != null){
-				try {
-					statement.close();
-				} catch (java.sql.SQLException e) {
-					System.err.println("Could not close statement");
-					e.printStackTrace();
+			releaseStatement(statement, succeeded);
+			releaseConnection(connection);
+			invalidateQueryCache(query);
+		}
+	}
+	/**
+	 * @see org.cch.napa.JdbcDao#executeBatch(String, List)
+	 */
+	public int[] executeBatch(String query, List<Object[]> parametersList) throws PersistenceException {
+		return executeBatch(query, parametersBinder, parametersList);
+	}
+	/**
+	 * @see org.cch.napa.JdbcDao#executeBatch(String, StatementBinder, Collection)
+	 */
+	public <T> int[] executeBatch(String query, StatementBinder<? super T> binder, Collection<? extends T> items) throws PersistenceException {
+		if(items.isEmpty()){
+			return new int[0];
+		}
+		Connection connection = acquireConnection(false);
+		try {
+			return executeBatch(connection, query, binder, items);
+		} finally {
+			releaseConnection(connection);
+			invalidateQueryCache(query);
+		}
+	}
+	//------------------------------------------------------------------------------------------------------------------------------
+	/**
+	 * Executes the batch on the connection and commits it unless the connection belongs to a transaction 
+	 */
+	private <T> int[] executeBatch(Connection connection, String query, StatementBinder<? super T> binder, 
+			Collection<? extends T> items) throws PersistenceException {
+		PreparedStatement statement = null;
+		boolean succeeded = false;
+		boolean autoCommit = true;
+		//The transaction the connection belongs to commits the batch with the rest of its work
+		boolean inTransaction = JdbcTransaction.isCurrentConnection(connectionProvider, connection);
+		Object currentItem = null;
+		try{
+			autoCommit = !inTransaction && connection.getAutoCommit();
+			if(autoCommit){
+				//One commit for the whole batch instead of one per execution
+				connection.setAutoCommit(false);
+			}
+			statement = StatementCache.getCache(connection).prepare(query);
+			for(T item : items){
+				currentItem = item;
+				binder.bind(statement, item);
+				statement.addBatch();
+			}
+			int[] counts = statement.executeBatch();
+			if(!inTransaction){
+				connection.commit();
+			}
+			succeeded = true;
+			return counts;
+		} catch(java.sql.SQLException e){
+			String trace = "\n" + queryAndItemToText(query, currentItem);
+			try {
+				if(!inTransaction){
+					connection.rollback();
 				}
+			} catch (java.sql.SQLException e1) {
+				throw new SQLException("Could not rollback batch of " + items.size() + trace, e1);
 			}
+			throw new SQLException("Exception while executing batch of " + items.size() + trace, e);
+		} finally {
+			releaseStatement(statement, succeeded);
+			try {
+				if(autoCommit){
+					connection.setAutoCommit(true);
+				}
+			} catch (java.sql.SQLException e) {
+				System.err.println("Could not restore auto-commit");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return the query cache of the factory or null if there is none, if this dao does not use the default connection provider
+	 * or if a transaction is active in the current thread (its changes are not visible to the other connections yet)
+	 */
+	private QueryCache getUsableQueryCache() {
+		QueryCache queryCache = factory.getQueryCache();
+		if(queryCache == null || connectionProvider != factory.getDefaultConnectionProvider()
+				|| JdbcTransaction.getCurrent(connectionProvider) != null){
+			return null;
+		}
+		return queryCache;
+	}
+	/**
+	 * Removes the cached results depending on the table written by the query.
+	 * In a transaction, they are removed again once it ends as they may have been cached meanwhile from the committed records.
+	 */
+	private void invalidateQueryCache(final String query) {
+		final QueryCache queryCache = factory.getQueryCache();
+		if(queryCache == null){
+			return;
+		}
+		queryCache.invalidateWrite(query);
+		JdbcTransaction transaction = JdbcTransaction.getCurrent(connectionProvider);
+		if(transaction != null){
+			transaction.onCompletion(new Runnable() {
+				public void run() {
+					queryCache.invalidateWrite(query);
+				}
+			});
+		}
+	}
+	/**
+	 * Gives the result to keep in the query cache: the values of the fields of the entities
+	 * (so that the entities given to the callers can be modified without altering the cache)
+	 */
+	private <T> Object toCachedResult(EntityRecordMapper<T> mapper, List<T> list) throws PersistenceException {
+		EntityHandler<T> entityHandler = mapper.getEntityHandler();
+		List<Object[]> rows = new ArrayList<Object[]>(list.size());
+		for(T item : list){
+			rows.add(EntityCache.copyValues(entityHandler.getValues(item)));
+		}
+		return rows;
+	}
+	/**
+	 * Rebuilds the list from the result kept in the query cache (see {@link #toCachedResult(EntityRecordMapper, List)})
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> List<T> fromCachedResult(EntityRecordMapper<T> mapper, Object result) throws PersistenceException {
+		EntityHandler<T> entityHandler = mapper.getEntityHandler();
+		Class<T> entityClass = mapper.getEntityClass();
+		EntitySession session = EntitySession.getCurrent(factory);
+		List<Object[]> rows = (List<Object[]>)result;
+		List<T> list = new ArrayList<T>(rows.size());
+		for(Object[] row : rows){
+			//The entities of the session keep their identity
+			Object key = session != null ? EntitySession.getKey(entityHandler.getPrimaryKeyValues(row)) : null;
+			T entity = key != null ? session.get(entityClass, key) : null;
+			if(entity == null){
+				entity = entityHandler.newInstance(EntityCache.copyValues(row));
+				if(key != null){
+					session.register(entityClass, key, entity);
+				}
+			}
+			list.add(entity);
+		}
+		return list;
+	}
+	/**
+	 * Executes a select and gives each record to the reader until it does not want more
+	 */
+	private void query(String query, ColumnReader reader, Object... parameters) throws PersistenceException {
+		Connection connection = acquireConnection(true);
+		PreparedStatement statement = null;
+		boolean succeeded = false;
+		try{
+			statement = prepareStatement(connection, query, parameters);
+			ResultSet resultSet =  statement.executeQuery();
+			try {
+				while(resultSet.next() && reader.read(resultSet)){
+					//read by the reader
+				}
+			} finally {
+				resultSet.close();
+			}
+			succeeded = true;
+		}catch(java.sql.SQLException e){
+			throw new SQLException("Failed\n"+ queryAndParametersToText(query, parameters), e);
+		} finally {
+			releaseStatement(statement, succeeded);
+			releaseConnection(connection);
+		}
+	}
+
+	/**
+	 * Executes a query that does not return any record on the connection 
+	 * and commits it unless the connection belongs to a transaction
+	 */
+	private void execute(Connection connection, String query, Object...parameters) throws PersistenceException {
+		PreparedStatement statement = null;
+		boolean succeeded = false;
+		try {
+			statement = prepareStatement(connection, query, parameters);
+			statement.execute();
+			if(!connection.getAutoCommit() && !JdbcTransaction.isCurrentConnection(connectionProvider, connection)){
+				connection.commit();
+			}
+			succeeded = true;
+		} catch (java.sql.SQLException e) {
+			throw new SQLException("Exception while executing \n" + queryAndParametersToText(query, parameters), e);
+		} finally {
+			releaseStatement(statement, succeeded);
+		}
+	}
+
+	private void clearTemporaryRows(Connection connection, TemporaryRows temporaryRows) throws PersistenceException {
+		execute(connection, temporaryRows.clearQuery, temporaryRows.set);
+	}
+
+	private static Object[] prependSet(long set, Object[] values) {
+		Object[] parameters = new Object[values.length + 1];
+		parameters[0] = set;
+		System.arraycopy(values, 0, parameters, 1, values.length);
+		return parameters;
+	}
+	/**
+	 * Takes the statement from the cache of the connection and sets its parameters
+	 */
+	private PreparedStatement prepareStatement(Connection connection, String query, Object...parameters) throws java.sql.SQLException, PersistenceException{
+		StatementCache cache = StatementCache.getCache(connection);
+		PreparedStatement statement = cache.prepare(query);
+		try {
+			parametersBinder.bind(statement, parameters);
+		} catch (java.sql.SQLException e) {
+			cache.invalidate(statement);
+			throw e;
+		} catch (PersistenceException e) {
+			cache.invalidate(statement);
+			throw e;
+		}
+		return statement;
+	}
+
+	/**
+	 * Gives the statement back to the cache of its connection.
+	 * @param reusable false if the statement failed and must be closed instead of being reused
+	 */
+	private void releaseStatement(PreparedStatement statement, boolean reusable) {
+		if(statement != null){
+			try {
+				StatementCache cache = StatementCache.getCache(statement.getConnection());
+				if(reusable){
+					cache.release(statement);
+				} else {
+					cache.invalidate(statement);
+				}
+			} catch (java.sql.SQLException e) {
+				System.err.println("Could not close statement");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Leases a connection from the provider for the duration of one operation
+	 * @param readOnly true if the connection is only used to read data.
+	 * In this case a {@link ReadWriteConnectionProvider} gives one of its read-only connections.
+	 * Inside a transaction, the connection of the transaction is used whatever the operation.
+	 */
+	private Connection acquireConnection(boolean readOnly) throws SQLException {
+		JdbcTransaction transaction = JdbcTransaction.getCurrent(connectionProvider);
+		if(transaction != null){
+			return transaction.getConnection();
+		}
+		Connection connection;
+		try {
+			if(readOnly && connectionProvider instanceof ReadWriteConnectionProvider){
+				connection = ((ReadWriteConnectionProvider)connectionProvider).getReadConnection();
+			} else {
+				connection = connectionProvider.getConnection();
+			}
+		} catch (java.sql.SQLException e) {
+			throw new SQLException("Could not get a connection", e);
+		}
+		if(connection == null){
+			throw new SQLException("The connection provider did not give any connection");
+		}
+		return connection;
+	}
+
+	private void releaseConnection(Connection connection) throws SQLException {
+		//The connection of a transaction is released when the transaction ends
+		if(connection != null && !JdbcTransaction.isCurrentConnection(connectionProvider, connection)){
+			try {
+				connectionProvider.releaseConnection(connection);
+			} catch (java.sql.SQLException e) {
+				throw new SQLException("Could not release the connection", e);
+			}
+		}
+	}
+
+	private String queryAndItemToText(String query, Object item){
+		if(item instanceof Object[]){
+			return queryAndParametersToText(query, (Object[])item);
 		}
+		return query + "\nItem = " + item + "\n";
 	}
 
 	private String queryAndParametersToText(String query, Object...parameters){
@@ -145,4 +730,121 @@ public class JdbcDaoImpl implements JdbcDao {
 		}
 		return params.toString();
 	}
+
+	private static class TemporaryRows {
+		private final String clearQuery;
+		private final long set;
+
+		private TemporaryRows(String clearQuery, long set) {
+			this.clearQuery = clearQuery;
+			this.set = set;
+		}
+	}
+
+	/**
+	 * Reads the first column of the records of a select
+	 */
+	private static abstract class ColumnReader {
+		/**
+		 * @return true to read the next record
+		 */
+		abstract boolean read(ResultSet resultSet) throws java.sql.SQLException;
+	}
+
+	//Growable arrays of values, NULL being read as 0 by the getters of the result set
+	private static class LongArrayReader extends ColumnReader {
+		private long[] values = new long[16];
+		private int size;
+
+		boolean read(ResultSet resultSet) throws java.sql.SQLException {
+			if(size == values.length){
+				values = Arrays.copyOf(values, size << 1);
+			}
+			values[size++] = resultSet.getLong(1);
+			return true;
+		}
+	}
+
+	private static class IntArrayReader extends ColumnReader {
+		private int[] values = new int[16];
+		private int size;
+
+		boolean read(ResultSet resultSet) throws java.sql.SQLException {
+			if(size == values.length){
+				values = Arrays.copyOf(values, size << 1);
+			}
+			values[size++] = resultSet.getInt(1);
+			return true;
+		}
+	}
+
+	private static class DoubleArrayReader extends ColumnReader {
+		private double[] values = new double[16];
+		private int size;
+
+		boolean read(ResultSet resultSet) throws java.sql.SQLException {
+			if(size == values.length){
+				values = Arrays.copyOf(values, size << 1);
+			}
+			values[size++] = resultSet.getDouble(1);
+			return true;
+		}
+	}
+
+	/**
+	 * Reads the first column of the records on the fly. 
+	 * The statement is closed (giving its connection back) when the last record has been read or when closing the iterator.
+	 */
+	private class LongColumnIterator implements PrimitiveIterator.OfLong {
+		private final ResultSet resultSet;
+		private final PreparedStatement statement;
+		private Boolean hasNext;
+		private boolean closed;
+
+		private LongColumnIterator(ResultSet resultSet, PreparedStatement statement) {
+			this.resultSet = resultSet;
+			this.statement = statement;
+		}
+
+		public boolean hasNext() {
+			if(hasNext == null){
+				try {
+					hasNext = !closed && resultSet.next();
+					if(!hasNext){
+						close();
+					}
+				} catch (java.sql.SQLException e) {
+					throw new RuntimePersistenceException("Could not read the next record", e);
+				} catch (PersistenceException e) {
+					throw new RuntimePersistenceException(e);
+				}
+			}
+			return hasNext;
+		}
+
+		public long nextLong() {
+			if(!hasNext()){
+				throw new NoSuchElementException();
+			}
+			hasNext = null;
+			try {
+				return resultSet.getLong(1);
+			} catch (java.sql.SQLException e) {
+				throw new RuntimePersistenceException("Could not read the record", e);
+			}
+		}
+
+		private void close() throws PersistenceException {
+			if(!closed){
+				closed = true;
+				try {
+					resultSet.close();
+				} catch (java.sql.SQLException e) {
+					throw new SQLException("Could not close the result set", e);
+				} finally {
+					closeStatement(statement);
+				}
+			}
+		}
+	}
 }
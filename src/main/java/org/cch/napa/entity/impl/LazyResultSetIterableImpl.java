@@ -1,5 +1,6 @@
 package org.cch.napa.entity.impl;
 
+import org.cch.napa.JdbcDao;
 import org.cch.napa.entity.LazyResultSetIterable;
 import org.cch.napa.exceptions.PersistenceException;
 import org.cch.napa.exceptions.RuntimePersistenceException;
@@ -20,8 +21,13 @@ import java.util.NoSuchElementException;
 class LazyResultSetIterableImpl<T> implements LazyResultSetIterable<T> {
     private LazyResultSetIterator<T> iterator;
 
-    public LazyResultSetIterableImpl(PreparedStatement preparedStatement, RecordMapper<T> mapper) throws org.cch.napa.exceptions.SQLException {
-        iterator = new LazyResultSetIterator<T>(preparedStatement, mapper);
+    /**
+     * @param preparedStatement the statement to execute
+     * @param mapper maps each record into an item
+     * @param jdbcDao the dao that prepared the statement and that will close it (releasing its connection)
+     */
+    public LazyResultSetIterableImpl(PreparedStatement preparedStatement, RecordMapper<T> mapper, JdbcDao jdbcDao) throws org.cch.napa.exceptions.SQLException {
+        iterator = new LazyResultSetIterator<T>(preparedStatement, mapper, jdbcDao);
     }
     public Iterator<T> iterator() {
         return iterator;
@@ -35,11 +41,13 @@ class LazyResultSetIterableImpl<T> implements LazyResultSetIterable<T> {
         private ResultSet resultSet;
         private RecordMapper<T> mapper;
         private PreparedStatement preparedStatement;
+        private JdbcDao jdbcDao;
         private Boolean hasNext;
         private boolean isClosed;
 
-        public LazyResultSetIterator(PreparedStatement preparedStatement, RecordMapper<T> mapper) throws org.cch.napa.exceptions.SQLException {
+        public LazyResultSetIterator(PreparedStatement preparedStatement, RecordMapper<T> mapper, JdbcDao jdbcDao) throws org.cch.napa.exceptions.SQLException {
             this.preparedStatement = preparedStatement;
+            this.jdbcDao = jdbcDao;
             try {
                 this.resultSet = preparedStatement.executeQuery();
             } catch (SQLException ex) {
@@ -49,16 +57,17 @@ class LazyResultSetIterableImpl<T> implements LazyResultSetIterable<T> {
         }
         public boolean hasNext() {
             if (hasNext != null) return hasNext;
+            if (isClosed) return hasNext = false;
             try {
                 hasNext = resultSet.next();
-                if(!hasNext && !isClosed) {
-                    isClosed = true;
-                    preparedStatement.close();
+                if(!hasNext) {
+                    close();
                 }
                 return hasNext;
             } catch (SQLException ex) {
-                ex.printStackTrace();
-                return hasNext = false;
+                throw new RuntimePersistenceException("Could not read the next record", ex);
+            } catch (IOException ex) {
+                throw new RuntimePersistenceException("Could not close the statement", ex.getCause());
             }
         }
        public T next() {
@@ -85,7 +94,20 @@ class LazyResultSetIterableImpl<T> implements LazyResultSetIterable<T> {
         }
 
         public void close() throws IOException {
-
+            if(!isClosed) {
+                isClosed = true;
+                try {
+                    try {
+                        resultSet.close();
+                    } finally {
+                        jdbcDao.closeStatement(preparedStatement);
+                    }
+                } catch (SQLException ex) {
+                    throw new IOException(ex);
+                } catch (PersistenceException ex) {
+                    throw new IOException(ex);
+                }
+            }
         }
     }
 }
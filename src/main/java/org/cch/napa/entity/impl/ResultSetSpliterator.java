@@ -0,0 +1,99 @@
+package org.cch.napa.entity.impl;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+import org.cch.napa.JdbcDao;
+import org.cch.napa.exceptions.PersistenceException;
+import org.cch.napa.exceptions.RuntimePersistenceException;
+import org.cch.napa.mapper.RecordMapper;
+
+/**
+ * Spliterator mapping the records of a result set on the fly, the source of the streams of {@link JdbcDao#stream(String, RecordMapper, Object...)}.
+ * The statement is closed (giving its connection back) when the last record has been read or by {@link #close()} 
+ * (called when the stream is closed). As the records are read one after the other, it is only split 
+ * by buffering records (see {@link Spliterators.AbstractSpliterator}).
+ * @param <T> The Object type
+ */
+class ResultSetSpliterator<T> extends Spliterators.AbstractSpliterator<T> {
+	private final PreparedStatement statement;
+	private final RecordMapper<T> mapper;
+	private final JdbcDao jdbcDao;
+	private final ResultSet resultSet;
+	//The statement is reused from the cache of the connection: its fetch size is restored on closing
+	private final int fetchSize;
+	private final int previousFetchSize;
+	private boolean closed;
+
+	/**
+	 * Executes the statement
+	 * @param statement the statement to execute
+	 * @param mapper maps each record into an item
+	 * @param fetchSize the number of records to fetch at once or 0 to keep the default of the driver
+	 * @param jdbcDao the dao that prepared the statement and that will close it (releasing its connection)
+	 */
+	ResultSetSpliterator(PreparedStatement statement, RecordMapper<T> mapper, int fetchSize, JdbcDao jdbcDao) throws org.cch.napa.exceptions.SQLException {
+		super(Long.MAX_VALUE, Spliterator.ORDERED);
+		this.statement = statement;
+		this.mapper = mapper;
+		this.jdbcDao = jdbcDao;
+		this.fetchSize = fetchSize;
+		try {
+			previousFetchSize = fetchSize > 0 ? statement.getFetchSize() : 0;
+			if(fetchSize > 0){
+				statement.setFetchSize(fetchSize);
+			}
+			this.resultSet = statement.executeQuery();
+		} catch (SQLException ex) {
+			throw new org.cch.napa.exceptions.SQLException("Failed to execute query", ex);
+		}
+	}
+
+	/**
+	 * @see Spliterator#tryAdvance(Consumer)
+	 */
+	public boolean tryAdvance(Consumer<? super T> action) {
+		if(closed){
+			return false;
+		}
+		T item;
+		try {
+			if(!resultSet.next()){
+				close();
+				return false;
+			}
+			item = mapper.map(resultSet);
+		} catch (SQLException ex) {
+			throw new RuntimePersistenceException("Could not read the next record", ex);
+		} catch (PersistenceException ex) {
+			throw new RuntimePersistenceException(ex);
+		}
+		action.accept(item);
+		return true;
+	}
+
+	/**
+	 * Closes the result set and the statement if it is not done yet
+	 */
+	void close() throws PersistenceException {
+		if(!closed){
+			closed = true;
+			try {
+				try {
+					resultSet.close();
+					if(fetchSize > 0){
+						statement.setFetchSize(previousFetchSize);
+					}
+				} finally {
+					jdbcDao.closeStatement(statement);
+				}
+			} catch (SQLException ex) {
+				throw new org.cch.napa.exceptions.SQLException("Could not close the result set", ex);
+			}
+		}
+	}
+}
@@ -12,6 +12,14 @@ import org.cch.napa.entity.impl.EntityDaoImpl;
  *
  */
 public class SQLiteEntityDao<E> extends EntityDaoImpl<E> {
+	/**
+	 * Maximum number of parameters of a statement.
+	 * This is the default SQLITE_MAX_VARIABLE_NUMBER of SQLite versions before 3.32 so it works with any of them.
+	 */
+	public static final int MAX_BOUND_PARAMETERS = 999;
+
+	private int maxRowsPerInsert;
+	private int maxKeysPerSelect;
 
 	/**
 	 * @param entityClass
@@ -22,6 +30,7 @@ public class SQLiteEntityDao<E> extends EntityDaoImpl<E> {
 	public SQLiteEntityDao(Class<E> entityClass, EntityDaoFactory factory, ConnectionProvider connectionProvider)
 			throws AnnotationException {
 		super(entityClass, factory, connectionProvider);
+		init(entityClass, factory);
 	}
 
 	/**
@@ -31,6 +40,32 @@ public class SQLiteEntityDao<E> extends EntityDaoImpl<E> {
 	 */
 	public SQLiteEntityDao(Class<E> entityClass, EntityDaoFactory factory) throws AnnotationException {
 		super(entityClass, factory);
+		init(entityClass, factory);
+	}
+
+	private void init(Class<E> entityClass, EntityDaoFactory factory) throws AnnotationException {
+		int fieldsCount = factory.getEntityHandler(entityClass).getEntityFields().size();
+		maxRowsPerInsert = Math.max(1, MAX_BOUND_PARAMETERS / Math.max(1, fieldsCount));
+		int keySize = factory.getEntityHandler(entityClass).getPrimaryKey().size();
+		maxKeysPerSelect = Math.max(1, MAX_BOUND_PARAMETERS / Math.max(1, keySize));
+	}
+
+	/**
+	 * SQLite supports multi-row VALUES: each insert statement contains as many records as the number of parameters allows.
+	 * @see EntityDaoImpl#getMaxRowsPerInsert()
+	 */
+	@Override
+	protected int getMaxRowsPerInsert() {
+		return maxRowsPerInsert;
+	}
+
+	/**
+	 * The keys of a select are limited by the number of parameters of a statement.
+	 * @see EntityDaoImpl#getMaxKeysPerSelect()
+	 */
+	@Override
+	protected int getMaxKeysPerSelect() {
+		return Math.min(maxKeysPerSelect, super.getMaxKeysPerSelect());
 	}
 
 	/**
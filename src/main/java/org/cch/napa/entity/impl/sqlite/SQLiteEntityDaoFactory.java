@@ -5,6 +5,7 @@ import org.cch.napa.entity.EntityDaoFactory;
 import org.cch.napa.exceptions.AnnotationException;
 import org.cch.napa.exceptions.PersistenceException;
 import org.cch.napa.entity.EntityDao;
+import org.cch.napa.entity.SQLGenerator;
 import org.cch.napa.entity.SQLTypeMapper;
 import org.cch.napa.entity.impl.EntityDaoFactoryImpl;
 
@@ -24,6 +25,14 @@ public class SQLiteEntityDaoFactory extends EntityDaoFactoryImpl {
 		return new SQLiteTypeMapper();
 	}
 
+	/**
+	 * @see EntityDaoFactoryImpl#createSQLGenerator(java.lang.Class)
+	 */
+	@Override
+	protected <E> SQLGenerator<E> createSQLGenerator(Class<E> entityClass) throws AnnotationException {
+		return new SQLiteSQLGenerator<E>(entityClass, this);
+	}
+
 	/**
 	 * @see EntityDaoFactoryImpl#getEntityDao(java.lang.Class)
 	 */
@@ -0,0 +1,106 @@
+package org.cch.napa.entity.impl.sqlite;
+
+import java.util.List;
+
+import org.cch.napa.TemporaryTable;
+import org.cch.napa.entity.EntityDaoFactory;
+import org.cch.napa.entity.SQLGenerator;
+import org.cch.napa.entity.annotations.atk.EntityField;
+import org.cch.napa.entity.annotations.atk.EntityHandler;
+import org.cch.napa.exceptions.AnnotationException;
+
+/**
+ * SQL generator using the syntax specific to SQLite
+ * @author Christophe Champagne
+ *
+ */
+public class SQLiteSQLGenerator<T> extends SQLGenerator<T> {
+	private String upsert;
+	private TemporaryTable keyTable;
+
+	public SQLiteSQLGenerator(Class<T> entityClass, EntityDaoFactory factory) throws AnnotationException {
+		super(entityClass, factory);
+	}
+
+	/**
+	 * SQLite (3.24+) has no MERGE but supports the upsert clause:
+	 * <code>insert into T (id, a) values (?, ?) on conflict (id) do update set a = excluded.a</code>
+	 * @see SQLGenerator#createUpsert()
+	 */
+	@Override
+	public String createUpsert() {
+		EntityHandler<T> handler = getHandler();
+		if(upsert == null && handler.getPrimaryKey().size() > 0){
+			List<EntityField> fields = handler.getEntityFields();
+			StringBuffer query = new StringBuffer(createInsert());
+			query.append(" on conflict (");
+			appendFieldsList(query, ", ", handler.getPrimaryKey());
+			query.append(')');
+			if(fields.size() > handler.getPrimaryKey().size()){
+				query.append(" do update set ");
+				appendUpdateFields(query, fields, "excluded.");
+			} else {
+				query.append(" do nothing");
+			}
+			upsert = query.toString();
+		}
+		return upsert;
+	}
+
+	/**
+	 * The key table is a temporary table without rowid, clustered on the set identifier and the key:
+	 * <code>create temp table if not exists napa_keys_E (napa_set, id, primary key (napa_set, id)) without rowid</code>.
+	 * Its fields have no type so the keys keep the type they are bound with.
+	 * @see SQLGenerator#createKeyTable()
+	 */
+	@Override
+	public TemporaryTable createKeyTable() {
+		EntityHandler<T> handler = getHandler();
+		if(keyTable == null && handler.getPrimaryKey().size() > 0){
+			String tableName = "temp." + getKeyTableName();
+			StringBuffer fields = new StringBuffer(KEY_SET_FIELD);
+			fields.append(", ");
+			appendFieldsList(fields, ", ", handler.getPrimaryKey());
+			StringBuffer create = new StringBuffer("create temp table if not exists ");
+			create.append(getKeyTableName());
+			create.append(" (").append(fields);
+			create.append(", primary key (").append(fields).append(")) without rowid");
+			StringBuffer insert = new StringBuffer("insert or ignore into ");
+			insert.append(tableName);
+			insert.append(" (").append(fields).append(") values (");
+			appendQuestionMarkList(insert, handler.getPrimaryKey().size() + 1);
+			insert.append(')');
+			String clear = "delete from " + tableName + " where " + KEY_SET_FIELD + " = ?";
+			keyTable = new TemporaryTable(create.toString(), insert.toString(), clear);
+		}
+		return keyTable;
+	}
+
+	/**
+	 * The tables without integer primary key are split on their rowid
+	 * @see SQLGenerator#getPartitionKey()
+	 */
+	@Override
+	public String getPartitionKey() {
+		String key = super.getPartitionKey();
+		return key == null ? "rowid" : key;
+	}
+
+	/**
+	 * SQLite uses <code> limit ?</code>
+	 * @see SQLGenerator#appendLimit(StringBuffer)
+	 */
+	@Override
+	protected void appendLimit(StringBuffer query) {
+		query.append(" limit ?");
+	}
+
+	/**
+	 * Row values are supported since SQLite 3.15
+	 * @see SQLGenerator#isRowValueSupported()
+	 */
+	@Override
+	protected boolean isRowValueSupported() {
+		return true;
+	}
+}
@@ -13,8 +13,10 @@ import java.sql.SQLException;
 
 import org.cch.napa.entity.SQLTypeMapper;
 import org.cch.napa.exceptions.PersistenceException;
-import org.cch.napa.entity.impl.AbstractResultSetGetter;
+import org.cch.napa.entity.impl.AbstractParameterBinder;
+import org.cch.napa.entity.impl.IndexedResultSetGetter;
 import org.cch.napa.entity.impl.DefaultSQLTypeMapper;
+import org.cch.napa.mapper.ParameterBinder;
 import org.cch.napa.mapper.ResultSetAccessor;
 
 /**
@@ -28,9 +30,9 @@ public class SQLiteTypeMapper extends DefaultSQLTypeMapper {
 	public ResultSetAccessor getResultSetGetterFromClass(Class<?>cls, int sqlType){
 		ResultSetAccessor resultSetGetter = null;
 		if (cls.equals(BigDecimal.class)){
-			resultSetGetter =  new AbstractResultSetGetter(){
-				public BigDecimal getValue(ResultSet resultSet, String columnName) throws SQLException {
-					double val = resultSet.getDouble(columnName);
+			resultSetGetter =  new IndexedResultSetGetter(){
+				public BigDecimal getValue(ResultSet resultSet, int columnIndex) throws SQLException {
+					double val = resultSet.getDouble(columnIndex);
 					BigDecimal value = null;
 					if(!resultSet.wasNull()){
 						value = new BigDecimal(val);
@@ -52,6 +54,19 @@ public class SQLiteTypeMapper extends DefaultSQLTypeMapper {
 		}
 
 	}
+	/**
+	 * @see SQLTypeMapper#getParameterBinderFromClass(java.lang.Class, int)
+	 */
+	public ParameterBinder getParameterBinderFromClass(Class<?> cls, int sqlType){
+		if (cls.equals(BigDecimal.class)){
+			return new AbstractParameterBinder(){
+				protected void setValue(PreparedStatement statement, int index, Object value) throws SQLException {
+					statement.setDouble(index, ((BigDecimal)value).doubleValue());
+				}
+			};
+		}
+		return super.getParameterBinderFromClass(cls, sqlType);
+	}
 	@SuppressWarnings("resource")
 	protected void setBlob(PreparedStatement statement, Object o, int index) throws java.sql.SQLException, PersistenceException{
 		ByteArrayOutputStream bos = null;
@@ -76,13 +91,13 @@ public class SQLiteTypeMapper extends DefaultSQLTypeMapper {
 		}
 	}
 	protected ResultSetAccessor getResultSetBlobAccessor(){
-		return new AbstractResultSetGetter(){
-			public Serializable getValue(ResultSet resultSet, String columnName) throws SQLException, PersistenceException {
+		return new IndexedResultSetGetter(){
+			public Serializable getValue(ResultSet resultSet, int columnIndex) throws SQLException, PersistenceException {
 				Serializable serializable = null;
 				try {
-					serializable = deserializeBytes(resultSet.getBytes(columnName));
+					serializable = deserializeBytes(resultSet.getBytes(columnIndex));
 				} catch (IOException e) {
-					throw new PersistenceException("Could not deserialize column " + columnName, e);
+					throw new PersistenceException("Could not deserialize column #" + columnIndex, e);
 				}
 				return serializable;
 			}				
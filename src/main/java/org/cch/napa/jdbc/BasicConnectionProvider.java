@@ -7,22 +7,82 @@ import java.sql.DriverManager;
 import java.sql.SQLException;
 
 /**
+ * Provider sharing a single JDBC connection between all its callers.<br>
+ * A transaction holds the connection exclusively until it ends, the other threads waiting for it (see {@link SharedConnectionLock}).
  * @author Christophe Champagne
  *
  */
 public class BasicConnectionProvider implements ConnectionProvider {
 	private Connection connection;
 	private String connectionString;
+	private final SharedConnectionLock sharedLock = new SharedConnectionLock();
 
 	public BasicConnectionProvider(String connectionString) {
 		this.connectionString = connectionString;
 	}
+	/**
+	 * Closes the connection and leases a new one, to be released with {@link #releaseConnection(Connection)}
+	 * @see org.cch.napa.ConnectionProvider#resetConnection()
+	 */
 	public Connection resetConnection() throws SQLException {
-		close();
-		return getConnection();
+		sharedLock.lease();
+		try {
+			close();
+			return openConnection();
+		} catch (SQLException e) {
+			sharedLock.release();
+			throw e;
+		} catch (RuntimeException e) {
+			sharedLock.release();
+			throw e;
+		}
 	}
 
 	public Connection getConnection() throws SQLException {
+		sharedLock.lease();
+		try {
+			return openConnection();
+		} catch (SQLException e) {
+			sharedLock.release();
+			throw e;
+		} catch (RuntimeException e) {
+			sharedLock.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * @see org.cch.napa.ConnectionProvider#releaseConnection(Connection)
+	 */
+	public void releaseConnection(Connection connection) throws SQLException {
+		sharedLock.release();
+	}
+
+	/**
+	 * Waits until the other threads do not use the connection anymore
+	 * @see org.cch.napa.ConnectionProvider#getTransactionConnection()
+	 */
+	public Connection getTransactionConnection() throws SQLException {
+		sharedLock.beginTransaction();
+		try {
+			return openConnection();
+		} catch (SQLException e) {
+			sharedLock.endTransaction();
+			throw e;
+		} catch (RuntimeException e) {
+			sharedLock.endTransaction();
+			throw e;
+		}
+	}
+
+	/**
+	 * @see org.cch.napa.ConnectionProvider#releaseTransactionConnection(Connection)
+	 */
+	public void releaseTransactionConnection(Connection connection) throws SQLException {
+		sharedLock.endTransaction();
+	}
+
+	private Connection openConnection() throws SQLException {
 		if(connection == null){
 			connection = DriverManager.getConnection(connectionString);
 		}
@@ -31,6 +91,7 @@ public class BasicConnectionProvider implements ConnectionProvider {
 
 	public void close() throws SQLException {
 		if(connection!=null){
+			StatementCache.discard(connection);
 			connection.close();
 			connection = null;
 		}
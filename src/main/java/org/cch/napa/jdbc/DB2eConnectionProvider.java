@@ -5,10 +5,13 @@ import java.sql.Driver;
 import java.sql.SQLException;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.cch.napa.ConnectionProvider;
 
 /**
+ * Provider sharing a single DB2e connection between all its callers.<br>
+ * A transaction holds the connection exclusively until it ends, the other threads waiting for it (see {@link SharedConnectionLock}).
  * @author Christophe Champagne
  *
  */
@@ -18,6 +21,9 @@ public class DB2eConnectionProvider implements ConnectionProvider {
 	private String password;
 	private String connectionString;
 	private Map<?, ?> additionalParameters;
+	//A lock rather than a monitor so that the virtual threads waiting for the connection are not pinned
+	private final ReentrantLock lock = new ReentrantLock();
+	private final SharedConnectionLock sharedLock = new SharedConnectionLock();
 
 	public DB2eConnectionProvider(String connectionString, String user, String password,
 									  Map<?, ?> additionalParameters) {
@@ -30,45 +36,112 @@ public class DB2eConnectionProvider implements ConnectionProvider {
 		this.password = password;
 		this.additionalParameters = additionalParameters;
 	}
+	/**
+	 * Closes the connection and leases a new one, to be released with {@link #releaseConnection(Connection)}
+	 * @see org.cch.napa.ConnectionProvider#resetConnection()
+	 */
 	public Connection resetConnection() throws SQLException {
-		close();
-		return getConnection();
+		sharedLock.lease();
+		try {
+			close();
+			return openConnection();
+		} catch (SQLException e) {
+			sharedLock.release();
+			throw e;
+		} catch (RuntimeException e) {
+			sharedLock.release();
+			throw e;
+		}
 	}
 
-	public synchronized Connection getConnection() throws SQLException {
-		if(connection == null){
+	public Connection getConnection() throws SQLException {
+		sharedLock.lease();
+		try {
+			return openConnection();
+		} catch (SQLException e) {
+			sharedLock.release();
+			throw e;
+		} catch (RuntimeException e) {
+			sharedLock.release();
+			throw e;
+		}
+	}
 
-			Properties p = new Properties();
-			p.put("user", user);
-			p.put("password", password);
-			if(additionalParameters == null){
-				p.put("DB2e_ENCODING", "UTF8");
-				p.put("ENABLE_DELETE_PHYSICAL_REMOVE", "true");
-				p.put("ENABLE_TABLE_CHECKSUM", "false");
-			} else {
-				p.putAll(additionalParameters);
-			}
-			try {
-				Class<?> cls = Class.forName("com.ibm.db2e.jdbc.DB2eDriver");
-				Driver driver = (Driver)cls.getConstructor().newInstance();
-				connection = driver.connect(connectionString, p);;
-			} catch (Exception e) {
-				throw new RuntimeException(e);
-			}
+	/**
+	 * @see org.cch.napa.ConnectionProvider#releaseConnection(Connection)
+	 */
+	public void releaseConnection(Connection connection) throws SQLException {
+		sharedLock.release();
+	}
+
+	/**
+	 * Waits until the other threads do not use the connection anymore
+	 * @see org.cch.napa.ConnectionProvider#getTransactionConnection()
+	 */
+	public Connection getTransactionConnection() throws SQLException {
+		sharedLock.beginTransaction();
+		try {
+			return openConnection();
+		} catch (SQLException e) {
+			sharedLock.endTransaction();
+			throw e;
+		} catch (RuntimeException e) {
+			sharedLock.endTransaction();
+			throw e;
+		}
+	}
+
+	/**
+	 * @see org.cch.napa.ConnectionProvider#releaseTransactionConnection(Connection)
+	 */
+	public void releaseTransactionConnection(Connection connection) throws SQLException {
+		sharedLock.endTransaction();
+	}
 
+	private Connection openConnection() throws SQLException {
+		lock.lock();
+		try {
+			if(connection == null){
+
+				Properties p = new Properties();
+				p.put("user", user);
+				p.put("password", password);
+				if(additionalParameters == null){
+					p.put("DB2e_ENCODING", "UTF8");
+					p.put("ENABLE_DELETE_PHYSICAL_REMOVE", "true");
+					p.put("ENABLE_TABLE_CHECKSUM", "false");
+				} else {
+					p.putAll(additionalParameters);
+				}
+				try {
+					Class<?> cls = Class.forName("com.ibm.db2e.jdbc.DB2eDriver");
+					Driver driver = (Driver)cls.getConstructor().newInstance();
+					connection = driver.connect(connectionString, p);;
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+
+			}
+			return connection;
+		} finally {
+			lock.unlock();
 		}
-		return connection;
 	}
 
-	public synchronized void close() throws SQLException {
-		if(connection!=null){
-			try {
-				
-				connection.close();
-				connection = null;
-			} catch (SQLException e) {
-				throw e;
+	public void close() throws SQLException {
+		lock.lock();
+		try {
+			if(connection!=null){
+				try {
+					StatementCache.discard(connection);
+					connection.close();
+					connection = null;
+				} catch (SQLException e) {
+					throw e;
+				}
 			}
+		} finally {
+			lock.unlock();
 		}
 	}
 
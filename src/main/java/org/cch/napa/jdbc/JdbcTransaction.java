@@ -0,0 +1,226 @@
+package org.cch.napa.jdbc;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cch.napa.ConnectionProvider;
+import org.cch.napa.Transaction;
+import org.cch.napa.exceptions.PersistenceException;
+import org.cch.napa.exceptions.SQLException;
+
+/**
+ * Transaction holding a connection leased from a {@link ConnectionProvider}.<br>
+ * The transaction is bound to the thread that began it so the daos using the same provider
+ * in that thread get its connection instead of leasing one (see {@link #getCurrent(ConnectionProvider)}).
+ * The operations of the other threads never commit nor roll back its work:
+ * the providers sharing one connection make them wait until the transaction ends (see {@link ConnectionProvider#getTransactionConnection()}).
+ * @author Christophe Champagne
+ *
+ */
+public class JdbcTransaction implements Transaction {
+	private static final ThreadLocal<Map<ConnectionProvider, JdbcTransaction>> currentTransactions = new ThreadLocal<Map<ConnectionProvider, JdbcTransaction>>(){
+		@Override
+		protected Map<ConnectionProvider, JdbcTransaction> initialValue() {
+			return new IdentityHashMap<ConnectionProvider, JdbcTransaction>();
+		}
+	};
+
+	private final ConnectionProvider connectionProvider;
+	private final Connection connection;
+	//The outermost transaction (this one if it is not joining another)
+	private final JdbcTransaction root;
+	private final boolean previousAutoCommit;
+	private boolean completed;
+	private boolean rollbackOnly;
+	//Actions executed when the outermost transaction ends (only set on the outermost transaction)
+	private List<Runnable> completionActions;
+
+	private JdbcTransaction(ConnectionProvider connectionProvider, Connection connection, boolean previousAutoCommit) {
+		this.connectionProvider = connectionProvider;
+		this.connection = connection;
+		this.previousAutoCommit = previousAutoCommit;
+		this.root = this;
+	}
+	private JdbcTransaction(JdbcTransaction root) {
+		this.connectionProvider = root.connectionProvider;
+		this.connection = root.connection;
+		this.previousAutoCommit = false;
+		this.root = root;
+	}
+
+	/**
+	 * Begins a transaction on a connection of the provider or joins the one already active in the current thread.
+	 * @param connectionProvider the provider of the connection
+	 * @return the transaction
+	 * @throws SQLException if no connection could be obtained
+	 */
+	public static JdbcTransaction begin(ConnectionProvider connectionProvider) throws SQLException {
+		JdbcTransaction current = getCurrent(connectionProvider);
+		if(current != null){
+			return new JdbcTransaction(current.root);
+		}
+		Connection connection;
+		try {
+			connection = connectionProvider.getTransactionConnection();
+		} catch (java.sql.SQLException e) {
+			throw new SQLException("Could not get a connection for the transaction", e);
+		}
+		boolean autoCommit;
+		try {
+			autoCommit = connection.getAutoCommit();
+			if(autoCommit){
+				connection.setAutoCommit(false);
+			}
+		} catch (java.sql.SQLException e) {
+			release(connectionProvider, connection);
+			throw new SQLException("Could not begin the transaction", e);
+		}
+		JdbcTransaction transaction = new JdbcTransaction(connectionProvider, connection, autoCommit);
+		currentTransactions.get().put(connectionProvider, transaction);
+		return transaction;
+	}
+
+	/**
+	 * @param connectionProvider a connection provider
+	 * @return the transaction active in the current thread for the provider or null if there is none
+	 */
+	public static JdbcTransaction getCurrent(ConnectionProvider connectionProvider) {
+		return currentTransactions.get().get(connectionProvider);
+	}
+
+	/**
+	 * @param connectionProvider the provider of the connection
+	 * @param connection a connection leased from the provider
+	 * @return true if the connection is held by the transaction active in the current thread for the provider:
+	 * it must then neither be committed nor released by the operations using it
+	 */
+	public static boolean isCurrentConnection(ConnectionProvider connectionProvider, Connection connection) {
+		JdbcTransaction transaction = getCurrent(connectionProvider);
+		return transaction != null && transaction.connection == connection;
+	}
+
+	/**
+	 * @return the connection used by the transaction
+	 */
+	public Connection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * @see Transaction#commit()
+	 */
+	public void commit() throws PersistenceException {
+		complete();
+		if(root != this){
+			//The outermost transaction commits the work
+			return;
+		}
+		try {
+			if(rollbackOnly){
+				connection.rollback();
+				throw new PersistenceException("The transaction was rolled back because a joined transaction was rolled back");
+			}
+			connection.commit();
+		} catch (java.sql.SQLException e) {
+			try {
+				connection.rollback();
+			} catch (java.sql.SQLException e1) {
+				e1.printStackTrace();
+			}
+			throw new SQLException("Could not commit the transaction", e);
+		} finally {
+			end();
+		}
+	}
+
+	/**
+	 * @see Transaction#rollback()
+	 */
+	public void rollback() throws PersistenceException {
+		complete();
+		if(root != this){
+			root.rollbackOnly = true;
+			return;
+		}
+		try {
+			connection.rollback();
+		} catch (java.sql.SQLException e) {
+			throw new SQLException("Could not rollback the transaction", e);
+		} finally {
+			end();
+		}
+	}
+
+	/**
+	 * Registers an action executed once the outermost transaction is committed or rolled back,
+	 * e.g. to forget the data cached while the changes of the transaction were not visible to the other connections.
+	 * @param action the action to execute
+	 */
+	public void onCompletion(Runnable action) {
+		if(root.completionActions == null){
+			root.completionActions = new ArrayList<Runnable>();
+		}
+		root.completionActions.add(action);
+	}
+
+	/**
+	 * @see Transaction#isActive()
+	 */
+	public boolean isActive() {
+		return !completed && !root.completed;
+	}
+
+	/**
+	 * @see Transaction#close()
+	 */
+	public void close() throws PersistenceException {
+		if(!completed){
+			rollback();
+		}
+	}
+	//------------------------------------------------------------------------------------------------------------------------------
+	private void complete() throws PersistenceException {
+		if(completed){
+			throw new PersistenceException("The transaction is already committed or rolled back");
+		}
+		completed = true;
+	}
+	//Unbinds the transaction and gives its connection back
+	private void end() throws SQLException {
+		Map<ConnectionProvider, JdbcTransaction> transactions = currentTransactions.get();
+		if(transactions.get(connectionProvider) == this){
+			transactions.remove(connectionProvider);
+		}
+		try {
+			if(previousAutoCommit){
+				connection.setAutoCommit(true);
+			}
+		} catch (java.sql.SQLException e) {
+			throw new SQLException("Could not restore auto-commit", e);
+		} finally {
+			try {
+				release(connectionProvider, connection);
+			} finally {
+				runCompletionActions();
+			}
+		}
+	}
+	private void runCompletionActions() {
+		if(completionActions != null){
+			for(Runnable action : completionActions){
+				action.run();
+			}
+			completionActions = null;
+		}
+	}
+	private static void release(ConnectionProvider connectionProvider, Connection connection) throws SQLException {
+		try {
+			connectionProvider.releaseTransactionConnection(connection);
+		} catch (java.sql.SQLException e) {
+			throw new SQLException("Could not release the connection of the transaction", e);
+		}
+	}
+}
@@ -0,0 +1,375 @@
+package org.cch.napa.jdbc;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cch.napa.ConnectionProvider;
+
+/**
+ * Connection provider keeping a bounded pool of connections.<br>
+ * Each call to {@link #getConnection()} leases a connection that is used by the caller only
+ * until it is given back with {@link #releaseConnection(Connection)}.
+ * When all the connections are leased, the caller waits (at most the borrow timeout) for one to be released.<br>
+ * Idle connections are validated before being leased again and closed when they stayed idle for too long.<br>
+ * Note that each connection of the pool is a distinct session: an in-memory SQLite database is thus not shared between them.
+ * @author Christophe Champagne
+ *
+ */
+public class PooledConnectionProvider implements ConnectionProvider {
+	public static final int DEFAULT_MAX_SIZE = Math.max(4, Runtime.getRuntime().availableProcessors());
+	/** Default time (ms) a connection may stay idle before being closed */
+	public static final long DEFAULT_MAX_IDLE_TIME = 5 * 60 * 1000L;
+	/** Default time (ms) a caller waits for a connection */
+	public static final long DEFAULT_BORROW_TIMEOUT = 30 * 1000L;
+	/** Default time (s) given to a connection to answer the validation */
+	public static final int DEFAULT_VALIDATION_TIMEOUT = 2;
+
+	private final String connectionString;
+	private final Properties info;
+	private final int maxSize;
+	private final Semaphore permits;
+	//Most recently released connection first
+	private final ConcurrentLinkedDeque<IdleConnection> idleConnections = new ConcurrentLinkedDeque<IdleConnection>();
+	private final Set<Connection> leasedConnections = ConcurrentHashMap.newKeySet();
+	private volatile boolean closed;
+	private volatile long maxIdleTime = DEFAULT_MAX_IDLE_TIME;
+	private volatile long borrowTimeout = DEFAULT_BORROW_TIMEOUT;
+	private volatile int validationTimeout = DEFAULT_VALIDATION_TIMEOUT;
+	private volatile boolean validateOnBorrow = true;
+	//Metrics
+	private final AtomicLong borrowCount = new AtomicLong();
+	private final AtomicLong totalWaitTime = new AtomicLong();
+	private final AtomicLong maxWaitTime = new AtomicLong();
+	private final AtomicLong timeoutCount = new AtomicLong();
+	private final AtomicLong createdCount = new AtomicLong();
+	private final AtomicLong evictedCount = new AtomicLong();
+	private final AtomicLong validationFailureCount = new AtomicLong();
+
+	public PooledConnectionProvider(String connectionString) {
+		this(connectionString, DEFAULT_MAX_SIZE);
+	}
+
+	public PooledConnectionProvider(String connectionString, int maxSize) {
+		this(connectionString, null, maxSize);
+	}
+
+	/**
+	 * @param connectionString the JDBC url
+	 * @param info the properties given to the driver when a connection is created (may be null)
+	 * @param maxSize the maximum number of connections opened at the same time
+	 */
+	public PooledConnectionProvider(String connectionString, Properties info, int maxSize) {
+		if(maxSize < 1){
+			throw new IllegalArgumentException("The size of the pool must be at least 1 (" + maxSize + ")");
+		}
+		this.connectionString = connectionString;
+		this.info = info;
+		this.maxSize = maxSize;
+		this.permits = new Semaphore(maxSize, true);
+	}
+
+	/**
+	 * Leases a connection from the pool. The connection must be released with {@link #releaseConnection(Connection)}
+	 * @see ConnectionProvider#getConnection()
+	 */
+	public Connection getConnection() throws SQLException {
+		checkNotClosed();
+		long start = System.nanoTime();
+		boolean acquired;
+		try {
+			acquired = permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection", e);
+		}
+		recordWaitTime(System.nanoTime() - start);
+		if(!acquired){
+			timeoutCount.incrementAndGet();
+			throw new SQLTimeoutException("No connection could be obtained within " + borrowTimeout
+					+ " ms (" + maxSize + " connections leased)");
+		}
+		Connection connection = null;
+		try {
+			checkNotClosed();
+			connection = pollIdleConnection();
+			if(connection == null){
+				connection = createConnection();
+				createdCount.incrementAndGet();
+			}
+			leasedConnections.add(connection);
+			borrowCount.incrementAndGet();
+		} finally {
+			if(connection == null){
+				permits.release();
+			}
+		}
+		return connection;
+	}
+
+	/**
+	 * Gives the connection back to the pool.
+	 * Pending changes that were not committed are rolled back so the next borrower starts with a clean session.
+	 * @see ConnectionProvider#releaseConnection(Connection)
+	 */
+	public void releaseConnection(Connection connection) throws SQLException {
+		if(connection == null || !leasedConnections.remove(connection)){
+			//Not leased by this pool or already released
+			return;
+		}
+		try {
+			if(closed || connection.isClosed()){
+				closeQuietly(connection);
+			} else {
+				if(!connection.getAutoCommit()){
+					connection.rollback();
+				}
+				idleConnections.offerFirst(new IdleConnection(connection));
+			}
+		} catch (SQLException e) {
+			closeQuietly(connection);
+		} finally {
+			permits.release();
+		}
+		evictIdleConnections();
+	}
+
+	/**
+	 * Closes all the idle connections and leases a new one, to be released with {@link #releaseConnection(Connection)}
+	 * @see ConnectionProvider#resetConnection()
+	 */
+	public Connection resetConnection() throws SQLException {
+		closeIdleConnections();
+		return getConnection();
+	}
+
+	/**
+	 * Closes the idle connections. The leased ones are closed when they are released.
+	 * @see ConnectionProvider#close()
+	 */
+	public void close() throws SQLException {
+		closed = true;
+		closeIdleConnections();
+	}
+
+	/**
+	 * Closes all the connections waiting in the pool
+	 */
+	public void closeIdleConnections() {
+		IdleConnection idle;
+		while((idle = idleConnections.pollLast()) != null){
+			closeQuietly(idle.connection);
+		}
+	}
+
+	/**
+	 * Closes the connections that stayed idle longer than the max idle time.
+	 * This is done automatically each time a connection is leased or released.
+	 */
+	public void evictIdleConnections() {
+		long limit = maxIdleTime;
+		if(limit <= 0){
+			return;
+		}
+		long now = System.currentTimeMillis();
+		IdleConnection oldest;
+		while((oldest = idleConnections.peekLast()) != null && now - oldest.since > limit){
+			if(idleConnections.removeLastOccurrence(oldest)){
+				closeQuietly(oldest.connection);
+				evictedCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Creates a new physical connection. Can be overridden to customize the way the connections are opened.
+	 * @return a new connection
+	 */
+	protected Connection createConnection() throws SQLException {
+		if(info == null){
+			return DriverManager.getConnection(connectionString);
+		}
+		return DriverManager.getConnection(connectionString, info);
+	}
+
+	/**
+	 * @return the JDBC url used to create the connections
+	 */
+	public String getConnectionString() {
+		return connectionString;
+	}
+	/**
+	 * @return the maximum number of connections opened at the same time
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+	/**
+	 * @return the time (ms) after which an idle connection is closed
+	 */
+	public long getMaxIdleTime() {
+		return maxIdleTime;
+	}
+	/**
+	 * @param maxIdleTime the time (ms) after which an idle connection is closed (0 to keep them forever)
+	 */
+	public void setMaxIdleTime(long maxIdleTime) {
+		this.maxIdleTime = maxIdleTime;
+	}
+	/**
+	 * @return the maximum time (ms) a caller waits for a connection
+	 */
+	public long getBorrowTimeout() {
+		return borrowTimeout;
+	}
+	/**
+	 * @param borrowTimeout the maximum time (ms) a caller waits for a connection
+	 */
+	public void setBorrowTimeout(long borrowTimeout) {
+		this.borrowTimeout = borrowTimeout;
+	}
+	/**
+	 * @return the time (s) given to a connection to answer the validation
+	 */
+	public int getValidationTimeout() {
+		return validationTimeout;
+	}
+	/**
+	 * @param validationTimeout the time (s) given to a connection to answer the validation
+	 */
+	public void setValidationTimeout(int validationTimeout) {
+		this.validationTimeout = validationTimeout;
+	}
+	/**
+	 * @return true if the idle connections are validated before being leased
+	 */
+	public boolean isValidateOnBorrow() {
+		return validateOnBorrow;
+	}
+	/**
+	 * @param validateOnBorrow true if the idle connections must be validated before being leased
+	 */
+	public void setValidateOnBorrow(boolean validateOnBorrow) {
+		this.validateOnBorrow = validateOnBorrow;
+	}
+	//Metrics
+	/**
+	 * @return the number of connections currently leased
+	 */
+	public int getActiveCount() {
+		return leasedConnections.size();
+	}
+	/**
+	 * @return the number of opened connections waiting in the pool
+	 */
+	public int getIdleCount() {
+		return idleConnections.size();
+	}
+	/**
+	 * @return the number of successful leases
+	 */
+	public long getBorrowCount() {
+		return borrowCount.get();
+	}
+	/**
+	 * @return the cumulated time (ns) the callers waited for a connection
+	 */
+	public long getTotalWaitTime() {
+		return totalWaitTime.get();
+	}
+	/**
+	 * @return the longest time (ns) a caller waited for a connection
+	 */
+	public long getMaxWaitTime() {
+		return maxWaitTime.get();
+	}
+	/**
+	 * @return the average time (ns) the callers waited for a connection
+	 */
+	public long getAverageWaitTime() {
+		long count = borrowCount.get() + timeoutCount.get();
+		return count == 0 ? 0 : totalWaitTime.get() / count;
+	}
+	/**
+	 * @return the number of callers that could not get a connection within the borrow timeout
+	 */
+	public long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+	/**
+	 * @return the number of physical connections created
+	 */
+	public long getCreatedCount() {
+		return createdCount.get();
+	}
+	/**
+	 * @return the number of connections closed because they stayed idle too long
+	 */
+	public long getEvictedCount() {
+		return evictedCount.get();
+	}
+	/**
+	 * @return the number of idle connections that failed the validation
+	 */
+	public long getValidationFailureCount() {
+		return validationFailureCount.get();
+	}
+	//------------------------------------------------------------------------------------------------------------------------------
+	private Connection pollIdleConnection() {
+		evictIdleConnections();
+		IdleConnection idle;
+		while((idle = idleConnections.pollFirst()) != null){
+			if(!validateOnBorrow || isValid(idle.connection)){
+				return idle.connection;
+			}
+			validationFailureCount.incrementAndGet();
+			closeQuietly(idle.connection);
+		}
+		return null;
+	}
+	private boolean isValid(Connection connection) {
+		try {
+			return connection.isValid(validationTimeout);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+	private void recordWaitTime(long waited) {
+		totalWaitTime.addAndGet(waited);
+		long max = maxWaitTime.get();
+		while(waited > max && !maxWaitTime.compareAndSet(max, waited)){
+			max = maxWaitTime.get();
+		}
+	}
+	private void checkNotClosed() throws SQLException {
+		if(closed){
+			throw new SQLException("The connection pool is closed");
+		}
+	}
+	private static void closeQuietly(Connection connection) {
+		StatementCache.discard(connection);
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			System.err.println("Could not close pooled connection");
+			e.printStackTrace();
+		}
+	}
+
+	private static class IdleConnection {
+		private final Connection connection;
+		private final long since = System.currentTimeMillis();
+
+		private IdleConnection(Connection connection) {
+			this.connection = connection;
+		}
+	}
+}
@@ -3,43 +3,117 @@ package org.cch.napa.jdbc;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.cch.napa.ConnectionProvider;
 
 /**
+ * Provider sharing a single SQLite connection between all its callers.<br>
+ * A transaction holds the connection exclusively until it ends, the other threads waiting for it (see {@link SharedConnectionLock}).
  * @author Christophe Champagne
  *
  */
 public class SQLiteConnectionProvider implements ConnectionProvider {
 	private Connection connection;
 	private String connectionString;
+	//A lock rather than a monitor so that the virtual threads waiting for the connection are not pinned
+	private final ReentrantLock lock = new ReentrantLock();
+	private final SharedConnectionLock sharedLock = new SharedConnectionLock();
 
 	public SQLiteConnectionProvider(String connectionString) {
 		this.connectionString = connectionString;
 	}
+	/**
+	 * Closes the connection and leases a new one, to be released with {@link #releaseConnection(Connection)}
+	 * @see org.cch.napa.ConnectionProvider#resetConnection()
+	 */
 	public Connection resetConnection() throws SQLException {
-		close();
-		return getConnection();
+		sharedLock.lease();
+		try {
+			close();
+			return openConnection();
+		} catch (SQLException e) {
+			sharedLock.release();
+			throw e;
+		} catch (RuntimeException e) {
+			sharedLock.release();
+			throw e;
+		}
 	}
 
 	public Connection getConnection() throws SQLException {
-		if(connection == null){
-			// register the driver
-			String sDriverName = "org.sqlite.JDBC";
-			try {
-				Class.forName(sDriverName);
-			} catch (ClassNotFoundException ex) {
-				throw new RuntimeException("Could not find Driver " + sDriverName, ex);
+		sharedLock.lease();
+		try {
+			return openConnection();
+		} catch (SQLException e) {
+			sharedLock.release();
+			throw e;
+		} catch (RuntimeException e) {
+			sharedLock.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * @see org.cch.napa.ConnectionProvider#releaseConnection(Connection)
+	 */
+	public void releaseConnection(Connection connection) throws SQLException {
+		sharedLock.release();
+	}
+
+	/**
+	 * Waits until the other threads do not use the connection anymore
+	 * @see org.cch.napa.ConnectionProvider#getTransactionConnection()
+	 */
+	public Connection getTransactionConnection() throws SQLException {
+		sharedLock.beginTransaction();
+		try {
+			return openConnection();
+		} catch (SQLException e) {
+			sharedLock.endTransaction();
+			throw e;
+		} catch (RuntimeException e) {
+			sharedLock.endTransaction();
+			throw e;
+		}
+	}
+
+	/**
+	 * @see org.cch.napa.ConnectionProvider#releaseTransactionConnection(Connection)
+	 */
+	public void releaseTransactionConnection(Connection connection) throws SQLException {
+		sharedLock.endTransaction();
+	}
+
+	private Connection openConnection() throws SQLException {
+		lock.lock();
+		try {
+			if(connection == null){
+				// register the driver
+				String sDriverName = "org.sqlite.JDBC";
+				try {
+					Class.forName(sDriverName);
+				} catch (ClassNotFoundException ex) {
+					throw new RuntimeException("Could not find Driver " + sDriverName, ex);
+				}
+				connection = DriverManager.getConnection(connectionString);
 			}
-			connection = DriverManager.getConnection(connectionString);
+			return connection;
+		} finally {
+			lock.unlock();
 		}
-		return connection;
 	}
 
 	public void close() throws SQLException {
-		if(connection!=null){
-			connection.close();
-			connection = null;
+		lock.lock();
+		try {
+			if(connection!=null){
+				StatementCache.discard(connection);
+				connection.close();
+				connection = null;
+			}
+		} finally {
+			lock.unlock();
 		}
 	}
 }
\ No newline at end of file
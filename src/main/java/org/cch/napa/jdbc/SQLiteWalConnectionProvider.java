@@ -0,0 +1,202 @@
+package org.cch.napa.jdbc;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.cch.napa.ReadWriteConnectionProvider;
+
+/**
+ * SQLite connection provider switching the database to WAL journaling.<br>
+ * In WAL mode SQLite allows many readers to work concurrently with the single writer.
+ * This provider thus keeps one dedicated writer connection, leased to one thread at a time by {@link #getConnection()},
+ * and a pool of read-only connections leased by {@link #getReadConnection()}.<br>
+ * The writer must be released by the thread that leased it.
+ * Since every connection opens the database file, this provider cannot be used for in-memory databases.
+ * @author Christophe Champagne
+ *
+ */
+public class SQLiteWalConnectionProvider implements ReadWriteConnectionProvider {
+	private static final String DRIVER_NAME = "org.sqlite.JDBC";
+	//Flag SQLITE_OPEN_READONLY understood by the sqlite-jdbc driver
+	private static final String READ_ONLY_OPEN_MODE = "1";
+	/** Default time (ms) a connection waits for a lock on the database */
+	public static final int DEFAULT_BUSY_TIMEOUT = 5000;
+
+	private final String connectionString;
+	private final ReentrantLock writerLock = new ReentrantLock(true);
+	private final PooledConnectionProvider readers;
+	private volatile Connection writer;
+	private volatile long borrowTimeout = PooledConnectionProvider.DEFAULT_BORROW_TIMEOUT;
+
+	public SQLiteWalConnectionProvider(String connectionString) {
+		this(connectionString, PooledConnectionProvider.DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param connectionString the JDBC url of the SQLite database file
+	 * @param maxReaders the maximum number of read-only connections opened at the same time
+	 */
+	public SQLiteWalConnectionProvider(String connectionString, int maxReaders) {
+		this.connectionString = connectionString;
+		Properties readOnly = new Properties();
+		readOnly.setProperty("open_mode", READ_ONLY_OPEN_MODE);
+		readOnly.setProperty("busy_timeout", String.valueOf(DEFAULT_BUSY_TIMEOUT));
+		this.readers = new PooledConnectionProvider(connectionString, readOnly, maxReaders){
+			@Override
+			protected Connection createConnection() throws SQLException {
+				//The database file must exist and be in WAL mode before opening it read-only
+				if(writer == null){
+					ensureWriterIsOpen();
+				}
+				return super.createConnection();
+			}
+		};
+	}
+
+	/**
+	 * Leases the writer connection. The caller waits while another thread holds it.
+	 * @see org.cch.napa.ConnectionProvider#getConnection()
+	 */
+	public Connection getConnection() throws SQLException {
+		boolean locked;
+		try {
+			locked = writerLock.tryLock(borrowTimeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for the writer connection", e);
+		}
+		if(!locked){
+			throw new SQLTimeoutException("The writer connection could not be obtained within " + borrowTimeout + " ms");
+		}
+		try {
+			return openWriter();
+		} catch (SQLException e) {
+			writerLock.unlock();
+			throw e;
+		} catch (RuntimeException e) {
+			writerLock.unlock();
+			throw e;
+		}
+	}
+
+	/**
+	 * Leases one of the read-only connections
+	 * @see ReadWriteConnectionProvider#getReadConnection()
+	 */
+	public Connection getReadConnection() throws SQLException {
+		return readers.getConnection();
+	}
+
+	/**
+	 * @see org.cch.napa.ConnectionProvider#releaseConnection(Connection)
+	 */
+	public void releaseConnection(Connection connection) throws SQLException {
+		if(connection == null){
+			return;
+		}
+		if(connection != writer){
+			readers.releaseConnection(connection);
+		} else if(writerLock.isHeldByCurrentThread()){
+			try {
+				if(writerLock.getHoldCount() == 1 && !connection.isClosed() && !connection.getAutoCommit()){
+					//Do not let pending changes leak to the next writer
+					connection.rollback();
+				}
+			} finally {
+				writerLock.unlock();
+			}
+		} else {
+			throw new SQLException("The writer connection must be released by the thread that leased it");
+		}
+	}
+
+	/**
+	 * Closes the writer and the idle readers and leases a new writer connection, to be released with {@link #releaseConnection(Connection)}
+	 * @see org.cch.napa.ConnectionProvider#resetConnection()
+	 */
+	public Connection resetConnection() throws SQLException {
+		Connection connection = getConnection();
+		try {
+			StatementCache.discard(connection);
+			connection.close();
+			writer = null;
+			readers.closeIdleConnections();
+			return openWriter();
+		} catch (SQLException e) {
+			writerLock.unlock();
+			throw e;
+		}
+	}
+
+	/**
+	 * @see org.cch.napa.ConnectionProvider#close()
+	 */
+	public void close() throws SQLException {
+		readers.close();
+		writerLock.lock();
+		try {
+			if(writer != null){
+				StatementCache.discard(writer);
+				writer.close();
+				writer = null;
+			}
+		} finally {
+			writerLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the pool of read-only connections (e.g. to configure it or to read its metrics)
+	 */
+	public PooledConnectionProvider getReaders() {
+		return readers;
+	}
+	/**
+	 * @return the maximum time (ms) a caller waits for the writer connection
+	 */
+	public long getBorrowTimeout() {
+		return borrowTimeout;
+	}
+	/**
+	 * @param borrowTimeout the maximum time (ms) a caller waits for the writer connection
+	 */
+	public void setBorrowTimeout(long borrowTimeout) {
+		this.borrowTimeout = borrowTimeout;
+	}
+	//------------------------------------------------------------------------------------------------------------------------------
+	private void ensureWriterIsOpen() throws SQLException {
+		writerLock.lock();
+		try {
+			openWriter();
+		} finally {
+			writerLock.unlock();
+		}
+	}
+	//Must be called while holding the writer lock
+	private Connection openWriter() throws SQLException {
+		if(writer == null){
+			try {
+				Class.forName(DRIVER_NAME);
+			} catch (ClassNotFoundException ex) {
+				throw new RuntimeException("Could not find Driver " + DRIVER_NAME, ex);
+			}
+			Properties properties = new Properties();
+			properties.setProperty("busy_timeout", String.valueOf(DEFAULT_BUSY_TIMEOUT));
+			Connection connection = DriverManager.getConnection(connectionString, properties);
+			Statement statement = connection.createStatement();
+			try {
+				statement.execute("PRAGMA journal_mode=WAL");
+			} finally {
+				statement.close();
+			}
+			writer = connection;
+		}
+		return writer;
+	}
+}
@@ -0,0 +1,106 @@
+package org.cch.napa.jdbc;
+
+import java.sql.SQLException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock of the providers sharing a single connection between all their callers.<br>
+ * A transaction holds the connection from its beginning to its end: the leases of the other threads wait until it ends
+ * and the transaction waits for the leases of the other threads to be released,
+ * so that their operations neither join the transaction nor commit or roll back its work.
+ * The thread owning the transaction is never blocked by its own leases.
+ * @author Christophe Champagne
+ *
+ */
+class SharedConnectionLock {
+	//A lock rather than a monitor so that the virtual threads waiting for the connection are not pinned
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private Thread transactionOwner;
+	//Leases of all the threads, not counting the ones taken by the owner of the transaction during the transaction
+	private int leases;
+	private final ThreadLocal<int[]> threadLeases = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+
+	/**
+	 * Waits until no other thread holds a transaction on the connection and counts the lease
+	 */
+	void lease() throws SQLException {
+		lock.lock();
+		try {
+			Thread thread = Thread.currentThread();
+			while(transactionOwner != null && transactionOwner != thread){
+				await();
+			}
+			if(transactionOwner == null){
+				leases++;
+				threadLeases.get()[0]++;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Forgets a lease counted by {@link #lease()}
+	 */
+	void release() {
+		lock.lock();
+		try {
+			int[] ownLeases = threadLeases.get();
+			if(ownLeases[0] > 0){
+				ownLeases[0]--;
+				leases--;
+			} else if(leases > 0 && transactionOwner != Thread.currentThread()){
+				//Leased by another thread
+				leases--;
+			}
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until neither a transaction nor a lease of another thread uses the connection and gives it to the current thread
+	 */
+	void beginTransaction() throws SQLException {
+		lock.lock();
+		try {
+			Thread thread = Thread.currentThread();
+			while((transactionOwner != null && transactionOwner != thread) || leases > threadLeases.get()[0]){
+				await();
+			}
+			transactionOwner = thread;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Lets the other threads use the connection again
+	 */
+	void endTransaction() {
+		lock.lock();
+		try {
+			transactionOwner = null;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	//------------------------------------------------------------------------------------------------------------------------------
+	private void await() throws SQLException {
+		try {
+			changed.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for the connection", e);
+		}
+	}
+}
@@ -0,0 +1,271 @@
+package org.cch.napa.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LRU cache of the prepared statements of one connection, keyed by their SQL text.<br>
+ * A statement taken with {@link #prepare(String)} is removed from the cache until it is given back with
+ * {@link #release(PreparedStatement)}, so the same statement is never used by two callers at the same time.
+ * When the cache is full, the least recently used statement is closed.<br>
+ * The caches are registered per connection: {@link #discard(Connection)} must be called before the connection is closed.
+ * @author Christophe Champagne
+ *
+ */
+public class StatementCache {
+	public static final int DEFAULT_CAPACITY = 64;
+
+	//Read on each execution: a concurrent map so that the lookup takes no lock (the JDBC connections do not override equals)
+	private static final ConcurrentHashMap<Connection, StatementCache> caches = new ConcurrentHashMap<Connection, StatementCache>();
+	private static volatile int defaultCapacity = DEFAULT_CAPACITY;
+	private static final AtomicLong totalHits = new AtomicLong();
+	private static final AtomicLong totalMisses = new AtomicLong();
+	private static final AtomicLong totalEvictions = new AtomicLong();
+
+	private final Connection connection;
+	private final int capacity;
+	//Statements ready to be used, the least recently used first
+	private final LinkedHashMap<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+	private final Map<PreparedStatement, String> inUse = new IdentityHashMap<PreparedStatement, String>();
+	//A lock rather than a monitor: statements are prepared and closed while holding it, which would pin virtual threads
+	private final ReentrantLock lock = new ReentrantLock();
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	private StatementCache(Connection connection, int capacity) {
+		this.connection = connection;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Gives the cache associated with the connection, creating it if needed.
+	 * @param connection an opened connection
+	 * @return the cache of the connection
+	 */
+	public static StatementCache getCache(Connection connection) {
+		StatementCache cache = caches.get(connection);
+		if(cache == null){
+			cache = new StatementCache(connection, defaultCapacity);
+			StatementCache previous = caches.putIfAbsent(connection, cache);
+			if(previous != null){
+				return previous;
+			}
+			purgeClosedConnections();
+		}
+		return cache;
+	}
+
+	/**
+	 * Closes the cached statements of a connection and forgets its cache.
+	 * To be called before closing the connection.
+	 * @param connection the connection that is going to be closed
+	 */
+	public static void discard(Connection connection) {
+		StatementCache cache = caches.remove(connection);
+		if(cache != null){
+			cache.clear();
+		}
+	}
+
+	/**
+	 * @param capacity the number of statements kept per connection for the caches created from now on (0 disables the cache)
+	 */
+	public static void setDefaultCapacity(int capacity) {
+		defaultCapacity = Math.max(0, capacity);
+	}
+	/**
+	 * @return the number of statements kept per connection
+	 */
+	public static int getDefaultCapacity() {
+		return defaultCapacity;
+	}
+	/**
+	 * @return the number of statements reused, all connections together
+	 */
+	public static long getTotalHitCount() {
+		return totalHits.get();
+	}
+	/**
+	 * @return the number of statements that had to be prepared, all connections together
+	 */
+	public static long getTotalMissCount() {
+		return totalMisses.get();
+	}
+	/**
+	 * @return the number of statements closed because their cache was full, all connections together
+	 */
+	public static long getTotalEvictionCount() {
+		return totalEvictions.get();
+	}
+
+	/**
+	 * Takes the cached statement corresponding to the query or prepares a new one.
+	 * @param query the SQL text
+	 * @return a statement with no parameter set
+	 */
+	public PreparedStatement prepare(String query) throws SQLException {
+		lock.lock();
+		try {
+			PreparedStatement statement = statements.remove(query);
+			if(statement != null && !statement.isClosed()){
+				hits++;
+				totalHits.incrementAndGet();
+			} else {
+				misses++;
+				totalMisses.incrementAndGet();
+				statement = connection.prepareStatement(query);
+			}
+			inUse.put(statement, query);
+			return statement;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gives a statement back to the cache. Its parameters are cleared.
+	 * A statement that was not taken from this cache is simply closed.
+	 * @param statement the statement not used anymore
+	 */
+	public void release(PreparedStatement statement) throws SQLException {
+		lock.lock();
+		try {
+			String query = inUse.remove(statement);
+			if(statement.isClosed()){
+				return;
+			}
+			if(query == null || capacity == 0){
+				statement.close();
+				return;
+			}
+			try {
+				statement.clearParameters();
+			} catch (SQLException e) {
+				statement.close();
+				throw e;
+			}
+			PreparedStatement previous = statements.put(query, statement);
+			if(previous != null && previous != statement){
+				//The same query was used twice at the same time
+				previous.close();
+			}
+			Iterator<PreparedStatement> iterator = statements.values().iterator();
+			while(statements.size() > capacity && iterator.hasNext()){
+				PreparedStatement eldest = iterator.next();
+				iterator.remove();
+				evictions++;
+				totalEvictions.incrementAndGet();
+				closeQuietly(eldest);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes a statement taken from the cache instead of giving it back (e.g. after a failure)
+	 * @param statement the statement to close
+	 */
+	public void invalidate(PreparedStatement statement) throws SQLException {
+		lock.lock();
+		try {
+			inUse.remove(statement);
+			statement.close();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes all the statements kept in the cache
+	 */
+	public void clear() {
+		lock.lock();
+		try {
+			for(PreparedStatement statement : statements.values()){
+				closeQuietly(statement);
+			}
+			statements.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of statements reused
+	 */
+	public long getHitCount() {
+		lock.lock();
+		try {
+			return hits;
+		} finally {
+			lock.unlock();
+		}
+	}
+	/**
+	 * @return the number of statements that had to be prepared
+	 */
+	public long getMissCount() {
+		lock.lock();
+		try {
+			return misses;
+		} finally {
+			lock.unlock();
+		}
+	}
+	/**
+	 * @return the number of statements closed because the cache was full
+	 */
+	public long getEvictionCount() {
+		lock.lock();
+		try {
+			return evictions;
+		} finally {
+			lock.unlock();
+		}
+	}
+	/**
+	 * @return the number of statements ready to be reused
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return statements.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+	//------------------------------------------------------------------------------------------------------------------------------
+	//Safety net for the connections closed without discarding their cache, run when a cache is created
+	private static void purgeClosedConnections() {
+		for(Map.Entry<Connection, StatementCache> entry : caches.entrySet()){
+			if(isClosed(entry.getKey()) && caches.remove(entry.getKey(), entry.getValue())){
+				entry.getValue().clear();
+			}
+		}
+	}
+	private static boolean isClosed(Connection connection) {
+		try {
+			return connection.isClosed();
+		} catch (SQLException e) {
+			return true;
+		}
+	}
+	private static void closeQuietly(PreparedStatement statement) {
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			System.err.println("Could not close cached statement");
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package org.cch.napa.mapper;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.cch.napa.entity.annotations.atk.EntityField;
+import org.cch.napa.exceptions.PersistenceException;
+
+/**
+ * Sets a parameter of a statement with the setter corresponding to the type of a field.
+ * It is chosen once per field (see {@link org.cch.napa.entity.SQLTypeMapper#getParameterBinderFromClass(Class, int)})
+ * instead of testing the class of each value.
+ * @author Christophe Champagne
+ *
+ */
+public interface ParameterBinder {
+	/**
+	 * Binds a value of the type of the field (or NULL)
+	 * @param index the index of the parameter (the first one is 1)
+	 */
+	void bindValue(PreparedStatement statement, int index, Object value) throws SQLException, PersistenceException;
+	/**
+	 * Binds the value of the field read from the entity. 
+	 * The values of the primitive fields are read and bound without being boxed.
+	 * @param index the index of the parameter (the first one is 1)
+	 */
+	void bindField(PreparedStatement statement, int index, EntityField field, Object entity) throws SQLException, PersistenceException;
+}
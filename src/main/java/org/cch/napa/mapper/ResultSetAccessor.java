@@ -1,6 +1,7 @@
 package org.cch.napa.mapper;
 
 import java.sql.ResultSet;
+import java.sql.SQLException;
 
 import org.cch.napa.exceptions.PersistenceException;
 
@@ -11,4 +12,18 @@ import org.cch.napa.exceptions.PersistenceException;
 
 public interface ResultSetAccessor{
 	Object getValueFromResultSet(ResultSet resultSet, String columnName) throws PersistenceException;
-}
\ No newline at end of file
+	/**
+	 * Reads the value by the index of the column, which avoids looking the column up by its name for each row.
+	 * By default the value is read by the label of the column.
+	 * @param columnIndex the index of the column (the first one is 1)
+	 */
+	default Object getValueFromResultSet(ResultSet resultSet, int columnIndex) throws PersistenceException {
+		String columnName;
+		try {
+			columnName = resultSet.getMetaData().getColumnLabel(columnIndex);
+		} catch (SQLException e) {
+			throw new org.cch.napa.exceptions.SQLException("Error while getting the name of column #" + columnIndex, e);
+		}
+		return getValueFromResultSet(resultSet, columnName);
+	}
+}
@@ -0,0 +1,16 @@
+package org.cch.napa.mapper;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.cch.napa.exceptions.PersistenceException;
+
+/**
+ * Sets the parameters of a statement from an item (e.g. the fields of an entity), 
+ * the counterpart of {@link RecordMapper} for the statements writing data.
+ * @author Christophe Champagne
+ *
+ */
+public interface StatementBinder<T> {
+	public void bind(PreparedStatement statement, T item) throws SQLException, PersistenceException;
+}
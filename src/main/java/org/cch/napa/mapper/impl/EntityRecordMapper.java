@@ -3,8 +3,11 @@ package org.cch.napa.mapper.impl;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.cch.napa.exceptions.AnnotationException;
 import org.cch.napa.exceptions.PersistenceException;
@@ -12,6 +15,8 @@ import org.cch.napa.entity.EntityDaoFactory;
 import org.cch.napa.entity.SQLTypeMapper;
 import org.cch.napa.entity.annotations.atk.EntityField;
 import org.cch.napa.entity.annotations.atk.EntityHandler;
+import org.cch.napa.entity.annotations.atk.EntityInstantiator;
+import org.cch.napa.entity.impl.EntitySession;
 import org.cch.napa.mapper.RecordMapper;
 import org.cch.napa.mapper.ResultSetAccessor;
 
@@ -25,13 +30,27 @@ public class EntityRecordMapper<E> implements RecordMapper<E> {
 	= new Hashtable<Class<? extends EntityDaoFactory>, Map<Class<?>,Map<String,ResultSetAccessor>>>();
 
 	
+	private static final int OBJECT = 0;
+	private static final int INT = 1;
+	private static final int LONG = 2;
+	private static final int DOUBLE = 3;
+	private static final int BOOLEAN = 4;
+	
 	private Class<E> entityClass;
+	private EntityDaoFactory factory;
 	private EntityHandler<E> entityHandler;
+	private EntityInstantiator<E> instantiator;
 	private Map<String, ResultSetAccessor> resultSetGetters;
+	//Mapping plans per shape of result set (the names of its columns)
+	private final Map<String, MappingPlan> plans = new ConcurrentHashMap<String, MappingPlan>();
+	//Plan of the last result set mapped: it is used until another result set is given
+	private volatile ResultSetPlan lastPlan;
 	
 	public EntityRecordMapper(Class<E> entityClass, EntityDaoFactory factory) throws AnnotationException {
 		this.entityClass = entityClass;
+		this.factory = factory;
 		this.entityHandler = factory.getEntityHandler(entityClass);
+		this.instantiator = entityHandler.getInstantiator();
 		Map<Class<?>, Map<String,ResultSetAccessor>> resultSetPerPersistable = resultSetGettersPerFactory.get(factory.getClass());
 		if(resultSetPerPersistable == null){
 			resultSetPerPersistable = new HashMap<Class<?>, Map<String,ResultSetAccessor>>();
@@ -46,37 +65,197 @@ public class EntityRecordMapper<E> implements RecordMapper<E> {
 
 	}
 	/**
+	 * @return the class of the mapped entity
+	 */
+	public Class<E> getEntityClass() {
+		return entityClass;
+	}
+	/**
+	 * @return the handler of the mapped entity
+	 */
+	public EntityHandler<E> getEntityHandler() {
+		return entityHandler;
+	}
+	/**
+	 * The columns of the result set are resolved once per shape of result set: each row is then read by column index.
+	 * When a session is open in the current thread, the entity it already has for the primary key of the row is returned
+	 * without reading the other columns.
 	 * @see RecordMapper#map(java.sql.ResultSet)
+	 * @see EntitySession
 	 */
 	public E map(ResultSet resultSet) throws PersistenceException {
 		E entity = null;
-		String name = null;
+		MappingPlan plan = getPlan(resultSet);
+		EntitySession session = plan.keyIndexes != null ? EntitySession.getCurrent(factory) : null;
+		Object key = null;
+		if(session != null){
+			key = readKey(resultSet, plan);
+			entity = key != null ? session.get(entityClass, key) : null;
+			if(entity != null){
+				return entity;
+			}
+		}
+		int index = 0;
 		try {
-			entity = entityClass.newInstance();
-			ResultSetMetaData metaData = resultSet.getMetaData();
-			for(int index = 1; index <=metaData.getColumnCount(); index ++){
-				name = metaData.getColumnName(index);
-				EntityField entityField = entityHandler.getEntityField(name);
-				if(entityField != null){
-					ResultSetAccessor resultSetGetter = resultSetGetters.get(entityField.getDBFieldName());
-					if(resultSetGetter!=null){
-						Object value = resultSetGetter.getValueFromResultSet(resultSet, entityField.getDBFieldName());
-						entityField.set(entity, value);
-					} else {
-						System.err.println("No resultSet getter for " + name + " field");
+			if(instantiator.isConstructorBound()){
+				//The values given to the constructor are collected first
+				Object[] arguments = instantiator.createArguments();
+				for(; index < plan.columnIndexes.length; index++){
+					if(plan.parameters[index] >= 0){
+						Object value = plan.accessors[index].getValueFromResultSet(resultSet, plan.columnIndexes[index]);
+						instantiator.setArgument(arguments, plan.parameters[index], value);
 					}
 				}
-				//TODO remove the else or at least make the warnings only appear once per field
-				else {
-					System.err.println("Cannot find entityField for DBField " + name);
+				entity = instantiator.newInstance(arguments);
+			} else {
+				entity = instantiator.newInstance();
+			}
+			for(index = 0; index < plan.columnIndexes.length; index++){
+				if(plan.parameters[index] < 0){
+					setField(resultSet, entity, plan, index);
 				}
 			}
 		} catch (Exception e) {
+			String name = index < plan.fields.length ? plan.fields[index].getDBFieldName() : null;
 			throw new PersistenceException("Problem while processing field " + name, e);
 		}
-
+		if(key != null){
+			session.register(entityClass, key, entity);
+		}
 		return entity;
 	}
+
+	private Object readKey(ResultSet resultSet, MappingPlan plan) throws PersistenceException {
+		Object[] keyValues = new Object[plan.keyIndexes.length];
+		for(int i = 0; i < keyValues.length; i++){
+			int index = plan.keyIndexes[i];
+			keyValues[i] = plan.accessors[index].getValueFromResultSet(resultSet, plan.columnIndexes[index]);
+		}
+		return EntitySession.getKey(keyValues);
+	}
+
+	private void setField(ResultSet resultSet, E entity, MappingPlan plan, int index) throws Exception {
+		EntityField field = plan.fields[index];
+		int columnIndex = plan.columnIndexes[index];
+		switch (plan.primitives[index]) {
+		case INT:
+			int intValue = resultSet.getInt(columnIndex);
+			if(resultSet.wasNull()){
+				field.set(entity, null);
+			} else {
+				field.setInt(entity, intValue);
+			}
+			break;
+		case LONG:
+			long longValue = resultSet.getLong(columnIndex);
+			if(resultSet.wasNull()){
+				field.set(entity, null);
+			} else {
+				field.setLong(entity, longValue);
+			}
+			break;
+		case DOUBLE:
+			double doubleValue = resultSet.getDouble(columnIndex);
+			if(resultSet.wasNull()){
+				field.set(entity, null);
+			} else {
+				field.setDouble(entity, doubleValue);
+			}
+			break;
+		case BOOLEAN:
+			int booleanValue = resultSet.getInt(columnIndex);
+			if(resultSet.wasNull()){
+				field.set(entity, null);
+			} else {
+				field.setBoolean(entity, booleanValue == 1);
+			}
+			break;
+		default:
+			Object value = plan.accessors[index].getValueFromResultSet(resultSet, columnIndex);
+			field.set(entity, value);
+		}
+	}
+
+	private MappingPlan getPlan(ResultSet resultSet) throws PersistenceException {
+		ResultSetPlan last = lastPlan;
+		if(last != null && last.resultSet == resultSet){
+			return last.plan;
+		}
+		try {
+			ResultSetMetaData metaData = resultSet.getMetaData();
+			int columnCount = metaData.getColumnCount();
+			String[] names = new String[columnCount];
+			StringBuilder shape = new StringBuilder();
+			for(int index = 1; index <= columnCount; index ++){
+				names[index - 1] = metaData.getColumnName(index);
+				shape.append(names[index - 1]).append(',');
+			}
+			MappingPlan plan = plans.get(shape.toString());
+			if(plan == null){
+				plan = createPlan(names);
+				plans.put(shape.toString(), plan);
+			}
+			lastPlan = new ResultSetPlan(resultSet, plan);
+			return plan;
+		} catch (java.sql.SQLException e) {
+			throw new org.cch.napa.exceptions.SQLException("Could not read the metadata of the result set", e);
+		}
+	}
+
+	/**
+	 * @throws PersistenceException if a column of the result set is not mapped to a field of the entity
+	 */
+	private MappingPlan createPlan(String[] names) throws PersistenceException {
+		List<Integer> columnIndexes = new ArrayList<Integer>(names.length);
+		List<EntityField> fields = new ArrayList<EntityField>(names.length);
+		List<ResultSetAccessor> accessors = new ArrayList<ResultSetAccessor>(names.length);
+		for(int index = 1; index <= names.length; index ++){
+			String name = names[index - 1];
+			EntityField entityField = entityHandler.getEntityField(name);
+			if(entityField != null){
+				ResultSetAccessor resultSetGetter = resultSetGetters.get(entityField.getDBFieldName());
+				if(resultSetGetter!=null){
+					columnIndexes.add(index);
+					fields.add(entityField);
+					accessors.add(resultSetGetter);
+				} else {
+					throw new PersistenceException("No resultSet getter for the field " + name + " of " + entityClass.getName());
+				}
+			} else {
+				throw new PersistenceException("Cannot find the field of " + entityClass.getName() + " mapped to the column " + name);
+			}
+		}
+		MappingPlan plan = new MappingPlan(columnIndexes.size());
+		for(int i = 0; i < plan.columnIndexes.length; i++){
+			plan.columnIndexes[i] = columnIndexes.get(i);
+			plan.fields[i] = fields.get(i);
+			plan.accessors[i] = accessors.get(i);
+			plan.primitives[i] = getPrimitive(fields.get(i).getJavaType());
+			plan.parameters[i] = instantiator.getParameterIndex(fields.get(i));
+		}
+		List<EntityField> primaryKey = entityHandler.getPrimaryKey();
+		if(!primaryKey.isEmpty() && fields.containsAll(primaryKey)){
+			plan.keyIndexes = new int[primaryKey.size()];
+			for(int i = 0; i < plan.keyIndexes.length; i++){
+				plan.keyIndexes[i] = fields.indexOf(primaryKey.get(i));
+			}
+		}
+		return plan;
+	}
+	
+	//The primitive int, long, double and boolean fields are read and set without boxing their values
+	private static int getPrimitive(Class<?> type){
+		if(type == Integer.TYPE){
+			return INT;
+		} else if(type == Long.TYPE){
+			return LONG;
+		} else if(type == Double.TYPE){
+			return DOUBLE;
+		} else if(type == Boolean.TYPE){
+			return BOOLEAN;
+		}
+		return OBJECT;
+	}
 	
 	private synchronized static <E> Map<String, ResultSetAccessor> getResultSetGetters(EntityHandler<E> entityHandler, EntityDaoFactory factory){
 		Map<String, ResultSetAccessor>resultSetGetters = new HashMap<String, ResultSetAccessor>();
@@ -88,4 +267,36 @@ public class EntityRecordMapper<E> implements RecordMapper<E> {
 		return resultSetGetters;
 	}
 
+	/**
+	 * The mapped columns of a shape of result set: the value of the column at columnIndexes[i] 
+	 * is read by accessors[i] (or directly if primitives[i] is not OBJECT) and set on fields[i]
+	 * or given to the constructor as its parameters[i]-th argument (if not -1).
+	 * The primary key fields are at keyIndexes (null if the result set does not have all of them).
+	 */
+	private static class MappingPlan {
+		private final int[] columnIndexes;
+		private final EntityField[] fields;
+		private final ResultSetAccessor[] accessors;
+		private final int[] primitives;
+		private final int[] parameters;
+		private int[] keyIndexes;
+
+		private MappingPlan(int size) {
+			columnIndexes = new int[size];
+			fields = new EntityField[size];
+			accessors = new ResultSetAccessor[size];
+			primitives = new int[size];
+			parameters = new int[size];
+		}
+	}
+
+	private static class ResultSetPlan {
+		private final ResultSet resultSet;
+		private final MappingPlan plan;
+
+		private ResultSetPlan(ResultSet resultSet, MappingPlan plan) {
+			this.resultSet = resultSet;
+			this.plan = plan;
+		}
+	}
 }
@@ -0,0 +1,103 @@
+package org.cch.napa.cache;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.cch.napa.entity.annotations.atk.EntityHandler;
+import org.cch.napa.test.Item;
+import org.cch.napa.test.TemporaryDatabase;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EntityCacheTest {
+    private EntityHandler<Item> handler;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        //The handler does not connect to the DB
+        handler = TemporaryDatabase.createOfflineFactory().getEntityHandler(Item.class);
+    }
+
+    private EntityCache<Item> createCache(long offHeapCapacity) {
+        CacheConfiguration configuration = new CacheConfiguration(1000, 0);
+        configuration.setOffHeapCapacity(offHeapCapacity);
+        return new EntityCache<Item>(handler, configuration);
+    }
+
+    @Test
+    void getGivesCopies() throws Exception {
+        checkGetGivesCopies(createCache(0));
+        checkGetGivesCopies(createCache(1 << 20));
+    }
+
+    private void checkGetGivesCopies(EntityCache<Item> cache) throws Exception {
+        Item item = new Item(1, "first");
+        cache.put(1L, item);
+        Item cached = cache.get(1L);
+        assertNotSame(item, cached);
+        assertEquals("first", cached.getName());
+        cached.setName("changed");
+        assertEquals("first", cache.get(1L).getName());
+        assertNull(cache.get(2L));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    void fillIgnoresStaleEntities() throws Exception {
+        checkFillIgnoresStaleEntities(createCache(0));
+        checkFillIgnoresStaleEntities(createCache(1 << 20));
+    }
+
+    private void checkFillIgnoresStaleEntities(EntityCache<Item> cache) throws Exception {
+        //The entity is modified (and removed from the cache) while it is read from the DB
+        long stamp = cache.getStamp(1L);
+        cache.remove(1L);
+        cache.fill(1L, new Item(1, "stale"), stamp);
+        assertNull(cache.get(1L));
+        //Read again without concurrent modification
+        cache.fill(1L, new Item(1, "fresh"), cache.getStamp(1L));
+        assertEquals("fresh", cache.get(1L).getName());
+        //An entity already cached is not replaced by a fill
+        cache.fill(1L, new Item(1, "other"), cache.getStamp(1L));
+        assertEquals("fresh", cache.get(1L).getName());
+        //Same for several entities
+        long[] stamps = cache.getStamps();
+        cache.put(2L, new Item(2, "put"));
+        Map<Long, Item> read = Collections.singletonMap(2L, new Item(2, "stale"));
+        cache.fillAll(read, stamps);
+        assertEquals("put", cache.get(2L).getName());
+    }
+
+    @Test
+    void removeAndClear() throws Exception {
+        EntityCache<Item> cache = createCache(0);
+        for (long i = 0; i < 10; i++) {
+            cache.put(i, new Item(i, "item" + i));
+        }
+        assertEquals(10, cache.size());
+        cache.remove(3L);
+        assertNull(cache.get(3L));
+        assertEquals(9, cache.size());
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    void maxEntriesIsRespected() throws Exception {
+        EntityCache<Item> cache = new EntityCache<Item>(handler, new CacheConfiguration(100, 0));
+        for (long i = 0; i < 1000; i++) {
+            cache.put(i, new Item(i, "item" + i));
+        }
+        assertTrue(cache.size() <= 100, "size " + cache.size());
+        assertEquals(1000 - cache.size(), cache.getEvictionCount());
+        //The most recent entities are kept
+        assertEquals("item999", cache.get(999L).getName());
+    }
+}
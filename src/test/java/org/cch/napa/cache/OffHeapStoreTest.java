@@ -0,0 +1,170 @@
+package org.cch.napa.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OffHeapStoreTest {
+    //64 slabs of 1KB, divided into slots of 64 bytes to 1KB
+    private static final long CAPACITY = 64 * 1024;
+    private static final int SLABS = 64;
+    private static final int SLOTS_OF_64_BYTES = SLABS * 1024 / 64;
+
+    @Test
+    void putGetRemove() {
+        OffHeapStore store = new OffHeapStore(CAPACITY, 100);
+        assertTrue(put(store, "a", "first"));
+        assertTrue(put(store, "b", "second"));
+        assertEquals("first", get(store, "a"));
+        assertEquals("second", get(store, "b"));
+        assertTrue(contains(store, "a"));
+        assertFalse(contains(store, "c"));
+        assertNull(get(store, "c"));
+        assertEquals(2, store.size());
+        assertEquals(2 * 64, store.getUsedBytes());
+        assertEquals(1024, store.getAllocatedBytes());
+        //Replaced by a bigger value taking a slot of another size
+        String big = new String(new char[100]).replace('\0', 'x');
+        assertTrue(put(store, "a", big));
+        assertEquals(big, get(store, "a"));
+        assertEquals(2, store.size());
+        assertEquals(64 + 128, store.getUsedBytes());
+        assertTrue(store.remove(key("a"), hash("a")));
+        assertFalse(store.remove(key("a"), hash("a")));
+        assertNull(get(store, "a"));
+        assertEquals("second", get(store, "b"));
+        assertEquals(1, store.size());
+        assertEquals(64, store.getUsedBytes());
+        assertEquals(0, store.getEvictionCount());
+    }
+
+    @Test
+    void recordBiggerThanASlabIsRejected() {
+        OffHeapStore store = new OffHeapStore(CAPACITY, 100);
+        assertTrue(put(store, "a", "first"));
+        assertFalse(store.put(key("a"), hash("a"), new byte[1024]));
+        //The previous value is not kept
+        assertFalse(contains(store, "a"));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    void collidingHashesAreToldApart() {
+        OffHeapStore store = new OffHeapStore(CAPACITY, 100);
+        for (int i = 0; i < 50; i++) {
+            assertTrue(store.put(key("key" + i), 7, value("value" + i)));
+        }
+        store.remove(key("key10"), 7);
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i == 10 ? null : "value" + i, toString(store.get(key("key" + i), 7)));
+        }
+    }
+
+    @Test
+    void oldestRecordIsEvictedWhenTheStoreIsFull() {
+        OffHeapStore store = new OffHeapStore(CAPACITY, 4);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(put(store, "key" + i, "value" + i));
+        }
+        assertEquals(4, store.size());
+        assertEquals(1, store.getEvictionCount());
+        assertFalse(contains(store, "key0"));
+        for (int i = 1; i < 5; i++) {
+            assertEquals("value" + i, get(store, "key" + i));
+        }
+    }
+
+    @Test
+    void clockKeepsTheRecordsReadSinceItPassed() {
+        OffHeapStore store = new OffHeapStore(CAPACITY, 4);
+        for (int i = 0; i < 4; i++) {
+            put(store, "key" + i, "value" + i);
+        }
+        get(store, "key0");
+        put(store, "key4", "value4");
+        assertEquals(1, store.getEvictionCount());
+        assertTrue(contains(store, "key0"));
+        assertFalse(contains(store, "key1"));
+    }
+
+    @Test
+    void sizeWithoutSlabTakesTheSlabOfAnother() {
+        OffHeapStore store = new OffHeapStore(CAPACITY, SLOTS_OF_64_BYTES * 2);
+        //The records of 64 bytes take all the slabs
+        for (int i = 0; i < SLOTS_OF_64_BYTES; i++) {
+            assertTrue(put(store, "key" + i, "value" + i));
+        }
+        assertEquals(CAPACITY, store.getAllocatedBytes());
+        assertEquals(0, store.getEvictionCount());
+        byte[] big = new byte[900];
+        Arrays.fill(big, (byte) 1);
+        assertTrue(store.put(key("big"), hash("big"), big));
+        assertArrayEquals(big, store.get(key("big"), hash("big")));
+        //The records of the last slab were evicted
+        int slotsPerSlab = 1024 / 64;
+        assertEquals(slotsPerSlab, store.getEvictionCount());
+        assertEquals(SLOTS_OF_64_BYTES - slotsPerSlab + 1, store.size());
+        assertEquals("value0", get(store, "key0"));
+        assertFalse(contains(store, "key" + (SLOTS_OF_64_BYTES - 1)));
+        assertEquals(CAPACITY, store.getAllocatedBytes());
+        //Records of the size having lost a slab replace the others
+        assertTrue(put(store, "other", "value"));
+        assertEquals("value", get(store, "other"));
+        assertEquals(slotsPerSlab + 1, store.getEvictionCount());
+    }
+
+    @Test
+    void clearKeepsTheSlabs() {
+        OffHeapStore store = new OffHeapStore(CAPACITY, 100);
+        for (int i = 0; i < 50; i++) {
+            put(store, "key" + i, "value" + i);
+        }
+        long allocated = store.getAllocatedBytes();
+        store.clear();
+        assertEquals(0, store.size());
+        assertEquals(0, store.getUsedBytes());
+        assertEquals(allocated, store.getAllocatedBytes());
+        assertFalse(contains(store, "key0"));
+        for (int i = 0; i < 100; i++) {
+            assertTrue(put(store, "key" + i, "value" + i));
+        }
+        assertEquals(100, store.size());
+        assertEquals("value99", get(store, "key99"));
+        assertEquals(0, store.getEvictionCount());
+    }
+
+    private static boolean put(OffHeapStore store, String key, String value) {
+        return store.put(key(key), hash(key), value(value));
+    }
+
+    private static String get(OffHeapStore store, String key) {
+        return toString(store.get(key(key), hash(key)));
+    }
+
+    private static boolean contains(OffHeapStore store, String key) {
+        return store.contains(key(key), hash(key));
+    }
+
+    private static byte[] key(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] value(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int hash(String key) {
+        return Arrays.hashCode(key(key));
+    }
+
+    private static String toString(byte[] value) {
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+}
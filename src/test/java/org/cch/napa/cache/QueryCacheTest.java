@@ -0,0 +1,118 @@
+package org.cch.napa.cache;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.cch.napa.JdbcDao;
+import org.cch.napa.entity.EntityDao;
+import org.cch.napa.entity.EntityDaoFactory;
+import org.cch.napa.entity.TableManager;
+import org.cch.napa.entity.impl.sqlite.SQLiteEntityDaoFactory;
+import org.cch.napa.jdbc.PooledConnectionProvider;
+import org.cch.napa.mapper.RecordMapper;
+import org.cch.napa.test.Item;
+import org.cch.napa.test.TemporaryDatabase;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QueryCacheTest {
+    private static final String SELECT_BY_NAME = "select * from item where name = ?";
+    private TemporaryDatabase database;
+    private PooledConnectionProvider connectionProvider;
+    private QueryCache queryCache;
+    private EntityDao<Item> dao;
+    private JdbcDao jdbcDao;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        database = new TemporaryDatabase();
+        connectionProvider = database.getConnectionProvider();
+        EntityDaoFactory factory = new SQLiteEntityDaoFactory(connectionProvider);
+        new TableManager(factory).createTable(Item.class);
+        queryCache = new QueryCache();
+        factory.setQueryCache(queryCache);
+        dao = factory.getEntityDao(Item.class);
+        jdbcDao = factory.getJdbcDao();
+        dao.insert(new Item(1, "a"));
+        dao.insert(new Item(2, "b"));
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        database.close();
+    }
+
+    @Test
+    void selectIsCached() throws Exception {
+        List<Item> items = dao.select(SELECT_BY_NAME, "a");
+        assertEquals(1, items.size());
+        items.get(0).setName("changed");
+        assertEquals(0, queryCache.getHitCount());
+        items = dao.select(SELECT_BY_NAME, "a");
+        assertEquals(1, queryCache.getHitCount());
+        //The cached entities cannot be altered through the ones given to the callers
+        assertEquals("a", items.get(0).getName());
+        //Other parameters, other entry
+        assertEquals(2, dao.select(SELECT_BY_NAME, "b").get(0).getId());
+        assertEquals(1, queryCache.getHitCount());
+        assertEquals(0, connectionProvider.getActiveCount());
+    }
+
+    @Test
+    void insertInvalidates() throws Exception {
+        assertEquals(1, dao.select(SELECT_BY_NAME, "a").size());
+        assertEquals(2, jdbcDao.queryForLong("select count(*) from item"));
+        dao.insert(new Item(3, "a"));
+        assertEquals(2, dao.select(SELECT_BY_NAME, "a").size());
+        assertEquals(3, jdbcDao.queryForLong("select count(*) from item"));
+        assertEquals(0, queryCache.getHitCount());
+        assertTrue(queryCache.getInvalidationCount() > 0);
+    }
+
+    @Test
+    void updateInvalidates() throws Exception {
+        assertEquals(1, dao.select(SELECT_BY_NAME, "a").size());
+        dao.update(new Item(1, "c"));
+        assertEquals(0, dao.select(SELECT_BY_NAME, "a").size());
+        assertEquals(1, dao.select(SELECT_BY_NAME, "c").size());
+        //Written through the JdbcDao
+        jdbcDao.executeUpdate("update item set name = ? where id = ?", "a", 1L);
+        assertEquals(1, dao.select(SELECT_BY_NAME, "a").size());
+        assertEquals(0, queryCache.getHitCount());
+    }
+
+    @Test
+    void deleteInvalidates() throws Exception {
+        assertEquals(1, dao.select(SELECT_BY_NAME, "b").size());
+        dao.delete(new Item(2, null));
+        assertEquals(0, dao.select(SELECT_BY_NAME, "b").size());
+        assertEquals(0, queryCache.getHitCount());
+    }
+
+    @Test
+    void otherTablesAreNotInvalidated() throws Exception {
+        jdbcDao.executeUpdate("create table other (id integer)");
+        assertEquals(1, dao.select(SELECT_BY_NAME, "a").size());
+        jdbcDao.executeUpdate("insert into other (id) values (?)", 1L);
+        assertEquals(1, dao.select(SELECT_BY_NAME, "a").size());
+        assertEquals(1, queryCache.getHitCount());
+    }
+
+    @Test
+    void otherMappersAreNotCached() throws Exception {
+        RecordMapper<String> nameMapper = new RecordMapper<String>() {
+            public String map(ResultSet resultSet) throws SQLException {
+                return resultSet.getString("name");
+            }
+        };
+        assertEquals("a", jdbcDao.select("select name from item where id = ?", nameMapper, 1L).get(0));
+        assertEquals("a", jdbcDao.select("select name from item where id = ?", nameMapper, 1L).get(0));
+        assertEquals(0, queryCache.size());
+        assertEquals(0, queryCache.getHitCount());
+    }
+}
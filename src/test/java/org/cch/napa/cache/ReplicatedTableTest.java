@@ -0,0 +1,81 @@
+package org.cch.napa.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.cch.napa.entity.annotations.atk.EntityHandler;
+import org.cch.napa.exceptions.PersistenceException;
+import org.cch.napa.test.Item;
+import org.cch.napa.test.TemporaryDatabase;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReplicatedTableTest {
+    private EntityHandler<Item> handler;
+    private final List<Item> records = new ArrayList<Item>();
+    private final AtomicBoolean failing = new AtomicBoolean();
+    private final Callable<List<Item>> loader = new Callable<List<Item>>() {
+        public List<Item> call() throws Exception {
+            if (failing.get()) {
+                throw new PersistenceException("The DB is not reachable");
+            }
+            return new ArrayList<Item>(records);
+        }
+    };
+
+    @BeforeEach
+    void setUp() throws Exception {
+        //The handler does not connect to the DB
+        handler = TemporaryDatabase.createOfflineFactory().getEntityHandler(Item.class);
+        records.add(new Item(1, "a"));
+        records.add(new Item(2, "b"));
+    }
+
+    @Test
+    void loadedOnceUntilInvalidated() throws Exception {
+        ReplicatedTable<Item> table = new ReplicatedTable<Item>(handler, loader, 0);
+        assertEquals(0, table.getLoadCount());
+        assertEquals("b", table.get(2L).getName());
+        assertNull(table.get(3L));
+        assertEquals(2, table.getAll().size());
+        assertSame(table.get(1L), table.select("select * from item where id = ?", 1L).get(0));
+        assertEquals(1, table.getLoadCount());
+        records.add(new Item(3, "c"));
+        assertNull(table.get(3L));
+        table.invalidate();
+        assertEquals("c", table.get(3L).getName());
+        assertEquals(2, table.getLoadCount());
+    }
+
+    @Test
+    void failedRefreshIsReported() throws Exception {
+        ReplicatedTable<Item> table = new ReplicatedTable<Item>(handler, loader, 20);
+        try {
+            assertEquals(2, table.size());
+            failing.set(true);
+            long timeout = System.currentTimeMillis() + 5000;
+            while (table.getLastRefreshError() == null && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+            assertNotNull(table.getLastRefreshError());
+            assertTrue(table.getLastRefreshErrorTime() > 0);
+            //The outdated snapshot is not served anymore
+            assertThrows(PersistenceException.class, () -> table.get(1L));
+            failing.set(false);
+            records.add(new Item(3, "c"));
+            assertEquals(3, table.size());
+            assertNull(table.getLastRefreshError());
+        } finally {
+            table.close();
+        }
+    }
+}
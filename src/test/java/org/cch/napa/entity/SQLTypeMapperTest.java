@@ -0,0 +1,47 @@
+package org.cch.napa.entity;
+
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.cch.napa.mapper.ParameterBinder;
+import org.cch.napa.mapper.ResultSetAccessor;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SQLTypeMapperTest {
+
+    @Test
+    void defaultBinderSetsTheParameters() throws Exception {
+        final List<Object> parameters = new ArrayList<Object>();
+        //Written before the mappers could choose a binder per field
+        SQLTypeMapper mapper = new SQLTypeMapper() {
+            public int getSqlTypeFromClass(Class<?> cls) {
+                return 0;
+            }
+
+            public int getSizeFromType(int type) {
+                return 0;
+            }
+
+            public int getPrecisionFromType(int type) {
+                return 0;
+            }
+
+            public ResultSetAccessor getResultSetGetterFromClass(Class<?> cls, int sqlType) {
+                return null;
+            }
+
+            public void setParameter(PreparedStatement statement, int index, Object value) {
+                parameters.add(index);
+                parameters.add(value);
+            }
+        };
+        ParameterBinder binder = mapper.getParameterBinderFromClass(String.class, java.sql.Types.VARCHAR);
+        binder.bindValue(null, 1, "first");
+        binder.bindValue(null, 2, null);
+        assertEquals(Arrays.<Object>asList(1, "first", 2, null), parameters);
+    }
+}
@@ -0,0 +1,131 @@
+package org.cch.napa.entity.annotations.atk;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cch.napa.entity.EntityDaoFactory;
+import org.cch.napa.entity.EntityMapping;
+import org.cch.napa.exceptions.AnnotationException;
+import org.cch.napa.test.Item;
+import org.cch.napa.test.TemporaryDatabase;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EntityHandlerTest {
+    private EntityDaoFactory factory;
+
+    @BeforeEach
+    void setUp() {
+        factory = TemporaryDatabase.createOfflineFactory();
+    }
+
+    @Test
+    void fieldsFollowTheOrderOfTheMapping() throws Exception {
+        ItemMapping mapping = new ItemMapping("item", new String[]{"name", "id"}, new String[]{"id"});
+        EntityHandler<Item> handler = new EntityHandler<Item>(Item.class, factory, mapping);
+        assertSame(mapping, handler.getMapping());
+        assertEquals("name", handler.getEntityFields().get(0).getDBFieldName());
+        assertEquals("id", handler.getEntityFields().get(1).getDBFieldName());
+        Item item = handler.newInstance(new Object[]{"a", 1L});
+        //Instantiated by the mapping, the fields being set by their compiled accessors
+        assertEquals(1, mapping.instances.get());
+        assertEquals(1, item.getId());
+        assertEquals("a", item.getName());
+        assertArrayEquals(new Object[]{"a", 1L}, handler.getValues(item));
+    }
+
+    @Test
+    void staleMappingIsRejected() {
+        AnnotationException e = assertThrows(AnnotationException.class, () -> new EntityHandler<Item>(Item.class, factory,
+                new ItemMapping("item", new String[]{"id", "label"}, new String[]{"id"})));
+        assertTrue(e.getMessage().contains("label"));
+        assertThrows(AnnotationException.class, () -> new EntityHandler<Item>(Item.class, factory,
+                new ItemMapping("item", new String[]{"id"}, new String[]{"id"})));
+        assertThrows(AnnotationException.class, () -> new EntityHandler<Item>(Item.class, factory,
+                new ItemMapping("other", new String[]{"id", "name"}, new String[]{"id"})));
+        assertThrows(AnnotationException.class, () -> new EntityHandler<Item>(Item.class, factory,
+                new ItemMapping("item", new String[]{"id", "name"}, new String[]{"name"})));
+    }
+
+    /**
+     * Mapping written as the processor would generate it, with the given fields
+     */
+    private static class ItemMapping implements EntityMapping<Item> {
+        private final String tableName;
+        private final String[] fieldNames;
+        private final String[] primaryKey;
+        private final AtomicInteger instances = new AtomicInteger();
+
+        private ItemMapping(String tableName, String[] fieldNames, String[] primaryKey) {
+            this.tableName = tableName;
+            this.fieldNames = fieldNames;
+            this.primaryKey = primaryKey;
+        }
+
+        public Class<Item> getEntityClass() {
+            return Item.class;
+        }
+
+        public Item newInstance() {
+            instances.incrementAndGet();
+            return new Item();
+        }
+
+        public String getTableName() {
+            return tableName;
+        }
+
+        public String[] getFieldNames() {
+            return fieldNames;
+        }
+
+        public String[] getPrimaryKey() {
+            return primaryKey;
+        }
+
+        public Object get(Item entity, int field) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void set(Item entity, int field, Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Object[] getValues(Item entity) {
+            throw new UnsupportedOperationException();
+        }
+
+        public String getSelectAll() {
+            return null;
+        }
+
+        public String getSelect() {
+            return null;
+        }
+
+        public String getInsert() {
+            return null;
+        }
+
+        public String getUpdate() {
+            return null;
+        }
+
+        public String getDelete() {
+            return null;
+        }
+
+        public String getCount() {
+            return null;
+        }
+
+        public String[] getIndexes() {
+            return new String[0];
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.cch.napa.entity.impl;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.cch.napa.mapper.ResultSetAccessor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AbstractResultSetGetterTest {
+    private Connection connection;
+    private ResultSet resultSet;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        Statement statement = connection.createStatement();
+        resultSet = statement.executeQuery("select 1 as id, 'first' as name");
+        resultSet.next();
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    @Test
+    void getterReadingByNameIsReadByIndex() throws Exception {
+        //Written before the getters could read by index
+        AbstractResultSetGetter getter = new AbstractResultSetGetter() {
+            protected Object getValue(ResultSet resultSet, String columnName) throws SQLException {
+                return resultSet.getString(columnName);
+            }
+        };
+        assertEquals("first", getter.getValueFromResultSet(resultSet, 2));
+        assertEquals("first", getter.getValueFromResultSet(resultSet, "name"));
+    }
+
+    @Test
+    void accessorReadingByNameIsReadByIndex() throws Exception {
+        ResultSetAccessor accessor = new ResultSetAccessor() {
+            public Object getValueFromResultSet(ResultSet resultSet, String columnName) {
+                return columnName;
+            }
+        };
+        assertEquals("id", accessor.getValueFromResultSet(resultSet, 1));
+    }
+
+    @Test
+    void indexedGetterIsReadByName() throws Exception {
+        IndexedResultSetGetter getter = new IndexedResultSetGetter() {
+            protected Object getValue(ResultSet resultSet, int columnIndex) throws SQLException {
+                return resultSet.getString(columnIndex);
+            }
+        };
+        assertEquals("first", getter.getValueFromResultSet(resultSet, "name"));
+        assertEquals("1", getter.getValueFromResultSet(resultSet, 1));
+    }
+}
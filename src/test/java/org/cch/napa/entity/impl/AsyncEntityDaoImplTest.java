@@ -0,0 +1,132 @@
+package org.cch.napa.entity.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cch.napa.entity.AsyncEntityDao;
+import org.cch.napa.entity.EntityDao;
+import org.cch.napa.exceptions.PersistenceException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AsyncEntityDaoImplTest {
+    private final CountDownLatch released = new CountDownLatch(1);
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+    private ExecutorService pool;
+    private AtomicInteger executed;
+    private ExecutorService executor;
+
+    @BeforeEach
+    void setUp() {
+        pool = Executors.newCachedThreadPool();
+        executed = new AtomicInteger();
+        //Counts the tasks given to the pool
+        executor = (ExecutorService) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ExecutorService.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("execute")) {
+                            executed.incrementAndGet();
+                        }
+                        try {
+                            return method.invoke(pool, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+    @AfterEach
+    void tearDown() {
+        released.countDown();
+        pool.shutdownNow();
+    }
+
+    @Test
+    void callsWaitForAPermitOutsideTheExecutor() throws Exception {
+        Semaphore permits = new Semaphore(2);
+        AsyncEntityDao<Object> dao = new AsyncEntityDaoImpl<Object>(createBlockingDao(), permits, executor);
+        List<CompletableFuture<Long>> futures = new ArrayList<CompletableFuture<Long>>();
+        for (long i = 0; i < 10; i++) {
+            futures.add(dao.count("select ?", i));
+        }
+        Thread.sleep(50);
+        //Only the calls having a permit were given to the executor
+        assertEquals(2, executed.get());
+        assertEquals(0, permits.availablePermits());
+        released.countDown();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, (long) futures.get(i).get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(10, executed.get());
+        assertEquals(2, maxRunning.get());
+        assertEquals(2, permits.availablePermits());
+    }
+
+    @Test
+    void failureCompletesTheFuture() throws Exception {
+        released.countDown();
+        Semaphore permits = new Semaphore(1);
+        AsyncEntityDao<Object> dao = new AsyncEntityDaoImpl<Object>(createBlockingDao(), permits, executor);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> dao.count("fail").get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof PersistenceException);
+        assertEquals(1, (long) dao.count("select ?", 1L).get(5, TimeUnit.SECONDS));
+        assertEquals(1, permits.availablePermits());
+    }
+
+    @Test
+    void rejectedCallReleasesItsPermit() throws Exception {
+        pool.shutdown();
+        Semaphore permits = new Semaphore(1);
+        AsyncEntityDao<Object> dao = new AsyncEntityDaoImpl<Object>(createBlockingDao(), permits, executor);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> dao.count("select ?", 1L).get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+        assertEquals(1, permits.availablePermits());
+    }
+
+    /**
+     * Dao whose count(query, parameter) waits for the test to release the calls and returns the parameter
+     */
+    @SuppressWarnings("unchecked")
+    private EntityDao<Object> createBlockingDao() {
+        return (EntityDao<Object>) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{EntityDao.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (!method.getName().equals("count")) {
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                        Object[] parameters = (Object[]) args[1];
+                        if (parameters.length == 0) {
+                            throw new PersistenceException("Failed " + args[0]);
+                        }
+                        int count = running.incrementAndGet();
+                        maxRunning.accumulateAndGet(count, Math::max);
+                        try {
+                            released.await();
+                            return parameters[0];
+                        } finally {
+                            running.decrementAndGet();
+                        }
+                    }
+                });
+    }
+}
@@ -1,17 +1,128 @@
 package org.cch.napa.entity.impl;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import org.cch.napa.Transaction;
+import org.cch.napa.cache.CacheConfiguration;
+import org.cch.napa.entity.EntityDao;
+import org.cch.napa.entity.EntityDaoFactory;
+import org.cch.napa.entity.LazyResultSetIterable;
+import org.cch.napa.entity.TableManager;
+import org.cch.napa.entity.annotations.Entity;
+import org.cch.napa.entity.annotations.Id;
+import org.cch.napa.entity.annotations.Replicated;
+import org.cch.napa.entity.impl.sqlite.SQLiteEntityDaoFactory;
+import org.cch.napa.entity.impl.sqlite.SQLiteSQLGenerator;
+import org.cch.napa.jdbc.PooledConnectionProvider;
+import org.cch.napa.mapper.impl.EntityRecordMapper;
+import org.cch.napa.test.Item;
+import org.cch.napa.test.TemporaryDatabase;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
 class EntityDaoImplTest {
+    private static final String COUNT_KEY_TABLES = "select count(*) from sqlite_temp_master where name like 'napa_keys%'";
+    private TemporaryDatabase database;
+    private PooledConnectionProvider connectionProvider;
+    private EntityDaoFactory factory;
+    private EntityDao<Item> dao;
+
+    @Entity(table = "replicated_item")
+    @Replicated
+    public static class ReplicatedItem {
+        @Id
+        private long id;
+        private String name;
+
+        public ReplicatedItem() {
+        }
+
+        public ReplicatedItem(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public void setId(long id) {
+            this.id = id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+    }
+
+    @Entity(table = "event")
+    public static class Event {
+        @Id
+        private long grp;
+        @Id
+        private long seq;
+
+        public Event() {
+        }
+
+        public Event(long grp, long seq) {
+            this.grp = grp;
+            this.seq = seq;
+        }
+
+        public long getGrp() {
+            return grp;
+        }
+
+        public void setGrp(long grp) {
+            this.grp = grp;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public void setSeq(long seq) {
+            this.seq = seq;
+        }
+
+        @Override
+        public String toString() {
+            return grp + "." + seq;
+        }
+    }
 
     @BeforeEach
-    void setUp() {
+    void setUp() throws Exception {
+        database = new TemporaryDatabase();
+        connectionProvider = database.getConnectionProvider();
+        factory = new SQLiteEntityDaoFactory(connectionProvider);
+        new TableManager(factory).createTable(Item.class);
+        dao = factory.getEntityDao(Item.class);
     }
 
     @AfterEach
-    void tearDown() {
+    void tearDown() throws Exception {
+        database.close();
     }
 
     @Test
@@ -35,7 +146,344 @@ class EntityDaoImplTest {
     }
 
     @Test
-    void persist() {
+    void persist() throws Exception {
+        assertNotNull(factory.getSQLGenerator(Item.class).createUpsert());
+        checkPersistInsertsThenUpdates(dao);
+    }
+
+    @Test
+    void persistWithoutUpsert() throws Exception {
+        //The default dialect does not support upserts: the presence of the record is checked first
+        EntityDaoFactory defaultFactory = new EntityDaoFactoryImpl(connectionProvider);
+        assertNull(defaultFactory.getSQLGenerator(Item.class).createUpsert());
+        checkPersistInsertsThenUpdates(defaultFactory.getEntityDao(Item.class));
+    }
+
+    private void checkPersistInsertsThenUpdates(EntityDao<Item> dao) throws Exception {
+        Item item = new Item(1, "first");
+        dao.persist(item);
+        assertEquals(1, dao.count());
+        assertEquals("first", dao.select(new Item(1, null)).getName());
+        item.setName("second");
+        dao.persist(item);
+        assertEquals(1, dao.count());
+        assertEquals("second", dao.select(new Item(1, null)).getName());
+        assertEquals(0, connectionProvider.getActiveCount());
+    }
+
+    @Test
+    void multiRowInsert() throws Exception {
+        assertEquals("insert into item (id, name) values (?, ?), (?, ?), (?, ?)",
+                factory.getSQLGenerator(Item.class).createMultiRowInsert(3));
+        assertEquals(factory.getSQLGenerator(Item.class).createInsert(), factory.getSQLGenerator(Item.class).createMultiRowInsert(1));
+    }
+
+    @Test
+    void insertAllByMultiRowStatements() throws Exception {
+        //More than the rows allowed per statement, not a multiple of the sizes of the statements nor of the batch size
+        checkInsertAll(dao, 1000 + 64 + 16 + 3, 100);
+    }
+
+    @Test
+    void insertAllWithoutMultiRowStatements() throws Exception {
+        checkInsertAll(new EntityDaoFactoryImpl(connectionProvider).getEntityDao(Item.class), 123, 50);
+    }
+
+    private void checkInsertAll(EntityDao<Item> dao, int count, int batchSize) throws Exception {
+        List<Item> items = new ArrayList<Item>(count);
+        for (long id = 1; id <= count; id++) {
+            items.add(new Item(id, "item" + id));
+        }
+        dao.insertAll(items, batchSize);
+        assertEquals(count, dao.count());
+        List<Item> inserted = dao.selectAll();
+        assertEquals(count, inserted.size());
+        for (Item item : inserted) {
+            assertEquals("item" + item.getId(), item.getName());
+        }
+        assertEquals(0, connectionProvider.getActiveCount());
+    }
+
+    @Test
+    void cacheIsOnlyUsedWithTheDefaultConnectionProvider() throws Exception {
+        TemporaryDatabase otherDatabase = new TemporaryDatabase();
+        PooledConnectionProvider otherConnectionProvider = otherDatabase.getConnectionProvider();
+        try {
+            factory.setCacheConfiguration(Item.class, new CacheConfiguration(100, 0));
+            EntityDao<Item> cachedDao = factory.getEntityDao(Item.class);
+            EntityDao<Item> otherDao = factory.getEntityDao(Item.class, otherConnectionProvider);
+            new TableManager(otherConnectionProvider, factory).createTable(Item.class);
+            cachedDao.insert(new Item(1, "default"));
+            otherDao.insert(new Item(1, "other"));
+            assertEquals("default", cachedDao.select(new Item(1, null)).getName());
+            assertEquals(1, factory.getEntityCache(Item.class).size());
+            assertEquals("other", otherDao.select(new Item(1, null)).getName());
+            assertEquals("default", cachedDao.select(new Item(1, null)).getName());
+        } finally {
+            otherDatabase.close();
+        }
+    }
+
+    @Test
+    void replicatedTableIsOnlyUsedWithTheDefaultConnectionProvider() throws Exception {
+        TemporaryDatabase otherDatabase = new TemporaryDatabase();
+        PooledConnectionProvider otherConnectionProvider = otherDatabase.getConnectionProvider();
+        try {
+            EntityDao<ReplicatedItem> replicatedDao = factory.getEntityDao(ReplicatedItem.class);
+            EntityDao<ReplicatedItem> otherDao = factory.getEntityDao(ReplicatedItem.class, otherConnectionProvider);
+            new TableManager(factory).createTable(ReplicatedItem.class);
+            new TableManager(otherConnectionProvider, factory).createTable(ReplicatedItem.class);
+            replicatedDao.insert(new ReplicatedItem(1, "default"));
+            otherDao.insert(new ReplicatedItem(1, "other"));
+            otherDao.insert(new ReplicatedItem(2, "other"));
+            assertEquals(1, replicatedDao.selectAll().size());
+            assertEquals(1, factory.getReplicatedTable(ReplicatedItem.class).getLoadCount());
+            assertEquals(2, otherDao.selectAll().size());
+            assertEquals("other", otherDao.select(new ReplicatedItem(1, null)).getName());
+            assertEquals("default", replicatedDao.select(new ReplicatedItem(1, null)).getName());
+            assertEquals(1, factory.getReplicatedTable(ReplicatedItem.class).getLoadCount());
+        } finally {
+            otherDatabase.close();
+        }
+    }
+
+    @Test
+    void selectByIdsBelowTheTemporaryTableThreshold() throws Exception {
+        insertItems(100);
+        //Neither a multiple of nor one of the sizes of the selects: the last chunk is padded
+        List<Long> ids = getIds(1, 83);
+        ids.add(5L);
+        ids.add(1000L);
+        Transaction transaction = factory.beginTransaction();
+        try {
+            checkSelectedItems(dao.selectByIds(ids), 83);
+            assertEquals(0, factory.getJdbcDao().queryForLong(COUNT_KEY_TABLES));
+        } finally {
+            transaction.close();
+        }
+        assertEquals(0, connectionProvider.getActiveCount());
+    }
+
+    @Test
+    void selectByIdsAboveTheTemporaryTableThreshold() throws Exception {
+        int count = EntityDaoImpl.TEMPORARY_TABLE_THRESHOLD * 2 + 100;
+        insertItems(count);
+        List<Long> ids = getIds(1, count);
+        ids.add(1L);
+        ids.add((long) count + 1);
+        Transaction transaction = factory.beginTransaction();
+        try {
+            checkSelectedItems(dao.selectByIds(ids), count);
+            //The keys went through the temporary table of the connection
+            assertEquals(1, factory.getJdbcDao().queryForLong(COUNT_KEY_TABLES));
+        } finally {
+            transaction.close();
+        }
+        List<Item> entities = new ArrayList<Item>();
+        for (long id = 1; id <= count; id++) {
+            entities.add(new Item(id, null));
+        }
+        checkSelectedItems(dao.selectByEntities(entities), count);
+        assertEquals(0, connectionProvider.getActiveCount());
+    }
+
+    @Test
+    void selectByIdsWithoutTemporaryTable() throws Exception {
+        //The default dialect has no temporary key table: all the keys are given as parameters
+        EntityDao<Item> defaultDao = new EntityDaoFactoryImpl(connectionProvider).getEntityDao(Item.class);
+        int count = EntityDaoImpl.TEMPORARY_TABLE_THRESHOLD + 100;
+        insertItems(count);
+        checkSelectedItems(defaultDao.selectByIds(getIds(1, count + 10)), count);
+        assertEquals(0, connectionProvider.getActiveCount());
+    }
+
+    @Test
+    void lazilySelectByIds() throws Exception {
+        int count = EntityDaoImpl.TEMPORARY_TABLE_THRESHOLD + 100;
+        insertItems(count);
+        for (int size : new int[]{10, count}) {
+            LazyResultSetIterable<Item> iterable = dao.lazilySelectByIds(getIds(1, size));
+            int selected = 0;
+            try {
+                for (Item item : iterable) {
+                    assertEquals("item" + item.getId(), item.getName());
+                    selected++;
+                }
+            } finally {
+                iterable.close();
+            }
+            assertEquals(size, selected);
+        }
+        assertEquals(0, connectionProvider.getActiveCount());
+    }
+
+    @Test
+    void stream() throws Exception {
+        insertItems(100);
+        List<Long> ids;
+        try (Stream<Item> stream = dao.stream()) {
+            ids = stream.map(Item::getId).collect(Collectors.toList());
+        }
+        assertEquals(getIds(1, 100), ids);
+        //Released once the last record is read, even if the stream is not closed
+        assertEquals(50, dao.stream(10, "select * from item where id > ?", 50L).count());
+        assertEquals(0, connectionProvider.getActiveCount());
+    }
+
+    @Test
+    void closingAStreamReleasesItsConnection() throws Exception {
+        insertItems(100);
+        try (Stream<Item> stream = dao.stream()) {
+            assertEquals("item1", stream.findFirst().get().getName());
+            assertEquals(1, connectionProvider.getActiveCount());
+        }
+        assertEquals(0, connectionProvider.getActiveCount());
+        try (LongStream stream = factory.getJdbcDao().queryForLongStream("select id from item order by id desc")) {
+            assertEquals(100, stream.findFirst().getAsLong());
+        }
+        assertEquals(0, connectionProvider.getActiveCount());
+    }
+
+    @Test
+    void parallelScanReadsEachRangeOnce() throws Exception {
+        //Keys at both ends of the range of a long: the span of the keys exceeds Long.MAX_VALUE
+        List<Long> ids = getIds(-50, 50);
+        ids.add(Long.MIN_VALUE);
+        ids.add(Long.MIN_VALUE + 1);
+        ids.add(Long.MAX_VALUE);
+        List<Item> items = new ArrayList<Item>();
+        for (Long id : ids) {
+            items.add(new Item(id, "item" + id));
+        }
+        dao.insertAll(items);
+        final List<Long> scanned = Collections.synchronizedList(new ArrayList<Long>());
+        dao.parallelScan(3, item -> scanned.add(item.getId()));
+        Collections.sort(scanned);
+        Collections.sort(ids);
+        assertEquals(ids, scanned);
+        List<Long> streamed;
+        try (Stream<Item> stream = dao.parallelStream()) {
+            streamed = stream.map(Item::getId).sorted().collect(Collectors.toList());
+        }
+        assertEquals(ids, streamed);
+        //More workers than keys
+        dao.deleteAll(dao.selectAll());
+        dao.insert(new Item(7, "item7"));
+        scanned.clear();
+        dao.parallelScan(8, item -> scanned.add(item.getId()));
+        assertEquals(Collections.singletonList(7L), scanned);
+        assertEquals(0, connectionProvider.getActiveCount());
+    }
+
+    @Test
+    void parallelScanOfAnEmptyTable() throws Exception {
+        AtomicInteger scanned = new AtomicInteger();
+        dao.parallelScan(4, item -> scanned.incrementAndGet());
+        assertEquals(0, scanned.get());
+        assertEquals(0, connectionProvider.getActiveCount());
+    }
+
+    @Test
+    void failureStopsTheParallelScan() throws Exception {
+        insertItems(1000);
+        AtomicInteger scanned = new AtomicInteger();
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> dao.parallelScan(2, item -> {
+            if (scanned.incrementAndGet() == 10) {
+                throw new IllegalStateException("Consumer failure");
+            }
+        }));
+        assertEquals("Consumer failure", e.getMessage());
+        assertTrue(scanned.get() < 1000);
+        assertEquals(0, connectionProvider.getActiveCount());
+    }
+
+    @Test
+    void pages() throws Exception {
+        insertItems(25);
+        List<Item> page = dao.page(null, 10);
+        assertEquals(getIds(1, 10), toIds(page));
+        page = dao.page(10L, 10);
+        assertEquals(getIds(11, 20), toIds(page));
+        assertEquals(getIds(21, 25), toIds(dao.page(20L, 10)));
+        assertTrue(dao.page(25L, 10).isEmpty());
+        assertEquals(0, connectionProvider.getActiveCount());
+    }
+
+    @Test
+    void iterateByPages() throws Exception {
+        insertItems(21);
+        List<Long> ids = new ArrayList<Long>();
+        for (Item item : dao.iterateByPages(7)) {
+            //No connection is kept between the pages
+            assertEquals(0, connectionProvider.getActiveCount());
+            ids.add(item.getId());
+        }
+        assertEquals(getIds(1, 21), ids);
+        assertThrows(IllegalArgumentException.class, () -> dao.iterateByPages(0));
+    }
+
+    @Test
+    void pagesOfACompositeKey() throws Exception {
+        new TableManager(factory).createTable(Event.class);
+        EntityDao<Event> eventDao = factory.getEntityDao(Event.class);
+        List<Event> events = new ArrayList<Event>();
+        for (long grp = 1; grp <= 3; grp++) {
+            for (long seq = 1; seq <= 3; seq++) {
+                events.add(new Event(grp, seq));
+            }
+        }
+        eventDao.insertAll(events);
+        assertEquals("[1.3, 2.1, 2.2, 2.3]", eventDao.page(Arrays.asList(1L, 2L), 4).toString());
+        List<String> iterated = new ArrayList<String>();
+        for (Event event : eventDao.iterateByPages(2)) {
+            iterated.add(event.toString());
+        }
+        assertEquals(events.toString(), iterated.toString());
+        //Without row values, the key is compared field by field
+        SQLiteSQLGenerator<Event> generator = new SQLiteSQLGenerator<Event>(Event.class, factory) {
+            @Override
+            protected boolean isRowValueSupported() {
+                return false;
+            }
+        };
+        assertEquals("Select * from event where grp > ? or (grp = ? and seq > ?) order by grp, seq limit ?",
+                generator.createSelectPage(false));
+        List<Event> page = factory.getJdbcDao().select(generator.createSelectPage(false), new EntityRecordMapper<Event>(Event.class, factory),
+                generator.getSelectPageParameters(new Object[]{1L, 2L}, 4));
+        assertEquals("[1.3, 2.1, 2.2, 2.3]", page.toString());
+    }
+
+    private static List<Long> toIds(List<Item> items) {
+        List<Long> ids = new ArrayList<Long>();
+        for (Item item : items) {
+            ids.add(item.getId());
+        }
+        return ids;
+    }
+
+    private void insertItems(int count) throws Exception {
+        List<Item> items = new ArrayList<Item>(count);
+        for (long id = 1; id <= count; id++) {
+            items.add(new Item(id, "item" + id));
+        }
+        dao.insertAll(items);
+    }
+
+    private static List<Long> getIds(long first, long last) {
+        List<Long> ids = new ArrayList<Long>();
+        for (long id = first; id <= last; id++) {
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    private static void checkSelectedItems(Map<Object, Item> items, int count) {
+        assertEquals(count, items.size());
+        for (long id = 1; id <= count; id++) {
+            Item item = items.get(id);
+            assertNotNull(item, "Missing item " + id);
+            assertEquals("item" + id, item.getName());
+        }
     }
 
     @Test
@@ -57,4 +505,4 @@ class EntityDaoImplTest {
     @Test
     void getEntityClass() {
     }
-}
\ No newline at end of file
+}
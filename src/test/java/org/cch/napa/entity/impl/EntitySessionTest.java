@@ -0,0 +1,137 @@
+package org.cch.napa.entity.impl;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.cch.napa.JdbcDao;
+import org.cch.napa.Session;
+import org.cch.napa.entity.EntityDao;
+import org.cch.napa.entity.EntityDaoFactory;
+import org.cch.napa.entity.TableManager;
+import org.cch.napa.entity.impl.sqlite.SQLiteEntityDaoFactory;
+import org.cch.napa.test.Item;
+import org.cch.napa.test.TemporaryDatabase;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EntitySessionTest {
+    private static final String RENAME = "update item set name = ? where id = ?";
+    private TemporaryDatabase database;
+    private EntityDaoFactory factory;
+    private EntityDao<Item> dao;
+    private JdbcDao jdbcDao;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        database = new TemporaryDatabase();
+        factory = new SQLiteEntityDaoFactory(database.getConnectionProvider());
+        new TableManager(factory).createTable(Item.class);
+        dao = factory.getEntityDao(Item.class);
+        jdbcDao = factory.getJdbcDao();
+        dao.insert(new Item(1, "a"));
+        dao.insert(new Item(2, "b"));
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        assertNull(EntitySession.getCurrent(factory));
+        assertEquals(0, database.getConnectionProvider().getActiveCount());
+        database.close();
+    }
+
+    @Test
+    void entitiesKeepTheirIdentityInTheSession() throws Exception {
+        assertNotSame(dao.select(new Item(1, null)), dao.select(new Item(1, null)));
+        try (Session session = factory.openSession()) {
+            Item item = dao.select(new Item(1, null));
+            assertSame(item, dao.select(new Item(1, null)));
+            assertTrue(dao.selectAll().contains(item));
+            assertSame(item, dao.selectByIds(Arrays.asList(1L, 2L)).get(1L));
+            assertEquals(2, session.size());
+            //Changed by other means: the session does not query the DB again
+            jdbcDao.executeUpdate(RENAME, "changed", 1L);
+            assertEquals("a", dao.select(new Item(1, null)).getName());
+            session.detach(item);
+            Item read = dao.select(new Item(1, null));
+            assertNotSame(item, read);
+            assertEquals("changed", read.getName());
+        }
+    }
+
+    @Test
+    void writesReplaceTheEntitiesOfTheSession() throws Exception {
+        try (Session session = factory.openSession()) {
+            Item item = dao.select(new Item(1, null));
+            Item updated = new Item(1, "updated");
+            dao.update(updated);
+            assertSame(updated, dao.select(new Item(1, null)));
+            assertNotSame(item, dao.select(new Item(1, null)));
+            Item inserted = new Item(3, "c");
+            dao.insert(inserted);
+            assertSame(inserted, dao.selectByIds(Arrays.asList(3L)).get(3L));
+            dao.delete(inserted);
+            assertNull(dao.select(new Item(3, null)));
+            session.clear();
+            assertEquals(0, session.size());
+        }
+    }
+
+    @Test
+    void nestedSessionsJoinTheOutermostOne() throws Exception {
+        Session outer = factory.openSession();
+        try {
+            Item item;
+            try (Session inner = factory.openSession()) {
+                item = dao.select(new Item(1, null));
+                assertEquals(1, outer.size());
+            }
+            assertTrue(outer.isActive());
+            assertSame(item, dao.select(new Item(1, null)));
+        } finally {
+            outer.close();
+        }
+        assertFalse(outer.isActive());
+        assertEquals(0, outer.size());
+    }
+
+    @Test
+    void otherThreadsDoNotUseTheSession() throws Exception {
+        try (Session session = factory.openSession()) {
+            final Item item = dao.select(new Item(1, null));
+            final AtomicReference<Object> read = new AtomicReference<Object>();
+            Thread other = new Thread(() -> {
+                try {
+                    read.set(dao.select(new Item(1, null)));
+                } catch (Exception e) {
+                    read.set(e);
+                }
+            });
+            other.start();
+            other.join();
+            assertTrue(read.get() instanceof Item);
+            assertNotSame(item, read.get());
+            assertEquals(1, session.size());
+        }
+    }
+
+    @Test
+    void sessionOfAnotherFactoryIsNotUsed() throws Exception {
+        EntityDaoFactory otherFactory = new SQLiteEntityDaoFactory(database.getConnectionProvider());
+        EntityDao<Item> otherDao = otherFactory.getEntityDao(Item.class);
+        try (Session session = factory.openSession()) {
+            Map<Object, Item> items = otherDao.selectByIds(Arrays.asList(1L, 2L));
+            assertEquals(2, items.size());
+            assertEquals(0, session.size());
+            assertNotSame(items.get(1L), otherDao.select(new Item(1, null)));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.cch.napa.entity.impl;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import org.cch.napa.JdbcDao;
+import org.cch.napa.TemporaryTable;
+import org.cch.napa.Transaction;
+import org.cch.napa.entity.EntityDaoFactory;
+import org.cch.napa.entity.LazyResultSetIterable;
+import org.cch.napa.entity.impl.sqlite.SQLiteEntityDaoFactory;
+import org.cch.napa.jdbc.PooledConnectionProvider;
+import org.cch.napa.mapper.RecordMapper;
+import org.cch.napa.test.TemporaryDatabase;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class JdbcDaoImplTest {
+    private static final TemporaryTable KEYS = new TemporaryTable(
+            "create temp table if not exists test_keys (key_set integer, id integer)",
+            "insert into test_keys (key_set, id) values (?, ?)",
+            "delete from test_keys where key_set = ?");
+    private static final String SELECT_JOINING_KEYS = "select item.id from item join test_keys on test_keys.id = item.id"
+            + " where test_keys.key_set = ? and item.id > ? order by item.id";
+    private static final RecordMapper<Long> ID_MAPPER = new RecordMapper<Long>() {
+        public Long map(ResultSet resultSet) throws SQLException {
+            return resultSet.getLong(1);
+        }
+    };
+    private TemporaryDatabase database;
+    private PooledConnectionProvider connectionProvider;
+    private EntityDaoFactory factory;
+    private JdbcDao jdbcDao;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        database = new TemporaryDatabase();
+        connectionProvider = database.getConnectionProvider();
+        factory = new SQLiteEntityDaoFactory(connectionProvider);
+        jdbcDao = factory.getJdbcDao();
+        jdbcDao.executeUpdate("create table item (id integer primary key)");
+        for (long id = 1; id <= 10; id++) {
+            jdbcDao.executeUpdate("insert into item (id) values (?)", id);
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        assertEquals(0, connectionProvider.getActiveCount());
+        database.close();
+    }
+
+    @Test
+    void selectJoiningATemporaryTable() throws Exception {
+        //More rows than the temporary table batch, some of them not matching any item
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (long id = 1; id <= 2000; id += 2) {
+            rows.add(new Object[]{id});
+        }
+        assertEquals(Arrays.asList(3L, 5L, 7L, 9L), toList(jdbcDao.lazilySelectJoining(KEYS, rows, SELECT_JOINING_KEYS, ID_MAPPER, 1L)));
+    }
+
+    @Test
+    void setsOfRowsAreKeptApartOnTheSameConnection() throws Exception {
+        Transaction transaction = factory.beginTransaction();
+        try {
+            LazyResultSetIterable<Long> odd = jdbcDao.lazilySelectJoining(KEYS, keys(1L, 3L, 5L), SELECT_JOINING_KEYS, ID_MAPPER, 0L);
+            LazyResultSetIterable<Long> even = jdbcDao.lazilySelectJoining(KEYS, keys(2L, 4L), SELECT_JOINING_KEYS, ID_MAPPER, 0L);
+            assertEquals(5, jdbcDao.queryForLong("select count(*) from test_keys"));
+            assertEquals(Arrays.asList(2L, 4L), toList(even));
+            //The rows of a set are deleted when its iterable is closed
+            assertEquals(3, jdbcDao.queryForLong("select count(*) from test_keys"));
+            assertEquals(Arrays.asList(1L, 3L, 5L), toList(odd));
+            assertEquals(0, jdbcDao.queryForLong("select count(*) from test_keys"));
+            transaction.commit();
+        } finally {
+            transaction.close();
+        }
+    }
+
+    private static Collection<Object[]> keys(Long... ids) {
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (Long id : ids) {
+            rows.add(new Object[]{id});
+        }
+        return rows;
+    }
+
+    private static List<Long> toList(LazyResultSetIterable<Long> iterable) throws Exception {
+        List<Long> ids = new ArrayList<Long>();
+        try {
+            Iterator<Long> iterator = iterable.iterator();
+            while (iterator.hasNext()) {
+                ids.add(iterator.next());
+            }
+        } finally {
+            iterable.close();
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,223 @@
+package org.cch.napa.jdbc;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.cch.napa.JdbcDao;
+import org.cch.napa.Transaction;
+import org.cch.napa.TransactionalWork;
+import org.cch.napa.entity.EntityDaoFactory;
+import org.cch.napa.entity.LazyResultSetIterable;
+import org.cch.napa.entity.impl.sqlite.SQLiteEntityDaoFactory;
+import org.cch.napa.exceptions.PersistenceException;
+import org.cch.napa.mapper.RecordMapper;
+import org.cch.napa.test.TemporaryDatabase;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JdbcTransactionTest {
+    private static final String INSERT = "insert into item (id) values (?)";
+    private static final String COUNT = "select count(*) from item";
+    private TemporaryDatabase database;
+    private PooledConnectionProvider connectionProvider;
+    private EntityDaoFactory factory;
+    private JdbcDao jdbcDao;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        database = new TemporaryDatabase();
+        connectionProvider = database.getConnectionProvider();
+        factory = new SQLiteEntityDaoFactory(connectionProvider);
+        jdbcDao = factory.getJdbcDao();
+        jdbcDao.executeUpdate("create table item (id integer primary key)");
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        assertNull(JdbcTransaction.getCurrent(connectionProvider));
+        assertEquals(0, connectionProvider.getActiveCount());
+        database.close();
+    }
+
+    @Test
+    void commit() throws Exception {
+        Transaction transaction = factory.beginTransaction();
+        try {
+            assertSame(transaction, JdbcTransaction.getCurrent(connectionProvider));
+            jdbcDao.executeUpdate(INSERT, 1L);
+            jdbcDao.executeUpdate(INSERT, 2L);
+            //The daos use the connection of the transaction
+            assertEquals(2, jdbcDao.queryForLong(COUNT));
+            assertEquals(1, connectionProvider.getActiveCount());
+            transaction.commit();
+            assertFalse(transaction.isActive());
+        } finally {
+            transaction.close();
+        }
+        assertEquals(2, jdbcDao.queryForLong(COUNT));
+    }
+
+    @Test
+    void closeWithoutCommitRollsBack() throws Exception {
+        Transaction transaction = factory.beginTransaction();
+        try {
+            jdbcDao.executeUpdate(INSERT, 1L);
+        } finally {
+            transaction.close();
+        }
+        assertEquals(0, jdbcDao.queryForLong(COUNT));
+    }
+
+    @Test
+    void innerTransactionJoinsTheOuterOne() throws Exception {
+        JdbcTransaction outer = (JdbcTransaction) factory.beginTransaction();
+        try {
+            JdbcTransaction inner = (JdbcTransaction) factory.beginTransaction();
+            assertSame(outer.getConnection(), inner.getConnection());
+            jdbcDao.executeUpdate(INSERT, 1L);
+            inner.commit();
+            assertTrue(outer.isActive());
+            //The work of the inner transaction is committed with the outer one
+            outer.rollback();
+        } finally {
+            outer.close();
+        }
+        assertEquals(0, jdbcDao.queryForLong(COUNT));
+    }
+
+    @Test
+    void rolledBackInnerTransactionMakesTheOuterOneFail() throws Exception {
+        Transaction outer = factory.beginTransaction();
+        try {
+            jdbcDao.executeUpdate(INSERT, 1L);
+            Transaction inner = factory.beginTransaction();
+            try {
+                jdbcDao.executeUpdate(INSERT, 2L);
+                inner.rollback();
+            } finally {
+                inner.close();
+            }
+            assertThrows(PersistenceException.class, () -> outer.commit());
+        } finally {
+            outer.close();
+        }
+        assertEquals(0, jdbcDao.queryForLong(COUNT));
+    }
+
+    @Test
+    void inTransaction() throws Exception {
+        long count = factory.inTransaction(new TransactionalWork<Long>() {
+            public Long execute() throws PersistenceException {
+                jdbcDao.executeUpdate(INSERT, 1L);
+                return jdbcDao.queryForLong(COUNT);
+            }
+        });
+        assertEquals(1, count);
+        assertThrows(PersistenceException.class, () -> factory.inTransaction(new TransactionalWork<Void>() {
+            public Void execute() throws PersistenceException {
+                jdbcDao.executeUpdate(INSERT, 2L);
+                //Duplicate key: the whole work is rolled back
+                jdbcDao.executeUpdate(INSERT, 1L);
+                return null;
+            }
+        }));
+        assertEquals(1, jdbcDao.queryForLong(COUNT));
+    }
+
+    @Test
+    void otherThreadsDoNotJoinTheTransactionOfASharedConnection() throws Exception {
+        SQLiteConnectionProvider sharedProvider = new SQLiteConnectionProvider(database.getUrl());
+        try {
+            EntityDaoFactory sharedFactory = new SQLiteEntityDaoFactory(sharedProvider);
+            final JdbcDao sharedDao = sharedFactory.getJdbcDao();
+            final CountDownLatch done = new CountDownLatch(1);
+            final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+            Thread other = new Thread() {
+                public void run() {
+                    try {
+                        sharedDao.executeUpdate(INSERT, 2L);
+                    } catch (Exception e) {
+                        failure.set(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            Transaction transaction = sharedFactory.beginTransaction();
+            try {
+                sharedDao.executeUpdate(INSERT, 1L);
+                other.start();
+                //The other thread waits for the end of the transaction instead of writing in it
+                assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+                assertEquals(1, sharedDao.queryForLong(COUNT));
+                transaction.rollback();
+            } finally {
+                transaction.close();
+            }
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertNull(failure.get());
+            //Only the write of the other thread remains
+            assertEquals(1, sharedDao.queryForLong(COUNT));
+            assertEquals(1, sharedDao.queryForLong("select count(*) from item where id = ?", 2L));
+        } finally {
+            sharedProvider.close();
+        }
+    }
+
+    @Test
+    void transactionWaitsForTheLeasesOfOtherThreads() throws Exception {
+        jdbcDao.executeUpdate(INSERT, 1L);
+        SQLiteConnectionProvider sharedProvider = new SQLiteConnectionProvider(database.getUrl());
+        try {
+            final EntityDaoFactory sharedFactory = new SQLiteEntityDaoFactory(sharedProvider);
+            final JdbcDao sharedDao = sharedFactory.getJdbcDao();
+            final CountDownLatch begun = new CountDownLatch(1);
+            final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+            LazyResultSetIterable<Long> ids = sharedDao.lazilySelect("select id from item", new RecordMapper<Long>() {
+                public Long map(java.sql.ResultSet resultSet) throws java.sql.SQLException {
+                    return resultSet.getLong(1);
+                }
+            });
+            Thread other = new Thread() {
+                public void run() {
+                    try {
+                        Transaction transaction = sharedFactory.beginTransaction();
+                        begun.countDown();
+                        try {
+                            sharedDao.executeUpdate(INSERT, 2L);
+                            transaction.commit();
+                        } finally {
+                            transaction.close();
+                        }
+                    } catch (Exception e) {
+                        failure.set(e);
+                        begun.countDown();
+                    }
+                }
+            };
+            try {
+                other.start();
+                //The statement of this thread is still open on the shared connection
+                assertFalse(begun.await(100, TimeUnit.MILLISECONDS));
+                assertEquals(1L, (long) ids.iterator().next());
+            } finally {
+                ids.close();
+            }
+            assertTrue(begun.await(5, TimeUnit.SECONDS));
+            other.join();
+            assertNull(failure.get());
+            assertEquals(2, sharedDao.queryForLong(COUNT));
+        } finally {
+            sharedProvider.close();
+        }
+    }
+}
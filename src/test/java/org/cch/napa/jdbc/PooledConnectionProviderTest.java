@@ -0,0 +1,148 @@
+package org.cch.napa.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.cch.napa.test.TemporaryDatabase;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PooledConnectionProviderTest {
+    private TemporaryDatabase database;
+    private PooledConnectionProvider connectionProvider;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        database = new TemporaryDatabase();
+        connectionProvider = database.getConnectionProvider();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        database.close();
+    }
+
+    @Test
+    void releasedConnectionIsLeasedAgain() throws Exception {
+        Connection connection = connectionProvider.getConnection();
+        assertEquals(1, connectionProvider.getActiveCount());
+        assertEquals(0, connectionProvider.getIdleCount());
+        connectionProvider.releaseConnection(connection);
+        assertEquals(0, connectionProvider.getActiveCount());
+        assertEquals(1, connectionProvider.getIdleCount());
+        assertSame(connection, connectionProvider.getConnection());
+        assertEquals(1, connectionProvider.getCreatedCount());
+        assertEquals(2, connectionProvider.getBorrowCount());
+        connectionProvider.releaseConnection(connection);
+        //Released twice: ignored
+        connectionProvider.releaseConnection(connection);
+        assertEquals(0, connectionProvider.getActiveCount());
+        assertEquals(1, connectionProvider.getIdleCount());
+    }
+
+    @Test
+    void concurrentLeasesGetDistinctConnections() throws Exception {
+        Connection first = connectionProvider.getConnection();
+        Connection second = connectionProvider.getConnection();
+        assertNotSame(first, second);
+        assertEquals(2, connectionProvider.getActiveCount());
+        connectionProvider.releaseConnection(first);
+        connectionProvider.releaseConnection(second);
+        assertEquals(2, connectionProvider.getIdleCount());
+    }
+
+    @Test
+    void exhaustedPoolTimesOut() throws Exception {
+        connectionProvider.setBorrowTimeout(50);
+        Connection first = connectionProvider.getConnection();
+        Connection second = connectionProvider.getConnection();
+        assertThrows(SQLTimeoutException.class, () -> connectionProvider.getConnection());
+        assertEquals(1, connectionProvider.getTimeoutCount());
+        assertEquals(2, connectionProvider.getActiveCount());
+        connectionProvider.releaseConnection(first);
+        connectionProvider.releaseConnection(second);
+    }
+
+    @Test
+    void exhaustedPoolWaitsForARelease() throws Exception {
+        final Connection first = connectionProvider.getConnection();
+        Connection second = connectionProvider.getConnection();
+        final AtomicReference<Connection> leased = new AtomicReference<Connection>();
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread waiting = new Thread() {
+            public void run() {
+                try {
+                    leased.set(connectionProvider.getConnection());
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        waiting.start();
+        Thread.sleep(50);
+        assertEquals(1, done.getCount());
+        connectionProvider.releaseConnection(first);
+        done.await();
+        assertSame(first, leased.get());
+        connectionProvider.releaseConnection(first);
+        connectionProvider.releaseConnection(second);
+        assertEquals(0, connectionProvider.getActiveCount());
+    }
+
+    @Test
+    void uncommittedChangesAreRolledBackOnRelease() throws Exception {
+        Connection connection = connectionProvider.getConnection();
+        Statement statement = connection.createStatement();
+        statement.executeUpdate("create table item (id integer)");
+        statement.close();
+        connection.setAutoCommit(false);
+        statement = connection.createStatement();
+        statement.executeUpdate("insert into item (id) values (1)");
+        statement.close();
+        connectionProvider.releaseConnection(connection);
+        connection = connectionProvider.getConnection();
+        statement = connection.createStatement();
+        assertFalse(statement.executeQuery("select * from item").next());
+        statement.close();
+        connectionProvider.releaseConnection(connection);
+    }
+
+    @Test
+    void resetConnectionIsLeasedUntilReleased() throws Exception {
+        Connection idle = connectionProvider.getConnection();
+        connectionProvider.releaseConnection(idle);
+        Connection connection = connectionProvider.resetConnection();
+        assertTrue(idle.isClosed());
+        assertNotSame(idle, connection);
+        assertEquals(1, connectionProvider.getActiveCount());
+        connectionProvider.releaseConnection(connection);
+        assertEquals(0, connectionProvider.getActiveCount());
+        assertEquals(1, connectionProvider.getIdleCount());
+    }
+
+    @Test
+    void closedPoolClosesTheConnections() throws Exception {
+        Connection idle = connectionProvider.getConnection();
+        Connection leased = connectionProvider.getConnection();
+        connectionProvider.releaseConnection(idle);
+        connectionProvider.close();
+        assertTrue(idle.isClosed());
+        assertFalse(leased.isClosed());
+        connectionProvider.releaseConnection(leased);
+        assertTrue(leased.isClosed());
+        assertThrows(java.sql.SQLException.class, () -> connectionProvider.getConnection());
+    }
+}
@@ -0,0 +1,150 @@
+package org.cch.napa.jdbc;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.cch.napa.JdbcDao;
+import org.cch.napa.entity.impl.sqlite.SQLiteEntityDaoFactory;
+import org.cch.napa.test.TemporaryDatabase;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SQLiteWalConnectionProviderTest {
+    private TemporaryDatabase database;
+    private SQLiteWalConnectionProvider connectionProvider;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        database = new TemporaryDatabase();
+        connectionProvider = new SQLiteWalConnectionProvider(database.getUrl(), 2);
+        Connection writer = connectionProvider.getConnection();
+        try {
+            execute(writer, "create table item (id integer primary key)");
+            execute(writer, "insert into item (id) values (1)");
+        } finally {
+            connectionProvider.releaseConnection(writer);
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        connectionProvider.close();
+        database.close();
+    }
+
+    @Test
+    void writerIsSharedAndReadersAreReadOnly() throws Exception {
+        Connection writer = connectionProvider.getConnection();
+        assertEquals("wal", queryForString(writer, "PRAGMA journal_mode"));
+        connectionProvider.releaseConnection(writer);
+        assertSame(writer, connectionProvider.getConnection());
+        connectionProvider.releaseConnection(writer);
+        Connection reader = connectionProvider.getReadConnection();
+        try {
+            assertNotSame(writer, reader);
+            assertEquals("1", queryForString(reader, "select count(*) from item"));
+            assertThrows(SQLException.class, () -> execute(reader, "insert into item (id) values (2)"));
+            assertEquals(1, connectionProvider.getReaders().getActiveCount());
+        } finally {
+            connectionProvider.releaseConnection(reader);
+        }
+        assertEquals(0, connectionProvider.getReaders().getActiveCount());
+        assertEquals(1, connectionProvider.getReaders().getIdleCount());
+    }
+
+    @Test
+    void readersDoNotWaitForTheWriter() throws Exception {
+        Connection writer = connectionProvider.getConnection();
+        try {
+            writer.setAutoCommit(false);
+            execute(writer, "insert into item (id) values (2)");
+            //The uncommitted change is not seen, but the reader is not blocked
+            Connection reader = connectionProvider.getReadConnection();
+            try {
+                assertEquals("1", queryForString(reader, "select count(*) from item"));
+            } finally {
+                connectionProvider.releaseConnection(reader);
+            }
+            writer.commit();
+        } finally {
+            writer.setAutoCommit(true);
+            connectionProvider.releaseConnection(writer);
+        }
+        Connection reader = connectionProvider.getReadConnection();
+        try {
+            assertEquals("2", queryForString(reader, "select count(*) from item"));
+        } finally {
+            connectionProvider.releaseConnection(reader);
+        }
+    }
+
+    @Test
+    void writerIsLeasedToOneThreadAtATime() throws Exception {
+        connectionProvider.setBorrowTimeout(50);
+        final Connection writer = connectionProvider.getConnection();
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        final AtomicReference<Exception> releaseFailure = new AtomicReference<Exception>();
+        Thread other = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    connectionProvider.releaseConnection(writer);
+                } catch (Exception e) {
+                    releaseFailure.set(e);
+                }
+                try {
+                    connectionProvider.getConnection();
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            }
+        });
+        other.start();
+        other.join();
+        connectionProvider.releaseConnection(writer);
+        //The writer must be released by the thread that leased it
+        assertTrue(releaseFailure.get() instanceof SQLException);
+        assertTrue(failure.get() instanceof SQLTimeoutException);
+    }
+
+    @Test
+    void daoQueriesGoThroughTheReaders() throws Exception {
+        JdbcDao jdbcDao = new SQLiteEntityDaoFactory(connectionProvider).getJdbcDao();
+        PooledConnectionProvider readers = connectionProvider.getReaders();
+        jdbcDao.executeUpdate("insert into item (id) values (?)", 2L);
+        assertEquals(0, readers.getBorrowCount());
+        assertEquals(2, jdbcDao.queryForLong("select count(*) from item"));
+        assertEquals(1, readers.getBorrowCount());
+        assertEquals(0, readers.getActiveCount());
+    }
+
+    private static void execute(Connection connection, String query) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            statement.executeUpdate(query);
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static String queryForString(Connection connection, String query) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            ResultSet resultSet = statement.executeQuery(query);
+            resultSet.next();
+            return resultSet.getString(1);
+        } finally {
+            statement.close();
+        }
+    }
+}
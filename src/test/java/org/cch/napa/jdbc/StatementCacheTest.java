@@ -0,0 +1,136 @@
+package org.cch.napa.jdbc;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+
+import org.cch.napa.JdbcDao;
+import org.cch.napa.entity.EntityDaoFactory;
+import org.cch.napa.entity.impl.sqlite.SQLiteEntityDaoFactory;
+import org.cch.napa.test.TemporaryDatabase;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StatementCacheTest {
+    private TemporaryDatabase database;
+    private Connection connection;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        database = new TemporaryDatabase(1);
+        connection = DriverManager.getConnection(database.getUrl());
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        StatementCache.discard(connection);
+        connection.close();
+        StatementCache.setDefaultCapacity(StatementCache.DEFAULT_CAPACITY);
+        database.close();
+    }
+
+    @Test
+    void releasedStatementIsReused() throws Exception {
+        StatementCache cache = StatementCache.getCache(connection);
+        assertSame(cache, StatementCache.getCache(connection));
+        PreparedStatement statement = cache.prepare("select ?");
+        statement.setInt(1, 1);
+        cache.release(statement);
+        assertEquals(1, cache.size());
+        assertSame(statement, cache.prepare("select ?"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0, cache.size());
+        cache.release(statement);
+    }
+
+    @Test
+    void statementInUseIsNotShared() throws Exception {
+        StatementCache cache = StatementCache.getCache(connection);
+        PreparedStatement first = cache.prepare("select ?");
+        PreparedStatement second = cache.prepare("select ?");
+        assertNotSame(first, second);
+        cache.release(first);
+        cache.release(second);
+        //Only one statement is kept per query
+        assertEquals(1, cache.size());
+        assertTrue(first.isClosed() != second.isClosed());
+    }
+
+    @Test
+    void leastRecentlyUsedStatementIsEvicted() throws Exception {
+        StatementCache.setDefaultCapacity(2);
+        StatementCache cache = StatementCache.getCache(connection);
+        PreparedStatement first = cache.prepare("select 1");
+        PreparedStatement second = cache.prepare("select 2");
+        PreparedStatement third = cache.prepare("select 3");
+        cache.release(first);
+        cache.release(second);
+        cache.release(third);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertTrue(first.isClosed());
+        assertFalse(third.isClosed());
+    }
+
+    @Test
+    void invalidatedStatementIsClosed() throws Exception {
+        StatementCache cache = StatementCache.getCache(connection);
+        PreparedStatement statement = cache.prepare("select 1");
+        cache.invalidate(statement);
+        assertTrue(statement.isClosed());
+        assertEquals(0, cache.size());
+        assertNotSame(statement, cache.prepare("select 1"));
+    }
+
+    @Test
+    void discardClosesTheStatements() throws Exception {
+        StatementCache cache = StatementCache.getCache(connection);
+        PreparedStatement statement = cache.prepare("select 1");
+        cache.release(statement);
+        StatementCache.discard(connection);
+        assertTrue(statement.isClosed());
+        assertEquals(0, cache.size());
+        assertNotSame(cache, StatementCache.getCache(connection));
+    }
+
+    @Test
+    void cacheOfAClosedConnectionIsPurged() throws Exception {
+        Connection other = DriverManager.getConnection(database.getUrl());
+        StatementCache cache = StatementCache.getCache(other);
+        PreparedStatement statement = cache.prepare("select 1");
+        cache.release(statement);
+        //Closed without discarding its cache
+        other.close();
+        assertSame(StatementCache.getCache(connection), StatementCache.getCache(connection));
+        assertEquals(0, cache.size());
+        assertNotSame(cache, StatementCache.getCache(other));
+        StatementCache.discard(other);
+    }
+
+    @Test
+    void poolClosingDiscardsTheStatements() throws Exception {
+        PooledConnectionProvider connectionProvider = database.getConnectionProvider();
+        EntityDaoFactory factory = new SQLiteEntityDaoFactory(connectionProvider);
+        JdbcDao jdbcDao = factory.getJdbcDao();
+        long hits = StatementCache.getTotalHitCount();
+        assertEquals(1, jdbcDao.queryForLong("select ?", 1L));
+        assertEquals(2, jdbcDao.queryForLong("select ?", 2L));
+        assertEquals(hits + 1, StatementCache.getTotalHitCount());
+        Connection pooled = connectionProvider.getConnection();
+        StatementCache cache = StatementCache.getCache(pooled);
+        PreparedStatement statement = cache.prepare("select ?");
+        cache.release(statement);
+        connectionProvider.releaseConnection(pooled);
+        connectionProvider.close();
+        assertTrue(pooled.isClosed());
+        assertTrue(statement.isClosed());
+    }
+}
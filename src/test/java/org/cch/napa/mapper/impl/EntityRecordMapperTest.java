@@ -0,0 +1,54 @@
+package org.cch.napa.mapper.impl;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.cch.napa.exceptions.PersistenceException;
+import org.cch.napa.test.Item;
+import org.cch.napa.test.TemporaryDatabase;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EntityRecordMapperTest {
+    private Connection connection;
+    private EntityRecordMapper<Item> mapper;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        mapper = new EntityRecordMapper<Item>(Item.class, TemporaryDatabase.createOfflineFactory());
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    @Test
+    void columnsAreMappedToTheFields() throws Exception {
+        ResultSet resultSet = query("select 'first' as name, 1 as id");
+        Item item = mapper.map(resultSet);
+        assertEquals(1, item.getId());
+        assertEquals("first", item.getName());
+    }
+
+    @Test
+    void unknownColumnFailsTheMapping() throws Exception {
+        ResultSet resultSet = query("select 1 as id, 'first' as label");
+        PersistenceException e = assertThrows(PersistenceException.class, () -> mapper.map(resultSet));
+        assertTrue(e.getMessage().contains("label"));
+    }
+
+    private ResultSet query(String query) throws SQLException {
+        ResultSet resultSet = connection.createStatement().executeQuery(query);
+        resultSet.next();
+        return resultSet;
+    }
+}
@@ -0,0 +1,38 @@
+package org.cch.napa.test;
+
+import org.cch.napa.entity.annotations.Entity;
+import org.cch.napa.entity.annotations.Id;
+
+/**
+ * Entity shared by the tests, stored in the table item (id, name)
+ */
+@Entity(table = "item")
+public class Item {
+    @Id
+    private long id;
+    private String name;
+
+    public Item() {
+    }
+
+    public Item(long id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+}
@@ -0,0 +1,60 @@
+package org.cch.napa.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+
+import org.cch.napa.entity.EntityDaoFactory;
+import org.cch.napa.entity.impl.sqlite.SQLiteEntityDaoFactory;
+import org.cch.napa.jdbc.BasicConnectionProvider;
+import org.cch.napa.jdbc.PooledConnectionProvider;
+
+/**
+ * SQLite database in a temporary file, accessed through a pool of connections, deleted by {@link #close()}
+ */
+public class TemporaryDatabase {
+    private final File file;
+    private final PooledConnectionProvider connectionProvider;
+
+    public TemporaryDatabase() throws IOException {
+        this(2);
+    }
+
+    /**
+     * @param poolSize the maximum number of connections of the pool
+     */
+    public TemporaryDatabase(int poolSize) throws IOException {
+        file = File.createTempFile("napa", ".db");
+        connectionProvider = new PooledConnectionProvider(getUrl(), poolSize);
+    }
+
+    /**
+     * @return the JDBC url of the database
+     */
+    public String getUrl() {
+        return "jdbc:sqlite:" + file.getPath();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public PooledConnectionProvider getConnectionProvider() {
+        return connectionProvider;
+    }
+
+    /**
+     * Closes the pool and deletes the file
+     */
+    public void close() throws SQLException {
+        connectionProvider.close();
+        file.delete();
+    }
+
+    /**
+     * @return a factory for the tests that do not connect to a DB (handlers, caches, mappers...)
+     */
+    public static EntityDaoFactory createOfflineFactory() {
+        return new SQLiteEntityDaoFactory(new BasicConnectionProvider("jdbc:sqlite::memory:"));
+    }
+}